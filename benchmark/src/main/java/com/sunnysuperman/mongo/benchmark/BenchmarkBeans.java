@@ -0,0 +1,293 @@
+package com.sunnysuperman.mongo.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sunnysuperman.repository.serialize.IdGenerator;
+import com.sunnysuperman.repository.serialize.SerializeBean;
+import com.sunnysuperman.repository.serialize.SerializeId;
+import com.sunnysuperman.repository.serialize.SerializeProperty;
+
+public class BenchmarkBeans {
+
+    @SerializeBean(value = "bench_flat", camel2underline = false)
+    public static class FlatBean {
+        @SerializeId(generator = IdGenerator.PROVIDE)
+        @SerializeProperty(column = "_id")
+        private String id;
+
+        @SerializeProperty(updatable = false)
+        private Long createdAt;
+
+        @SerializeProperty
+        private String name;
+
+        @SerializeProperty
+        private Integer count;
+
+        @SerializeProperty
+        private Double score;
+
+        @SerializeProperty
+        private Boolean enabled;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public Long getCreatedAt() {
+            return createdAt;
+        }
+
+        public void setCreatedAt(Long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public Integer getCount() {
+            return count;
+        }
+
+        public void setCount(Integer count) {
+            this.count = count;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+
+        public void setScore(Double score) {
+            this.score = score;
+        }
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(Boolean enabled) {
+            this.enabled = enabled;
+        }
+
+    }
+
+    public static class Address {
+        private String city;
+        private String street;
+        private Integer zip;
+
+        public String getCity() {
+            return city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+
+        public String getStreet() {
+            return street;
+        }
+
+        public void setStreet(String street) {
+            this.street = street;
+        }
+
+        public Integer getZip() {
+            return zip;
+        }
+
+        public void setZip(Integer zip) {
+            this.zip = zip;
+        }
+
+    }
+
+    @SerializeBean(value = "bench_nested", camel2underline = false)
+    public static class NestedBean {
+        @SerializeId(generator = IdGenerator.PROVIDE)
+        @SerializeProperty(column = "_id")
+        private String id;
+
+        @SerializeProperty
+        private Address home;
+
+        @SerializeProperty
+        private Address office;
+
+        @SerializeProperty
+        private Map<String, Object> attributes;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public Address getHome() {
+            return home;
+        }
+
+        public void setHome(Address home) {
+            this.home = home;
+        }
+
+        public Address getOffice() {
+            return office;
+        }
+
+        public void setOffice(Address office) {
+            this.office = office;
+        }
+
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        public void setAttributes(Map<String, Object> attributes) {
+            this.attributes = attributes;
+        }
+
+    }
+
+    @SerializeBean(value = "bench_array", camel2underline = false)
+    public static class ArrayBean {
+        @SerializeId(generator = IdGenerator.PROVIDE)
+        @SerializeProperty(column = "_id")
+        private String id;
+
+        @SerializeProperty
+        private int[] counts;
+
+        @SerializeProperty
+        private long[] timestamps;
+
+        @SerializeProperty
+        private double[] weights;
+
+        @SerializeProperty
+        private List<String> tags;
+
+        @SerializeProperty
+        private List<Address> addresses;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public int[] getCounts() {
+            return counts;
+        }
+
+        public void setCounts(int[] counts) {
+            this.counts = counts;
+        }
+
+        public long[] getTimestamps() {
+            return timestamps;
+        }
+
+        public void setTimestamps(long[] timestamps) {
+            this.timestamps = timestamps;
+        }
+
+        public double[] getWeights() {
+            return weights;
+        }
+
+        public void setWeights(double[] weights) {
+            this.weights = weights;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+
+        public List<Address> getAddresses() {
+            return addresses;
+        }
+
+        public void setAddresses(List<Address> addresses) {
+            this.addresses = addresses;
+        }
+
+    }
+
+    public static FlatBean newFlatBean(int i) {
+        FlatBean bean = new FlatBean();
+        bean.setId("flat-" + i);
+        bean.setCreatedAt(1500000000000L + i);
+        bean.setName("name of bean " + i);
+        bean.setCount(i);
+        bean.setScore(i * 0.5);
+        bean.setEnabled(i % 2 == 0);
+        return bean;
+    }
+
+    public static Address newAddress(int i) {
+        Address address = new Address();
+        address.setCity("city-" + i);
+        address.setStreet(i + " main street");
+        address.setZip(10000 + i);
+        return address;
+    }
+
+    public static NestedBean newNestedBean(int i) {
+        NestedBean bean = new NestedBean();
+        bean.setId("nested-" + i);
+        bean.setHome(newAddress(i));
+        bean.setOffice(newAddress(i + 1));
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("level", i);
+        attributes.put("label", "label-" + i);
+        attributes.put("address", newAddress(i + 2));
+        bean.setAttributes(attributes);
+        return bean;
+    }
+
+    public static ArrayBean newArrayBean(int i, int size) {
+        ArrayBean bean = new ArrayBean();
+        bean.setId("array-" + i);
+        int[] counts = new int[size];
+        long[] timestamps = new long[size];
+        double[] weights = new double[size];
+        List<String> tags = new ArrayList<>(size);
+        List<Address> addresses = new ArrayList<>(size / 10);
+        for (int k = 0; k < size; k++) {
+            counts[k] = k;
+            timestamps[k] = 1500000000000L + k * 1000L;
+            weights[k] = k * 0.25;
+            tags.add("tag-" + k);
+            if (k % 10 == 0) {
+                addresses.add(newAddress(k));
+            }
+        }
+        bean.setCounts(counts);
+        bean.setTimestamps(timestamps);
+        bean.setWeights(weights);
+        bean.setTags(tags);
+        bean.setAddresses(addresses);
+        return bean;
+    }
+}
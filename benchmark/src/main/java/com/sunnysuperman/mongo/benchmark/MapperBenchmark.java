@@ -0,0 +1,82 @@
+package com.sunnysuperman.mongo.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sunnysuperman.mongo.MongoSerializer;
+import com.sunnysuperman.mongo.benchmark.BenchmarkBeans.FlatBean;
+import com.sunnysuperman.mongo.mapper.BeanMongoMapper;
+import com.sunnysuperman.mongo.mapper.LongMongoMapper;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.repository.serialize.Serializer;
+
+/**
+ * Mapper cost on decoded documents, with BSON decoding alone as the baseline for the wire-to-bean path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MapperBenchmark {
+    private final DocumentCodec codec = new DocumentCodec();
+    private final DecoderContext decoderContext = DecoderContext.builder().build();
+    private final BeanMongoMapper<FlatBean> beanMapper = new BeanMongoMapper<FlatBean>(FlatBean.class);
+    private Document flatDoc;
+    private Document countDoc;
+    private byte[] flatBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        Serializer.scan(BenchmarkBeans.class.getPackage().getName());
+        flatDoc = MongoSerializer.serialize(BenchmarkBeans.newFlatBean(1));
+        countDoc = new Document("count", 12345L);
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), flatDoc, EncoderContext.builder().build());
+        flatBytes = buffer.toByteArray();
+    }
+
+    @Benchmark
+    public Document decodeDocument() {
+        return codec.decode(new BsonBinaryReader(ByteBuffer.wrap(flatBytes)), decoderContext);
+    }
+
+    @Benchmark
+    public FlatBean beanMapper() {
+        return beanMapper.map(flatDoc);
+    }
+
+    @Benchmark
+    public FlatBean decodeAndBeanMapper() {
+        return beanMapper.map(decodeDocument());
+    }
+
+    @Benchmark
+    public Long longMapper() {
+        return LongMongoMapper.getInstance().map(countDoc);
+    }
+
+    @Benchmark
+    public Document rawMapper() {
+        return RawMongoMapper.getInstance().map(flatDoc);
+    }
+}
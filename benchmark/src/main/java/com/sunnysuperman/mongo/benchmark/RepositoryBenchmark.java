@@ -0,0 +1,99 @@
+package com.sunnysuperman.mongo.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.benchmark.BenchmarkBeans.FlatBean;
+import com.sunnysuperman.mongo.mapper.BeanMongoMapper;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.repository.serialize.Serializer;
+
+/**
+ * End-to-end repository paths (serialize, write, query, map) against the in-memory engine, so the numbers cover the
+ * repository layers without network or server noise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryBenchmark {
+    private static final String COLLECTION = "bench_flat";
+
+    @Param({ "1000" })
+    private int size;
+
+    private MongoRepository repository;
+    private BeanMongoMapper<FlatBean> beanMapper;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int size) {
+            next = (next + 1) % size;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Serializer.scan(BenchmarkBeans.class.getPackage().getName());
+        MemoryMongoRepository memory = new MemoryMongoRepository("bench");
+        memory.getMemoryDatabase().getCollection(COLLECTION).createIndex(new Document("createdAt", 1));
+        repository = memory;
+        beanMapper = new BeanMongoMapper<FlatBean>(FlatBean.class);
+        for (int i = 0; i < size; i++) {
+            repository.insert(BenchmarkBeans.newFlatBean(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public boolean save(Cursor cursor) {
+        return repository.save(BenchmarkBeans.newFlatBean(cursor.next(size)));
+    }
+
+    @Benchmark
+    public FlatBean findById(Cursor cursor) {
+        return repository.findById(COLLECTION, "flat-" + cursor.next(size), beanMapper);
+    }
+
+    @Benchmark
+    public List<FlatBean> findForList(Cursor cursor) {
+        long from = 1500000000000L + cursor.next(size);
+        return repository.findForList(COLLECTION, Filters.gte("createdAt", from), Sorts.ascending("createdAt"), null,
+                0, 20, beanMapper);
+    }
+
+    @Benchmark
+    public List<Document> findForListRaw(Cursor cursor) {
+        long from = 1500000000000L + cursor.next(size);
+        return repository.findForList(COLLECTION, Filters.gte("createdAt", from), Sorts.ascending("createdAt"), null,
+                0, 20, RawMongoMapper.getInstance());
+    }
+}
@@ -0,0 +1,86 @@
+package com.sunnysuperman.mongo.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sunnysuperman.mongo.MongoSerializer;
+import com.sunnysuperman.mongo.benchmark.BenchmarkBeans.ArrayBean;
+import com.sunnysuperman.mongo.benchmark.BenchmarkBeans.FlatBean;
+import com.sunnysuperman.mongo.benchmark.BenchmarkBeans.NestedBean;
+import com.sunnysuperman.repository.InsertUpdate;
+import com.sunnysuperman.repository.serialize.Serializer;
+
+/**
+ * MongoSerializer.serialize (bean reflection plus conversion) and MongoSerializer.serializeMap (conversion only).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+    @Param({ "16", "256" })
+    private int arraySize;
+
+    private FlatBean flat;
+    private NestedBean nested;
+    private ArrayBean array;
+    private Map<String, Object> flatMap;
+    private Map<String, Object> nestedMap;
+    private Map<String, Object> arrayMap;
+
+    @Setup
+    public void setup() throws Exception {
+        Serializer.scan(BenchmarkBeans.class.getPackage().getName());
+        flat = BenchmarkBeans.newFlatBean(1);
+        nested = BenchmarkBeans.newNestedBean(1);
+        array = BenchmarkBeans.newArrayBean(1, arraySize);
+        flatMap = Serializer.serialize(flat, null, InsertUpdate.INSERT).getDoc();
+        nestedMap = Serializer.serialize(nested, null, InsertUpdate.INSERT).getDoc();
+        arrayMap = Serializer.serialize(array, null, InsertUpdate.INSERT).getDoc();
+    }
+
+    @Benchmark
+    public Document serializeFlat() {
+        return MongoSerializer.serialize(flat);
+    }
+
+    @Benchmark
+    public Document serializeNested() {
+        return MongoSerializer.serialize(nested);
+    }
+
+    @Benchmark
+    public Document serializeArray() {
+        return MongoSerializer.serialize(array);
+    }
+
+    @Benchmark
+    public Document serializeMapFlat() {
+        return MongoSerializer.serializeMap(flatMap, true);
+    }
+
+    @Benchmark
+    public Document serializeMapNested() {
+        return MongoSerializer.serializeMap(nestedMap, true);
+    }
+
+    @Benchmark
+    public Document serializeMapArray() {
+        return MongoSerializer.serializeMap(arrayMap, true);
+    }
+}
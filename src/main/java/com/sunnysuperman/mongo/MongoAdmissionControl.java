@@ -0,0 +1,102 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bulkheads of {@link MongoRepository}: each collection gets its own concurrency limit per operation type, so a slow
+ * query pattern exhausts its own slots and fails fast with {@link MongoRejectedException} instead of occupying every
+ * connection of the driver pool. A collection and type without a configuration, collection specific or default, is
+ * not limited.
+ */
+public class MongoAdmissionControl {
+    private final Map<MongoOperationType, MongoBulkheadConfig> defaults = new EnumMap<>(MongoOperationType.class);
+    private final Map<String, MongoBulkheadConfig> configs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MongoBulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    private static String key(String collectionName, MongoOperationType type) {
+        return collectionName + "|" + type.name();
+    }
+
+    /**
+     * Existing bulkheads of the type without a collection specific configuration are reconfigured in place, so
+     * permits in flight keep counting against the limit.
+     */
+    public synchronized MongoAdmissionControl setDefault(MongoOperationType type, MongoBulkheadConfig config) {
+        if (config == null) {
+            defaults.remove(type);
+        } else {
+            defaults.put(type, config);
+        }
+        for (MongoBulkhead bulkhead : bulkheads.values()) {
+            if (bulkhead.getType() == type && !configs.containsKey(key(bulkhead.getCollectionName(), type))) {
+                reconfigure(bulkhead, config);
+            }
+        }
+        return this;
+    }
+
+    public synchronized MongoAdmissionControl set(String collectionName, MongoOperationType type,
+            MongoBulkheadConfig config) {
+        String key = key(collectionName, type);
+        if (config == null) {
+            configs.remove(key);
+            config = defaults.get(type);
+        } else {
+            configs.put(key, config);
+        }
+        MongoBulkhead bulkhead = bulkheads.get(key);
+        if (bulkhead != null) {
+            reconfigure(bulkhead, config);
+        }
+        return this;
+    }
+
+    private void reconfigure(MongoBulkhead bulkhead, MongoBulkheadConfig config) {
+        if (config == null) {
+            // no longer limited
+            bulkheads.remove(key(bulkhead.getCollectionName(), bulkhead.getType()), bulkhead);
+        } else {
+            bulkhead.reconfigure(config);
+        }
+    }
+
+    public MongoBulkhead getBulkhead(String collectionName, MongoOperationType type) {
+        MongoBulkhead bulkhead = bulkheads.get(key(collectionName, type));
+        return bulkhead == null ? createBulkhead(collectionName, type) : bulkhead;
+    }
+
+    // under the same lock as the setters, a bulkhead is never created from a configuration being replaced
+    private synchronized MongoBulkhead createBulkhead(String collectionName, MongoOperationType type) {
+        String key = key(collectionName, type);
+        MongoBulkhead bulkhead = bulkheads.get(key);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        MongoBulkheadConfig config = configs.get(key);
+        if (config == null) {
+            config = defaults.get(type);
+        }
+        if (config == null) {
+            return null;
+        }
+        bulkhead = new MongoBulkhead(collectionName, type, config);
+        bulkheads.put(key, bulkhead);
+        return bulkhead;
+    }
+
+    /**
+     * @return permit to release when the operation ends, null when the collection and type are not limited
+     */
+    public MongoBulkhead.Permit acquire(String collectionName, MongoOperationType type) {
+        MongoBulkhead bulkhead = getBulkhead(collectionName, type);
+        return bulkhead == null ? null : bulkhead.acquire();
+    }
+
+    public List<MongoBulkhead> getBulkheads() {
+        return new ArrayList<>(bulkheads.values());
+    }
+}
@@ -0,0 +1,34 @@
+package com.sunnysuperman.mongo;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * Metadata and deserializer of a {@code @SerializeBean} generated at compile time by
+ * {@link com.sunnysuperman.mongo.processor.MongoBeanProcessor}, used instead of reflection when present. Beans are
+ * still serialized for writes by ss-repository's {@code Serializer}.
+ */
+public interface MongoBeanCodec<T> {
+
+    Class<T> getBeanClass();
+
+    String getCollectionName();
+
+    /**
+     * @return column name to threshold of {@link MongoCompressed} properties
+     */
+    Map<String, Integer> getCompressedColumns();
+
+    /**
+     * @return column names of {@link MongoPacked} properties
+     */
+    Set<String> getPackedColumns();
+
+    /**
+     * @param doc
+     *            stored document with packed and compressed properties already restored
+     */
+    T deserialize(Document doc);
+}
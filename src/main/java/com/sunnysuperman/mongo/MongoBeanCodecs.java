@@ -0,0 +1,200 @@
+package com.sunnysuperman.mongo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.Binary;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Registry of generated {@link MongoBeanCodec}s, plus the value conversions the generated code relies on. A codec is
+ * looked up by name next to its bean on first use, or registered up front by {@link #load(ClassLoader)} from the
+ * index the processor writes, so short-lived jobs need no classpath scanning.
+ */
+public class MongoBeanCodecs {
+    public static final String INDEX = "META-INF/ss-mongo/codecs";
+    public static final String CODEC_SUFFIX = "_MongoCodec";
+    private static final Object NONE = new Object();
+    private static final ConcurrentHashMap<Class<?>, Object> CODECS = new ConcurrentHashMap<>();
+
+    /**
+     * @param beanClassName
+     *            binary name of the bean class
+     */
+    public static String getCodecClassName(String beanClassName) {
+        int dot = beanClassName.lastIndexOf('.');
+        return beanClassName.substring(0, dot + 1) + beanClassName.substring(dot + 1).replace('$', '_') + CODEC_SUFFIX;
+    }
+
+    public static void register(MongoBeanCodec<?> codec) {
+        CODECS.put(codec.getBeanClass(), codec);
+    }
+
+    /**
+     * Registers every codec listed in the processor generated indexes.
+     *
+     * @return number of codecs registered
+     */
+    public static int load(ClassLoader classLoader) {
+        int loaded = 0;
+        try {
+            Enumeration<URL> indexes = classLoader.getResources(INDEX);
+            while (indexes.hasMoreElements()) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(indexes.nextElement().openStream(), "UTF-8"))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        register(newCodec(Class.forName(line, true, classLoader)));
+                        loaded++;
+                    }
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RepositoryException("Failed to load mongo bean codecs: " + e.getMessage());
+        }
+        return loaded;
+    }
+
+    private static MongoBeanCodec<?> newCodec(Class<?> codecClass) {
+        try {
+            return (MongoBeanCodec<?>) codecClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RepositoryException("Failed to create " + codecClass.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the generated codec of the bean class, null when the bean has not been processed
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> MongoBeanCodec<T> get(Class<T> beanClass) {
+        Object codec = CODECS.get(beanClass);
+        if (codec == null) {
+            try {
+                codec = newCodec(Class.forName(getCodecClassName(beanClass.getName()), true,
+                        beanClass.getClassLoader()));
+            } catch (ClassNotFoundException e) {
+                codec = NONE;
+            }
+            CODECS.putIfAbsent(beanClass, codec);
+        }
+        return codec == NONE ? null : (MongoBeanCodec<T>) codec;
+    }
+
+    public static String toStringValue(Object value) {
+        return value.toString();
+    }
+
+    public static Long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return Long.valueOf(value.toString());
+    }
+
+    public static Integer toInteger(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : Integer.valueOf(value.toString());
+    }
+
+    public static Short toShort(Object value) {
+        return value instanceof Number ? ((Number) value).shortValue() : Short.valueOf(value.toString());
+    }
+
+    public static Byte toByte(Object value) {
+        return value instanceof Number ? ((Number) value).byteValue() : Byte.valueOf(value.toString());
+    }
+
+    public static Double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.valueOf(value.toString());
+    }
+
+    public static Float toFloat(Object value) {
+        return value instanceof Number ? ((Number) value).floatValue() : Float.valueOf(value.toString());
+    }
+
+    public static Boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        String s = value.toString();
+        return s.equalsIgnoreCase("true") || s.equals("1");
+    }
+
+    public static Date toDate(Object value) {
+        return value instanceof Date ? (Date) value : new Date(toLong(value));
+    }
+
+    public static BigDecimal toBigDecimal(Object value) {
+        return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+    }
+
+    public static byte[] toBytes(Object value) {
+        return value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+    }
+
+    public static int[] toIntArray(Object value) {
+        if (value instanceof int[]) {
+            return (int[]) value;
+        }
+        List<?> list = (List<?>) value;
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Number) list.get(i)).intValue();
+        }
+        return array;
+    }
+
+    public static long[] toLongArray(Object value) {
+        if (value instanceof long[]) {
+            return (long[]) value;
+        }
+        List<?> list = (List<?>) value;
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Number) list.get(i)).longValue();
+        }
+        return array;
+    }
+
+    public static float[] toFloatArray(Object value) {
+        if (value instanceof float[]) {
+            return (float[]) value;
+        }
+        List<?> list = (List<?>) value;
+        float[] array = new float[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Number) list.get(i)).floatValue();
+        }
+        return array;
+    }
+
+    public static double[] toDoubleArray(Object value) {
+        if (value instanceof double[]) {
+            return (double[]) value;
+        }
+        List<?> list = (List<?>) value;
+        double[] array = new double[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Number) list.get(i)).doubleValue();
+        }
+        return array;
+    }
+}
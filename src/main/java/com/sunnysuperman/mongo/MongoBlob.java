@@ -0,0 +1,47 @@
+package com.sunnysuperman.mongo;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Metadata of a blob in a {@link MongoBlobStore}. Beans hold the id in an {@code ObjectId} property instead of the
+ * bytes.
+ */
+public class MongoBlob {
+    private final ObjectId id;
+    private final long length;
+    private final int chunkSize;
+    private final long uploadDate;
+
+    public MongoBlob(ObjectId id, long length, int chunkSize, long uploadDate) {
+        super();
+        this.id = id;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.uploadDate = uploadDate;
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunks() {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    public long getUploadDate() {
+        return uploadDate;
+    }
+
+    @Override
+    public String toString() {
+        return id + " length: " + length + " chunkSize: " + chunkSize;
+    }
+}
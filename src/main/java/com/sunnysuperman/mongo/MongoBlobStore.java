@@ -0,0 +1,376 @@
+package com.sunnysuperman.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Stores payloads beyond the document size limit as fixed-size chunk documents in {@code <bucket>.chunks} and one
+ * metadata document per blob in {@code <bucket>.files}, written last so an unfinished upload is never visible.
+ * <p>
+ * Writes read each chunk from the source into its own array, inserted as is while the next chunks are read, with at
+ * most pipeline depth inserts in flight. Reads stream the chunks through a channel and a range read only fetches the
+ * chunks it covers. Beans reference a blob by its id, see {@link MongoBlob}.
+ * <p>
+ * Reads stream the chunks through {@link MongoRepository#execute(MongoOperate)}, which a sharded repository does not
+ * support: keep a store per shard repository instead.
+ */
+public class MongoBlobStore implements AutoCloseable {
+    public static final String FILES_ID = "files_id";
+    public static final String N = "n";
+    public static final String DATA = "data";
+    public static final String LENGTH = "length";
+    public static final String CHUNK_SIZE = "chunkSize";
+    public static final String UPLOAD_DATE = "uploadDate";
+    // a chunk document holds the data plus its ids and field names within the 16 MB document limit
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024 - 1024;
+    private final MongoRepository repository;
+    private final String filesCollection;
+    private final String chunksCollection;
+    private final int chunkSize;
+    private int pipelineDepth = 2;
+    private volatile ExecutorService executor;
+    private boolean ownExecutor;
+
+    public MongoBlobStore(MongoRepository repository, String bucketName, int chunkSize) {
+        super();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize");
+        }
+        this.repository = repository;
+        this.filesCollection = bucketName + ".files";
+        this.chunksCollection = bucketName + ".chunks";
+        this.chunkSize = chunkSize;
+    }
+
+    public MongoBlobStore(MongoRepository repository, String bucketName) {
+        this(repository, bucketName, 255 * 1024);
+    }
+
+    public MongoBlobStore setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        return this;
+    }
+
+    /**
+     * @param executor
+     *            runs the chunk inserts, not shut down by {@link #close()}
+     */
+    public MongoBlobStore setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void ensureIndexes() {
+        repository.createIndex(chunksCollection, new Document(FILES_ID, 1).append(N, 1),
+                new IndexOptions().unique(true));
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger seq = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "mongo-blob-" + seq.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+                    ownExecutor = true;
+                }
+                result = executor;
+            }
+        }
+        return result;
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing blob");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Future<?> insertChunk(final ObjectId id, final int n, final byte[] data) {
+        return getExecutor().submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                repository.insert(chunksCollection,
+                        new Document(FILES_ID, id).append(N, n).append(DATA, new Binary(data)));
+                return null;
+            }
+
+        });
+    }
+
+    public MongoBlob write(InputStream in) throws IOException {
+        return write(Channels.newChannel(in));
+    }
+
+    public MongoBlob write(ReadableByteChannel in) throws IOException {
+        ObjectId id = new ObjectId();
+        Deque<Future<?>> inFlight = new ArrayDeque<>(pipelineDepth);
+        long length = 0;
+        int n = 0;
+        boolean completed = false;
+        try {
+            boolean eof = false;
+            while (!eof) {
+                byte[] data = new byte[chunkSize];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                if (buffer.position() == 0) {
+                    break;
+                }
+                if (buffer.hasRemaining()) {
+                    data = Arrays.copyOf(data, buffer.position());
+                }
+                length += data.length;
+                if (inFlight.size() >= pipelineDepth) {
+                    await(inFlight.poll());
+                }
+                inFlight.add(insertChunk(id, n++, data));
+            }
+            while (!inFlight.isEmpty()) {
+                await(inFlight.poll());
+            }
+            long uploadDate = System.currentTimeMillis();
+            repository.insert(filesCollection, new Document(MongoRepository.ID, id).append(LENGTH, length)
+                    .append(CHUNK_SIZE, chunkSize).append(UPLOAD_DATE, uploadDate));
+            completed = true;
+            return new MongoBlob(id, length, chunkSize, uploadDate);
+        } finally {
+            if (!completed) {
+                for (Future<?> future : inFlight) {
+                    try {
+                        future.get();
+                    } catch (Exception ex) {
+                        // removed below
+                    }
+                }
+                repository.removeMany(chunksCollection, new Document(FILES_ID, id));
+            }
+        }
+    }
+
+    public MongoBlob write(byte[] data) throws IOException {
+        return write(Channels.newChannel(new ByteArrayInputStream(data)));
+    }
+
+    public MongoBlob find(ObjectId id) {
+        Document file = repository.findById(filesCollection, id, RawMongoMapper.getInstance());
+        if (file == null) {
+            return null;
+        }
+        return new MongoBlob(id, ((Number) file.get(LENGTH)).longValue(), ((Number) file.get(CHUNK_SIZE)).intValue(),
+                ((Number) file.get(UPLOAD_DATE)).longValue());
+    }
+
+    private MongoBlob require(ObjectId id) {
+        MongoBlob blob = find(id);
+        if (blob == null) {
+            throw new RepositoryException("Blob not found: " + id);
+        }
+        return blob;
+    }
+
+    public ReadableByteChannel openChannel(ObjectId id) {
+        MongoBlob blob = require(id);
+        return new ChunkChannel(blob, 0, blob.getLength());
+    }
+
+    /**
+     * @return channel of length bytes from offset, cut at the end of the blob
+     */
+    public ReadableByteChannel openChannel(ObjectId id, long offset, long length) {
+        MongoBlob blob = require(id);
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset: " + offset + " length: " + length);
+        }
+        offset = Math.min(offset, blob.getLength());
+        return new ChunkChannel(blob, offset, Math.min(length, blob.getLength() - offset));
+    }
+
+    public InputStream openStream(ObjectId id) {
+        return Channels.newInputStream(openChannel(id));
+    }
+
+    /**
+     * @return number of bytes transferred
+     */
+    public long read(ObjectId id, WritableByteChannel out) throws IOException {
+        long transferred = 0;
+        try (ReadableByteChannel in = openChannel(id)) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return transferred;
+    }
+
+    public boolean delete(ObjectId id) {
+        boolean removed = repository.remove(filesCollection, MongoRepository.getIdDocument(id));
+        repository.removeMany(chunksCollection, new Document(FILES_ID, id));
+        return removed;
+    }
+
+    /**
+     * Shuts down the executor the store created for chunk inserts, once the inserts in flight finished.
+     */
+    @Override
+    public void close() {
+        ExecutorService result;
+        synchronized (this) {
+            if (!ownExecutor) {
+                return;
+            }
+            result = executor;
+            executor = null;
+            ownExecutor = false;
+        }
+        result.shutdown();
+    }
+
+    /**
+     * Streams the chunks covering [offset, offset + length) with one cursor, opened on first read.
+     */
+    private class ChunkChannel implements ReadableByteChannel {
+        private final MongoBlob blob;
+        private long position;
+        private final long end;
+        private MongoCursor<Document> cursor;
+        private byte[] chunk;
+        private int chunkOffset;
+        private boolean open = true;
+
+        ChunkChannel(MongoBlob blob, long offset, long length) {
+            this.blob = blob;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        private void openCursor() {
+            final int first = (int) (position / blob.getChunkSize());
+            final int last = (int) ((end - 1) / blob.getChunkSize());
+            cursor = repository.execute(new MongoOperate<MongoCursor<Document>>() {
+
+                @Override
+                public MongoCursor<Document> execute(MongoDatabase database) {
+                    return database.getCollection(chunksCollection)
+                            .find(new Document(FILES_ID, blob.getId()).append(N,
+                                    new Document("$gte", first).append("$lte", last)))
+                            .sort(new Document(N, 1)).batchSize(Math.max(2, 4 * 1024 * 1024 / blob.getChunkSize()))
+                            .iterator();
+                }
+
+            });
+        }
+
+        private void nextChunk() throws IOException {
+            if (cursor == null) {
+                openCursor();
+            }
+            if (!cursor.hasNext()) {
+                throw new IOException("Missing chunk of blob " + blob.getId() + " at " + position);
+            }
+            Document doc = cursor.next();
+            int n = ((Number) doc.get(N)).intValue();
+            long chunkStart = (long) n * blob.getChunkSize();
+            if (chunkStart > position || chunkStart + blob.getChunkSize() <= position) {
+                throw new IOException("Missing chunk " + (position / blob.getChunkSize()) + " of blob " + blob.getId());
+            }
+            chunk = ((Binary) doc.get(DATA)).getData();
+            chunkOffset = (int) (position - chunkStart);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = 0;
+            while (dst.hasRemaining() && position < end) {
+                if (chunk == null || chunkOffset >= chunk.length) {
+                    nextChunk();
+                }
+                int n = (int) Math.min(Math.min(dst.remaining(), chunk.length - chunkOffset), end - position);
+                dst.put(chunk, chunkOffset, n);
+                chunkOffset += n;
+                position += n;
+                read += n;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            chunk = null;
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.sunnysuperman.mongo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit of one collection and operation type with a bounded wait queue. Callers beyond the limit wait for
+ * a slot up to the configured time; when the queue is full they are rejected at once.
+ */
+public class MongoBulkhead {
+    private final String collectionName;
+    private final MongoOperationType type;
+    private MongoBulkheadConfig config;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int limit;
+    private int inFlight;
+    private int queued;
+    private long completed;
+    private long rejected;
+    private int fastCompletions;
+    private long lastDecrease;
+
+    public class Permit {
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        public void release() {
+            if (!released) {
+                released = true;
+                MongoBulkhead.this.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    public MongoBulkhead(String collectionName, MongoOperationType type, MongoBulkheadConfig config) {
+        super();
+        this.collectionName = collectionName;
+        this.type = type;
+        this.config = config;
+        this.limit = config.getMaxConcurrency();
+    }
+
+    public Permit acquire() {
+        lock.lock();
+        try {
+            if (inFlight < limit && queued == 0) {
+                inFlight++;
+                return new Permit();
+            }
+            if (queued >= config.getMaxQueue()) {
+                rejected++;
+                throw new MongoRejectedException(collectionName, type, "queue full");
+            }
+            queued++;
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxWaitMillis());
+                while (inFlight >= limit) {
+                    if (nanos <= 0) {
+                        rejected++;
+                        throw new MongoRejectedException(collectionName, type, "timed out waiting for a slot");
+                    }
+                    nanos = available.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                throw new MongoRejectedException(collectionName, type, "interrupted");
+            } finally {
+                queued--;
+            }
+            inFlight++;
+            return new Permit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            completed++;
+            if (config.isAdaptive()) {
+                adapt(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+            }
+            signalFreeSlots();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a raised limit frees more than the released slot, wake one waiter per free slot
+    private void signalFreeSlots() {
+        for (int i = inFlight; i < limit; i++) {
+            available.signal();
+        }
+    }
+
+    /**
+     * Applies a new configuration in place: permits in flight and waiting callers carry over. An adaptive limit is
+     * kept within the new bounds, otherwise the limit becomes the new maximum concurrency.
+     */
+    public void reconfigure(MongoBulkheadConfig config) {
+        lock.lock();
+        try {
+            this.config = config;
+            if (config.isAdaptive()) {
+                limit = Math.min(config.getMaxConcurrency(), Math.max(config.getMinConcurrency(), limit));
+            } else {
+                limit = config.getMaxConcurrency();
+            }
+            fastCompletions = 0;
+            signalFreeSlots();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // additive increase, multiplicative decrease; at most one decrease per target latency window
+    private void adapt(long latencyMillis) {
+        long target = config.getTargetLatencyMillis();
+        if (latencyMillis > target) {
+            fastCompletions = 0;
+            long now = System.currentTimeMillis();
+            if (now - lastDecrease >= target && limit > config.getMinConcurrency()) {
+                limit = Math.max(config.getMinConcurrency(), (int) (limit * 0.9));
+                lastDecrease = now;
+            }
+        } else if (++fastCompletions >= limit && limit < config.getMaxConcurrency()) {
+            limit++;
+            fastCompletions = 0;
+        }
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public MongoOperationType getType() {
+        return type;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompleted() {
+        lock.lock();
+        try {
+            return completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return collectionName + "/" + type + " limit: " + limit + " inFlight: " + inFlight + " queued: " + queued
+                    + " completed: " + completed + " rejected: " + rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
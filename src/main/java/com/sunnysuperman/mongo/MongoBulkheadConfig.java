@@ -0,0 +1,60 @@
+package com.sunnysuperman.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of one bulkhead: concurrent operations, callers allowed to wait for a slot and how long they wait. With a
+ * target latency the concurrency limit adapts between the minimum and the maximum: it shrinks when operations get
+ * slower than the target and grows back while they stay below it.
+ */
+public class MongoBulkheadConfig {
+    private int maxConcurrency;
+    private int maxQueue;
+    private long maxWaitMillis;
+    private int minConcurrency;
+    private long targetLatencyMillis;
+
+    public MongoBulkheadConfig(int maxConcurrency, int maxQueue, long maxWait, TimeUnit unit) {
+        super();
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueue = maxQueue;
+        this.maxWaitMillis = unit.toMillis(maxWait);
+        this.minConcurrency = maxConcurrency;
+    }
+
+    public MongoBulkheadConfig setAdaptive(int minConcurrency, long targetLatency, TimeUnit unit) {
+        if (minConcurrency <= 0 || minConcurrency > maxConcurrency) {
+            throw new IllegalArgumentException("minConcurrency");
+        }
+        this.minConcurrency = minConcurrency;
+        this.targetLatencyMillis = unit.toMillis(targetLatency);
+        return this;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    public boolean isAdaptive() {
+        return targetLatencyMillis > 0;
+    }
+}
@@ -0,0 +1,283 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Removes or updates the documents matching a filter in {@code _id} ordered chunks instead of one server operation,
+ * so a huge maintenance write holds no resources for long, lets replication keep up and can be resumed, cancelled and
+ * watched. Each chunk reads the next ids on the primary and applies the write to them through one bulk write, still
+ * restricted by the filter.
+ * <p>
+ * Chunks are throttled to the target ops per second. With a target latency the chunk size adapts: halved when a chunk
+ * write is slower than the target, grown by half when it takes less than half of it. With a checkpoint id the last id
+ * written is stored in the checkpoint collection after every chunk and a new run with the same id resumes after it.
+ * A crash between a chunk write and its checkpoint applies that chunk again on resume: harmless for removals and
+ * {@code $set}, but an update such as {@code $inc} must be made idempotent, for example by also filtering on a marker
+ * field the update sets.
+ * <p>
+ * Chunks continue with {@code _id > lastId}, which the server only matches against ids of the same BSON type. When the
+ * matching documents mix {@code _id} types the run fails once the ids of the first type are exhausted, rather than
+ * report done while documents of the other types were skipped; split such a write by {@code _id} type.
+ */
+public class MongoChunkedWrite implements Runnable {
+    public static final String DEFAULT_CHECKPOINT_COLLECTION = "mongo_chunked_checkpoint";
+    private static final int MIN_CHUNK_SIZE = 10;
+    private final MongoRepository repository;
+    private final String collectionName;
+    private final Bson filter;
+    private final Bson update;
+    private int chunkSize = 1000;
+    private int maxChunkSize = 10000;
+    private double targetOpsPerSecond;
+    private long targetLatencyMillis;
+    private String checkpointId;
+    private String checkpointCollection = DEFAULT_CHECKPOINT_COLLECTION;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile Object lastId;
+    private volatile long processed;
+    private volatile long chunks;
+    private volatile RuntimeException error;
+
+    /**
+     * @param update
+     *            null to remove the documents
+     */
+    public MongoChunkedWrite(MongoRepository repository, String collectionName, Bson filter, Bson update) {
+        super();
+        this.repository = repository;
+        this.collectionName = collectionName;
+        this.filter = filter == null ? new Document() : filter;
+        this.update = update;
+    }
+
+    public MongoChunkedWrite setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.maxChunkSize = Math.max(maxChunkSize, this.chunkSize);
+        return this;
+    }
+
+    public MongoChunkedWrite setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = Math.max(MIN_CHUNK_SIZE, maxChunkSize);
+        this.chunkSize = Math.min(chunkSize, this.maxChunkSize);
+        return this;
+    }
+
+    /**
+     * @param targetOpsPerSecond
+     *            documents written per second, 0 for no limit
+     */
+    public MongoChunkedWrite setTargetOpsPerSecond(double targetOpsPerSecond) {
+        this.targetOpsPerSecond = targetOpsPerSecond;
+        return this;
+    }
+
+    public MongoChunkedWrite setTargetLatency(long targetLatency, TimeUnit unit) {
+        this.targetLatencyMillis = unit.toMillis(targetLatency);
+        return this;
+    }
+
+    public MongoChunkedWrite setCheckpoint(String checkpointId) {
+        this.checkpointId = checkpointId;
+        return this;
+    }
+
+    public MongoChunkedWrite setCheckpointCollection(String checkpointCollection) {
+        this.checkpointCollection = checkpointCollection;
+        return this;
+    }
+
+    private void loadCheckpoint() {
+        Document checkpoint = repository.find(checkpointCollection, MongoRepository.getIdDocument(checkpointId), null,
+                null, RawMongoMapper.getInstance(), ReadPreference.primary());
+        if (checkpoint != null) {
+            lastId = checkpoint.get("lastId");
+            processed = ((Number) checkpoint.get("processed")).longValue();
+            done = Boolean.TRUE.equals(checkpoint.get("done"));
+        }
+    }
+
+    private void saveCheckpoint() {
+        if (checkpointId == null) {
+            return;
+        }
+        Document checkpoint = new Document("lastId", lastId).append("processed", processed).append("done", done)
+                .append("updatedAt", System.currentTimeMillis());
+        repository.upsert(checkpointCollection, new Document("$set", checkpoint), checkpointId);
+    }
+
+    // ids are read on the primary, a lagging secondary would skip documents
+    private List<Object> nextIds(int limit) {
+        Bson chunkFilter = lastId == null ? filter : Filters.and(filter, Filters.gt(MongoRepository.ID, lastId));
+        return findIds(chunkFilter, 1, limit);
+    }
+
+    private List<Object> findIds(Bson idFilter, int order, int limit) {
+        List<Document> docs = repository.findForList(collectionName, idFilter,
+                new Document(MongoRepository.ID, order), new Document(MongoRepository.ID, 1), 0, limit,
+                RawMongoMapper.getInstance(), ReadPreference.primary());
+        List<Object> ids = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            ids.add(doc.get(MongoRepository.ID));
+        }
+        return ids;
+    }
+
+    // $gt stops at the last id of its type, documents with ids of a later type would be skipped silently
+    private void checkIdTypes() {
+        if (lastId == null) {
+            return;
+        }
+        List<Object> maxId = findIds(filter, -1, 1);
+        if (!maxId.isEmpty() && MongoSortOrder.compare(maxId.get(0), lastId) > 0) {
+            throw new RepositoryException("Chunked write on " + collectionName + " stopped at _id " + lastId
+                    + " but matches ids of another type up to " + maxId.get(0) + ", split the write by _id type");
+        }
+    }
+
+    private void writeChunk(List<Object> ids) {
+        Bson chunkFilter = Filters.and(filter, Filters.in(MongoRepository.ID, ids));
+        WriteModel<Document> request = update == null ? new DeleteManyModel<Document>(chunkFilter)
+                : new UpdateManyModel<Document>(chunkFilter, update);
+        repository.batch(collectionName, Collections.singletonList(request));
+    }
+
+    private void adapt(long latencyMillis) {
+        if (targetLatencyMillis <= 0) {
+            return;
+        }
+        if (latencyMillis > targetLatencyMillis) {
+            chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        } else if (latencyMillis * 2 < targetLatencyMillis) {
+            chunkSize = Math.min(maxChunkSize, chunkSize + chunkSize / 2);
+        }
+    }
+
+    private void throttle(long startNanos, long written) throws InterruptedException {
+        if (targetOpsPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = (long) (written / targetOpsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (checkpointId != null) {
+                loadCheckpoint();
+            }
+            long start = System.nanoTime();
+            long written = 0;
+            while (!done && !cancelled) {
+                List<Object> ids = nextIds(chunkSize);
+                if (ids.isEmpty()) {
+                    checkIdTypes();
+                    done = true;
+                    saveCheckpoint();
+                    break;
+                }
+                long t1 = System.nanoTime();
+                writeChunk(ids);
+                adapt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t1));
+                lastId = ids.get(ids.size() - 1);
+                processed += ids.size();
+                chunks++;
+                written += ids.size();
+                saveCheckpoint();
+                throttle(start, written);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Runs on a daemon thread.
+     */
+    public MongoChunkedWrite start() {
+        Thread thread = new Thread(this, "mongo-chunked-" + collectionName);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stops after the chunk in progress; the checkpoint allows resuming later.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return whether the run finished, completed, cancelled or failed, within the time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the error that stopped the run, null when none
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public Object getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return number of documents the chunks were applied to, including previous runs of the checkpoint
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public String toString() {
+        return collectionName + (update == null ? " remove" : " update") + " processed: " + processed + " chunks: "
+                + chunks + " lastId: " + lastId + (done ? " done" : "") + (cancelled ? " cancelled" : "");
+    }
+}
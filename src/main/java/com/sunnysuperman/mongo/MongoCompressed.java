@@ -0,0 +1,17 @@
+package com.sunnysuperman.mongo;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a String or byte[] property to be stored compressed once its size reaches the threshold (in bytes). Values
+ * below the threshold are stored as is, so queries and indexes on such a property only see the small values.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MongoCompressed {
+
+    int threshold() default 1024;
+}
@@ -0,0 +1,183 @@
+package com.sunnysuperman.mongo;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Compression of {@link MongoCompressed} properties. A compressed value is stored as BSON binary of a user defined
+ * subtype: a 6 bytes header (magic, type of the original value, original length) followed by the deflated bytes.
+ */
+public class MongoCompression {
+    public static final byte BINARY_SUBTYPE = (byte) 0x80;
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BYTES = 2;
+    private static final int HEADER_SIZE = 6;
+    // the 16 MB document limit at a generous 16:1 ratio
+    private static final int MAX_LENGTH = 256 * 1024 * 1024;
+    // deflate cannot expand input by more than this
+    private static final int MAX_RATIO = 1032;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ConcurrentHashMap<Class<?>, Map<String, Integer>> THRESHOLDS = new ConcurrentHashMap<>();
+
+    /**
+     * @return compressed column name to threshold
+     */
+    public static Map<String, Integer> getCompressedColumns(Class<?> clazz) {
+        Map<String, Integer> columns = THRESHOLDS.get(clazz);
+        if (columns != null) {
+            return columns;
+        }
+        MongoBeanCodec<?> codec = MongoBeanCodecs.get(clazz);
+        if (codec != null) {
+            columns = codec.getCompressedColumns();
+            THRESHOLDS.putIfAbsent(clazz, columns);
+            return columns;
+        }
+        columns = new HashMap<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                MongoCompressed compressed = field.getAnnotation(MongoCompressed.class);
+                if (compressed == null) {
+                    continue;
+                }
+                if (field.getType() != String.class && field.getType() != byte[].class) {
+                    throw new RepositoryException("@MongoCompressed requires String or byte[] property: " + field);
+                }
+                columns.put(MongoSerializer.getColumnName(field, clazz), compressed.threshold());
+            }
+        }
+        columns = columns.isEmpty() ? Collections.<String, Integer> emptyMap() : columns;
+        THRESHOLDS.putIfAbsent(clazz, columns);
+        return columns;
+    }
+
+    /**
+     * Replaces compressed properties of the serialized bean in place.
+     */
+    public static Document compress(Document doc, Class<?> clazz) {
+        if (doc == null) {
+            return null;
+        }
+        for (Entry<String, Integer> column : getCompressedColumns(clazz).entrySet()) {
+            Object value = doc.get(column.getKey());
+            if (value != null) {
+                doc.put(column.getKey(), compress(value, column.getValue()));
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * @return the document with compressed properties restored, a copy when any property has been restored
+     */
+    public static Document decompress(Document doc, Class<?> clazz) {
+        if (doc == null) {
+            return null;
+        }
+        Document restored = doc;
+        for (String column : getCompressedColumns(clazz).keySet()) {
+            Object value = doc.get(column);
+            if (!isCompressed(value)) {
+                continue;
+            }
+            if (restored == doc) {
+                restored = new Document(doc);
+            }
+            restored.put(column, decompress(value));
+        }
+        return restored;
+    }
+
+    public static Object compress(Object value, int threshold) {
+        byte type;
+        byte[] data;
+        if (value instanceof String) {
+            type = TYPE_STRING;
+            data = ((String) value).getBytes(UTF8);
+        } else if (value instanceof byte[]) {
+            type = TYPE_BYTES;
+            data = (byte[]) value;
+        } else {
+            return value;
+        }
+        if (data.length < threshold || data.length > MAX_LENGTH) {
+            return value;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + HEADER_SIZE);
+        out.write(MAGIC);
+        out.write(type);
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+        // incompressible values are not worth the decompression cost
+        if (out.size() >= data.length) {
+            return value;
+        }
+        return new Binary(BINARY_SUBTYPE, out.toByteArray());
+    }
+
+    public static boolean isCompressed(Object value) {
+        if (!(value instanceof Binary)) {
+            return false;
+        }
+        Binary binary = (Binary) value;
+        return binary.getType() == BINARY_SUBTYPE && binary.length() >= HEADER_SIZE && binary.getData()[0] == MAGIC;
+    }
+
+    public static Object decompress(Object value) {
+        if (!isCompressed(value)) {
+            return value;
+        }
+        byte[] raw = ((Binary) value).getData();
+        int length = ((raw[2] & 0xFF) << 24) | ((raw[3] & 0xFF) << 16) | ((raw[4] & 0xFF) << 8) | (raw[5] & 0xFF);
+        // the header is not trusted to size the buffer
+        if (length < 0 || length > MAX_LENGTH || length > (long) (raw.length - HEADER_SIZE) * MAX_RATIO) {
+            throw new RepositoryException("Corrupted compressed value: invalid length " + length);
+        }
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(raw, HEADER_SIZE, raw.length - HEADER_SIZE);
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(data, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new RepositoryException("Truncated compressed value");
+                }
+                offset += n;
+            }
+        } catch (DataFormatException e) {
+            throw new RepositoryException("Corrupted compressed value: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return raw[1] == TYPE_STRING ? new String(data, UTF8) : data;
+    }
+}
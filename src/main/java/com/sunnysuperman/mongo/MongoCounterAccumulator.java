@@ -0,0 +1,352 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+
+/**
+ * Coalesces {@code $inc} updates of hot counters in memory. Increments are added to striped per (collection, id,
+ * field) cells without locking and flushed periodically as one unordered bulk write of {@code $inc} updates per
+ * collection, so a popular document takes one update per flush instead of one per increment.
+ * <p>
+ * Pending increments are lost if the process dies, at most one flush interval of them. Failed updates are kept for the
+ * next flush; after a connection error the whole batch is retried, so an update the server applied before the error
+ * is counted twice.
+ */
+public class MongoCounterAccumulator implements AutoCloseable {
+    private static final int STRIPES = stripes();
+    // one cache line per stripe
+    private static final int PADDING = 8;
+    private final MongoRepository repository;
+    private final ConcurrentHashMap<Key, Cell> cells = new ConcurrentHashMap<>();
+    private volatile boolean upsert = true;
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedUpdates = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+    // reads share the lock, a flush takes it alone so no delta moves from pending to persisted during a read
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+    private static int stripes() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() * 2) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static class Key {
+        final String collectionName;
+        final Object id;
+        final String field;
+
+        Key(String collectionName, Object id, String field) {
+            this.collectionName = collectionName;
+            this.id = id;
+            this.field = field;
+        }
+
+        @Override
+        public int hashCode() {
+            return (collectionName.hashCode() * 31 + id.hashCode()) * 31 + field.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return collectionName.equals(other.collectionName) && id.equals(other.id) && field.equals(other.field);
+        }
+    }
+
+    // starts with a single base like LongAdder, stripes are only allocated once two threads collide on a counter
+    private static class Cell {
+        final AtomicLong base = new AtomicLong();
+        volatile AtomicLongArray stripes;
+        volatile boolean retired;
+
+        void add(long delta) {
+            AtomicLongArray array = stripes;
+            if (array == null) {
+                long value = base.get();
+                if (base.compareAndSet(value, value + delta)) {
+                    return;
+                }
+                array = stripe();
+            }
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            array.addAndGet(stripe * PADDING, delta);
+        }
+
+        private synchronized AtomicLongArray stripe() {
+            if (stripes == null) {
+                stripes = new AtomicLongArray(STRIPES * PADDING);
+            }
+            return stripes;
+        }
+
+        long sum() {
+            long sum = base.get();
+            AtomicLongArray array = stripes;
+            if (array != null) {
+                for (int i = 0; i < STRIPES; i++) {
+                    sum += array.get(i * PADDING);
+                }
+            }
+            return sum;
+        }
+
+        // every delta is taken by exactly one drain
+        long drain() {
+            long sum = base.getAndSet(0);
+            AtomicLongArray array = stripes;
+            if (array != null) {
+                for (int i = 0; i < STRIPES; i++) {
+                    sum += array.getAndSet(i * PADDING, 0);
+                }
+            }
+            return sum;
+        }
+    }
+
+    public MongoCounterAccumulator(MongoRepository repository) {
+        super();
+        this.repository = repository;
+    }
+
+    /**
+     * Whether a flush creates the document of an id that does not exist yet, true by default.
+     */
+    public MongoCounterAccumulator setUpsert(boolean upsert) {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Flushes every interval on a daemon thread; the interval bounds how many increments a crash can lose.
+     */
+    public synchronized MongoCounterAccumulator start(long interval, TimeUnit unit) {
+        if (scheduler != null) {
+            return this;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mongo-counter-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception ex) {
+                    repository.getLogger().error("Failed to flush counters", ex);
+                }
+            }
+
+        }, interval, interval, unit);
+        return this;
+    }
+
+    public void increment(String collectionName, Object id, String field, long delta) {
+        if (id == null) {
+            throw new IllegalArgumentException("id");
+        }
+        if (delta == 0) {
+            return;
+        }
+        Key key = new Key(collectionName, id, field);
+        while (true) {
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                Cell created = new Cell();
+                cell = cells.putIfAbsent(key, created);
+                if (cell == null) {
+                    cell = created;
+                }
+            }
+            cell.add(delta);
+            if (!cell.retired) {
+                return;
+            }
+            // the cell was dropped by a flush meanwhile, move whatever is left in it to a live cell
+            delta = cell.drain();
+            if (delta == 0) {
+                return;
+            }
+        }
+    }
+
+    public void increment(String collectionName, Object id, String field) {
+        increment(collectionName, id, field, 1);
+    }
+
+    public long getPending(String collectionName, Object id, String field) {
+        Cell cell = cells.get(new Key(collectionName, id, field));
+        return cell == null ? 0 : cell.sum();
+    }
+
+    /**
+     * Holds off flushes while reading, a delta moved from pending to persisted in between would be counted twice.
+     * The persisted value is read from the primary, a lagging secondary would miss flushed deltas.
+     *
+     * @return persisted value plus the increments not flushed yet
+     */
+    public long get(String collectionName, Object id, String field) {
+        flushLock.readLock().lock();
+        try {
+            long pending = getPending(collectionName, id, field);
+            Document doc = repository.find(collectionName, MongoRepository.getIdDocument(id), null,
+                    new Document(field, 1), RawMongoMapper.getInstance(), ReadPreference.primary());
+            Object value = doc == null ? null : doc.get(field);
+            return pending + (value instanceof Number ? ((Number) value).longValue() : 0);
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of documents updated
+     */
+    public int flush() {
+        flushLock.writeLock().lock();
+        try {
+            return doFlush();
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    private int doFlush() {
+        Map<String, Map<Object, Document>> increments = new LinkedHashMap<>();
+        for (Entry<Key, Cell> entry : cells.entrySet()) {
+            Key key = entry.getKey();
+            Cell cell = entry.getValue();
+            long delta = cell.drain();
+            if (delta == 0) {
+                // idle since the last flush, drop it so the map only holds hot counters
+                cell.retired = true;
+                cells.remove(key, cell);
+                delta = cell.drain();
+                if (delta != 0) {
+                    increment(key.collectionName, key.id, key.field, delta);
+                }
+                continue;
+            }
+            Map<Object, Document> docs = increments.get(key.collectionName);
+            if (docs == null) {
+                docs = new LinkedHashMap<>();
+                increments.put(key.collectionName, docs);
+            }
+            Document inc = docs.get(key.id);
+            if (inc == null) {
+                inc = new Document();
+                docs.put(key.id, inc);
+            }
+            inc.put(key.field, delta);
+        }
+        int updated = 0;
+        for (Entry<String, Map<Object, Document>> entry : increments.entrySet()) {
+            updated += write(entry.getKey(), entry.getValue());
+        }
+        flushes.incrementAndGet();
+        return updated;
+    }
+
+    private int write(String collectionName, Map<Object, Document> increments) {
+        List<Object> ids = new ArrayList<>(increments.keySet());
+        List<WriteModel<Document>> requests = new ArrayList<>(ids.size());
+        UpdateOptions options = new UpdateOptions().upsert(upsert);
+        for (Object id : ids) {
+            requests.add(new UpdateOneModel<Document>(MongoRepository.getIdDocument(id),
+                    new Document("$inc", increments.get(id)), options));
+        }
+        try {
+            repository.batch(collectionName, requests, new BulkWriteOptions().ordered(false));
+            flushedUpdates.addAndGet(ids.size());
+            return ids.size();
+        } catch (MongoBulkWriteException ex) {
+            List<BulkWriteError> errors = ex.getWriteErrors();
+            for (BulkWriteError error : errors) {
+                restore(collectionName, ids.get(error.getIndex()), increments.get(ids.get(error.getIndex())));
+            }
+            failedUpdates.addAndGet(errors.size());
+            flushedUpdates.addAndGet(ids.size() - errors.size());
+            repository.getLogger().error("Failed to flush " + errors.size() + " counters of " + collectionName, ex);
+            return ids.size() - errors.size();
+        } catch (RuntimeException ex) {
+            for (Object id : ids) {
+                restore(collectionName, id, increments.get(id));
+            }
+            failedUpdates.addAndGet(ids.size());
+            repository.getLogger().error("Failed to flush counters of " + collectionName, ex);
+            return 0;
+        }
+    }
+
+    private void restore(String collectionName, Object id, Document inc) {
+        for (Entry<String, Object> field : inc.entrySet()) {
+            increment(collectionName, id, field.getKey(), (Long) field.getValue());
+        }
+    }
+
+    public int getPendingCounters() {
+        return cells.size();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushedUpdates() {
+        return flushedUpdates.get();
+    }
+
+    public long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    /**
+     * Stops the periodic flush and flushes what is pending.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+        flush();
+    }
+}
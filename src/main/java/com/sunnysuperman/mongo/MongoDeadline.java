@@ -0,0 +1,53 @@
+package com.sunnysuperman.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline shared by the reads of the current thread until closed, typically in a try-with-resources block. Each
+ * find, findForList and count started inside it gets the remaining time as server-side {@code maxTime}, and fails
+ * with {@link MongoDeadlineExceededException} once the deadline has passed. Nested deadlines never extend the outer
+ * one.
+ */
+public class MongoDeadline implements AutoCloseable {
+    private static final ThreadLocal<MongoDeadline> CURRENT = new ThreadLocal<>();
+    private final long deadlineNanos;
+    private final MongoDeadline previous;
+
+    private MongoDeadline(long deadlineNanos, MongoDeadline previous) {
+        super();
+        this.deadlineNanos = deadlineNanos;
+        this.previous = previous;
+    }
+
+    public static MongoDeadline start(long timeout, TimeUnit unit) {
+        MongoDeadline previous = CURRENT.get();
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        if (previous != null && previous.deadlineNanos - deadlineNanos < 0) {
+            deadlineNanos = previous.deadlineNanos;
+        }
+        MongoDeadline deadline = new MongoDeadline(deadlineNanos, previous);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    public static MongoDeadline current() {
+        return CURRENT.get();
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public long remaining(TimeUnit unit) {
+        return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.sunnysuperman.mongo;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+public class MongoDeadlineExceededException extends RepositoryException {
+    private static final long serialVersionUID = 1L;
+
+    public MongoDeadlineExceededException(String message) {
+        super(message);
+    }
+
+    public MongoDeadlineExceededException(String message, Throwable cause) {
+        super(message);
+        initCause(cause);
+    }
+}
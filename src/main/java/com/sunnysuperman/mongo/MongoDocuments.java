@@ -0,0 +1,84 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClient;
+
+public class MongoDocuments {
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    public static Document toDocument(Bson bson) {
+        if (bson == null) {
+            return new Document();
+        }
+        if (bson instanceof Document) {
+            return (Document) bson;
+        }
+        BsonDocument raw = bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+        return CODEC.decode(new BsonDocumentReader(raw), DecoderContext.builder().build());
+    }
+
+    public static BsonDocument toBsonDocument(Bson bson) {
+        if (bson == null) {
+            return new BsonDocument();
+        }
+        return bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    /**
+     * @return deep copy of the document; nested documents, lists, byte arrays and dates are copied
+     */
+    public static Document copy(Document doc) {
+        return (Document) copyValue(doc);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Document doc = new Document();
+            for (Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                doc.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return doc;
+        }
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            List<Object> items = new ArrayList<>(collection.size());
+            for (Object item : collection) {
+                items.add(copyValue(item));
+            }
+            return items;
+        }
+        if (value instanceof Object[]) {
+            return copyValue(Arrays.asList((Object[]) value));
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        return value;
+    }
+
+    public static Object toValue(BsonValue value) {
+        if (value == null) {
+            return null;
+        }
+        return toDocument(new BsonDocument("v", value)).get("v");
+    }
+}
@@ -0,0 +1,72 @@
+package com.sunnysuperman.mongo;
+
+import org.bson.Document;
+
+public class MongoIndexAdvice {
+    private final String collectionName;
+    private final Document filterShape;
+    private final Document sort;
+    private final Document index;
+    private final boolean collectionScan;
+    private final long docsExamined;
+    private final long returned;
+    private volatile boolean created;
+
+    public MongoIndexAdvice(String collectionName, Document filterShape, Document sort, Document index,
+            boolean collectionScan, long docsExamined, long returned) {
+        super();
+        this.collectionName = collectionName;
+        this.filterShape = filterShape;
+        this.sort = sort;
+        this.index = index;
+        this.collectionScan = collectionScan;
+        this.docsExamined = docsExamined;
+        this.returned = returned;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public Document getFilterShape() {
+        return filterShape;
+    }
+
+    public Document getSort() {
+        return sort;
+    }
+
+    /**
+     * Suggested index keys in equality, sort, range order.
+     */
+    public Document getIndex() {
+        return index;
+    }
+
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    public long getReturned() {
+        return returned;
+    }
+
+    public boolean isCreated() {
+        return created;
+    }
+
+    void setCreated(boolean created) {
+        this.created = created;
+    }
+
+    @Override
+    public String toString() {
+        return collectionName + " filter: " + filterShape.toJson() + (sort == null ? "" : " sort: " + sort.toJson())
+                + (collectionScan ? " COLLSCAN" : "") + " examined: " + docsExamined + " returned: " + returned
+                + " suggested index: " + index.toJson() + (created ? " (created)" : "");
+    }
+}
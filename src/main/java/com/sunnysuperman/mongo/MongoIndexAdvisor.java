@@ -0,0 +1,417 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Samples the query shapes seen by {@link MongoRepository} and explains each new shape once in the background. Shapes
+ * that scan the collection, or examine far more documents than they return, are reported with a compound index in
+ * equality, sort, range order unless an index with that prefix already exists. Index creation is opt-in.
+ * <p>
+ * Explains and index lookups run through {@link MongoRepository#execute(MongoOperate)}, so on a sharded repository the
+ * advisor is set on the shard repositories, which run the queries.
+ */
+public class MongoIndexAdvisor {
+    private static final Object PLACEHOLDER = "?";
+    private static final List<String> WRAPPING_STAGES = Arrays.asList("COUNT", "UPDATE", "DELETE");
+    private static final Logger LOG = LoggerFactory.getLogger(MongoIndexAdvisor.class);
+    private volatile double sampleRate = 0.01;
+    private volatile int maxShapes = 1000;
+    private volatile long minDocsExamined = 100;
+    private volatile double examinedRatio = 10;
+    private volatile boolean createIndexes;
+    private final Map<String, Boolean> shapes = new ConcurrentHashMap<>();
+    private final Map<String, MongoIndexAdvice> advices = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    public MongoIndexAdvisor() {
+        super();
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(100),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "mongo-index-advisor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+    }
+
+    /**
+     * Fraction of the observed queries whose shape is looked up, 0.01 by default: a frequent shape is still seen
+     * soon, while the hot path of most queries skips the advisor entirely.
+     */
+    public MongoIndexAdvisor setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public MongoIndexAdvisor setMaxShapes(int maxShapes) {
+        this.maxShapes = maxShapes;
+        return this;
+    }
+
+    /**
+     * Queries examining fewer documents are never reported.
+     */
+    public MongoIndexAdvisor setMinDocsExamined(long minDocsExamined) {
+        this.minDocsExamined = minDocsExamined;
+        return this;
+    }
+
+    /**
+     * Index scans are reported when they examine more than this many documents per document returned.
+     */
+    public MongoIndexAdvisor setExaminedRatio(double examinedRatio) {
+        this.examinedRatio = examinedRatio;
+        return this;
+    }
+
+    public MongoIndexAdvisor setCreateIndexes(boolean createIndexes) {
+        this.createIndexes = createIndexes;
+        return this;
+    }
+
+    public List<MongoIndexAdvice> getAdvices() {
+        return new ArrayList<>(advices.values());
+    }
+
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Wait until the queued explains are done, mainly for tests and diagnostics endpoints.
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    public void observe(MongoRepository repository, String collectionName, Bson filter, Bson sort) {
+        observe(repository, collectionName, "find", filter, sort, null, false);
+    }
+
+    public void observeCount(MongoRepository repository, String collectionName, Bson filter) {
+        observe(repository, collectionName, "count", filter, null, null, false);
+    }
+
+    public void observeUpdate(MongoRepository repository, String collectionName, Bson filter, Bson update,
+            boolean multi) {
+        observe(repository, collectionName, "update", filter, null, update, multi);
+    }
+
+    public void observeRemove(MongoRepository repository, String collectionName, Bson filter, boolean multi) {
+        observe(repository, collectionName, "delete", filter, null, null, multi);
+    }
+
+    private void observe(final MongoRepository repository, final String collectionName, String commandName,
+            Bson filter, Bson sort, Bson update, boolean multi) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if (shapes.size() >= maxShapes) {
+            return;
+        }
+        final Document query = MongoDocuments.toDocument(filter);
+        final Document sortDoc = sort == null ? null : MongoDocuments.toDocument(sort);
+        StringBuilder buf = new StringBuilder(collectionName).append('|').append(commandName).append('|');
+        appendShape(buf, query);
+        buf.append('|');
+        if (sortDoc != null) {
+            for (Entry<String, Object> entry : sortDoc.entrySet()) {
+                buf.append(entry.getKey()).append(':').append(entry.getValue()).append(',');
+            }
+        }
+        final String key = buf.toString();
+        if (shapes.containsKey(key) || shapes.put(key, Boolean.TRUE) != null) {
+            return;
+        }
+        final Document shape = (Document) shapeOf(query);
+        final Document command = explainedCommand(collectionName, commandName, query, sortDoc, update, multi);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        analyze(repository, collectionName, key, command, query, shape, sortDoc);
+                    } catch (Exception ex) {
+                        LOG.warn("Failed to explain query on " + collectionName, ex);
+                    }
+                }
+
+            });
+        } catch (RejectedExecutionException ex) {
+            // the queue is full, the shape is explained the next time it is seen
+            shapes.remove(key);
+        }
+    }
+
+    /**
+     * Writes and counts are explained with their own command, their plans differ from a find on the same filter.
+     */
+    private static Document explainedCommand(String collectionName, String commandName, Document query,
+            Document sort, Bson update, boolean multi) {
+        switch (commandName) {
+        case "count":
+            return new Document("count", collectionName).append("query", query);
+        case "update":
+            return new Document("update", collectionName).append("updates", Collections.singletonList(
+                    new Document("q", query).append("u", MongoDocuments.toDocument(update)).append("multi", multi)));
+        case "delete":
+            return new Document("delete", collectionName).append("deletes",
+                    Collections.singletonList(new Document("q", query).append("limit", multi ? 0 : 1)));
+        default:
+            Document find = new Document("find", collectionName).append("filter", query);
+            if (sort != null) {
+                find.append("sort", sort);
+            }
+            return find;
+        }
+    }
+
+    // the key of the shape without building it, almost every sampled query has a known shape
+    private static void appendShape(StringBuilder buf, Object value) {
+        if (value instanceof Map) {
+            buf.append('{');
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String key = entry.getKey().toString();
+                buf.append(key).append(':');
+                if (key.equals("$in") || key.equals("$nin") || key.equals("$all")) {
+                    buf.append(PLACEHOLDER);
+                } else {
+                    appendShape(buf, entry.getValue());
+                }
+                buf.append(',');
+            }
+            buf.append('}');
+        } else if (value instanceof List) {
+            buf.append('[');
+            for (Object item : (List<?>) value) {
+                appendShape(buf, item);
+                buf.append(',');
+            }
+            buf.append(']');
+        } else {
+            buf.append(PLACEHOLDER);
+        }
+    }
+
+    private static Object shapeOf(Object value) {
+        if (value instanceof Map) {
+            Document shape = new Document();
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String key = entry.getKey().toString();
+                Object item = entry.getValue();
+                if (key.equals("$in") || key.equals("$nin") || key.equals("$all")) {
+                    shape.put(key, PLACEHOLDER);
+                } else {
+                    shape.put(key, shapeOf(item));
+                }
+            }
+            return shape;
+        }
+        if (value instanceof List) {
+            List<Object> shape = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                shape.add(shapeOf(item));
+            }
+            return shape;
+        }
+        return PLACEHOLDER;
+    }
+
+    private void analyze(MongoRepository repository, final String collectionName, String key,
+            final Document command, Document query, Document shape, Document sort) {
+        Document explain = repository.execute(new MongoOperate<Document>() {
+
+            @Override
+            public Document execute(MongoDatabase database) {
+                return database.runCommand(new Document("explain", command).append("verbosity", "executionStats"));
+            }
+
+        });
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        Document stats = (Document) explain.get("executionStats");
+        if (queryPlanner == null || stats == null) {
+            return;
+        }
+        boolean collectionScan = hasStage(queryPlanner.get("winningPlan"), "COLLSCAN");
+        long examined = ((Number) stats.get("totalDocsExamined")).longValue();
+        long returned = matched(stats);
+        if (examined < minDocsExamined || (!collectionScan && examined <= examinedRatio * Math.max(returned, 1))) {
+            return;
+        }
+        final Document index = suggestIndex(query, sort);
+        if (index.isEmpty()) {
+            return;
+        }
+        Boolean exists = repository.execute(new MongoOperate<Boolean>() {
+
+            @Override
+            public Boolean execute(MongoDatabase database) {
+                for (Document existing : database.getCollection(collectionName).listIndexes()) {
+                    if (hasPrefix((Document) existing.get("key"), index)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+        });
+        if (exists) {
+            return;
+        }
+        final MongoIndexAdvice advice = new MongoIndexAdvice(collectionName, shape, sort, index, collectionScan,
+                examined, returned);
+        if (createIndexes) {
+            repository.createIndex(collectionName, index, new IndexOptions().background(true));
+            advice.setCreated(true);
+        }
+        advices.put(key, advice);
+        LOG.warn("[Mongo] index advice: " + advice);
+    }
+
+    /**
+     * Count, update and delete plans return nothing themselves, their input stage returns the matched documents.
+     */
+    private static long matched(Document stats) {
+        Object stages = stats.get("executionStages");
+        if (stages instanceof Document) {
+            Document root = (Document) stages;
+            Object input = root.get("inputStage");
+            if (WRAPPING_STAGES.contains(root.get("stage")) && input instanceof Document) {
+                return ((Number) ((Document) input).get("nReturned")).longValue();
+            }
+        }
+        return ((Number) stats.get("nReturned")).longValue();
+    }
+
+    private static boolean hasStage(Object plan, String stage) {
+        if (plan instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) plan;
+            if (stage.equals(map.get("stage"))) {
+                return true;
+            }
+            for (Object value : map.values()) {
+                if (hasStage(value, stage)) {
+                    return true;
+                }
+            }
+        } else if (plan instanceof Collection) {
+            for (Object item : (Collection<?>) plan) {
+                if (hasStage(item, stage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasPrefix(Document keys, Document prefix) {
+        if (keys == null || keys.size() < prefix.size()) {
+            return false;
+        }
+        List<String> fields = new ArrayList<>(keys.keySet());
+        int i = 0;
+        for (String field : prefix.keySet()) {
+            if (!fields.get(i++).equals(field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equality fields first, then the sort, then range fields.
+     */
+    static Document suggestIndex(Document query, Document sort) {
+        List<String> equalities = new ArrayList<>();
+        List<String> ranges = new ArrayList<>();
+        classify(query, equalities, ranges);
+        Document index = new Document();
+        for (String field : equalities) {
+            index.put(field, 1);
+        }
+        if (sort != null) {
+            for (Entry<String, Object> entry : sort.entrySet()) {
+                if (!index.containsKey(entry.getKey())) {
+                    Object direction = entry.getValue();
+                    index.put(entry.getKey(), direction instanceof Number && ((Number) direction).intValue() < 0 ? -1
+                            : 1);
+                }
+            }
+        }
+        for (String field : ranges) {
+            if (!index.containsKey(field)) {
+                index.put(field, 1);
+            }
+        }
+        return index;
+    }
+
+    private static void classify(Map<?, ?> query, List<String> equalities, List<String> ranges) {
+        for (Entry<?, ?> entry : query.entrySet()) {
+            String field = entry.getKey().toString();
+            Object cond = entry.getValue();
+            if (field.equals("$and")) {
+                for (Object sub : (List<?>) cond) {
+                    classify((Map<?, ?>) sub, equalities, ranges);
+                }
+                continue;
+            }
+            if (field.startsWith("$")) {
+                // $or, $nor, $where and $text are not served by a single compound index
+                continue;
+            }
+            List<String> target = equalities;
+            if (cond instanceof Pattern) {
+                target = ranges;
+            } else if (cond instanceof Map && !((Map<?, ?>) cond).isEmpty()
+                    && ((Map<?, ?>) cond).keySet().iterator().next().toString().startsWith("$")) {
+                Map<?, ?> ops = (Map<?, ?>) cond;
+                if (!ops.containsKey("$eq") && !ops.containsKey("$in") && !ops.containsKey("$all")
+                        && !ops.containsKey("$elemMatch")) {
+                    target = ranges;
+                }
+            }
+            if (!equalities.contains(field) && !ranges.contains(field)) {
+                target.add(field);
+            }
+        }
+    }
+}
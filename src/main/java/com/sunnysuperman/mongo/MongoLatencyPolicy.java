@@ -0,0 +1,363 @@
+package com.sunnysuperman.mongo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.ReadPreference;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Deadlines and hedged reads for find, findForList and count of {@link MongoRepository}.
+ * <p>
+ * A read gets the earlier of the collection timeout and the thread's {@link MongoDeadline}. The remaining time is sent
+ * as server-side {@code maxTime} and the caller also stops waiting after it (plus a small grace for the network), so a
+ * stuck member cannot hold the caller beyond the deadline.
+ * <p>
+ * For hedged collections the first attempt runs with the caller's read preference. If it has not answered within the
+ * configured percentile of recent latency, a second attempt is sent with the hedge read preference, which lets the
+ * driver pick another eligible member, and the first answer wins.
+ * <p>
+ * Losing and timed out attempts are abandoned rather than interrupted: their {@code maxTime} already bounds the work on
+ * the server, and interrupting a thread blocked in the driver closes its pooled connection.
+ */
+public class MongoLatencyPolicy {
+    private static final int WINDOW_SIZE = 256;
+    private volatile long defaultTimeoutMillis;
+    private final Map<String, Long> timeouts = new ConcurrentHashMap<>();
+    private volatile boolean hedgeAll;
+    private final Set<String> hedgedCollections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile double hedgePercentile = 0.95;
+    private volatile long minHedgeDelayMillis = 2;
+    private volatile ReadPreference hedgeReadPreference = ReadPreference.nearest();
+    private volatile long clientGraceMillis = 50;
+    private final ConcurrentHashMap<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong deadlinesExceeded = new AtomicLong();
+    private volatile ExecutorService executor;
+
+    interface TimedRead<T> {
+        T execute(ReadPreference readPreference, long maxTimeMillis);
+    }
+
+    /**
+     * Recent latencies of one collection and operation; the percentile is recomputed every few samples.
+     */
+    private static class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private long cachedPercentile = -1;
+        private double cachedFor;
+
+        synchronized void add(long micros) {
+            samples[next] = micros;
+            next = (next + 1) % WINDOW_SIZE;
+            if (count < WINDOW_SIZE) {
+                count++;
+            }
+            if (next % 16 == 0) {
+                cachedPercentile = -1;
+            }
+        }
+
+        synchronized long percentile(double p) {
+            if (count < 16) {
+                return -1;
+            }
+            if (cachedPercentile < 0 || cachedFor != p) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                cachedPercentile = sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+                cachedFor = p;
+            }
+            return cachedPercentile;
+        }
+    }
+
+    public MongoLatencyPolicy setDefaultTimeout(long timeout, TimeUnit unit) {
+        this.defaultTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public MongoLatencyPolicy setTimeout(String collectionName, long timeout, TimeUnit unit) {
+        timeouts.put(collectionName, unit.toMillis(timeout));
+        return this;
+    }
+
+    public MongoLatencyPolicy setHedgeAll(boolean hedgeAll) {
+        this.hedgeAll = hedgeAll;
+        return this;
+    }
+
+    public MongoLatencyPolicy setHedged(String collectionName, boolean hedged) {
+        if (hedged) {
+            hedgedCollections.add(collectionName);
+        } else {
+            hedgedCollections.remove(collectionName);
+        }
+        return this;
+    }
+
+    /**
+     * The second attempt starts once the first has run longer than this percentile of recent latency, 0.95 by default.
+     */
+    public MongoLatencyPolicy setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    public MongoLatencyPolicy setMinHedgeDelay(long delay, TimeUnit unit) {
+        this.minHedgeDelayMillis = unit.toMillis(delay);
+        return this;
+    }
+
+    public MongoLatencyPolicy setHedgeReadPreference(ReadPreference hedgeReadPreference) {
+        this.hedgeReadPreference = hedgeReadPreference;
+        return this;
+    }
+
+    public MongoLatencyPolicy setClientGrace(long grace, TimeUnit unit) {
+        this.clientGraceMillis = unit.toMillis(grace);
+        return this;
+    }
+
+    public MongoLatencyPolicy setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    public long getDeadlinesExceeded() {
+        return deadlinesExceeded.get();
+    }
+
+    public boolean isHedged(String collectionName) {
+        return hedgeAll || hedgedCollections.contains(collectionName);
+    }
+
+    /**
+     * Current hedge delay in milliseconds, -1 until enough latency samples were seen.
+     */
+    public long getHedgeDelay(String collectionName, MongoReadOperation operation) {
+        LatencyWindow window = windows.get(collectionName + "|" + operation.name());
+        long micros = window == null ? -1 : window.percentile(hedgePercentile);
+        return micros < 0 ? -1 : Math.max(minHedgeDelayMillis, TimeUnit.MICROSECONDS.toMillis(micros));
+    }
+
+    private void record(String collectionName, MongoReadOperation operation, long nanos) {
+        String key = collectionName + "|" + operation.name();
+        LatencyWindow window = windows.get(key);
+        if (window == null) {
+            window = new LatencyWindow();
+            LatencyWindow exists = windows.putIfAbsent(key, window);
+            if (exists != null) {
+                window = exists;
+            }
+        }
+        window.add(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private long deadlineNanos(String collectionName, long start) {
+        Long timeout = timeouts.get(collectionName);
+        long millis = timeout == null ? defaultTimeoutMillis : timeout;
+        long deadline = millis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+        MongoDeadline current = MongoDeadline.current();
+        if (current != null && (deadline == 0 || current.getDeadlineNanos() - deadline < 0)) {
+            deadline = current.getDeadlineNanos();
+        }
+        return deadline;
+    }
+
+    static long remainingMillis(String collectionName, long deadlineNanos) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remaining <= 0) {
+            throw new MongoDeadlineExceededException("Deadline exceeded before reading " + collectionName);
+        }
+        return remaining;
+    }
+
+    static MongoDeadlineExceededException exceeded(String collectionName, Throwable cause) {
+        return new MongoDeadlineExceededException("Deadline exceeded reading " + collectionName, cause);
+    }
+
+    <T> T execute(String collectionName, MongoReadOperation operation, ReadPreference readPreference,
+            TimedRead<T> read) {
+        long start = System.nanoTime();
+        long deadline = deadlineNanos(collectionName, start);
+        // a read pinned to the primary has no other member to hedge to
+        boolean hedged = isHedged(collectionName) && !ReadPreference.primary().equals(readPreference);
+        try {
+            T result;
+            if (hedged) {
+                result = hedge(collectionName, operation, readPreference, read, deadline);
+            } else if (deadline != 0) {
+                result = await(collectionName, submit(read, readPreference, remainingMillis(collectionName, deadline)),
+                        deadline);
+            } else {
+                result = read.execute(readPreference, 0);
+            }
+            record(collectionName, operation, System.nanoTime() - start);
+            return result;
+        } catch (MongoDeadlineExceededException ex) {
+            deadlinesExceeded.incrementAndGet();
+            throw ex;
+        } catch (MongoExecutionTimeoutException ex) {
+            deadlinesExceeded.incrementAndGet();
+            throw exceeded(collectionName, ex);
+        }
+    }
+
+    private <T> Callable<T> call(final TimedRead<T> read, final ReadPreference readPreference,
+            final long maxTimeMillis) {
+        return new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return read.execute(readPreference, maxTimeMillis);
+            }
+
+        };
+    }
+
+    private <T> Future<T> submit(TimedRead<T> read, ReadPreference readPreference, long maxTimeMillis) {
+        return getExecutor().submit(call(read, readPreference, maxTimeMillis));
+    }
+
+    private <T> T await(String collectionName, Future<T> future, long deadline) {
+        try {
+            long wait = deadline - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(clientGraceMillis);
+            return future.get(Math.max(0, wait), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw exceeded(collectionName, e);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while reading " + collectionName);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        RepositoryException ex = new RepositoryException("Read failed");
+        ex.initCause(cause);
+        return ex;
+    }
+
+    private <T> T hedge(String collectionName, MongoReadOperation operation, ReadPreference readPreference,
+            TimedRead<T> read, long deadline) {
+        long maxTime = deadline == 0 ? 0 : remainingMillis(collectionName, deadline);
+        CompletionService<T> completion = new ExecutorCompletionService<>(getExecutor());
+        Future<T> first = completion.submit(call(read, readPreference, maxTime));
+        Future<T> second = null;
+        long delay = getHedgeDelay(collectionName, operation);
+        try {
+            Future<T> done = null;
+            if (delay >= 0) {
+                done = completion.poll(waitNanos(delay, deadline), TimeUnit.NANOSECONDS);
+                if (done == null && (deadline == 0 || deadline - System.nanoTime() > 0)) {
+                    hedges.incrementAndGet();
+                    second = completion.submit(call(read, hedgeReadPreference,
+                            deadline == 0 ? 0 : remainingMillis(collectionName, deadline)));
+                }
+            }
+            int pending = second == null ? 1 : 2;
+            ExecutionException failure = null;
+            while (pending > 0) {
+                if (done == null) {
+                    done = deadline == 0 ? completion.take()
+                            : completion.poll(deadline - System.nanoTime()
+                                    + TimeUnit.MILLISECONDS.toNanos(clientGraceMillis), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        throw exceeded(collectionName, null);
+                    }
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    if (done == second) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                done = null;
+            }
+            throw unwrap(failure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while reading " + collectionName);
+        } finally {
+            first.cancel(false);
+            if (second != null) {
+                second.cancel(false);
+            }
+        }
+    }
+
+    private static long waitNanos(long delayMillis, long deadline) {
+        long wait = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        if (deadline != 0) {
+            wait = Math.min(wait, deadline - System.nanoTime());
+        }
+        return Math.max(0, wait);
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger seq = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "mongo-read-" + seq.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+                }
+                result = executor;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.bson.Document;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Maps query results in parallel while the calling thread keeps fetching from the cursor. Documents are handed to a
+ * fork-join pool in batches, at most queue depth batches are in flight, and results are collected in cursor order.
+ */
+public class MongoMappingPipeline {
+    private final ForkJoinPool pool;
+    private final int queueDepth;
+    private int batchSize = 64;
+
+    public MongoMappingPipeline(int parallelism, int queueDepth) {
+        super();
+        this.pool = new ForkJoinPool(parallelism);
+        this.queueDepth = Math.max(1, queueDepth);
+    }
+
+    public MongoMappingPipeline() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public MongoMappingPipeline setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    private static <T> Callable<List<T>> mapBatch(final List<Document> batch, final MongoMapper<T> mapper,
+            final boolean skipNulls) {
+        return new Callable<List<T>>() {
+
+            @Override
+            public List<T> call() {
+                List<T> items = new ArrayList<>(batch.size());
+                for (Document doc : batch) {
+                    T item = mapper.map(doc);
+                    if (item != null || !skipNulls) {
+                        items.add(item);
+                    }
+                }
+                return items;
+            }
+
+        };
+    }
+
+    private static <T> void collect(Future<List<T>> batch, Collection<T> items) {
+        try {
+            items.addAll(batch.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while mapping documents");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RepositoryException("Failed to map document: " + cause);
+        }
+    }
+
+    /**
+     * @param skipNulls
+     *            drop documents the mapper maps to null
+     */
+    public <T> void map(Iterator<Document> docs, MongoMapper<T> mapper, Collection<T> items, boolean skipNulls) {
+        Deque<Future<List<T>>> inFlight = new ArrayDeque<>(queueDepth);
+        try {
+            List<Document> batch = new ArrayList<>(batchSize);
+            while (docs.hasNext()) {
+                batch.add(docs.next());
+                if (batch.size() < batchSize && docs.hasNext()) {
+                    continue;
+                }
+                // bounded: wait for the oldest batch rather than buffering the whole result
+                if (inFlight.size() >= queueDepth) {
+                    collect(inFlight.poll(), items);
+                }
+                // FutureTask keeps the mapper's own exception, fork-join tasks rethrow a copy
+                FutureTask<List<T>> task = new FutureTask<>(mapBatch(batch, mapper, skipNulls));
+                pool.execute(task);
+                inFlight.add(task);
+                batch = new ArrayList<>(batchSize);
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    collect(inFlight.poll(), items);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                collect(inFlight.poll(), items);
+            }
+        } finally {
+            for (Future<List<T>> batch : inFlight) {
+                batch.cancel(false);
+            }
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
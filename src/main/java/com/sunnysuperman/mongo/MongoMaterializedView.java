@@ -0,0 +1,194 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Summary of a source collection grouped by one or more fields with count and sum accumulators, kept in a target
+ * collection. Summary documents have the same shape as the output of the equivalent {@code $group} stage: the group
+ * key is the {@code _id} (the field value for a single group field, otherwise a document of the fields) and each
+ * accumulator is a field.
+ * <p>
+ * Register it with {@link MongoRepository#addMaterializedView(MongoMaterializedView)}; writes through the repository
+ * then apply {@code $inc} deltas to the summary, and
+ * {@link MongoRepository#rebuildMaterializedView(MongoMaterializedView)} recomputes it with an aggregation.
+ */
+public class MongoMaterializedView {
+    private final String source;
+    private final String target;
+    private final List<String> groupBy;
+    // accumulator name to summed field, null for a count
+    private final Map<String, String> accumulators = new LinkedHashMap<>();
+    private String countName;
+
+    public MongoMaterializedView(String source, String target, String... groupBy) {
+        super();
+        if (groupBy.length == 0) {
+            throw new IllegalArgumentException("groupBy");
+        }
+        this.source = source;
+        this.target = target;
+        this.groupBy = Collections.unmodifiableList(Arrays.asList(groupBy));
+    }
+
+    public MongoMaterializedView count(String name) {
+        accumulators.put(name, null);
+        if (countName == null) {
+            countName = name;
+        }
+        return this;
+    }
+
+    public MongoMaterializedView sum(String name, String field) {
+        accumulators.put(name, field);
+        return this;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Name of a count accumulator; summary documents whose count drops to zero are removed, see
+     * {@link #getEmptyFilter(Collection)}.
+     */
+    public String getCountName() {
+        return countName;
+    }
+
+    public Set<String> getFields() {
+        Set<String> fields = new LinkedHashSet<>(groupBy);
+        for (String field : accumulators.values()) {
+            if (field != null) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static Object getValue(Document doc, String path) {
+        Object value = doc;
+        for (String part : path.split("\\.")) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<?, ?>) value).get(part);
+        }
+        return value;
+    }
+
+    private static String keyName(String field) {
+        return field.replace('.', '_');
+    }
+
+    public Object getGroupKey(Document doc) {
+        if (groupBy.size() == 1) {
+            return getValue(doc, groupBy.get(0));
+        }
+        Document key = new Document();
+        for (String field : groupBy) {
+            key.put(keyName(field), getValue(doc, field));
+        }
+        return key;
+    }
+
+    /**
+     * Add the contribution of a document to the deltas; sign is 1 for an after image and -1 for a before image.
+     */
+    public void addDeltas(Map<Object, Document> deltas, Document doc, int sign) {
+        Object key = getGroupKey(doc);
+        Document delta = deltas.get(key);
+        if (delta == null) {
+            delta = new Document();
+            deltas.put(key, delta);
+        }
+        for (Entry<String, String> entry : accumulators.entrySet()) {
+            Object value = entry.getValue() == null ? 1 : getValue(doc, entry.getValue());
+            if (!(value instanceof Number)) {
+                continue;
+            }
+            Number n = (Number) value;
+            Object current = delta.get(entry.getKey());
+            if (n instanceof Double || n instanceof Float || current instanceof Double) {
+                double d = current == null ? 0 : ((Number) current).doubleValue();
+                delta.put(entry.getKey(), d + sign * n.doubleValue());
+            } else {
+                long l = current == null ? 0 : ((Number) current).longValue();
+                delta.put(entry.getKey(), l + sign * n.longValue());
+            }
+        }
+    }
+
+    public List<WriteModel<Document>> toWrites(Map<Object, Document> deltas) {
+        List<WriteModel<Document>> writes = new ArrayList<>(deltas.size());
+        for (Entry<Object, Document> entry : deltas.entrySet()) {
+            Document inc = new Document();
+            for (Entry<String, Object> delta : entry.getValue().entrySet()) {
+                if (((Number) delta.getValue()).doubleValue() != 0) {
+                    inc.put(delta.getKey(), delta.getValue());
+                }
+            }
+            if (!inc.isEmpty()) {
+                writes.add(new UpdateOneModel<Document>(new Document(MongoRepository.ID, entry.getKey()),
+                        new Document("$inc", inc), new UpdateOptions().upsert(true)));
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Filter of the summaries among the keys whose accumulators are all zero. Deltas of concurrent writes land in any
+     * order and the count may reach zero before a sum does, so only summaries with nothing left are removed.
+     */
+    public Document getEmptyFilter(Collection<Object> keys) {
+        Document filter = new Document(MongoRepository.ID, new Document("$in", new ArrayList<>(keys)));
+        for (String name : accumulators.keySet()) {
+            filter.put(name, 0);
+        }
+        return filter;
+    }
+
+    public List<Bson> getRebuildPipeline() {
+        Object id;
+        if (groupBy.size() == 1) {
+            id = "$" + groupBy.get(0);
+        } else {
+            Document key = new Document();
+            for (String field : groupBy) {
+                key.put(keyName(field), "$" + field);
+            }
+            id = key;
+        }
+        Document group = new Document(MongoRepository.ID, id);
+        for (Entry<String, String> entry : accumulators.entrySet()) {
+            group.put(entry.getKey(), new Document("$sum", entry.getValue() == null ? 1 : "$" + entry.getValue()));
+        }
+        List<Bson> pipeline = new ArrayList<>(2);
+        pipeline.add(new Document("$group", group));
+        pipeline.add(new Document("$out", target));
+        return pipeline;
+    }
+}
@@ -0,0 +1,5 @@
+package com.sunnysuperman.mongo;
+
+public enum MongoOperationType {
+    READ, WRITE, AGGREGATE
+}
@@ -0,0 +1,16 @@
+package com.sunnysuperman.mongo;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an int[], long[], float[] or double[] property to be stored as a single little-endian BSON binary instead of
+ * an array of numbers. The elements can no longer be queried, the whole property is read and written at once.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MongoPacked {
+
+}
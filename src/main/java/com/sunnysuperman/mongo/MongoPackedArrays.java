@@ -0,0 +1,172 @@
+package com.sunnysuperman.mongo;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Packed encoding of {@link MongoPacked} properties: BSON binary of a user defined subtype holding a 2 bytes header
+ * (magic, element type) followed by the elements in little-endian order.
+ */
+public class MongoPackedArrays {
+    public static final byte BINARY_SUBTYPE = (byte) 0x81;
+    private static final byte MAGIC = (byte) 0xA7;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final int HEADER_SIZE = 2;
+    private static final ConcurrentHashMap<Class<?>, Set<String>> COLUMNS = new ConcurrentHashMap<>();
+
+    public static Set<String> getPackedColumns(Class<?> clazz) {
+        Set<String> columns = COLUMNS.get(clazz);
+        if (columns != null) {
+            return columns;
+        }
+        MongoBeanCodec<?> codec = MongoBeanCodecs.get(clazz);
+        if (codec != null) {
+            columns = codec.getPackedColumns();
+            COLUMNS.putIfAbsent(clazz, columns);
+            return columns;
+        }
+        columns = new HashSet<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(MongoPacked.class)) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (type != int[].class && type != long[].class && type != float[].class && type != double[].class) {
+                    throw new RepositoryException(
+                            "@MongoPacked requires int[], long[], float[] or double[] property: " + field);
+                }
+                columns.add(MongoSerializer.getColumnName(field, clazz));
+            }
+        }
+        columns = columns.isEmpty() ? Collections.<String> emptySet() : columns;
+        COLUMNS.putIfAbsent(clazz, columns);
+        return columns;
+    }
+
+    private static ByteBuffer allocate(byte type, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC).put(type);
+        return buf;
+    }
+
+    /**
+     * @return binary of the primitive array, the value itself when it is not a packable array
+     */
+    public static Object pack(Object value) {
+        ByteBuffer buf;
+        if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            buf = allocate(TYPE_INT, array.length * 4);
+            buf.asIntBuffer().put(array);
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            buf = allocate(TYPE_LONG, array.length * 8);
+            buf.asLongBuffer().put(array);
+        } else if (value instanceof float[]) {
+            float[] array = (float[]) value;
+            buf = allocate(TYPE_FLOAT, array.length * 4);
+            buf.asFloatBuffer().put(array);
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            buf = allocate(TYPE_DOUBLE, array.length * 8);
+            buf.asDoubleBuffer().put(array);
+        } else {
+            return value;
+        }
+        return new Binary(BINARY_SUBTYPE, buf.array());
+    }
+
+    public static boolean isPacked(Object value) {
+        if (!(value instanceof Binary)) {
+            return false;
+        }
+        Binary binary = (Binary) value;
+        return binary.getType() == BINARY_SUBTYPE && binary.length() >= HEADER_SIZE && binary.getData()[0] == MAGIC;
+    }
+
+    public static Object unpack(Object value) {
+        if (!isPacked(value)) {
+            return value;
+        }
+        byte[] data = ((Binary) value).getData();
+        ByteBuffer buf = ByteBuffer.wrap(data, HEADER_SIZE, data.length - HEADER_SIZE).slice()
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int elementSize = elementSize(data[1]);
+        if (buf.remaining() % elementSize != 0) {
+            throw new RepositoryException("Truncated packed array of type " + data[1] + ": " + buf.remaining()
+                    + " bytes is not a multiple of " + elementSize);
+        }
+        switch (data[1]) {
+        case TYPE_INT: {
+            int[] array = new int[buf.remaining() / 4];
+            buf.asIntBuffer().get(array);
+            return array;
+        }
+        case TYPE_LONG: {
+            long[] array = new long[buf.remaining() / 8];
+            buf.asLongBuffer().get(array);
+            return array;
+        }
+        case TYPE_FLOAT: {
+            float[] array = new float[buf.remaining() / 4];
+            buf.asFloatBuffer().get(array);
+            return array;
+        }
+        case TYPE_DOUBLE: {
+            double[] array = new double[buf.remaining() / 8];
+            buf.asDoubleBuffer().get(array);
+            return array;
+        }
+        default:
+            throw new RepositoryException("Unknown packed array type: " + data[1]);
+        }
+    }
+
+    private static int elementSize(byte type) {
+        switch (type) {
+        case TYPE_INT:
+        case TYPE_FLOAT:
+            return 4;
+        case TYPE_LONG:
+        case TYPE_DOUBLE:
+            return 8;
+        default:
+            throw new RepositoryException("Unknown packed array type: " + type);
+        }
+    }
+
+    /**
+     * @return the document with packed properties decoded, a copy when any property has been decoded
+     */
+    public static Document unpack(Document doc, Class<?> clazz) {
+        if (doc == null) {
+            return null;
+        }
+        Document unpacked = doc;
+        for (String column : getPackedColumns(clazz)) {
+            Object value = doc.get(column);
+            if (!isPacked(value)) {
+                continue;
+            }
+            if (unpacked == doc) {
+                unpacked = new Document(doc);
+            }
+            unpacked.put(column, unpack(value));
+        }
+        return unpacked;
+    }
+}
@@ -0,0 +1,305 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ReadPreference;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Result cache for {@link MongoRepository#findForList} and {@link MongoRepository#aggregate}. Entries are keyed by
+ * the collection and a canonical JSON encoding of the query, and hold the raw documents, so each hit is mapped again
+ * and callers never share beans; a {@code RawMongoMapper} gets a deep copy of each cached document.
+ * <p>
+ * Every collection has a generation that the repository bumps on each write to it; entries loaded under an older
+ * generation are never returned. Within a generation an entry is fresh for the TTL, and during the following
+ * stale-while-revalidate window it is still returned while one background reload replaces it. Concurrent misses on
+ * the same key share a single load.
+ */
+public class MongoQueryCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private volatile long staleMillis;
+    private volatile int maxResultSize = 1000;
+    private final Set<String> collections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final Map<String, CacheEntry> entries;
+    private final ConcurrentHashMap<String, FutureTask<List<Document>>> loading = new ConcurrentHashMap<>();
+    private volatile Executor refreshExecutor;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class CacheEntry {
+        final long generation;
+        final long loadedAt;
+        final List<Document> docs;
+
+        CacheEntry(long generation, long loadedAt, List<Document> docs) {
+            super();
+            this.generation = generation;
+            this.loadedAt = loadedAt;
+            this.docs = docs;
+        }
+    }
+
+    public MongoQueryCache(int maxEntries, long ttl, TimeUnit unit) {
+        super();
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > MongoQueryCache.this.maxEntries;
+            }
+
+        };
+    }
+
+    public MongoQueryCache setStaleWhileRevalidate(long duration, TimeUnit unit) {
+        this.staleMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Results with more documents than this are not cached.
+     */
+    public MongoQueryCache setMaxResultSize(int maxResultSize) {
+        this.maxResultSize = maxResultSize;
+        return this;
+    }
+
+    /**
+     * Restrict caching to the given collections; by default every collection is cached.
+     */
+    public MongoQueryCache setCollections(String... collectionNames) {
+        collections.clear();
+        Collections.addAll(collections, collectionNames);
+        return this;
+    }
+
+    public MongoQueryCache setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+        return this;
+    }
+
+    public boolean isCacheable(String collectionName) {
+        return collections.isEmpty() || collections.contains(collectionName);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getGeneration(String collectionName) {
+        AtomicLong generation = generations.get(collectionName);
+        return generation == null ? 0 : generation.get();
+    }
+
+    public void invalidate(String collectionName) {
+        AtomicLong generation = generations.get(collectionName);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong exists = generations.putIfAbsent(collectionName, generation);
+            if (exists != null) {
+                generation = exists;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public static String findKey(String collectionName, Bson filter, Bson sort, Bson fields, int offset, int limit,
+            ReadPreference readPreference) {
+        StringBuilder buf = new StringBuilder(collectionName).append("|find|");
+        append(buf, filter).append('|');
+        append(buf, sort).append('|');
+        append(buf, fields).append('|').append(offset).append('|').append(limit);
+        return appendReadPreference(buf, readPreference);
+    }
+
+    /**
+     * Key of an aggregation, or null when its result depends on other collections or it writes ($out).
+     */
+    public static String aggregateKey(String collectionName, List<? extends Bson> pipeline,
+            ReadPreference readPreference) {
+        BsonArray stages = new BsonArray();
+        for (Bson stage : pipeline) {
+            BsonDocument doc = MongoDocuments.toBsonDocument(stage);
+            if (doc.containsKey("$out") || doc.containsKey("$lookup") || doc.containsKey("$graphLookup")) {
+                return null;
+            }
+            stages.add(doc);
+        }
+        StringBuilder buf = new StringBuilder(collectionName).append("|aggregate|");
+        buf.append(new BsonDocument("p", stages).toJson());
+        return appendReadPreference(buf, readPreference);
+    }
+
+    private static StringBuilder append(StringBuilder buf, Bson bson) {
+        return buf.append(bson == null ? "" : MongoDocuments.toBsonDocument(bson).toJson());
+    }
+
+    private static String appendReadPreference(StringBuilder buf, ReadPreference readPreference) {
+        if (readPreference != null) {
+            buf.append('|').append(readPreference.toString());
+        }
+        return buf.toString();
+    }
+
+    public List<Document> get(final String collectionName, final String key, final Callable<List<Document>> loader) {
+        long generation = getGeneration(collectionName);
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.generation == generation) {
+            long age = System.currentTimeMillis() - entry.loadedAt;
+            if (age < ttlMillis) {
+                hits.incrementAndGet();
+                return entry.docs;
+            }
+            if (age < ttlMillis + staleMillis) {
+                staleHits.incrementAndGet();
+                refresh(collectionName, key, loader);
+                return entry.docs;
+            }
+        }
+        misses.incrementAndGet();
+        return load(collectionName, key, loader);
+    }
+
+    private void refresh(final String collectionName, final String key, final Callable<List<Document>> loader) {
+        if (loading.containsKey(key + '#' + getGeneration(collectionName))) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        load(collectionName, key, loader);
+                    } catch (RuntimeException ex) {
+                        // the stale entry stays until it expires, the next miss reports the error
+                    }
+                }
+
+            });
+        } catch (RuntimeException ex) {
+            // executor saturated or shut down, serve stale
+        }
+    }
+
+    private List<Document> load(String collectionName, String key, Callable<List<Document>> loader) {
+        long generation = getGeneration(collectionName);
+        // loads started before a write must not be shared with readers that come after it
+        String loadingKey = key + '#' + generation;
+        FutureTask<List<Document>> task = new FutureTask<>(loader);
+        FutureTask<List<Document>> running = loading.putIfAbsent(loadingKey, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(loadingKey, task);
+            }
+            running = task;
+        }
+        List<Document> docs;
+        try {
+            docs = running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for query result");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            RepositoryException ex = new RepositoryException("Failed to load query result");
+            ex.initCause(cause);
+            throw ex;
+        }
+        if (running == task && docs.size() <= maxResultSize) {
+            docs = Collections.unmodifiableList(new ArrayList<>(docs));
+            synchronized (entries) {
+                entries.put(key, new CacheEntry(generation, System.currentTimeMillis(), docs));
+            }
+        }
+        return docs;
+    }
+
+    private Executor getRefreshExecutor() {
+        Executor executor = refreshExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    refreshExecutor = newDaemonExecutor();
+                }
+                executor = refreshExecutor;
+            }
+        }
+        return executor;
+    }
+
+    private static ExecutorService newDaemonExecutor() {
+        return Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mongo-query-cache-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+    }
+}
@@ -0,0 +1,5 @@
+package com.sunnysuperman.mongo;
+
+public enum MongoReadOperation {
+    FIND, FIND_FOR_LIST, COUNT, AGGREGATE
+}
@@ -0,0 +1,120 @@
+package com.sunnysuperman.mongo;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ReadPreference;
+
+/**
+ * Routes reads of {@link MongoRepository} to replica set members per collection and operation. The most specific
+ * rule wins: collection and operation, then collection, then operation, then the default. A null read preference
+ * leaves the client default in place.
+ * <p>
+ * When primary-after-write is enabled, a thread that wrote to a collection reads it from the primary for the given
+ * window, so read-after-write paths never see a lagging secondary.
+ */
+public class MongoReadPolicy {
+    private volatile ReadPreference defaultReadPreference;
+    private final Map<MongoReadOperation, ReadPreference> operations = new ConcurrentHashMap<>();
+    private final Map<String, ReadPreference> collections = new ConcurrentHashMap<>();
+    private final Map<String, Map<MongoReadOperation, ReadPreference>> collectionOperations = new ConcurrentHashMap<>();
+    private volatile long primaryAfterWriteMillis;
+    private final ThreadLocal<Map<String, Long>> lastWrites = new ThreadLocal<Map<String, Long>>() {
+
+        @Override
+        protected Map<String, Long> initialValue() {
+            return new HashMap<>();
+        }
+
+    };
+
+    public ReadPreference getDefault() {
+        return defaultReadPreference;
+    }
+
+    public MongoReadPolicy setDefault(ReadPreference readPreference) {
+        this.defaultReadPreference = readPreference;
+        return this;
+    }
+
+    public MongoReadPolicy set(MongoReadOperation operation, ReadPreference readPreference) {
+        put(operations, operation, readPreference);
+        return this;
+    }
+
+    public MongoReadPolicy set(String collectionName, ReadPreference readPreference) {
+        put(collections, collectionName, readPreference);
+        return this;
+    }
+
+    public MongoReadPolicy set(String collectionName, MongoReadOperation operation, ReadPreference readPreference) {
+        synchronized (collectionOperations) {
+            Map<MongoReadOperation, ReadPreference> map = collectionOperations.get(collectionName);
+            Map<MongoReadOperation, ReadPreference> copy = map == null
+                    ? new EnumMap<MongoReadOperation, ReadPreference>(MongoReadOperation.class)
+                    : new EnumMap<>(map);
+            put(copy, operation, readPreference);
+            collectionOperations.put(collectionName, copy);
+        }
+        return this;
+    }
+
+    private static <K> void put(Map<K, ReadPreference> map, K key, ReadPreference readPreference) {
+        if (readPreference == null) {
+            map.remove(key);
+        } else {
+            map.put(key, readPreference);
+        }
+    }
+
+    public long getPrimaryAfterWrite(TimeUnit unit) {
+        return unit.convert(primaryAfterWriteMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public MongoReadPolicy setPrimaryAfterWrite(long duration, TimeUnit unit) {
+        this.primaryAfterWriteMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Whether the calling thread wrote to the collection within the primary-after-write window.
+     */
+    public boolean isPrimaryAfterWrite(String collectionName) {
+        if (primaryAfterWriteMillis <= 0) {
+            return false;
+        }
+        Long lastWrite = lastWrites.get().get(collectionName);
+        if (lastWrite == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastWrite < primaryAfterWriteMillis) {
+            return true;
+        }
+        lastWrites.get().remove(collectionName);
+        return false;
+    }
+
+    public ReadPreference getReadPreference(String collectionName, MongoReadOperation operation) {
+        if (isPrimaryAfterWrite(collectionName)) {
+            return ReadPreference.primary();
+        }
+        Map<MongoReadOperation, ReadPreference> map = collectionOperations.get(collectionName);
+        ReadPreference readPreference = map == null ? null : map.get(operation);
+        if (readPreference == null) {
+            readPreference = collections.get(collectionName);
+        }
+        if (readPreference == null) {
+            readPreference = operations.get(operation);
+        }
+        return readPreference == null ? defaultReadPreference : readPreference;
+    }
+
+    public void onWrite(String collectionName) {
+        if (primaryAfterWriteMillis > 0) {
+            lastWrites.get().put(collectionName, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.sunnysuperman.mongo;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Thrown when a bulkhead of {@link MongoAdmissionControl} has no free slot and its wait queue is full or the wait
+ * timed out. The operation was not sent to the server.
+ */
+public class MongoRejectedException extends RepositoryException {
+    private static final long serialVersionUID = 1L;
+    private final String collectionName;
+    private final MongoOperationType type;
+
+    public MongoRejectedException(String collectionName, MongoOperationType type, String reason) {
+        super("Rejected " + type + " on " + collectionName + ": " + reason);
+        this.collectionName = collectionName;
+        this.type = type;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public MongoOperationType getType() {
+        return type;
+    }
+}
@@ -1,10 +1,25 @@
 package com.sunnysuperman.mongo;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
@@ -12,19 +27,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.ReadPreference;
 import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndDeleteOptions;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 import com.sunnysuperman.commons.model.Pagination;
 import com.sunnysuperman.commons.model.PullPagination;
 import com.sunnysuperman.commons.util.StringUtil;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryUpdater;
 import com.sunnysuperman.repository.InsertUpdate;
 import com.sunnysuperman.repository.RepositoryException;
 import com.sunnysuperman.repository.serialize.SerializeDoc;
@@ -36,6 +68,16 @@ public class MongoRepository {
     protected boolean traceLog;
     protected MongoClient client;
     protected String db;
+    protected MongoReadPolicy readPolicy;
+    protected MongoQueryCache queryCache;
+    protected MongoIndexAdvisor indexAdvisor;
+    protected MongoAdmissionControl admissionControl;
+    protected MongoLatencyPolicy latencyPolicy;
+    protected MongoMappingPipeline mappingPipeline;
+    protected MongoCounterAccumulator counterAccumulator;
+    protected MongoWorkloadRecorder workloadRecorder;
+    protected int maxViewSnapshot = 10000;
+    protected final Map<String, List<MongoMaterializedView>> materializedViews = new ConcurrentHashMap<>();
 
     public MongoRepository() {
         super();
@@ -79,6 +121,120 @@ public class MongoRepository {
         this.db = db;
     }
 
+    public MongoReadPolicy getReadPolicy() {
+        return readPolicy;
+    }
+
+    public void setReadPolicy(MongoReadPolicy readPolicy) {
+        this.readPolicy = readPolicy;
+    }
+
+    public MongoQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public void setQueryCache(MongoQueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public MongoIndexAdvisor getIndexAdvisor() {
+        return indexAdvisor;
+    }
+
+    public void setIndexAdvisor(MongoIndexAdvisor indexAdvisor) {
+        this.indexAdvisor = indexAdvisor;
+    }
+
+    public MongoAdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public void setAdmissionControl(MongoAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public MongoLatencyPolicy getLatencyPolicy() {
+        return latencyPolicy;
+    }
+
+    public void setLatencyPolicy(MongoLatencyPolicy latencyPolicy) {
+        this.latencyPolicy = latencyPolicy;
+    }
+
+    public MongoMappingPipeline getMappingPipeline() {
+        return mappingPipeline;
+    }
+
+    public void setMappingPipeline(MongoMappingPipeline mappingPipeline) {
+        this.mappingPipeline = mappingPipeline;
+    }
+
+    public MongoCounterAccumulator getCounterAccumulator() {
+        return counterAccumulator;
+    }
+
+    public void setCounterAccumulator(MongoCounterAccumulator counterAccumulator) {
+        this.counterAccumulator = counterAccumulator;
+    }
+
+    public MongoWorkloadRecorder getWorkloadRecorder() {
+        return workloadRecorder;
+    }
+
+    /**
+     * Captures the operations of this repository; for a sharded repository set it on the shards.
+     */
+    public void setWorkloadRecorder(MongoWorkloadRecorder workloadRecorder) {
+        this.workloadRecorder = workloadRecorder;
+    }
+
+    public int getMaxViewSnapshot() {
+        return maxViewSnapshot;
+    }
+
+    /**
+     * Multi document writes on a collection with materialized views fail when they match more documents than this,
+     * their before images are held in memory; use the chunked writes for larger ranges.
+     */
+    public void setMaxViewSnapshot(int maxViewSnapshot) {
+        this.maxViewSnapshot = maxViewSnapshot;
+    }
+
+    /**
+     * Single document updates and removes take the before image atomically from the write. Multi document writes,
+     * batches and findAndUpdate snapshot the matched documents before writing and read them back after, so a
+     * concurrent write to the same documents in between can be counted twice or not at all; serialize such writes
+     * or rebuild the view afterwards.
+     */
+    public synchronized void addMaterializedView(MongoMaterializedView view) {
+        List<MongoMaterializedView> views = materializedViews.get(view.getSource());
+        views = views == null ? new ArrayList<MongoMaterializedView>(1) : new ArrayList<>(views);
+        views.add(view);
+        materializedViews.put(view.getSource(), Collections.unmodifiableList(views));
+    }
+
+    public List<MongoMaterializedView> getMaterializedViews(String collectionName) {
+        List<MongoMaterializedView> views = materializedViews.get(collectionName);
+        return views == null ? Collections.<MongoMaterializedView> emptyList() : views;
+    }
+
+    public void rebuildMaterializedView(MongoMaterializedView view) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(view.getSource(), MongoOperationType.AGGREGATE);
+        MongoClient client = getClient();
+        try {
+            MongoDatabase database = getDatabase(client);
+            database.getCollection(view.getSource()).aggregate(view.getRebuildPipeline()).allowDiskUse(true)
+                    .toCollection();
+        } finally {
+            release(permit);
+            afterWrite(view.getTarget());
+            if (traceLog) {
+                trace(client, t1, "rebuildMaterializedView:" + view.getSource(), "target:", view.getTarget());
+            }
+        }
+    }
+
     public static Document getIdDocument(Object id) {
         return new Document(ID, id);
     }
@@ -93,6 +249,278 @@ public class MongoRepository {
         }
     }
 
+    protected MongoDatabase getDatabase(MongoClient client) {
+        return client.getDatabase(db);
+    }
+
+    protected MongoCollection<Document> getReadCollection(MongoDatabase database, String collectionName,
+            MongoReadOperation operation, ReadPreference readPreference) {
+        MongoCollection<Document> collection = database.getCollection(collectionName);
+        readPreference = resolveReadPreference(collectionName, operation, readPreference);
+        if (readPreference != null) {
+            collection = collection.withReadPreference(readPreference);
+        }
+        return collection;
+    }
+
+    protected ReadPreference resolveReadPreference(String collectionName, MongoReadOperation operation,
+            ReadPreference readPreference) {
+        if (readPreference == null && readPolicy != null) {
+            return readPolicy.getReadPreference(collectionName, operation);
+        }
+        return readPreference;
+    }
+
+    // reads of a thread's own recent writes go to the primary and must not be answered from the cache
+    private boolean isCacheable(String collectionName) {
+        return queryCache != null && queryCache.isCacheable(collectionName)
+                && (readPolicy == null || !readPolicy.isPrimaryAfterWrite(collectionName));
+    }
+
+    protected MongoBulkhead.Permit admit(String collectionName, MongoOperationType type) {
+        return admissionControl == null ? null : admissionControl.acquire(collectionName, type);
+    }
+
+    protected void release(MongoBulkhead.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    private <T> T timedRead(String collectionName, MongoReadOperation operation, ReadPreference readPreference,
+            MongoLatencyPolicy.TimedRead<T> read) {
+        if (latencyPolicy != null) {
+            // resolved on the calling thread, primary-after-write state is thread bound
+            readPreference = resolveReadPreference(collectionName, operation, readPreference);
+            return latencyPolicy.execute(collectionName, operation, readPreference, read);
+        }
+        MongoDeadline deadline = MongoDeadline.current();
+        if (deadline == null) {
+            return read.execute(readPreference, 0);
+        }
+        long maxTime = MongoLatencyPolicy.remainingMillis(collectionName, deadline.getDeadlineNanos());
+        try {
+            return read.execute(readPreference, maxTime);
+        } catch (MongoExecutionTimeoutException ex) {
+            throw MongoLatencyPolicy.exceeded(collectionName, ex);
+        }
+    }
+
+    private <T> void mapAll(Iterator<Document> docs, MongoMapper<T> mapper, List<T> items, boolean skipNulls) {
+        if (mappingPipeline != null && !(mapper instanceof RawMongoMapper)) {
+            mappingPipeline.map(docs, mapper, items, skipNulls);
+            return;
+        }
+        while (docs.hasNext()) {
+            T item = mapper.map(docs.next());
+            if (item != null || !skipNulls) {
+                items.add(item);
+            }
+        }
+    }
+
+    protected void observeQuery(String collectionName, Bson filter, Bson sort) {
+        if (indexAdvisor != null) {
+            indexAdvisor.observe(this, collectionName, filter, sort);
+        }
+    }
+
+    protected void observeCount(String collectionName, Bson filter) {
+        if (indexAdvisor != null) {
+            indexAdvisor.observeCount(this, collectionName, filter);
+        }
+    }
+
+    protected void observeUpdate(String collectionName, Bson filter, Bson update, boolean multi) {
+        if (indexAdvisor != null) {
+            indexAdvisor.observeUpdate(this, collectionName, filter, update, multi);
+        }
+    }
+
+    protected void observeRemove(String collectionName, Bson filter, boolean multi) {
+        if (indexAdvisor != null) {
+            indexAdvisor.observeRemove(this, collectionName, filter, multi);
+        }
+    }
+
+    /**
+     * Sends what the current unit of work queued for the collection, so the read sees it.
+     *
+     * @param collectionName
+     *            null when the read may join any collection
+     */
+    protected void beforeRead(String collectionName) {
+        MongoUnitOfWork unit = MongoUnitOfWork.current();
+        if (unit != null && unit.getRepository() == this) {
+            unit.flush(collectionName);
+        }
+    }
+
+    protected void afterWrite(String collectionName) {
+        MongoUnitOfWork unit = MongoUnitOfWork.current();
+        if (unit != null && unit.getRepository() == this) {
+            unit.evict(collectionName);
+        }
+        if (queryCache != null) {
+            queryCache.invalidate(collectionName);
+        }
+        if (readPolicy != null) {
+            readPolicy.onWrite(collectionName);
+        }
+    }
+
+    /**
+     * Before images of the documents a write may touch, null when the collection has no materialized views.
+     */
+    private List<Document> viewSnapshot(MongoCollection<Document> collection, String collectionName, Bson filter,
+            Bson sort, boolean multi) {
+        List<MongoMaterializedView> views = materializedViews.get(collectionName);
+        if (views == null) {
+            return null;
+        }
+        FindIterable<Document> iter = collection.find(filter).projection(viewFields(views));
+        if (sort != null) {
+            iter.sort(sort);
+        }
+        iter.limit(multi ? maxViewSnapshot + 1 : 1);
+        List<Document> docs = iter.into(new ArrayList<Document>());
+        if (docs.size() > maxViewSnapshot) {
+            throw new RepositoryException("Write on " + collectionName + " matches more than " + maxViewSnapshot
+                    + " documents, too many to maintain its materialized views, write them in chunks instead");
+        }
+        return docs;
+    }
+
+    private static Document viewFields(List<MongoMaterializedView> views) {
+        Document fields = new Document(ID, 1);
+        for (MongoMaterializedView view : views) {
+            for (String field : view.getFields()) {
+                fields.put(field, 1);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Single document writes are pinned to the snapshotted document so the deltas describe the document written.
+     */
+    private static Bson pinFilter(Bson filter, List<Document> before) {
+        if (before == null || before.isEmpty()) {
+            return filter;
+        }
+        return Filters.and(filter, Filters.eq(ID, before.get(0).get(ID)));
+    }
+
+    /**
+     * Updates one document with the before image taken atomically by the write and the after image computed from it,
+     * so concurrent writes to the document cannot leak into the deltas. The after image is only read back, and may
+     * then include a later write, when the update cannot be applied locally. Null when nothing matched.
+     */
+    private SingleWrite updateOneWithViews(MongoDatabase database, MongoCollection<Document> collection,
+            String collectionName, Bson filter, Document update, Object upsertId) {
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(upsertId != null)
+                .returnDocument(ReturnDocument.BEFORE);
+        Document before = collection.findOneAndUpdate(filter, update, options);
+        if (before == null && upsertId == null) {
+            return null;
+        }
+        Document after;
+        if (MemoryUpdater.canApply(update)) {
+            after = before == null ? getIdDocument(upsertId) : MongoDocuments.copy(before);
+            MemoryUpdater.apply(after, update, before == null);
+        } else {
+            after = collection.find(getIdDocument(before == null ? upsertId : before.get(ID))).first();
+        }
+        applyDeltas(database, materializedViews.get(collectionName), SingleWrite.images(before),
+                SingleWrite.images(after));
+        return new SingleWrite(before, after);
+    }
+
+    private static class SingleWrite {
+        private final Document before;
+        private final Document after;
+
+        SingleWrite(Document before, Document after) {
+            super();
+            this.before = before;
+            this.after = after;
+        }
+
+        boolean isModified() {
+            return before == null || after == null || !before.equals(after);
+        }
+
+        static List<Document> images(Document doc) {
+            return doc == null ? Collections.<Document> emptyList() : Collections.singletonList(doc);
+        }
+    }
+
+    /**
+     * Apply the difference between before images and the current state of the written documents to the summaries.
+     */
+    private void applyViews(MongoDatabase database, MongoCollection<Document> collection, String collectionName,
+            List<Document> before, Collection<?> ids, List<Document> inserted) {
+        List<MongoMaterializedView> views = materializedViews.get(collectionName);
+        if (views == null) {
+            return;
+        }
+        Set<Object> reload = new LinkedHashSet<>();
+        if (before != null) {
+            for (Document doc : before) {
+                reload.add(doc.get(ID));
+            }
+        }
+        if (ids != null) {
+            reload.addAll(ids);
+        }
+        List<Document> after = new ArrayList<>();
+        if (!reload.isEmpty()) {
+            collection.find(new Document(ID, new Document("$in", new ArrayList<>(reload))))
+                    .projection(viewFields(views)).into(after);
+        }
+        if (inserted != null) {
+            after.addAll(inserted);
+        }
+        applyDeltas(database, views, before, after);
+    }
+
+    private void applyDeltas(MongoDatabase database, List<MongoMaterializedView> views, List<Document> before,
+            List<Document> after) {
+        for (MongoMaterializedView view : views) {
+            Map<Object, Document> deltas = new LinkedHashMap<>();
+            if (before != null) {
+                for (Document doc : before) {
+                    view.addDeltas(deltas, doc, -1);
+                }
+            }
+            for (Document doc : after) {
+                view.addDeltas(deltas, doc, 1);
+            }
+            List<WriteModel<Document>> writes = view.toWrites(deltas);
+            if (writes.isEmpty()) {
+                continue;
+            }
+            MongoCollection<Document> target = database.getCollection(view.getTarget());
+            target.bulkWrite(writes);
+            if (view.getCountName() != null) {
+                target.deleteMany(view.getEmptyFilter(deltas.keySet()));
+            }
+            afterWrite(view.getTarget());
+        }
+    }
+
+    protected long startTime() {
+        return traceLog || workloadRecorder != null ? System.nanoTime() : 0;
+    }
+
+    protected void record(MongoWorkloadOperation operation, String collectionName, long t1, Object query,
+            Object extra, int offset, int count) {
+        MongoWorkloadRecorder recorder = workloadRecorder;
+        if (recorder != null && t1 != 0) {
+            recorder.record(operation, collectionName, t1, query, extra, offset, count);
+        }
+    }
+
     protected void trace(MongoClient client, long t1, Object... params) {
         if (traceLog && logger.isInfoEnabled()) {
             long t2 = System.nanoTime();
@@ -108,10 +536,10 @@ public class MongoRepository {
     }
 
     public <T> T execute(MongoOperate<T> op) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             return op.execute(database);
         } finally {
             if (traceLog) {
@@ -120,6 +548,170 @@ public class MongoRepository {
         }
     }
 
+    /**
+     * @return name of the index
+     */
+    public String createIndex(String collectionName, Bson keys, IndexOptions options) {
+        long t1 = startTime();
+        MongoClient client = getClient();
+        try {
+            return getDatabase(client).getCollection(collectionName).createIndex(keys,
+                    options == null ? new IndexOptions() : options);
+        } finally {
+            if (traceLog) {
+                trace(client, t1, "createIndex:" + collectionName, "keys:", keys);
+            }
+        }
+    }
+
+    private static Callable<Long> timed(final Callable<?> step) {
+        return new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception {
+                long t1 = System.nanoTime();
+                step.call();
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t1);
+            }
+
+        };
+    }
+
+    private static String errorOf(Throwable ex) {
+        return ex.getClass().getSimpleName() + (ex.getMessage() == null ? "" : ": " + ex.getMessage());
+    }
+
+    /**
+     * Scans packages, opens connections, resolves bean metadata and collections, and runs the priming queries of the
+     * plan in parallel within its time budget. Steps not finished in time are cancelled and reported as failed.
+     */
+    public MongoWarmUpReport warmUp(MongoWarmUpPlan plan) {
+        long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(plan.getTimeoutMillis());
+        MongoWarmUpReport report = new MongoWarmUpReport();
+        Map<String, Callable<Long>> steps = new LinkedHashMap<>();
+        // submitted first, bean metadata depends on the scanned packages
+        final CountDownLatch scanned = new CountDownLatch(plan.getScanPackages().size());
+        for (final String packageName : plan.getScanPackages()) {
+            steps.put("scan:" + packageName, timed(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        Serializer.scan(packageName);
+                        return null;
+                    } finally {
+                        scanned.countDown();
+                    }
+                }
+
+            }));
+        }
+        for (final Class<?> beanClass : plan.getBeanClasses()) {
+            steps.put("bean:" + beanClass.getName(), timed(new Callable<Object>() {
+
+                @Override
+                public Object call() throws InterruptedException {
+                    scanned.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    MongoBeanCodecs.get(beanClass);
+                    MongoCompression.getCompressedColumns(beanClass);
+                    return MongoPackedArrays.getPackedColumns(beanClass);
+                }
+
+            }));
+        }
+        // connections are checked out together so the pool grows instead of reusing one
+        final CountDownLatch opening = new CountDownLatch(plan.getConnections());
+        for (int i = 0; i < plan.getConnections(); i++) {
+            steps.put("connection:" + i, timed(new Callable<Object>() {
+
+                @Override
+                public Object call() throws InterruptedException {
+                    opening.countDown();
+                    opening.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    return execute(new MongoOperate<Document>() {
+
+                        @Override
+                        public Document execute(MongoDatabase database) {
+                            return database.runCommand(new Document("ping", 1));
+                        }
+
+                    });
+                }
+
+            }));
+        }
+        for (final String collectionName : plan.getCollections()) {
+            steps.put("collection:" + collectionName, timed(new Callable<Object>() {
+
+                @Override
+                public Object call() {
+                    return execute(new MongoOperate<Document>() {
+
+                        @Override
+                        public Document execute(MongoDatabase database) {
+                            return getReadCollection(database, collectionName, MongoReadOperation.FIND, null).find()
+                                    .projection(new Document(ID, 1)).limit(1).first();
+                        }
+
+                    });
+                }
+
+            }));
+        }
+        int queryIndex = 0;
+        for (final MongoWarmUpPlan.Query query : plan.getQueries()) {
+            steps.put("query:" + query.getCollectionName() + "#" + (queryIndex++), timed(new Callable<Object>() {
+
+                @Override
+                public Object call() {
+                    return findForList(query.getCollectionName(), query.getFilter(), query.getSort(), null, 0,
+                            query.getLimit(), RawMongoMapper.getInstance());
+                }
+
+            }));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(plan.getParallelism(), plan.getConnections()), new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "mongo-warmup-" + seq.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+        try {
+            Map<String, Future<Long>> futures = new LinkedHashMap<>();
+            for (Map.Entry<String, Callable<Long>> step : steps.entrySet()) {
+                futures.put(step.getKey(), executor.submit(step.getValue()));
+            }
+            for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+                Future<Long> future = entry.getValue();
+                try {
+                    long elapsed = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    report.add(new MongoWarmUpReport.Step(entry.getKey(), elapsed, null));
+                } catch (TimeoutException ex) {
+                    future.cancel(true);
+                    report.add(new MongoWarmUpReport.Step(entry.getKey(), -1, "timed out"));
+                } catch (ExecutionException ex) {
+                    report.add(new MongoWarmUpReport.Step(entry.getKey(), -1, errorOf(ex.getCause())));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    future.cancel(true);
+                    report.add(new MongoWarmUpReport.Step(entry.getKey(), -1, "interrupted"));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        logger.info("[Mongo] warm up " + report);
+        return report;
+    }
+
     public <T> boolean save(T bean, String collectionName, Set<String> fields, InsertUpdate insertUpdate,
             MongoSerializeWrapper<T> wrapper, boolean removeNullFields) {
         SerializeDoc sdoc = Serializer.serialize(bean, fields, insertUpdate);
@@ -127,7 +719,7 @@ public class MongoRepository {
             collectionName = sdoc.getTableName();
         }
         Map<String, Object> raw = sdoc.getDoc();
-        Document doc = MongoSerializer.serializeMap(raw, removeNullFields);
+        Document doc = MongoSerializer.serializeMap(raw, removeNullFields, bean.getClass());
         if (wrapper != null) {
             doc = wrapper.wrap(doc, bean);
         }
@@ -159,7 +751,7 @@ public class MongoRepository {
             return updated;
         }
         // upsert
-        Document insert = MongoSerializer.serializeMap(sdoc.getUpsertDoc(), removeNullFields);
+        Document insert = MongoSerializer.serializeMap(sdoc.getUpsertDoc(), removeNullFields, bean.getClass());
         if (wrapper != null) {
             insert = wrapper.wrap(insert, bean);
         }
@@ -200,13 +792,18 @@ public class MongoRepository {
     }
 
     public void insert(String collectionName, Document doc) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
             collection.insertOne(doc);
+            applyViews(database, collection, collectionName, null, null, Collections.singletonList(doc));
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.INSERT, collectionName, t1, doc, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "insert:" + collectionName, doc);
             }
@@ -214,13 +811,18 @@ public class MongoRepository {
     }
 
     public void insertMany(String collectionName, List<Document> docs) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
             collection.insertMany(docs);
+            applyViews(database, collection, collectionName, null, null, docs);
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.INSERT_MANY, collectionName, t1, docs, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "insertMany:" + collectionName, docs);
             }
@@ -228,13 +830,22 @@ public class MongoRepository {
     }
 
     public boolean update(String collectionName, Document update, Document filter) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.updateOne(filter, update).getModifiedCount() > 0;
+            observeUpdate(collectionName, filter, update, false);
+            if (!materializedViews.containsKey(collectionName)) {
+                return collection.updateOne(filter, update).getModifiedCount() > 0;
+            }
+            SingleWrite write = updateOneWithViews(database, collection, collectionName, filter, update, null);
+            return write != null && write.isModified();
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.UPDATE, collectionName, t1, filter, update, 0, 0);
             if (traceLog) {
                 trace(client, t1, "update:" + collectionName, "filter:", filter, "update:", update);
             }
@@ -247,13 +858,26 @@ public class MongoRepository {
     }
 
     public long updateMany(String collectionName, Document filter, Document update, UpdateOptions options) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.updateMany(filter, update, options).getModifiedCount();
+            observeUpdate(collectionName, filter, update, true);
+            List<Document> before = viewSnapshot(collection, collectionName, filter, null, true);
+            UpdateResult result = collection.updateMany(filter, update, options);
+            if (before != null && result.getUpsertedId() != null) {
+                Object upsertedId = MongoDocuments.toValue(result.getUpsertedId());
+                applyViews(database, collection, collectionName, before, Collections.singletonList(upsertedId), null);
+            } else {
+                applyViews(database, collection, collectionName, before, null, null);
+            }
+            return result.getModifiedCount();
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.UPDATE_MANY, collectionName, t1, filter, update, 0, 0);
             if (traceLog) {
                 trace(client, t1, "updateMany:" + collectionName, "filter:", filter, "update:", update);
             }
@@ -261,16 +885,25 @@ public class MongoRepository {
     }
 
     public MongoSaveResult upsert(String collectionName, Document upsert, Object id) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
         Document filter = getIdDocument(id);
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            boolean updated = collection.updateOne(filter, upsert, new UpdateOptions().upsert(true))
-                    .getMatchedCount() > 0;
+            boolean updated;
+            if (materializedViews.containsKey(collectionName)) {
+                updated = updateOneWithViews(database, collection, collectionName, filter, upsert, id).before != null;
+            } else {
+                updated = collection.updateOne(filter, upsert, new UpdateOptions().upsert(true))
+                        .getMatchedCount() > 0;
+            }
             return updated ? MongoSaveResult.UPDATED : MongoSaveResult.INSERTED;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.UPSERT, collectionName, t1, filter, upsert, 0, 0);
             if (traceLog) {
                 trace(client, t1, "upsert:" + collectionName, "filter:", filter, "upsert:", upsert);
             }
@@ -278,22 +911,33 @@ public class MongoRepository {
     }
 
     public MongoSaveResult save(String collectionName, Document doc) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
             Object id = doc.get(ID);
             if (id == null) {
                 collection.insertOne(doc);
+                applyViews(database, collection, collectionName, null, null, Collections.singletonList(doc));
                 return MongoSaveResult.INSERTED;
             }
             Document update = new Document();
             update.put("$set", doc);
-            boolean updated = collection.updateOne(getIdDocument(id), update, new UpdateOptions().upsert(true))
-                    .getMatchedCount() > 0;
+            boolean updated;
+            if (materializedViews.containsKey(collectionName)) {
+                updated = updateOneWithViews(database, collection, collectionName, getIdDocument(id), update,
+                        id).before != null;
+            } else {
+                updated = collection.updateOne(getIdDocument(id), update, new UpdateOptions().upsert(true))
+                        .getMatchedCount() > 0;
+            }
             return updated ? MongoSaveResult.UPDATED : MongoSaveResult.INSERTED;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.SAVE, collectionName, t1, doc, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "save:" + collectionName, doc);
             }
@@ -301,13 +945,29 @@ public class MongoRepository {
     }
 
     public boolean remove(String collectionName, Bson filter) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.deleteOne(filter).getDeletedCount() > 0;
+            observeRemove(collectionName, filter, false);
+            List<MongoMaterializedView> views = materializedViews.get(collectionName);
+            if (views == null) {
+                return collection.deleteOne(filter).getDeletedCount() > 0;
+            }
+            // the deleted document is the atomic before image
+            Document before = collection.findOneAndDelete(filter,
+                    new FindOneAndDeleteOptions().projection(viewFields(views)));
+            if (before == null) {
+                return false;
+            }
+            applyDeltas(database, views, SingleWrite.images(before), SingleWrite.images(null));
+            return true;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.REMOVE, collectionName, t1, filter, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "remove:" + collectionName, "filter:", filter);
             }
@@ -315,44 +975,167 @@ public class MongoRepository {
     }
 
     public long removeMany(String collectionName, Bson filter) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.deleteMany(filter).getDeletedCount();
+            observeRemove(collectionName, filter, true);
+            List<Document> before = viewSnapshot(collection, collectionName, filter, null, true);
+            long removed = collection.deleteMany(filter).getDeletedCount();
+            applyViews(database, collection, collectionName, before, null, null);
+            return removed;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.REMOVE_MANY, collectionName, t1, filter, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "removeMany:" + collectionName, "filter:", filter);
             }
         }
     }
 
+    /**
+     * @return not started chunked removal, see {@link MongoChunkedWrite}
+     */
+    public MongoChunkedWrite removeManyInChunks(String collectionName, Bson filter) {
+        return new MongoChunkedWrite(this, collectionName, filter, null);
+    }
+
+    /**
+     * @return not started chunked update, see {@link MongoChunkedWrite}
+     */
+    public MongoChunkedWrite updateManyInChunks(String collectionName, Bson filter, Bson update) {
+        return new MongoChunkedWrite(this, collectionName, filter, update);
+    }
+
     public BulkWriteResult batch(String collectionName, List<WriteModel<Document>> requests) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        return batch(collectionName, requests, null);
+    }
+
+    public BulkWriteResult batch(String collectionName, List<WriteModel<Document>> requests,
+            BulkWriteOptions options) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.bulkWrite(requests);
+            if (options == null) {
+                options = new BulkWriteOptions();
+            }
+            if (!materializedViews.containsKey(collectionName)) {
+                return collection.bulkWrite(requests, options);
+            }
+            return batchWithViews(database, collection, collectionName, requests, options);
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.BATCH, collectionName, t1, requests, options, 0, requests.size());
             if (traceLog) {
                 trace(client, t1, "batch:" + collectionName, "requests:", requests);
             }
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private BulkWriteResult batchWithViews(MongoDatabase database, MongoCollection<Document> collection,
+            String collectionName, List<WriteModel<Document>> requests, BulkWriteOptions options) {
+        List<Document> before = new ArrayList<>();
+        List<Document> inserted = new ArrayList<>();
+        List<WriteModel<Document>> pinned = new ArrayList<>(requests.size());
+        for (WriteModel<Document> request : requests) {
+            if (request instanceof InsertOneModel) {
+                inserted.add(((InsertOneModel<Document>) request).getDocument());
+                pinned.add(request);
+            } else if (request instanceof UpdateOneModel) {
+                UpdateOneModel<Document> model = (UpdateOneModel<Document>) request;
+                List<Document> docs = viewSnapshot(collection, collectionName, model.getFilter(), null, false);
+                before.addAll(docs);
+                pinned.add(new UpdateOneModel<Document>(pinFilter(model.getFilter(), docs), model.getUpdate(),
+                        model.getOptions()));
+            } else if (request instanceof ReplaceOneModel) {
+                ReplaceOneModel<Document> model = (ReplaceOneModel<Document>) request;
+                List<Document> docs = viewSnapshot(collection, collectionName, model.getFilter(), null, false);
+                before.addAll(docs);
+                pinned.add(new ReplaceOneModel<Document>(pinFilter(model.getFilter(), docs),
+                        model.getReplacement(), model.getOptions()));
+            } else if (request instanceof DeleteOneModel) {
+                DeleteOneModel<Document> model = (DeleteOneModel<Document>) request;
+                List<Document> docs = viewSnapshot(collection, collectionName, model.getFilter(), null, false);
+                before.addAll(docs);
+                pinned.add(new DeleteOneModel<Document>(pinFilter(model.getFilter(), docs)));
+            } else if (request instanceof UpdateManyModel) {
+                before.addAll(viewSnapshot(collection, collectionName,
+                        ((UpdateManyModel<Document>) request).getFilter(), null, true));
+                pinned.add(request);
+            } else if (request instanceof DeleteManyModel) {
+                before.addAll(viewSnapshot(collection, collectionName,
+                        ((DeleteManyModel<Document>) request).getFilter(), null, true));
+                pinned.add(request);
+            } else {
+                pinned.add(request);
+            }
+        }
+        // a document touched by several requests contributes its before image once
+        Map<Object, Document> distinct = new LinkedHashMap<>();
+        for (Document doc : before) {
+            if (!distinct.containsKey(doc.get(ID))) {
+                distinct.put(doc.get(ID), doc);
+            }
+        }
+        BulkWriteResult result = collection.bulkWrite(pinned, options);
+        List<Object> ids = new ArrayList<>();
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            ids.add(MongoDocuments.toValue(upsert.getId()));
+        }
+        for (Document doc : inserted) {
+            ids.add(doc.get(ID));
+        }
+        applyViews(database, collection, collectionName, new ArrayList<>(distinct.values()), ids, null);
+        return result;
+    }
+
     public <T> T find(String collectionName, Bson filter, MongoMapper<T> mapper) {
         return find(collectionName, filter, null, null, mapper);
     }
 
     public <T> T find(String collectionName, Bson filter, Bson sort, Bson fields, MongoMapper<T> mapper) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        return find(collectionName, filter, sort, fields, mapper, null);
+    }
+
+    public <T> T find(final String collectionName, final Bson filter, final Bson sort, final Bson fields,
+            final MongoMapper<T> mapper, ReadPreference readPreference) {
+        beforeRead(collectionName);
+        long t1 = startTime();
+        try {
+            return timedRead(collectionName, MongoReadOperation.FIND, readPreference,
+                    new MongoLatencyPolicy.TimedRead<T>() {
+
+                        @Override
+                        public T execute(ReadPreference readPreference, long maxTimeMillis) {
+                            return queryOne(collectionName, filter, sort, fields, mapper, readPreference,
+                                    maxTimeMillis);
+                        }
+
+                    });
+        } finally {
+            record(MongoWorkloadOperation.FIND, collectionName, t1, filter, sort, 0, 0);
+        }
+    }
+
+    private <T> T queryOne(String collectionName, Bson filter, Bson sort, Bson fields, MongoMapper<T> mapper,
+            ReadPreference readPreference, long maxTimeMillis) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.READ);
         MongoClient client = getClient();
         MongoCursor<Document> cursor = null;
         try {
-            MongoDatabase database = client.getDatabase(db);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoDatabase database = getDatabase(client);
+            MongoCollection<Document> collection = getReadCollection(database, collectionName,
+                    MongoReadOperation.FIND, readPreference);
+            observeQuery(collectionName, filter, sort);
             FindIterable<Document> iter = collection.find(filter);
             if (sort != null) {
                 iter.sort(sort);
@@ -360,12 +1143,16 @@ public class MongoRepository {
             if (fields != null) {
                 iter.projection(fields);
             }
+            if (maxTimeMillis > 0) {
+                iter.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+            }
             cursor = iter.limit(1).iterator();
             if (cursor.hasNext()) {
                 return mapper.map(cursor.next());
             }
             return null;
         } finally {
+            release(permit);
             closeCursor(cursor);
             if (traceLog) {
                 trace(client, t1, "find:" + collectionName, "filter:", filter, "sort:", sort, "fields:", fields);
@@ -374,27 +1161,67 @@ public class MongoRepository {
     }
 
     public Document findAndUpdate(String collectionName, Bson filter, Bson update, FindOneAndUpdateOptions options) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.findOneAndUpdate(filter, update, options);
+            List<Document> before = viewSnapshot(collection, collectionName, filter,
+                    options == null ? null : options.getSort(), false);
+            if (before != null && before.isEmpty() && options != null && options.isUpsert()
+                    && options.getReturnDocument() != ReturnDocument.AFTER) {
+                // the before image of an upserted document is null, ask for its id to update the views
+                Document upserted = collection.findOneAndUpdate(filter, update, upsertOptions(options));
+                applyViews(database, collection, collectionName, before,
+                        upserted == null ? null : Collections.singletonList(upserted.get(ID)), null);
+                return null;
+            }
+            Document doc = collection.findOneAndUpdate(pinFilter(filter, before), update, options);
+            applyViews(database, collection, collectionName, before,
+                    doc == null || doc.get(ID) == null ? null : Collections.singletonList(doc.get(ID)), null);
+            return doc;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.FIND_AND_UPDATE, collectionName, t1, filter, update, 0, 0);
             if (traceLog) {
                 trace(client, t1, "findAndUpdate:" + collectionName, "filter:", filter, "update:", update);
             }
         }
     }
 
+    private static FindOneAndUpdateOptions upsertOptions(FindOneAndUpdateOptions options) {
+        return new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+                .projection(new Document(ID, 1)).sort(options.getSort())
+                .maxTime(options.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .bypassDocumentValidation(options.getBypassDocumentValidation()).collation(options.getCollation());
+    }
+
     public Document findAndRemove(String collectionName, Bson filter, FindOneAndDeleteOptions options) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.WRITE);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
+            MongoDatabase database = getDatabase(client);
             MongoCollection<Document> collection = database.getCollection(collectionName);
-            return collection.findOneAndDelete(filter, options);
+            List<MongoMaterializedView> views = materializedViews.get(collectionName);
+            if (views != null && (options == null || options.getProjection() == null)) {
+                // the whole deleted document is the atomic before image
+                Document doc = collection.findOneAndDelete(filter,
+                        options == null ? new FindOneAndDeleteOptions() : options);
+                applyDeltas(database, views, SingleWrite.images(doc), SingleWrite.images(null));
+                return doc;
+            }
+            List<Document> before = viewSnapshot(collection, collectionName, filter,
+                    options == null ? null : options.getSort(), false);
+            Document doc = collection.findOneAndDelete(pinFilter(filter, before), options);
+            applyViews(database, collection, collectionName, before, null, null);
+            return doc;
         } finally {
+            release(permit);
+            afterWrite(collectionName);
+            record(MongoWorkloadOperation.FIND_AND_REMOVE, collectionName, t1, filter, null, 0, 0);
             if (traceLog) {
                 trace(client, t1, "findAndRemove:" + collectionName, "filter:", filter);
             }
@@ -402,17 +1229,92 @@ public class MongoRepository {
     }
 
     public <T> T findById(String collectionName, Object id, MongoMapper<T> mapper) {
+        MongoUnitOfWork unit = MongoUnitOfWork.current();
+        if (unit != null && unit.getRepository() == this) {
+            return unit.findById(collectionName, id, mapper);
+        }
         return find(collectionName, getIdDocument(id), mapper);
     }
 
     public <T> List<T> findForList(String collectionName, Bson filter, Bson sort, Bson fields, int offset, int limit,
             MongoMapper<T> mapper) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        return findForList(collectionName, filter, sort, fields, offset, limit, mapper, null);
+    }
+
+    public <T> List<T> findForList(final String collectionName, final Bson filter, final Bson sort,
+            final Bson fields, final int offset, final int limit, MongoMapper<T> mapper,
+            final ReadPreference readPreference) {
+        beforeRead(collectionName);
+        long t1 = startTime();
+        try {
+            return cachedList(collectionName, filter, sort, fields, offset, limit, mapper, readPreference);
+        } finally {
+            record(MongoWorkloadOperation.FIND_FOR_LIST, collectionName, t1, filter, sort, offset, limit);
+        }
+    }
+
+    private <T> List<T> cachedList(final String collectionName, final Bson filter, final Bson sort,
+            final Bson fields, final int offset, final int limit, MongoMapper<T> mapper,
+            ReadPreference readPreference) {
+        if (!isCacheable(collectionName)) {
+            return readList(collectionName, filter, sort, fields, offset, limit, mapper, readPreference);
+        }
+        // resolved here so the key and a background refresh use the preference of the calling thread
+        final ReadPreference resolved = resolveReadPreference(collectionName, MongoReadOperation.FIND_FOR_LIST,
+                readPreference);
+        String key = MongoQueryCache.findKey(collectionName, filter, sort, fields, offset, limit, resolved);
+        List<Document> docs = queryCache.get(collectionName, key, new Callable<List<Document>>() {
+
+            @Override
+            public List<Document> call() throws Exception {
+                return readList(collectionName, filter, sort, fields, offset, limit, RawMongoMapper.getInstance(),
+                        resolved);
+            }
+
+        });
+        List<T> items = new ArrayList<>(docs.size());
+        mapAll(cachedDocs(docs, mapper), mapper, items, true);
+        return items;
+    }
+
+    // cached documents are shared across requests, raw callers get their own copies
+    private static Iterator<Document> cachedDocs(List<Document> docs, MongoMapper<?> mapper) {
+        if (!(mapper instanceof RawMongoMapper)) {
+            return docs.iterator();
+        }
+        List<Document> copies = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            copies.add(doc == null ? null : MongoDocuments.copy(doc));
+        }
+        return copies.iterator();
+    }
+
+    private <T> List<T> readList(final String collectionName, final Bson filter, final Bson sort,
+            final Bson fields, final int offset, final int limit, final MongoMapper<T> mapper,
+            ReadPreference readPreference) {
+        return timedRead(collectionName, MongoReadOperation.FIND_FOR_LIST, readPreference,
+                new MongoLatencyPolicy.TimedRead<List<T>>() {
+
+                    @Override
+                    public List<T> execute(ReadPreference readPreference, long maxTimeMillis) {
+                        return queryForList(collectionName, filter, sort, fields, offset, limit, mapper,
+                                readPreference, maxTimeMillis);
+                    }
+
+                });
+    }
+
+    private <T> List<T> queryForList(String collectionName, Bson filter, Bson sort, Bson fields, int offset,
+            int limit, MongoMapper<T> mapper, ReadPreference readPreference, long maxTimeMillis) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.READ);
         MongoClient client = getClient();
         MongoCursor<Document> cursor = null;
         try {
-            MongoDatabase database = client.getDatabase(db);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoDatabase database = getDatabase(client);
+            MongoCollection<Document> collection = getReadCollection(database, collectionName,
+                    MongoReadOperation.FIND_FOR_LIST, readPreference);
+            observeQuery(collectionName, filter, sort);
             FindIterable<Document> iter = collection.find(filter);
             if (sort != null) {
                 iter.sort(sort);
@@ -426,17 +1328,15 @@ public class MongoRepository {
             if (fields != null) {
                 iter.projection(fields);
             }
+            if (maxTimeMillis > 0) {
+                iter.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+            }
             cursor = iter.iterator();
             List<T> items = new ArrayList<>(limit);
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                T item = mapper.map(doc);
-                if (item != null) {
-                    items.add(item);
-                }
-            }
+            mapAll(cursor, mapper, items, true);
             return items;
         } finally {
+            release(permit);
             closeCursor(cursor);
             if (traceLog) {
                 trace(client, t1, "findForList:" + collectionName, "filter:", filter, "sort:", sort, "fields:", fields);
@@ -483,13 +1383,42 @@ public class MongoRepository {
     }
 
     public long count(String collectionName, Bson filter) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        return count(collectionName, filter, null);
+    }
+
+    public long count(final String collectionName, final Bson filter, ReadPreference readPreference) {
+        beforeRead(collectionName);
+        long t1 = startTime();
+        try {
+            return timedRead(collectionName, MongoReadOperation.COUNT, readPreference,
+                    new MongoLatencyPolicy.TimedRead<Long>() {
+
+                        @Override
+                        public Long execute(ReadPreference readPreference, long maxTimeMillis) {
+                            return queryCount(collectionName, filter, readPreference, maxTimeMillis);
+                        }
+
+                    });
+        } finally {
+            record(MongoWorkloadOperation.COUNT, collectionName, t1, filter, null, 0, 0);
+        }
+    }
+
+    private long queryCount(String collectionName, Bson filter, ReadPreference readPreference, long maxTimeMillis) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.READ);
         MongoClient client = getClient();
         try {
-            MongoDatabase database = client.getDatabase(db);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoDatabase database = getDatabase(client);
+            MongoCollection<Document> collection = getReadCollection(database, collectionName,
+                    MongoReadOperation.COUNT, readPreference);
+            observeCount(collectionName, filter);
+            if (maxTimeMillis > 0) {
+                return collection.count(filter, new CountOptions().maxTime(maxTimeMillis, TimeUnit.MILLISECONDS));
+            }
             return collection.count(filter);
         } finally {
+            release(permit);
             if (traceLog) {
                 trace(client, t1, "count:" + collectionName, "filter:", filter);
             }
@@ -498,20 +1427,60 @@ public class MongoRepository {
 
     public <T> void aggregate(String collectionName, List<? extends Bson> pipeline, List<T> docs,
             MongoMapper<T> mapper) {
-        long t1 = traceLog ? System.nanoTime() : 0;
+        aggregate(collectionName, pipeline, docs, mapper, null);
+    }
+
+    public <T> void aggregate(final String collectionName, final List<? extends Bson> pipeline, List<T> docs,
+            MongoMapper<T> mapper, final ReadPreference readPreference) {
+        // $lookup and friends read other collections
+        beforeRead(null);
+        long t1 = startTime();
+        try {
+            cachedAggregate(collectionName, pipeline, docs, mapper, readPreference);
+        } finally {
+            record(MongoWorkloadOperation.AGGREGATE, collectionName, t1, pipeline, null, 0, 0);
+        }
+    }
+
+    private <T> void cachedAggregate(final String collectionName, final List<? extends Bson> pipeline, List<T> docs,
+            MongoMapper<T> mapper, ReadPreference readPreference) {
+        final ReadPreference resolved = resolveReadPreference(collectionName, MongoReadOperation.AGGREGATE,
+                readPreference);
+        String key = isCacheable(collectionName) ? MongoQueryCache.aggregateKey(collectionName, pipeline, resolved)
+                : null;
+        if (key == null) {
+            queryAggregate(collectionName, pipeline, docs, mapper, readPreference);
+            return;
+        }
+        List<Document> results = queryCache.get(collectionName, key, new Callable<List<Document>>() {
+
+            @Override
+            public List<Document> call() throws Exception {
+                List<Document> results = new ArrayList<>();
+                queryAggregate(collectionName, pipeline, results, RawMongoMapper.getInstance(), resolved);
+                return results;
+            }
+
+        });
+        mapAll(cachedDocs(results, mapper), mapper, docs, false);
+    }
+
+    private <T> void queryAggregate(String collectionName, List<? extends Bson> pipeline, List<T> docs,
+            MongoMapper<T> mapper, ReadPreference readPreference) {
+        long t1 = startTime();
+        MongoBulkhead.Permit permit = admit(collectionName, MongoOperationType.AGGREGATE);
         MongoClient client = getClient();
         MongoCursor<Document> cursor = null;
         try {
-            MongoDatabase database = client.getDatabase(db);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoDatabase database = getDatabase(client);
+            MongoCollection<Document> collection = getReadCollection(database, collectionName,
+                    MongoReadOperation.AGGREGATE, readPreference);
             AggregateIterable<Document> iter = collection.aggregate(pipeline);
             iter.useCursor(true).allowDiskUse(true).batchSize(300);
             cursor = iter.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                docs.add(mapper.map(doc));
-            }
+            mapAll(cursor, mapper, docs, false);
         } finally {
+            release(permit);
             closeCursor(cursor);
             if (traceLog) {
                 trace(client, t1, "aggregate:" + collectionName, "pipeline:", pipeline);
@@ -520,6 +1489,9 @@ public class MongoRepository {
     }
 
     public void close() {
+        if (counterAccumulator != null) {
+            counterAccumulator.close();
+        }
         if (client != null) {
             client.close();
         }
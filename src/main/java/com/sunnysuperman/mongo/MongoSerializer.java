@@ -1,20 +1,28 @@
 package com.sunnysuperman.mongo;
 
 import java.lang.reflect.Array;
+import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
 import com.sunnysuperman.commons.bean.Bean;
+import com.sunnysuperman.commons.util.StringUtil;
 import com.sunnysuperman.repository.InsertUpdate;
 import com.sunnysuperman.repository.RepositoryException;
+import com.sunnysuperman.repository.serialize.SerializeBean;
+import com.sunnysuperman.repository.serialize.SerializeProperty;
 import com.sunnysuperman.repository.serialize.Serializer;
 
 public class MongoSerializer {
@@ -38,10 +46,20 @@ public class MongoSerializer {
         if (value instanceof BigDecimal) {
             return ((BigDecimal) value).doubleValue();
         }
+        if (value instanceof ObjectId) {
+            return value;
+        }
         if (value.getClass().isArray() && value.getClass().getComponentType().equals(byte.class)) {
             // byte array (should be blob type)
             return value;
         }
+        if (value.getClass().isArray() && value.getClass().getComponentType().isPrimitive()) {
+            return serializePrimitiveArray(value);
+        }
+        if (value instanceof List && isSimpleList((List<?>) value)) {
+            // the document may be written after the bean has changed, e.g. by a unit of work
+            return new ArrayList<>((List<?>) value);
+        }
         if (value instanceof Collection) {
             Collection<?> collection = (Collection<?>) value;
             List<Object> items = new ArrayList<>(collection.size());
@@ -65,27 +83,172 @@ public class MongoSerializer {
         return serializeMap(Bean.toMap(value), true);
     }
 
+    private static boolean isSimpleList(List<?> list) {
+        for (Object item : list) {
+            if (item != null && !isSimpleType(item.getClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the array and exposes it as a list, elements are boxed one at a time while the codec encodes them instead
+     * of being held boxed in an {@code ArrayList}. Use {@link MongoPacked} to avoid boxing altogether.
+     */
+    private static Object serializePrimitiveArray(Object value) {
+        if (value instanceof int[]) {
+            return new IntList(((int[]) value).clone());
+        }
+        if (value instanceof long[]) {
+            return new LongList(((long[]) value).clone());
+        }
+        if (value instanceof double[]) {
+            return new DoubleList(((double[]) value).clone());
+        }
+        if (value instanceof float[]) {
+            return new FloatList(((float[]) value).clone());
+        }
+        int length = Array.getLength(value);
+        List<Object> items = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            items.add(Array.get(value, i));
+        }
+        return items;
+    }
+
+    private static final class IntList extends AbstractList<Object> implements RandomAccess {
+        private final int[] array;
+
+        IntList(int[] array) {
+            super();
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int index) {
+            return array[index];
+        }
+
+        @Override
+        public int size() {
+            return array.length;
+        }
+    }
+
+    private static final class LongList extends AbstractList<Object> implements RandomAccess {
+        private final long[] array;
+
+        LongList(long[] array) {
+            super();
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int index) {
+            return array[index];
+        }
+
+        @Override
+        public int size() {
+            return array.length;
+        }
+    }
+
+    private static final class DoubleList extends AbstractList<Object> implements RandomAccess {
+        private final double[] array;
+
+        DoubleList(double[] array) {
+            super();
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int index) {
+            return array[index];
+        }
+
+        @Override
+        public int size() {
+            return array.length;
+        }
+    }
+
+    private static final class FloatList extends AbstractList<Object> implements RandomAccess {
+        private final float[] array;
+
+        FloatList(float[] array) {
+            super();
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int index) {
+            return array[index];
+        }
+
+        @Override
+        public int size() {
+            return array.length;
+        }
+    }
+
+    /**
+     * Column of a property of a {@code camel2underline} bean, the rule of the serializer of the library, shared by the
+     * reflection path and the generated codecs so both always name a column alike.
+     */
+    public static String camel2underline(String name) {
+        return StringUtil.camel2underline(name);
+    }
+
+    static String getColumnName(Field field, Class<?> beanClass) {
+        SerializeProperty property = field.getAnnotation(SerializeProperty.class);
+        if (property != null && !StringUtil.isEmpty(property.column())) {
+            return property.column();
+        }
+        SerializeBean bean = beanClass.getAnnotation(SerializeBean.class);
+        return bean != null && bean.camel2underline() ? camel2underline(field.getName()) : field.getName();
+    }
+
     public static Document serializeMap(Map<?, ?> map, boolean removeNullFields) throws RepositoryException {
+        return serializeMap(map, removeNullFields, null);
+    }
+
+    /**
+     * @param beanClass
+     *            class of the serialized bean, applies its {@link MongoPacked} and {@link MongoCompressed} properties
+     */
+    public static Document serializeMap(Map<?, ?> map, boolean removeNullFields, Class<?> beanClass)
+            throws RepositoryException {
         if (map == null) {
             return null;
         }
+        Set<String> packed = beanClass == null ? Collections.<String> emptySet()
+                : MongoPackedArrays.getPackedColumns(beanClass);
         Document doc = new Document();
         for (Entry<?, ?> entry : map.entrySet()) {
             String key = entry.getKey().toString();
             Object value = entry.getValue();
-            value = serializeObject(value);
+            value = packed.contains(key) ? MongoPackedArrays.pack(value) : serializeObject(value);
             if (removeNullFields && value == null) {
                 continue;
             }
             doc.put(key, value);
         }
-        return doc;
+        return beanClass == null ? doc : MongoCompression.compress(doc, beanClass);
+    }
+
+    /**
+     * Restores packed and compressed properties of a stored bean before deserializing it.
+     */
+    public static Document deserializeMap(Document doc, Class<?> beanClass) {
+        return MongoPackedArrays.unpack(MongoCompression.decompress(doc, beanClass), beanClass);
     }
 
     public static Document serialize(Object bean, Set<String> fields, InsertUpdate insertUpdate,
             boolean removeNullFields) throws RepositoryException {
         Map<String, Object> raw = Serializer.serialize(bean, fields, insertUpdate).getDoc();
-        return serializeMap(raw, removeNullFields);
+        return serializeMap(raw, removeNullFields, bean.getClass());
     }
 
     public static Document serialize(Object bean) throws RepositoryException {
@@ -0,0 +1,279 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Client-side ordering of documents and values in the server's BSON comparison order, used to merge sorted results.
+ */
+public final class MongoSortOrder {
+
+    private MongoSortOrder() {
+    }
+
+    /**
+     * @return rank of the value's type in the BSON comparison order
+     */
+    public static int typeOrder(Object value) {
+        if (value == null) {
+            return 1;
+        }
+        if (value instanceof Number) {
+            return 2;
+        }
+        if (value instanceof String || value instanceof Character) {
+            return 3;
+        }
+        if (value instanceof Map) {
+            return 4;
+        }
+        if (value instanceof List || value instanceof Object[]) {
+            return 5;
+        }
+        if (value instanceof byte[] || value instanceof Binary) {
+            return 6;
+        }
+        if (value instanceof ObjectId) {
+            return 7;
+        }
+        if (value instanceof Boolean) {
+            return 8;
+        }
+        if (value instanceof Date) {
+            return 9;
+        }
+        if (value instanceof Pattern) {
+            return 11;
+        }
+        return 10;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Decimal128) {
+            return ((Decimal128) value).bigDecimalValue().doubleValue();
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static int compare(Object a, Object b) {
+        int ra = typeOrder(a);
+        int rb = typeOrder(b);
+        if (ra != rb) {
+            return ra < rb ? -1 : 1;
+        }
+        switch (ra) {
+        case 1:
+            return 0;
+        case 2:
+            if (isIntegral(a) && isIntegral(b)) {
+                long la = ((Number) a).longValue();
+                long lb = ((Number) b).longValue();
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+            return Double.compare(toDouble(a), toDouble(b));
+        case 3:
+            return a.toString().compareTo(b.toString());
+        case 4:
+            return compareMaps((Map<?, ?>) a, (Map<?, ?>) b);
+        case 5:
+            return compareLists(asList(a), asList(b));
+        case 6:
+            return compareBytes(toBytes(a), toBytes(b));
+        case 7:
+            return ((ObjectId) a).compareTo((ObjectId) b);
+        case 8:
+            return ((Boolean) a).compareTo((Boolean) b);
+        case 9:
+            return ((Date) a).compareTo((Date) b);
+        case 11:
+            return ((Pattern) a).pattern().compareTo(((Pattern) b).pattern());
+        default:
+            if (a instanceof Comparable && a.getClass() == b.getClass()) {
+                return ((Comparable) a).compareTo(b);
+            }
+            return a.equals(b) ? 0 : a.toString().compareTo(b.toString());
+        }
+    }
+
+    private static int compareMaps(Map<?, ?> a, Map<?, ?> b) {
+        Iterator<? extends Entry<?, ?>> ia = a.entrySet().iterator();
+        Iterator<? extends Entry<?, ?>> ib = b.entrySet().iterator();
+        while (ia.hasNext() && ib.hasNext()) {
+            Entry<?, ?> ea = ia.next();
+            Entry<?, ?> eb = ib.next();
+            int c = compare(ea.getValue(), eb.getValue());
+            if (c != 0) {
+                return c;
+            }
+            c = ea.getKey().toString().compareTo(eb.getKey().toString());
+            if (c != 0) {
+                return c;
+            }
+        }
+        return ia.hasNext() ? 1 : (ib.hasNext() ? -1 : 0);
+    }
+
+    private static int compareLists(List<?> a, List<?> b) {
+        int size = Math.min(a.size(), b.size());
+        for (int i = 0; i < size; i++) {
+            int c = compare(a.get(i), b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.size() < b.size() ? -1 : (a.size() == b.size() ? 0 : 1);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return a.length < b.length ? -1 : 1;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xff) < (b[i] & 0xff) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] toBytes(Object value) {
+        return value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+    }
+
+    private static List<?> asList(Object value) {
+        if (value instanceof List) {
+            return (List<?>) value;
+        }
+        return Arrays.asList((Object[]) value);
+    }
+
+    /**
+     * Resolve dotted path values, traversing arrays the way the query language does.
+     */
+    public static List<Object> resolve(Object root, String path) {
+        List<Object> values = new ArrayList<>(1);
+        resolve(root, path.split("\\."), 0, values);
+        return values;
+    }
+
+    private static void resolve(Object node, String[] parts, int i, List<Object> values) {
+        if (i == parts.length) {
+            values.add(node);
+            return;
+        }
+        if (node instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) node;
+            if (map.containsKey(parts[i])) {
+                resolve(map.get(parts[i]), parts, i + 1, values);
+            }
+            return;
+        }
+        if (node instanceof List || node instanceof Object[]) {
+            List<?> list = asList(node);
+            int index = parseIndex(parts[i]);
+            if (index >= 0) {
+                if (index < list.size()) {
+                    resolve(list.get(index), parts, i + 1, values);
+                }
+                return;
+            }
+            for (Object item : list) {
+                if (item instanceof Map) {
+                    resolve(item, parts, i, values);
+                }
+            }
+        }
+    }
+
+    private static int parseIndex(String part) {
+        if (part.isEmpty() || part.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (!Character.isDigit(part.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(part);
+    }
+
+    /**
+     * @return comparator for the sort specification, or null when there is nothing to sort by
+     */
+    public static Comparator<Document> comparator(Bson sort) {
+        Document spec = sort == null ? null : MongoDocuments.toDocument(sort);
+        if (spec == null || spec.isEmpty()) {
+            return null;
+        }
+        final String[] paths = new String[spec.size()];
+        final int[] directions = new int[spec.size()];
+        int i = 0;
+        for (Entry<String, Object> entry : spec.entrySet()) {
+            paths[i] = entry.getKey();
+            Object direction = entry.getValue();
+            if (!(direction instanceof Number)) {
+                throw new RepositoryException("Unsupported sort direction: " + direction);
+            }
+            directions[i] = ((Number) direction).intValue() < 0 ? -1 : 1;
+            i++;
+        }
+        return new Comparator<Document>() {
+
+            @Override
+            public int compare(Document o1, Document o2) {
+                for (int i = 0; i < paths.length; i++) {
+                    int c = MongoSortOrder.compare(sortValue(o1, paths[i], directions[i]),
+                            sortValue(o2, paths[i], directions[i]));
+                    if (c != 0) {
+                        return c * directions[i];
+                    }
+                }
+                return 0;
+            }
+
+        };
+    }
+
+    // arrays sort by their smallest element ascending and largest element descending
+    private static Object sortValue(Document doc, String path, int direction) {
+        Object value;
+        if (path.indexOf('.') < 0) {
+            value = doc.get(path);
+        } else {
+            List<Object> values = resolve(doc, path);
+            value = values.isEmpty() ? null : values.get(0);
+        }
+        if (!(value instanceof List) || ((List<?>) value).isEmpty()) {
+            return value;
+        }
+        Object best = null;
+        boolean first = true;
+        for (Object item : (List<?>) value) {
+            if (first || compare(item, best) * direction < 0) {
+                best = item;
+                first = false;
+            }
+        }
+        return best;
+    }
+}
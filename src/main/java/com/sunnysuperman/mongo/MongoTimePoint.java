@@ -0,0 +1,25 @@
+package com.sunnysuperman.mongo;
+
+public class MongoTimePoint {
+    private final long time;
+    private final double value;
+
+    public MongoTimePoint(long time, double value) {
+        super();
+        this.time = time;
+        this.value = value;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return time + "=" + value;
+    }
+}
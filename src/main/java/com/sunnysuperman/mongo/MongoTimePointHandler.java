@@ -0,0 +1,10 @@
+package com.sunnysuperman.mongo;
+
+public interface MongoTimePointHandler {
+
+    /**
+     * @return false to stop the scan
+     */
+    boolean handle(String seriesKey, MongoTimePoint point);
+
+}
@@ -0,0 +1,222 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+
+/**
+ * Stores the points of many series in bucket documents, one bucket per series key and time window holding at most
+ * max bucket size points in parallel {@code t}/{@code v} arrays, along with the point count and the time and value
+ * ranges. Appends are upserts that match a bucket of the window which still has room, so a full bucket rolls over to a
+ * new one of the same window.
+ */
+public class MongoTimeSeries {
+    public static final String KEY = "key";
+    public static final String START = "start";
+    public static final String COUNT = "count";
+    public static final String MIN_TIME = "minTime";
+    public static final String MAX_TIME = "maxTime";
+    public static final String MIN_VALUE = "minValue";
+    public static final String MAX_VALUE = "maxValue";
+    public static final String TIMES = "t";
+    public static final String VALUES = "v";
+    private static final int SCAN_PAGE_SIZE = 100;
+    private static final Comparator<MongoTimePoint> BY_TIME = new Comparator<MongoTimePoint>() {
+
+        @Override
+        public int compare(MongoTimePoint o1, MongoTimePoint o2) {
+            return o1.getTime() < o2.getTime() ? -1 : (o1.getTime() == o2.getTime() ? 0 : 1);
+        }
+
+    };
+    private final MongoRepository repository;
+    private final String collectionName;
+    private final long bucketSpanMillis;
+    private int maxBucketSize = 200;
+
+    public MongoTimeSeries(MongoRepository repository, String collectionName, long bucketSpan, TimeUnit unit) {
+        super();
+        this.repository = repository;
+        this.collectionName = collectionName;
+        this.bucketSpanMillis = unit.toMillis(bucketSpan);
+        if (bucketSpanMillis <= 0) {
+            throw new IllegalArgumentException("bucketSpan");
+        }
+    }
+
+    public MongoTimeSeries setMaxBucketSize(int maxBucketSize) {
+        this.maxBucketSize = Math.max(1, maxBucketSize);
+        return this;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public long getBucketSpanMillis() {
+        return bucketSpanMillis;
+    }
+
+    public int getMaxBucketSize() {
+        return maxBucketSize;
+    }
+
+    public long getBucketStart(long time) {
+        long offset = time % bucketSpanMillis;
+        return offset < 0 ? time - offset - bucketSpanMillis : time - offset;
+    }
+
+    /**
+     * Creates the index range queries rely on.
+     */
+    public void ensureIndexes() {
+        repository.createIndex(collectionName, new Document(KEY, 1).append(START, 1).append(COUNT, 1), null);
+    }
+
+    private UpdateOneModel<Document> appendModel(String seriesKey, long start, List<MongoTimePoint> points) {
+        List<Long> times = new ArrayList<>(points.size());
+        List<Double> values = new ArrayList<>(points.size());
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        double minValue = Double.POSITIVE_INFINITY;
+        double maxValue = Double.NEGATIVE_INFINITY;
+        for (MongoTimePoint point : points) {
+            times.add(point.getTime());
+            values.add(point.getValue());
+            minTime = Math.min(minTime, point.getTime());
+            maxTime = Math.max(maxTime, point.getTime());
+            minValue = Math.min(minValue, point.getValue());
+            maxValue = Math.max(maxValue, point.getValue());
+        }
+        Document filter = new Document(KEY, seriesKey).append(START, start).append(COUNT,
+                new Document("$lte", maxBucketSize - points.size()));
+        Document update = new Document("$push",
+                new Document(TIMES, new Document("$each", times)).append(VALUES, new Document("$each", values)))
+                        .append("$inc", new Document(COUNT, points.size()))
+                        .append("$min", new Document(MIN_TIME, minTime).append(MIN_VALUE, minValue))
+                        .append("$max", new Document(MAX_TIME, maxTime).append(MAX_VALUE, maxValue));
+        return new UpdateOneModel<Document>(filter, update, new UpdateOptions().upsert(true));
+    }
+
+    public void append(String seriesKey, long time, double value) {
+        append(seriesKey, Collections.singletonList(new MongoTimePoint(time, value)));
+    }
+
+    /**
+     * Appends the points with one upsert per bucket touched.
+     */
+    public void append(String seriesKey, List<MongoTimePoint> points) {
+        Map<Long, List<MongoTimePoint>> windows = new LinkedHashMap<>();
+        for (MongoTimePoint point : points) {
+            long start = getBucketStart(point.getTime());
+            List<MongoTimePoint> window = windows.get(start);
+            if (window == null) {
+                window = new ArrayList<>();
+                windows.put(start, window);
+            }
+            window.add(point);
+        }
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        for (Entry<Long, List<MongoTimePoint>> window : windows.entrySet()) {
+            List<MongoTimePoint> windowPoints = window.getValue();
+            for (int i = 0; i < windowPoints.size(); i += maxBucketSize) {
+                requests.add(appendModel(seriesKey, window.getKey(),
+                        windowPoints.subList(i, Math.min(i + maxBucketSize, windowPoints.size()))));
+            }
+        }
+        repository.batch(collectionName, requests);
+    }
+
+    /**
+     * Streams the points of the series with from &lt;= time &lt; to in time order, one window at a time. Buckets are
+     * read in pages through {@link MongoRepository#findForList}, so read policy, bulkheads, deadlines and sharding of
+     * the repository apply.
+     */
+    public void scan(String seriesKey, long from, long to, MongoTimePointHandler handler) {
+        Document range = new Document(KEY, seriesKey).append(START,
+                new Document("$gte", getBucketStart(from)).append("$lt", to));
+        Document sort = new Document(START, 1).append(MongoRepository.ID, 1);
+        Document fields = new Document(START, 1).append(TIMES, 1).append(VALUES, 1);
+        // buckets of a window may interleave when points arrive out of order
+        List<MongoTimePoint> window = new ArrayList<>();
+        Long windowStart = null;
+        Object lastId = null;
+        while (true) {
+            Document filter = range;
+            if (lastId != null) {
+                // keyset paging on (start, _id)
+                filter = new Document("$and", Arrays.asList(range, new Document("$or", Arrays.asList(
+                        new Document(START, new Document("$gt", windowStart)),
+                        new Document(START, windowStart).append(MongoRepository.ID, new Document("$gt", lastId))))));
+            }
+            List<Document> buckets = repository.findForList(collectionName, filter, sort, fields, 0, SCAN_PAGE_SIZE,
+                    RawMongoMapper.getInstance());
+            for (Document bucket : buckets) {
+                long start = ((Number) bucket.get(START)).longValue();
+                if (windowStart != null && start != windowStart && !emit(seriesKey, window, handler)) {
+                    return;
+                }
+                windowStart = start;
+                lastId = bucket.get(MongoRepository.ID);
+                List<?> times = (List<?>) bucket.get(TIMES);
+                List<?> values = (List<?>) bucket.get(VALUES);
+                for (int i = 0; i < times.size(); i++) {
+                    long time = ((Number) times.get(i)).longValue();
+                    if (time >= from && time < to) {
+                        window.add(new MongoTimePoint(time, ((Number) values.get(i)).doubleValue()));
+                    }
+                }
+            }
+            if (buckets.size() < SCAN_PAGE_SIZE) {
+                break;
+            }
+        }
+        emit(seriesKey, window, handler);
+    }
+
+    private static boolean emit(String seriesKey, List<MongoTimePoint> window, MongoTimePointHandler handler) {
+        Collections.sort(window, BY_TIME);
+        for (MongoTimePoint point : window) {
+            if (!handler.handle(seriesKey, point)) {
+                return false;
+            }
+        }
+        window.clear();
+        return true;
+    }
+
+    public List<MongoTimePoint> find(String seriesKey, long from, long to) {
+        final List<MongoTimePoint> points = new ArrayList<>();
+        scan(seriesKey, from, to, new MongoTimePointHandler() {
+
+            @Override
+            public boolean handle(String seriesKey, MongoTimePoint point) {
+                points.add(point);
+                return true;
+            }
+
+        });
+        return points;
+    }
+
+    /**
+     * Removes the buckets of the series whose points are all older than the given time.
+     */
+    public long removeBefore(String seriesKey, long time) {
+        return repository.removeMany(collectionName,
+                new Document(KEY, seriesKey).append(MAX_TIME, new Document("$lt", time)));
+    }
+}
@@ -0,0 +1,318 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.commons.util.StringUtil;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.repository.InsertUpdate;
+import com.sunnysuperman.repository.serialize.SerializeDoc;
+import com.sunnysuperman.repository.serialize.Serializer;
+
+/**
+ * Unit of work of the current thread until closed, typically one request in a try-with-resources block.
+ * <p>
+ * {@link MongoRepository#findById} of the bound repository reads each (collection, id) once and returns the same
+ * object for the same mapper afterwards. Writes queued on the unit are sent by {@link #commit()} as one bulk write per
+ * collection, in the order they were queued; a read of the bound repository on a collection with queued writes, be it
+ * findById, find, findForList, count or aggregate, sends that collection first so it sees them. Closing without commit
+ * discards queued writes.
+ */
+public class MongoUnitOfWork implements AutoCloseable {
+    private static final ThreadLocal<MongoUnitOfWork> CURRENT = new ThreadLocal<>();
+    private static final Object MISSING = new Object();
+    private final MongoRepository repository;
+    private final MongoUnitOfWork previous;
+    private final Map<String, Map<Object, Loaded>> identityMap = new HashMap<>();
+    private final Map<String, List<WriteModel<Document>>> writes = new LinkedHashMap<>();
+    private long reads;
+    private long hits;
+    private boolean committing;
+
+    private static class Loaded {
+        final Object doc;
+        final Map<MongoMapper<?>, Object> mapped = new IdentityHashMap<>();
+
+        Loaded(Object doc) {
+            this.doc = doc;
+        }
+    }
+
+    private MongoUnitOfWork(MongoRepository repository, MongoUnitOfWork previous) {
+        super();
+        this.repository = repository;
+        this.previous = previous;
+    }
+
+    public static MongoUnitOfWork begin(MongoRepository repository) {
+        MongoUnitOfWork unit = new MongoUnitOfWork(repository, CURRENT.get());
+        CURRENT.set(unit);
+        return unit;
+    }
+
+    public static MongoUnitOfWork current() {
+        return CURRENT.get();
+    }
+
+    public MongoRepository getRepository() {
+        return repository;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T findById(String collectionName, Object id, MongoMapper<T> mapper) {
+        // queued writes evicted what they touch, a miss reads through the repository which sends them first
+        Map<Object, Loaded> docs = identityMap.get(collectionName);
+        if (docs == null) {
+            docs = new HashMap<>();
+            identityMap.put(collectionName, docs);
+        }
+        Loaded loaded = docs.get(id);
+        if (loaded == null) {
+            Document doc = repository.find(collectionName, MongoRepository.getIdDocument(id),
+                    RawMongoMapper.getInstance());
+            loaded = new Loaded(doc == null ? MISSING : doc);
+            docs.put(id, loaded);
+            reads++;
+        } else {
+            hits++;
+        }
+        if (loaded.doc == MISSING) {
+            return null;
+        }
+        if (loaded.mapped.containsKey(mapper)) {
+            return (T) loaded.mapped.get(mapper);
+        }
+        // mappers get their own copy, a bean mapper may restore fields in place
+        T item = mapper.map(new Document((Document) loaded.doc));
+        loaded.mapped.put(mapper, item);
+        return item;
+    }
+
+    /**
+     * Drops what was read from the collection, called whenever the repository writes to it. Writes the unit sends
+     * itself evicted what they touch when queued.
+     */
+    public void evict(String collectionName) {
+        if (!committing) {
+            identityMap.remove(collectionName);
+        }
+    }
+
+    public void evict(String collectionName, Object id) {
+        Map<Object, Loaded> docs = identityMap.get(collectionName);
+        if (docs != null) {
+            docs.remove(id);
+        }
+    }
+
+    private void queue(String collectionName, WriteModel<Document> request) {
+        List<WriteModel<Document>> requests = writes.get(collectionName);
+        if (requests == null) {
+            requests = new ArrayList<>();
+            writes.put(collectionName, requests);
+        }
+        requests.add(request);
+    }
+
+    public void insert(String collectionName, Document doc) {
+        queue(collectionName, new InsertOneModel<Document>(doc));
+        Object id = doc.get(MongoRepository.ID);
+        if (id != null) {
+            evict(collectionName, id);
+        }
+    }
+
+    public void updateById(String collectionName, Document update, Object id) {
+        queue(collectionName, new UpdateOneModel<Document>(MongoRepository.getIdDocument(id), update));
+        evict(collectionName, id);
+    }
+
+    /**
+     * Same as {@link MongoRepository#save(String, Document)}: insert without id, $set with upsert otherwise.
+     */
+    public void save(String collectionName, Document doc) {
+        Object id = doc.get(MongoRepository.ID);
+        if (id == null) {
+            insert(collectionName, doc);
+            return;
+        }
+        queue(collectionName, new UpdateOneModel<Document>(MongoRepository.getIdDocument(id),
+                new Document("$set", doc), new UpdateOptions().upsert(true)));
+        evict(collectionName, id);
+    }
+
+    /**
+     * The filter may match any document, everything read from the collection is evicted.
+     */
+    public void remove(String collectionName, Bson filter) {
+        queue(collectionName, new DeleteOneModel<Document>(filter));
+        identityMap.remove(collectionName);
+    }
+
+    public void removeById(String collectionName, Object id) {
+        queue(collectionName, new DeleteOneModel<Document>(MongoRepository.getIdDocument(id)));
+        evict(collectionName, id);
+    }
+
+    /**
+     * Queues the bean the way {@link MongoRepository#save(Object, String, Set, InsertUpdate, MongoSerializeWrapper,
+     * boolean)} writes it; an upsert becomes one update with {@code $setOnInsert} for the insert only fields.
+     */
+    public <T> void save(T bean, String collectionName, Set<String> fields, InsertUpdate insertUpdate,
+            boolean removeNullFields) {
+        SerializeDoc sdoc = Serializer.serialize(bean, fields, insertUpdate);
+        if (collectionName == null) {
+            collectionName = sdoc.getTableName();
+        }
+        Map<String, Object> raw = sdoc.getDoc();
+        Document doc = MongoSerializer.serializeMap(raw, removeNullFields, bean.getClass());
+        if (insertUpdate == InsertUpdate.INSERT || sdoc.getIdValues() == null) {
+            insert(collectionName, doc);
+            return;
+        }
+        Document update = new Document("$set", doc);
+        Document unset = new Document();
+        if (removeNullFields) {
+            for (String key : raw.keySet()) {
+                if (!doc.containsKey(key)) {
+                    unset.append(key, StringUtil.EMPTY);
+                }
+            }
+            if (!unset.isEmpty()) {
+                update.append("$unset", unset);
+            }
+        }
+        UpdateOptions options = new UpdateOptions();
+        if (insertUpdate != InsertUpdate.UPDATE) {
+            options.upsert(true);
+            Document insert = MongoSerializer.serializeMap(sdoc.getUpsertDoc(), removeNullFields, bean.getClass());
+            Document setOnInsert = new Document();
+            for (Entry<String, Object> field : insert.entrySet()) {
+                String key = field.getKey();
+                if (!key.equals(MongoRepository.ID) && !doc.containsKey(key) && !unset.containsKey(key)) {
+                    setOnInsert.put(key, field.getValue());
+                }
+            }
+            if (!setOnInsert.isEmpty()) {
+                update.append("$setOnInsert", setOnInsert);
+            }
+        }
+        Object id = sdoc.getIdValues()[0];
+        queue(collectionName, new UpdateOneModel<Document>(MongoRepository.getIdDocument(id), update, options));
+        evict(collectionName, id);
+    }
+
+    public <T> void save(T bean) {
+        save(bean, null, null, InsertUpdate.UPSERT, true);
+    }
+
+    public <T> void insert(T bean) {
+        save(bean, null, null, InsertUpdate.INSERT, true);
+    }
+
+    public <T> void update(T bean) {
+        save(bean, null, null, InsertUpdate.UPDATE, true);
+    }
+
+    public <T> void update(T bean, Set<String> fields) {
+        save(bean, null, fields, InsertUpdate.UPDATE, true);
+    }
+
+    // a failed bulk write may be partially applied, its requests are not queued again
+    private int commit(String collectionName) {
+        List<WriteModel<Document>> requests = writes.remove(collectionName);
+        if (requests == null) {
+            return 0;
+        }
+        committing = true;
+        try {
+            repository.batch(collectionName, requests);
+        } finally {
+            committing = false;
+        }
+        return requests.size();
+    }
+
+    /**
+     * Sends the writes queued on the collection, all of them when null. Called by the bound repository before it
+     * reads.
+     *
+     * @return number of write requests sent
+     */
+    public int flush(String collectionName) {
+        if (writes.isEmpty()) {
+            return 0;
+        }
+        return collectionName == null ? commit() : commit(collectionName);
+    }
+
+    /**
+     * Sends the queued writes, one bulk write per collection in the order the collections were first written. When a
+     * bulk write fails its exception is thrown and the requests of that collection, which may be partially applied,
+     * are dropped; the collections after it are not sent and stay queued, so they can be committed again or
+     * discarded by {@link #close()}.
+     *
+     * @return number of write requests sent
+     */
+    public int commit() {
+        int committed = 0;
+        for (String collectionName : new ArrayList<>(writes.keySet())) {
+            committed += commit(collectionName);
+        }
+        return committed;
+    }
+
+    public int getPendingWrites() {
+        int pending = 0;
+        for (List<WriteModel<Document>> requests : writes.values()) {
+            pending += requests.size();
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of findById calls that went to the database
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * @return number of findById calls served from the identity map
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Ends the scope, discarding writes not committed.
+     */
+    @Override
+    public void close() {
+        if (!writes.isEmpty()) {
+            repository.getLogger().warn("[Mongo] unit of work closed with " + getPendingWrites()
+                    + " uncommitted writes");
+            writes.clear();
+        }
+        identityMap.clear();
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
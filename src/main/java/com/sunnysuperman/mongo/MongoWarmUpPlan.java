@@ -0,0 +1,124 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+
+/**
+ * What {@link MongoRepository#warmUp(MongoWarmUpPlan)} prepares before traffic is let in.
+ */
+public class MongoWarmUpPlan {
+    private int connections;
+    private final List<String> scanPackages = new ArrayList<>();
+    private final List<Class<?>> beanClasses = new ArrayList<>();
+    private final List<String> collections = new ArrayList<>();
+    private final List<Query> queries = new ArrayList<>();
+    private int parallelism = 8;
+    private long timeoutMillis = 30000;
+
+    /**
+     * Priming query, run through findForList so it also fills the query cache.
+     */
+    public static class Query {
+        private final String collectionName;
+        private final Bson filter;
+        private final Bson sort;
+        private final int limit;
+
+        public Query(String collectionName, Bson filter, Bson sort, int limit) {
+            super();
+            this.collectionName = collectionName;
+            this.filter = filter;
+            this.sort = sort;
+            this.limit = limit;
+        }
+
+        public String getCollectionName() {
+            return collectionName;
+        }
+
+        public Bson getFilter() {
+            return filter;
+        }
+
+        public Bson getSort() {
+            return sort;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+    }
+
+    /**
+     * Number of connections to open concurrently, so the driver pool holds them before the first request.
+     */
+    public MongoWarmUpPlan setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * Packages passed to {@code Serializer.scan} before the bean metadata is resolved.
+     */
+    public MongoWarmUpPlan addScanPackage(String packageName) {
+        scanPackages.add(packageName);
+        return this;
+    }
+
+    public MongoWarmUpPlan addBeanClass(Class<?>... classes) {
+        beanClasses.addAll(Arrays.asList(classes));
+        return this;
+    }
+
+    public MongoWarmUpPlan addCollection(String... collectionNames) {
+        collections.addAll(Arrays.asList(collectionNames));
+        return this;
+    }
+
+    public MongoWarmUpPlan addQuery(String collectionName, Bson filter, Bson sort, int limit) {
+        queries.add(new Query(collectionName, filter, sort, limit));
+        return this;
+    }
+
+    public MongoWarmUpPlan setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public MongoWarmUpPlan setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public List<String> getScanPackages() {
+        return scanPackages;
+    }
+
+    public List<Class<?>> getBeanClasses() {
+        return beanClasses;
+    }
+
+    public List<String> getCollections() {
+        return collections;
+    }
+
+    public List<Query> getQueries() {
+        return queries;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
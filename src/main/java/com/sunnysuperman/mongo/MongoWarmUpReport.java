@@ -0,0 +1,102 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Outcome of {@link MongoRepository#warmUp(MongoWarmUpPlan)}; traffic can be gated on {@link #isReady()}.
+ */
+public class MongoWarmUpReport {
+    private final List<Step> steps = new ArrayList<>();
+    private long elapsedMillis;
+
+    public static class Step {
+        private final String name;
+        private final long elapsedMillis;
+        private final String error;
+
+        public Step(String name, long elapsedMillis, String error) {
+            super();
+            this.name = name;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return null when the step succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSucceeded() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + (error == null ? "ok" : error) + " " + elapsedMillis + "ms";
+        }
+    }
+
+    /**
+     * Combines the reports of repositories warmed up side by side, step names are prefixed by the repository name.
+     */
+    public static MongoWarmUpReport combine(Map<String, MongoWarmUpReport> reports) {
+        MongoWarmUpReport combined = new MongoWarmUpReport();
+        for (Entry<String, MongoWarmUpReport> entry : reports.entrySet()) {
+            MongoWarmUpReport report = entry.getValue();
+            for (Step step : report.getSteps()) {
+                combined.add(new Step(entry.getKey() + "/" + step.getName(), step.getElapsedMillis(), step.getError()));
+            }
+            combined.elapsedMillis = Math.max(combined.elapsedMillis, report.getElapsedMillis());
+        }
+        return combined;
+    }
+
+    synchronized void add(Step step) {
+        steps.add(step);
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public synchronized List<Step> getSteps() {
+        return Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    public synchronized List<Step> getFailedSteps() {
+        List<Step> failed = new ArrayList<>();
+        for (Step step : steps) {
+            if (!step.isSucceeded()) {
+                failed.add(step);
+            }
+        }
+        return failed;
+    }
+
+    public boolean isReady() {
+        return getFailedSteps().isEmpty();
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (isReady() ? "ready" : "not ready") + " in " + elapsedMillis + "ms " + steps;
+    }
+}
@@ -0,0 +1,10 @@
+package com.sunnysuperman.mongo;
+
+public enum MongoWorkloadOperation {
+    FIND, FIND_FOR_LIST, COUNT, AGGREGATE, INSERT, INSERT_MANY, UPDATE, UPDATE_MANY, UPSERT, SAVE, REMOVE,
+    REMOVE_MANY, FIND_AND_UPDATE, FIND_AND_REMOVE, BATCH;
+
+    public boolean isWrite() {
+        return this != FIND && this != FIND_FOR_LIST && this != COUNT && this != AGGREGATE;
+    }
+}
@@ -0,0 +1,55 @@
+package com.sunnysuperman.mongo;
+
+import org.bson.Document;
+
+/**
+ * One operation captured by {@link MongoWorkloadRecorder}. The shape holds the sanitized query, or the requests of a
+ * batch, under "q", the sort, update or unordered batch option under "x", the offset under "o", the limit, or number of
+ * requests of a batch, under "n" and true under "t" when the operation was too large to be captured whole.
+ */
+public class MongoWorkloadRecord {
+    private final MongoWorkloadOperation operation;
+    private final String collectionName;
+    private final long offsetMicros;
+    private final long durationMicros;
+    private final Document shape;
+
+    public MongoWorkloadRecord(MongoWorkloadOperation operation, String collectionName, long offsetMicros,
+            long durationMicros, Document shape) {
+        super();
+        this.operation = operation;
+        this.collectionName = collectionName;
+        this.offsetMicros = offsetMicros;
+        this.durationMicros = durationMicros;
+        this.shape = shape;
+    }
+
+    public MongoWorkloadOperation getOperation() {
+        return operation;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    /**
+     * @return start of the operation relative to the start of the recording
+     */
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public Document getShape() {
+        return shape;
+    }
+
+    @Override
+    public String toString() {
+        return operation + ":" + collectionName + " +" + offsetMicros + "us " + durationMicros + "us "
+                + shape.toJson();
+    }
+}
@@ -0,0 +1,527 @@
+package com.sunnysuperman.mongo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Captures the operations of {@link MongoRepository} to a compact binary log which {@link MongoWorkloadReplayer} can
+ * drive against another server. Strings and numbers in queries, updates and documents are replaced by a stable
+ * pseudonym from a bounded set of values, so the log holds no user data but keeps the key skew of the traffic. Field
+ * names, operators, sorts, dates, booleans and object ids are kept. Of aggregation pipelines the queries of $match,
+ * $geoNear and $graphLookup stages and the literals of $addFields and $project are sanitized, also in the nested
+ * pipelines of $facet, $lookup and $unionWith. Batches record their requests.
+ * <p>
+ * The sanitized copy is made on the calling thread and holds at most max values; larger operations are cut and their
+ * record marked truncated. Records are written by a background thread; when its queue is full they are dropped rather
+ * than slowing the caller.
+ */
+public class MongoWorkloadRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(MongoWorkloadRecorder.class);
+    private static final int MAGIC = 0x4D574C01;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    private static final Set<String> STRUCTURAL_OPERATORS = new HashSet<>(
+            Arrays.asList("$exists", "$type", "$size", "$options", "$meta"));
+    private static final MongoWorkloadRecord END = new MongoWorkloadRecord(null, null, 0, 0, null);
+    private final DataOutputStream out;
+    private final BlockingQueue<MongoWorkloadRecord> queue;
+    private final long startNanos = System.nanoTime();
+    private final Thread writer;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int valueBuckets = 65536;
+    private volatile int maxValues = 10000;
+    private volatile boolean closed;
+
+    public MongoWorkloadRecorder(File file) throws IOException {
+        this(new FileOutputStream(file), 65536);
+    }
+
+    public MongoWorkloadRecorder(OutputStream out, int queueCapacity) throws IOException {
+        super();
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeLong(System.currentTimeMillis());
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+
+        }, "mongo-workload-recorder");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @param valueBuckets number of distinct pseudonyms a string or number can be replaced by
+     */
+    public MongoWorkloadRecorder setValueBuckets(int valueBuckets) {
+        this.valueBuckets = Math.max(1, valueBuckets);
+        return this;
+    }
+
+    /**
+     * @param maxValues number of values, documents and array elements included, copied on the calling thread
+     */
+    public MongoWorkloadRecorder setMaxValues(int maxValues) {
+        this.maxValues = Math.max(1, maxValues);
+        return this;
+    }
+
+    private static class Budget {
+        private int left;
+        private boolean truncated;
+
+        Budget(int left) {
+            this.left = left;
+        }
+
+        boolean take() {
+            if (left > 0) {
+                left--;
+                return true;
+            }
+            truncated = true;
+            return false;
+        }
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the operation started
+     * @param query filter, inserted document(s), aggregation pipeline or write requests of a batch
+     * @param extra sort, update or bulk write options
+     * @param count limit of a list, number of requests of a batch
+     */
+    public void record(MongoWorkloadOperation operation, String collectionName, long startNanos, Object query,
+            Object extra, int offset, int count) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        Budget budget = new Budget(maxValues);
+        Document shape = new Document();
+        if (query != null) {
+            Object copy;
+            if (operation == MongoWorkloadOperation.AGGREGATE) {
+                copy = copyPipeline(query, budget);
+            } else if (operation == MongoWorkloadOperation.BATCH) {
+                copy = copyRequests((List<?>) query, budget);
+            } else {
+                copy = copy(query, true, budget);
+            }
+            shape.put("q", copy);
+        }
+        if (extra instanceof BulkWriteOptions) {
+            if (!((BulkWriteOptions) extra).isOrdered()) {
+                shape.put("x", new Document("ordered", false));
+            }
+        } else if (extra != null) {
+            shape.put("x", copy(extra, operation.isWrite(), budget));
+        }
+        if (offset > 0) {
+            shape.put("o", offset);
+        }
+        if (count > 0) {
+            shape.put("n", count);
+        }
+        if (budget.truncated) {
+            shape.put("t", true);
+        }
+        MongoWorkloadRecord record = new MongoWorkloadRecord(operation, collectionName,
+                TimeUnit.NANOSECONDS.toMicros(startNanos - this.startNanos),
+                TimeUnit.NANOSECONDS.toMicros(now - startNanos), shape);
+        if (queue.offer(record)) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private List<Object> copyPipeline(Object pipeline, Budget budget) {
+        List<Object> stages = new ArrayList<>();
+        if (!(pipeline instanceof List)) {
+            return stages;
+        }
+        for (Object stage : (List<?>) pipeline) {
+            if (!budget.take()) {
+                break;
+            }
+            Document doc = stage instanceof Bson ? MongoDocuments.toDocument((Bson) stage) : new Document();
+            Document copy = new Document();
+            for (Entry<String, Object> entry : doc.entrySet()) {
+                copy.put(entry.getKey(), copyStage(entry.getKey(), entry.getValue(), budget));
+            }
+            stages.add(copy);
+        }
+        return stages;
+    }
+
+    // other stages hold field paths, accumulators and sizes
+    private Object copyStage(String name, Object spec, Budget budget) {
+        switch (name) {
+        case "$match":
+            return copy(spec, true, budget);
+        case "$addFields":
+        case "$set":
+            return copyExpression(spec, false, budget);
+        case "$project":
+            return copyExpression(spec, true, budget);
+        case "$facet":
+            if (spec instanceof Map) {
+                Document facets = new Document();
+                for (Entry<?, ?> entry : ((Map<?, ?>) spec).entrySet()) {
+                    facets.put(entry.getKey().toString(), copyPipeline(entry.getValue(), budget));
+                }
+                return facets;
+            }
+            break;
+        case "$lookup":
+        case "$unionWith":
+            return copyNested(spec, "pipeline", budget);
+        case "$graphLookup":
+            return copyNested(spec, "restrictSearchWithMatch", budget);
+        case "$geoNear":
+            return copyNested(spec, "query", budget);
+        default:
+            break;
+        }
+        return copy(spec, false, budget);
+    }
+
+    // the field holds a pipeline or a query, the rest of the stage is structure
+    private Object copyNested(Object spec, String field, Budget budget) {
+        if (!(spec instanceof Map)) {
+            return copy(spec, false, budget);
+        }
+        Document doc = new Document();
+        for (Entry<?, ?> entry : ((Map<?, ?>) spec).entrySet()) {
+            if (!budget.take()) {
+                break;
+            }
+            String key = entry.getKey().toString();
+            Object value = entry.getValue();
+            if (!key.equals(field)) {
+                doc.put(key, copy(value, false, budget));
+            } else if (field.equals("pipeline")) {
+                doc.put(key, copyPipeline(value, budget));
+            } else {
+                doc.put(key, copy(value, true, budget));
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Keeps operators, field paths and variables, which start with $, and replaces the literals.
+     *
+     * @param flags
+     *            whether numbers and booleans outside of operators are inclusion flags of a projection
+     */
+    private Object copyExpression(Object value, boolean flags, Budget budget) {
+        if (value instanceof Bson && !(value instanceof Map)) {
+            value = MongoDocuments.toDocument((Bson) value);
+        }
+        if (value instanceof Map) {
+            Document doc = new Document();
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!budget.take()) {
+                    break;
+                }
+                String key = entry.getKey().toString();
+                doc.put(key, copyExpression(entry.getValue(), flags && !key.startsWith("$"), budget));
+            }
+            return doc;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            for (Object item : (List<?>) value) {
+                if (!budget.take()) {
+                    break;
+                }
+                list.add(copyExpression(item, false, budget));
+            }
+            return list;
+        }
+        if (value instanceof String && ((String) value).startsWith("$")) {
+            return value;
+        }
+        if (flags && (value instanceof Number || value instanceof Boolean)) {
+            return value;
+        }
+        return copy(value, true, budget);
+    }
+
+    private List<Object> copyRequests(List<?> requests, Budget budget) {
+        List<Object> copies = new ArrayList<>(Math.min(requests.size(), maxValues));
+        for (Object request : requests) {
+            if (!budget.take()) {
+                break;
+            }
+            Document doc = new Document();
+            UpdateOptions options = null;
+            if (request instanceof InsertOneModel) {
+                doc.put("op", "insertOne");
+                doc.put("q", copy(((InsertOneModel<?>) request).getDocument(), true, budget));
+            } else if (request instanceof UpdateOneModel) {
+                UpdateOneModel<?> update = (UpdateOneModel<?>) request;
+                doc.put("op", "updateOne");
+                doc.put("q", copy(update.getFilter(), true, budget));
+                doc.put("x", copy(update.getUpdate(), true, budget));
+                options = update.getOptions();
+            } else if (request instanceof UpdateManyModel) {
+                UpdateManyModel<?> update = (UpdateManyModel<?>) request;
+                doc.put("op", "updateMany");
+                doc.put("q", copy(update.getFilter(), true, budget));
+                doc.put("x", copy(update.getUpdate(), true, budget));
+                options = update.getOptions();
+            } else if (request instanceof ReplaceOneModel) {
+                ReplaceOneModel<?> replace = (ReplaceOneModel<?>) request;
+                doc.put("op", "replaceOne");
+                doc.put("q", copy(replace.getFilter(), true, budget));
+                doc.put("x", copy(replace.getReplacement(), true, budget));
+                options = replace.getOptions();
+            } else if (request instanceof DeleteOneModel) {
+                doc.put("op", "deleteOne");
+                doc.put("q", copy(((DeleteOneModel<?>) request).getFilter(), true, budget));
+            } else if (request instanceof DeleteManyModel) {
+                doc.put("op", "deleteMany");
+                doc.put("q", copy(((DeleteManyModel<?>) request).getFilter(), true, budget));
+            } else {
+                doc.put("op", request == null ? null : request.getClass().getSimpleName());
+            }
+            if (options != null && options.isUpsert()) {
+                doc.put("upsert", true);
+            }
+            copies.add(doc);
+        }
+        return copies;
+    }
+
+    private Object copy(Object value, boolean sanitize, Budget budget) {
+        if (value instanceof Map) {
+            Document doc = new Document();
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!budget.take()) {
+                    break;
+                }
+                String key = entry.getKey().toString();
+                doc.put(key, copy(entry.getValue(), sanitize && !STRUCTURAL_OPERATORS.contains(key), budget));
+            }
+            return doc;
+        }
+        if (value instanceof Bson) {
+            return copy(MongoDocuments.toDocument((Bson) value), sanitize, budget);
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>(Math.min(((List<?>) value).size(), budget.left));
+            for (Object item : (List<?>) value) {
+                if (!budget.take()) {
+                    break;
+                }
+                list.add(copy(item, sanitize, budget));
+            }
+            return list;
+        }
+        if (!sanitize || value == null || value instanceof Boolean || value instanceof Date
+                || value instanceof ObjectId) {
+            return value;
+        }
+        int bucket = pseudonym(value.hashCode());
+        if (value instanceof Integer) {
+            return bucket;
+        }
+        if (value instanceof Long) {
+            return (long) bucket;
+        }
+        if (value instanceof Number) {
+            return (double) bucket;
+        }
+        return "v" + bucket;
+    }
+
+    private int pseudonym(int hash) {
+        // murmur3 finalizer so that close values do not land in close buckets
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % valueBuckets;
+    }
+
+    private void writeLoop() {
+        Map<String, Integer> collections = new HashMap<>();
+        long lastOffset = 0;
+        try {
+            while (true) {
+                MongoWorkloadRecord record = queue.poll(1, TimeUnit.SECONDS);
+                if (record == null) {
+                    out.flush();
+                    continue;
+                }
+                if (record == END) {
+                    break;
+                }
+                out.writeByte(record.getOperation().ordinal());
+                writeVarLong(out, zigZag(record.getOffsetMicros() - lastOffset));
+                lastOffset = record.getOffsetMicros();
+                writeVarLong(out, record.getDurationMicros());
+                Integer index = collections.get(record.getCollectionName());
+                if (index == null) {
+                    writeVarLong(out, collections.size());
+                    out.writeUTF(record.getCollectionName());
+                    collections.put(record.getCollectionName(), collections.size());
+                } else {
+                    writeVarLong(out, index);
+                }
+                BasicOutputBuffer buffer = new BasicOutputBuffer();
+                CODEC.encode(new BsonBinaryWriter(buffer), record.getShape(), EncoderContext.builder().build());
+                writeVarLong(out, buffer.getSize());
+                buffer.pipe(out);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            closed = true;
+            LOG.error("Failed to write workload log, recording stopped", ex);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                LOG.warn("Failed to close workload log", ex);
+            }
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed workload log");
+    }
+
+    /**
+     * Reads a log in recorded order. A record truncated by a crash of the recording process ends the log.
+     */
+    public static List<MongoWorkloadRecord> read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a workload log");
+        }
+        in.readLong();
+        MongoWorkloadOperation[] operations = MongoWorkloadOperation.values();
+        List<String> collections = new ArrayList<>();
+        List<MongoWorkloadRecord> records = new ArrayList<>();
+        long offset = 0;
+        while (true) {
+            int op = in.read();
+            if (op < 0) {
+                break;
+            }
+            try {
+                long delta = readVarLong(in);
+                offset += (delta >>> 1) ^ -(delta & 1);
+                long duration = readVarLong(in);
+                int index = (int) readVarLong(in);
+                if (index == collections.size()) {
+                    collections.add(in.readUTF());
+                }
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                Document shape = CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)),
+                        DecoderContext.builder().build());
+                records.add(new MongoWorkloadRecord(operations[op], collections.get(index), offset, duration, shape));
+            } catch (EOFException ex) {
+                break;
+            }
+        }
+        return records;
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops recording, writes the queued records and closes the log.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.sunnysuperman.mongo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+
+/**
+ * Drives a workload captured by {@link MongoWorkloadRecorder} through the public API of a target
+ * {@link MongoRepository}, so caches, batching and admission control of the target take part as they would in
+ * production. Operations are dispatched open loop: on the recorded schedule scaled by a speed, or at a fixed rate,
+ * regardless of how fast the target answers. With a speed of 0 the replay is closed loop and every worker issues its
+ * next operation as soon as the previous one finished. Writes are only replayed when enabled.
+ */
+public class MongoWorkloadReplayer {
+    private final List<MongoWorkloadRecord> records;
+    private int workers = 32;
+    private double speed = 1;
+    private double rate;
+    private boolean replayWrites;
+
+    private static class Collector {
+        private long[] micros = new long[64];
+        private int size;
+        private long errors;
+
+        synchronized void add(long value) {
+            if (size == micros.length) {
+                micros = Arrays.copyOf(micros, size * 2);
+            }
+            micros[size++] = value;
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+    }
+
+    public MongoWorkloadReplayer(List<MongoWorkloadRecord> records) {
+        super();
+        this.records = new ArrayList<>(records);
+        // records are logged as operations complete
+        Collections.sort(this.records, new Comparator<MongoWorkloadRecord>() {
+
+            @Override
+            public int compare(MongoWorkloadRecord o1, MongoWorkloadRecord o2) {
+                return Long.compare(o1.getOffsetMicros(), o2.getOffsetMicros());
+            }
+
+        });
+    }
+
+    public static MongoWorkloadReplayer load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return new MongoWorkloadReplayer(MongoWorkloadRecorder.read(in));
+        }
+    }
+
+    public MongoWorkloadReplayer setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+        return this;
+    }
+
+    /**
+     * @param speed 1 replays at the recorded pace, N at N times the pace, 0 as fast as the workers can
+     */
+    public MongoWorkloadReplayer setSpeed(double speed) {
+        this.speed = speed;
+        this.rate = 0;
+        return this;
+    }
+
+    /**
+     * Ignores the recorded timing and issues operations at a fixed rate.
+     */
+    public MongoWorkloadReplayer setRate(double operationsPerSecond) {
+        this.rate = operationsPerSecond;
+        return this;
+    }
+
+    public MongoWorkloadReplayer setReplayWrites(boolean replayWrites) {
+        this.replayWrites = replayWrites;
+        return this;
+    }
+
+    public List<MongoWorkloadRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    // logs of older versions recorded only the number of requests of a batch
+    private boolean isReplayable(MongoWorkloadRecord record) {
+        if (record.getOperation() == MongoWorkloadOperation.BATCH && !record.getShape().containsKey("q")) {
+            return false;
+        }
+        return replayWrites || !record.getOperation().isWrite();
+    }
+
+    public MongoWorkloadReport replay(final MongoRepository target) throws InterruptedException {
+        final Map<MongoWorkloadOperation, Collector> collectors = new EnumMap<>(MongoWorkloadOperation.class);
+        for (MongoWorkloadOperation operation : MongoWorkloadOperation.values()) {
+            collectors.put(operation, new Collector());
+        }
+        boolean closedLoop = rate <= 0 && speed <= 0;
+        final Semaphore slots = closedLoop ? new Semaphore(workers) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mongo-workload-replayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        long base = records.isEmpty() ? 0 : records.get(0).getOffsetMicros();
+        long start = System.nanoTime();
+        long skipped = 0;
+        long maxLag = 0;
+        int dispatched = 0;
+        try {
+            for (final MongoWorkloadRecord record : records) {
+                if (!isReplayable(record)) {
+                    skipped++;
+                    continue;
+                }
+                final long scheduled;
+                if (closedLoop) {
+                    slots.acquire();
+                    scheduled = System.nanoTime();
+                } else {
+                    scheduled = start + (rate > 0 ? (long) (dispatched * 1e9 / rate)
+                            : (long) ((record.getOffsetMicros() - base) * 1000 / speed));
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } else {
+                        maxLag = Math.max(maxLag, -wait);
+                    }
+                }
+                dispatched++;
+                final Collector collector = collectors.get(record.getOperation());
+                pool.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            execute(target, record);
+                            collector.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+                        } catch (Exception ex) {
+                            collector.error();
+                        } finally {
+                            if (slots != null) {
+                                slots.release();
+                            }
+                        }
+                    }
+
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        MongoWorkloadReport report = new MongoWorkloadReport(elapsedMillis, skipped,
+                TimeUnit.NANOSECONDS.toMicros(maxLag));
+        for (Entry<MongoWorkloadOperation, Collector> entry : collectors.entrySet()) {
+            Collector collector = entry.getValue();
+            synchronized (collector) {
+                if (collector.size > 0 || collector.errors > 0) {
+                    report.add(new MongoWorkloadReport.Stats(entry.getKey(),
+                            Arrays.copyOf(collector.micros, collector.size), collector.errors, elapsedMillis));
+                }
+            }
+        }
+        return report;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void execute(MongoRepository target, MongoWorkloadRecord record) {
+        String collectionName = record.getCollectionName();
+        Document shape = record.getShape();
+        Object query = shape.get("q");
+        Document filter = query instanceof Document ? (Document) query : new Document();
+        Bson extra = (Bson) shape.get("x");
+        int offset = shape.getInteger("o", 0);
+        int count = shape.getInteger("n", 0);
+        RawMongoMapper mapper = RawMongoMapper.getInstance();
+        switch (record.getOperation()) {
+        case FIND:
+            target.find(collectionName, filter, extra, null, mapper);
+            break;
+        case FIND_FOR_LIST:
+            target.findForList(collectionName, filter, extra, null, offset, count, mapper);
+            break;
+        case COUNT:
+            target.count(collectionName, filter);
+            break;
+        case AGGREGATE:
+            target.aggregate(collectionName, (List<Document>) query, new ArrayList<Document>(), mapper);
+            break;
+        case INSERT:
+            target.insert(collectionName, withoutId(filter));
+            break;
+        case INSERT_MANY:
+            List<Document> docs = new ArrayList<>();
+            for (Document item : (List<Document>) query) {
+                docs.add(withoutId(item));
+            }
+            target.insertMany(collectionName, docs);
+            break;
+        case UPDATE:
+            target.update(collectionName, (Document) extra, filter);
+            break;
+        case UPDATE_MANY:
+            target.updateMany(collectionName, filter, (Document) extra, new UpdateOptions());
+            break;
+        case UPSERT:
+            target.upsert(collectionName, (Document) extra, filter.get(MongoRepository.ID));
+            break;
+        case SAVE:
+            target.save(collectionName, new Document(filter));
+            break;
+        case REMOVE:
+            target.remove(collectionName, filter);
+            break;
+        case REMOVE_MANY:
+            target.removeMany(collectionName, filter);
+            break;
+        case FIND_AND_UPDATE:
+            target.findAndUpdate(collectionName, filter, extra, new FindOneAndUpdateOptions());
+            break;
+        case FIND_AND_REMOVE:
+            target.findAndRemove(collectionName, filter, new FindOneAndDeleteOptions());
+            break;
+        case BATCH:
+            List<WriteModel<Document>> requests = new ArrayList<>();
+            for (Document request : (List<Document>) query) {
+                requests.add(toRequest(request));
+            }
+            BulkWriteOptions options = new BulkWriteOptions();
+            if (extra != null) {
+                options.ordered(((Document) extra).getBoolean("ordered", true));
+            }
+            target.batch(collectionName, requests, options);
+            break;
+        default:
+            throw new IllegalArgumentException("Not replayable: " + record.getOperation());
+        }
+    }
+
+    // recorded ids would collide when the workload is replayed more than once
+    private static Document withoutId(Document doc) {
+        Document copy = new Document(doc);
+        copy.remove(MongoRepository.ID);
+        return copy;
+    }
+
+    private static WriteModel<Document> toRequest(Document request) {
+        String op = request.getString("op");
+        Document filter = (Document) request.get("q");
+        Document extra = (Document) request.get("x");
+        UpdateOptions options = new UpdateOptions().upsert(request.getBoolean("upsert", false));
+        switch (op == null ? "" : op) {
+        case "insertOne":
+            return new InsertOneModel<>(withoutId(filter));
+        case "updateOne":
+            return new UpdateOneModel<>(filter, extra, options);
+        case "updateMany":
+            return new UpdateManyModel<>(filter, extra, options);
+        case "replaceOne":
+            return new ReplaceOneModel<>(filter, extra, options);
+        case "deleteOne":
+            return new DeleteOneModel<>(filter);
+        case "deleteMany":
+            return new DeleteManyModel<>(filter);
+        default:
+            throw new IllegalArgumentException("Not replayable request: " + op);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.sunnysuperman.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link MongoWorkloadReplayer#replay(MongoRepository)}. Latencies are measured from the time an operation
+ * was scheduled, so time spent waiting for a free worker counts against the target.
+ */
+public class MongoWorkloadReport {
+    private final List<Stats> stats = new ArrayList<>();
+    private final long elapsedMillis;
+    private final long skipped;
+    private final long maxLagMicros;
+
+    public static class Stats {
+        private final MongoWorkloadOperation operation;
+        private final long count;
+        private final long errors;
+        private final long[] sortedMicros;
+        private final long elapsedMillis;
+
+        Stats(MongoWorkloadOperation operation, long[] micros, long errors, long elapsedMillis) {
+            super();
+            Arrays.sort(micros);
+            this.operation = operation;
+            this.count = micros.length + errors;
+            this.errors = errors;
+            this.sortedMicros = micros;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public MongoWorkloadOperation getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return successful operations per second
+         */
+        public double getThroughput() {
+            return elapsedMillis <= 0 ? 0 : sortedMicros.length * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return latency of successful operations, 0 when there were none
+         */
+        public long getPercentileMicros(double percentile) {
+            if (sortedMicros.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedMicros.length) - 1;
+            return sortedMicros[Math.max(0, Math.min(sortedMicros.length - 1, index))];
+        }
+
+        public long getMaxMicros() {
+            return getPercentileMicros(100);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s count: %d errors: %d ops/s: %.1f p50: %dus p95: %dus p99: %dus max: %dus",
+                    operation, count, errors, getThroughput(), getPercentileMicros(50), getPercentileMicros(95),
+                    getPercentileMicros(99), getMaxMicros());
+        }
+    }
+
+    MongoWorkloadReport(long elapsedMillis, long skipped, long maxLagMicros) {
+        super();
+        this.elapsedMillis = elapsedMillis;
+        this.skipped = skipped;
+        this.maxLagMicros = maxLagMicros;
+    }
+
+    void add(Stats item) {
+        stats.add(item);
+    }
+
+    public List<Stats> getStats() {
+        return Collections.unmodifiableList(stats);
+    }
+
+    /**
+     * @return null when the operation was not replayed
+     */
+    public Stats getStats(MongoWorkloadOperation operation) {
+        for (Stats item : stats) {
+            if (item.getOperation() == operation) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (Stats item : stats) {
+            count += item.getCount();
+        }
+        return count;
+    }
+
+    public long getErrors() {
+        long errors = 0;
+        for (Stats item : stats) {
+            errors += item.getErrors();
+        }
+        return errors;
+    }
+
+    public double getThroughput() {
+        return elapsedMillis <= 0 ? 0 : (getCount() - getErrors()) * 1000.0 / elapsedMillis;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return records not replayed: writes unless enabled, and batches of logs that did not record their requests
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return how far the replayer itself fell behind the schedule; a large lag means the offered rate was not reached
+     */
+    public long getMaxLagMicros() {
+        return maxLagMicros;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("elapsed: %dms ops/s: %.1f skipped: %d max lag: %dus", elapsedMillis,
+                getThroughput(), skipped, maxLagMicros));
+        for (Stats item : stats) {
+            buf.append('\n').append(item);
+        }
+        return buf.toString();
+    }
+}
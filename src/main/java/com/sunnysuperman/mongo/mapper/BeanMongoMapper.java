@@ -3,26 +3,36 @@ package com.sunnysuperman.mongo.mapper;
 import org.bson.Document;
 
 import com.sunnysuperman.commons.bean.ParseBeanOptions;
+import com.sunnysuperman.mongo.MongoBeanCodec;
+import com.sunnysuperman.mongo.MongoBeanCodecs;
 import com.sunnysuperman.mongo.MongoMapper;
+import com.sunnysuperman.mongo.MongoSerializer;
 import com.sunnysuperman.repository.serialize.Serializer;
 
 public class BeanMongoMapper<T> implements MongoMapper<T> {
     private Class<T> clazz;
     private ParseBeanOptions options;
+    private MongoBeanCodec<T> codec;
 
     public BeanMongoMapper(Class<T> clazz, ParseBeanOptions options) {
         super();
         this.clazz = clazz;
         this.options = options;
+        this.codec = options == null ? MongoBeanCodecs.get(clazz) : null;
     }
 
     public BeanMongoMapper(Class<T> clazz) {
         super();
         this.clazz = clazz;
+        this.codec = MongoBeanCodecs.get(clazz);
     }
 
     @Override
     public T map(Document doc) {
+        doc = MongoSerializer.deserializeMap(doc, clazz);
+        if (codec != null && doc != null) {
+            return codec.deserialize(doc);
+        }
         return Serializer.deserialize(doc, clazz, options);
     }
 
@@ -0,0 +1,62 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.model.Collation;
+
+final class MemoryAggregateIterable extends MemoryIterable<Document> implements AggregateIterable<Document> {
+    private final MemoryCollection collection;
+    private final List<? extends Bson> pipeline;
+
+    MemoryAggregateIterable(MemoryCollection collection, List<? extends Bson> pipeline) {
+        super();
+        this.collection = collection;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    protected List<Document> execute() {
+        return MemoryAggregation.aggregate(collection, pipeline);
+    }
+
+    @Override
+    public void toCollection() {
+        execute();
+    }
+
+    @Override
+    public MemoryAggregateIterable allowDiskUse(Boolean allowDiskUse) {
+        return this;
+    }
+
+    @Override
+    public MemoryAggregateIterable batchSize(int batchSize) {
+        return this;
+    }
+
+    @Override
+    public MemoryAggregateIterable maxTime(long maxTime, TimeUnit timeUnit) {
+        return this;
+    }
+
+    @Override
+    public MemoryAggregateIterable useCursor(Boolean useCursor) {
+        return this;
+    }
+
+    @Override
+    public MemoryAggregateIterable bypassDocumentValidation(Boolean bypassDocumentValidation) {
+        return this;
+    }
+
+    @Override
+    public MemoryAggregateIterable collation(Collation collation) {
+        return this;
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Runs the simple aggregation stages: $match, $project, $addFields, $sort, $skip, $limit, $unwind, $group, $count
+ * and a trailing $out.
+ */
+final class MemoryAggregation {
+
+    private MemoryAggregation() {
+    }
+
+    static List<Document> aggregate(MemoryCollection collection, List<? extends Bson> pipeline) {
+        List<Document> stages = new ArrayList<>(pipeline.size());
+        for (Bson stage : pipeline) {
+            stages.add(MemoryValues.toDocument(stage));
+        }
+        int start = 0;
+        Bson filter = null;
+        // a leading $match goes through the collection query planner
+        if (!stages.isEmpty() && stages.get(0).containsKey("$match")) {
+            filter = (Bson) stages.get(0).get("$match");
+            start = 1;
+        }
+        List<Document> docs = collection.select(filter, null, null, 0, 0);
+        for (int i = start; i < stages.size(); i++) {
+            Document stage = stages.get(i);
+            if (stage.size() != 1) {
+                throw new RepositoryException("A pipeline stage specification object must contain exactly one field");
+            }
+            String op = stage.keySet().iterator().next();
+            Object arg = stage.get(op);
+            if (op.equals("$out")) {
+                if (i != stages.size() - 1) {
+                    throw new RepositoryException("$out can only be the final stage in the pipeline");
+                }
+                collection.getDatabase().getCollection(arg.toString()).replaceAll(docs);
+                return docs;
+            }
+            docs = apply(docs, op, arg);
+        }
+        return docs;
+    }
+
+    private static List<Document> apply(List<Document> docs, String op, Object arg) {
+        switch (op) {
+        case "$match": {
+            List<Document> result = new ArrayList<>();
+            for (Document doc : docs) {
+                if (MemoryMatcher.matches(doc, (Map<?, ?>) arg)) {
+                    result.add(doc);
+                }
+            }
+            return result;
+        }
+        case "$sort":
+            Collections.sort(docs, MemoryProjection.comparator((Map<?, ?>) arg));
+            return docs;
+        case "$skip": {
+            int skip = Math.min(((Number) arg).intValue(), docs.size());
+            return new ArrayList<>(docs.subList(skip, docs.size()));
+        }
+        case "$limit": {
+            int limit = Math.min(((Number) arg).intValue(), docs.size());
+            return new ArrayList<>(docs.subList(0, limit));
+        }
+        case "$project":
+        case "$addFields":
+            return project(docs, (Map<?, ?>) arg, op.equals("$addFields"));
+        case "$unwind":
+            return unwind(docs, arg);
+        case "$group":
+            return group(docs, (Map<?, ?>) arg);
+        case "$count":
+            List<Document> result = new ArrayList<>(1);
+            if (!docs.isEmpty()) {
+                result.add(new Document(arg.toString(), docs.size()));
+            }
+            return result;
+        default:
+            throw new RepositoryException("Unsupported pipeline stage: " + op);
+        }
+    }
+
+    private static List<Document> project(List<Document> docs, Map<?, ?> spec, boolean addFields) {
+        Document fields = new Document();
+        Map<String, Object> computed = new LinkedHashMap<>();
+        for (Entry<?, ?> entry : spec.entrySet()) {
+            String key = entry.getKey().toString();
+            Object value = entry.getValue();
+            if (!addFields && (value instanceof Boolean || value instanceof Number)) {
+                fields.put(key, value);
+            } else {
+                computed.put(key, value);
+            }
+        }
+        if (!addFields && !computed.isEmpty() && !fields.containsKey(MemoryValues.ID)) {
+            fields.put(MemoryValues.ID, 1);
+        }
+        List<Document> result = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            Document projected;
+            if (addFields) {
+                projected = doc;
+            } else if (fields.isEmpty()) {
+                projected = new Document();
+            } else {
+                projected = MemoryProjection.project(doc, fields);
+            }
+            for (Entry<String, Object> entry : computed.entrySet()) {
+                MemoryUpdater.set(projected, entry.getKey(), evaluate(doc, entry.getValue()));
+            }
+            result.add(projected);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Document> unwind(List<Document> docs, Object arg) {
+        String path;
+        boolean preserve = false;
+        if (arg instanceof Map) {
+            Map<?, ?> spec = (Map<?, ?>) arg;
+            path = spec.get("path").toString();
+            preserve = MemoryValues.isTrue(spec.get("preserveNullAndEmptyArrays"));
+        } else {
+            path = arg.toString();
+        }
+        if (!path.startsWith("$")) {
+            throw new RepositoryException("$unwind path must be prefixed with '$'");
+        }
+        path = path.substring(1);
+        List<Document> result = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            Object value = MemoryValues.get(doc, path);
+            if (!(value instanceof List)) {
+                if (value != null || preserve) {
+                    result.add(doc);
+                }
+                continue;
+            }
+            List<Object> items = (List<Object>) value;
+            if (items.isEmpty() && preserve) {
+                Document copy = MemoryValues.copy(doc);
+                MemoryUpdater.set(copy, path, null);
+                result.add(copy);
+            }
+            for (Object item : items) {
+                Document copy = MemoryValues.copy(doc);
+                MemoryUpdater.set(copy, path, MemoryValues.copy(item));
+                result.add(copy);
+            }
+        }
+        return result;
+    }
+
+    private static List<Document> group(List<Document> docs, Map<?, ?> spec) {
+        if (!spec.containsKey(MemoryValues.ID)) {
+            throw new RepositoryException("a group specification must include an _id");
+        }
+        Object idExpr = spec.get(MemoryValues.ID);
+        Map<MemoryKey, Document> groups = new LinkedHashMap<>();
+        Map<MemoryKey, Map<String, Accumulator>> states = new LinkedHashMap<>();
+        for (Document doc : docs) {
+            Object id = evaluate(doc, idExpr);
+            MemoryKey key = new MemoryKey(id);
+            Map<String, Accumulator> accumulators = states.get(key);
+            if (accumulators == null) {
+                accumulators = new LinkedHashMap<>();
+                for (Entry<?, ?> entry : spec.entrySet()) {
+                    String field = entry.getKey().toString();
+                    if (!field.equals(MemoryValues.ID)) {
+                        accumulators.put(field, new Accumulator((Map<?, ?>) entry.getValue()));
+                    }
+                }
+                states.put(key, accumulators);
+                groups.put(key, new Document(MemoryValues.ID, id));
+            }
+            for (Accumulator accumulator : accumulators.values()) {
+                accumulator.accept(doc);
+            }
+        }
+        List<Document> result = new ArrayList<>(groups.size());
+        for (Entry<MemoryKey, Document> entry : groups.entrySet()) {
+            Document doc = entry.getValue();
+            for (Entry<String, Accumulator> state : states.get(entry.getKey()).entrySet()) {
+                doc.put(state.getKey(), state.getValue().result());
+            }
+            result.add(doc);
+        }
+        return result;
+    }
+
+    static Object evaluate(Document doc, Object expr) {
+        if (expr instanceof String) {
+            String str = (String) expr;
+            if (str.startsWith("$")) {
+                return MemoryValues.get(doc, str.substring(1));
+            }
+            return str;
+        }
+        if (expr instanceof List) {
+            List<?> list = (List<?>) expr;
+            List<Object> values = new ArrayList<>(list.size());
+            for (Object item : list) {
+                values.add(evaluate(doc, item));
+            }
+            return values;
+        }
+        if (expr instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) expr;
+            if (MemoryValues.isOperatorDocument(map)) {
+                if (map.size() == 1 && map.containsKey("$literal")) {
+                    return map.get("$literal");
+                }
+                throw new RepositoryException("Unsupported expression: " + map.keySet());
+            }
+            Document values = new Document();
+            for (Entry<?, ?> entry : map.entrySet()) {
+                values.put(entry.getKey().toString(), evaluate(doc, entry.getValue()));
+            }
+            return values;
+        }
+        return expr;
+    }
+
+    private static class Accumulator {
+        private final String op;
+        private final Object expr;
+        private Object value;
+        private long count;
+        private boolean integral = true;
+        private Set<MemoryKey> seen;
+        private List<Object> items;
+
+        Accumulator(Map<?, ?> spec) {
+            super();
+            if (spec.size() != 1) {
+                throw new RepositoryException("The field must specify one accumulator");
+            }
+            this.op = spec.keySet().iterator().next().toString();
+            this.expr = spec.get(op);
+            if (op.equals("$push") || op.equals("$addToSet")) {
+                items = new ArrayList<>();
+                seen = op.equals("$addToSet") ? new LinkedHashSet<MemoryKey>() : null;
+            } else if (!op.equals("$sum") && !op.equals("$avg") && !op.equals("$min") && !op.equals("$max")
+                    && !op.equals("$first") && !op.equals("$last")) {
+                throw new RepositoryException("Unsupported accumulator: " + op);
+            }
+        }
+
+        void accept(Document doc) {
+            Object v = evaluate(doc, expr);
+            switch (op) {
+            case "$sum":
+            case "$avg":
+                if (v instanceof Number) {
+                    Number n = (Number) v;
+                    integral = integral && !(n instanceof Double || n instanceof Float);
+                    if (value == null) {
+                        value = integral ? (Object) n.longValue() : (Object) n.doubleValue();
+                    } else if (integral) {
+                        value = ((Number) value).longValue() + n.longValue();
+                    } else {
+                        value = ((Number) value).doubleValue() + n.doubleValue();
+                    }
+                    count++;
+                }
+                break;
+            case "$min":
+            case "$max":
+                if (v != null) {
+                    int c = value == null ? 0 : MemoryValues.compare(v, value);
+                    if (value == null || (op.equals("$min") ? c < 0 : c > 0)) {
+                        value = v;
+                    }
+                }
+                break;
+            case "$first":
+                if (count++ == 0) {
+                    value = v;
+                }
+                break;
+            case "$last":
+                value = v;
+                break;
+            default:
+                if (seen == null || seen.add(new MemoryKey(v))) {
+                    items.add(v);
+                }
+            }
+        }
+
+        Object result() {
+            if (items != null) {
+                return items;
+            }
+            if (op.equals("$avg")) {
+                return count == 0 ? null : ((Number) value).doubleValue() / count;
+            }
+            if (op.equals("$sum")) {
+                if (value == null) {
+                    return 0;
+                }
+                if (integral) {
+                    long l = ((Number) value).longValue();
+                    if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                        return (int) l;
+                    }
+                }
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,926 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MapReduceIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.DeleteOptions;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.InsertOneOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * In-memory collection of documents. Documents are kept in insertion order keyed by {@code _id}, secondary indexes
+ * narrow the candidates of a query before the full filter is evaluated. Stored documents are deep copies, so callers
+ * never share state with the store.
+ */
+public class MemoryCollection implements MongoCollection<Document> {
+    static final ServerAddress ADDRESS = new ServerAddress();
+    private static final String ID_INDEX = "_id_";
+    private final MemoryDatabase database;
+    private final String name;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<MemoryKey, Document> docs = new LinkedHashMap<>();
+    private final Map<String, MemoryIndex> indexes = new LinkedHashMap<>();
+
+    MemoryCollection(MemoryDatabase database, String name) {
+        super();
+        this.database = database;
+        this.name = name;
+    }
+
+    static MongoWriteException duplicateKey(String index, Object key) {
+        return new MongoWriteException(new WriteError(11000, "E11000 duplicate key error index: " + index
+                + " dup key: { : " + key + " }", new BsonDocument()), ADDRESS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    MemoryDatabase getDatabase() {
+        return database;
+    }
+
+    // query planning
+
+    private Collection<MemoryKey> candidates(Document filter) {
+        Object idCond = filter.get(MemoryValues.ID);
+        if (idCond != null && !(idCond instanceof Map && !MemoryValues.isOperatorDocument(idCond))) {
+            Set<MemoryKey> ids = lookupId(idCond);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        Set<MemoryKey> best = null;
+        for (MemoryIndex index : indexes.values()) {
+            if (!filter.containsKey(index.getLeadingField())) {
+                continue;
+            }
+            Set<MemoryKey> ids = index.lookup(filter.get(index.getLeadingField()));
+            if (ids != null && (best == null || ids.size() < best.size())) {
+                best = ids;
+            }
+        }
+        return best == null ? docs.keySet() : best;
+    }
+
+    private Set<MemoryKey> lookupId(Object cond) {
+        List<?> values;
+        if (MemoryValues.isOperatorDocument(cond)) {
+            Map<?, ?> ops = (Map<?, ?>) cond;
+            if (ops.containsKey("$eq")) {
+                values = Collections.singletonList(ops.get("$eq"));
+            } else if (ops.containsKey("$in")) {
+                values = MemoryValues.asList(ops.get("$in"));
+            } else {
+                return null;
+            }
+        } else {
+            values = Collections.singletonList(cond);
+        }
+        Set<MemoryKey> ids = new LinkedHashSet<>();
+        for (Object value : values) {
+            MemoryKey id = new MemoryKey(value);
+            if (docs.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private List<Entry<MemoryKey, Document>> match(Document filter, int max) {
+        List<Entry<MemoryKey, Document>> matched = new ArrayList<>();
+        for (MemoryKey id : candidates(filter)) {
+            Document doc = docs.get(id);
+            if (doc != null && MemoryMatcher.matches(doc, filter)) {
+                matched.add(new SimpleImmutableEntry<>(id, doc));
+                if (max > 0 && matched.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+
+    private List<Entry<MemoryKey, Document>> matchSorted(Document filter, Document sort, int max) {
+        if (sort == null || sort.isEmpty()) {
+            return match(filter, max);
+        }
+        List<Entry<MemoryKey, Document>> matched = match(filter, 0);
+        final Comparator<Document> comparator = MemoryProjection.comparator(sort);
+        Collections.sort(matched, new Comparator<Entry<MemoryKey, Document>>() {
+
+            @Override
+            public int compare(Entry<MemoryKey, Document> o1, Entry<MemoryKey, Document> o2) {
+                return comparator.compare(o1.getValue(), o2.getValue());
+            }
+
+        });
+        if (max > 0 && matched.size() > max) {
+            return matched.subList(0, max);
+        }
+        return matched;
+    }
+
+    List<Document> select(Bson filter, Bson sort, Bson projection, int skip, int limit) {
+        Document fields = projection == null ? null : MemoryValues.toDocument(projection);
+        lock.readLock().lock();
+        try {
+            int max = limit > 0 ? skip + limit : 0;
+            List<Entry<MemoryKey, Document>> matched = matchSorted(MemoryValues.toDocument(filter),
+                    sort == null ? null : MemoryValues.toDocument(sort), max);
+            int from = Math.min(skip, matched.size());
+            List<Document> result = new ArrayList<>(matched.size() - from);
+            for (int i = from; i < matched.size(); i++) {
+                result.add(MemoryProjection.project(MemoryValues.copy(matched.get(i).getValue()), fields));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Explain output shaped like the server's executionStats verbosity, enough for plan inspection in tests.
+     *
+     * @param rootStage COUNT, UPDATE or DELETE stage on top of the query plan, null for a find
+     */
+    Document explain(Bson filter, String rootStage) {
+        Document query = MemoryValues.toDocument(filter);
+        lock.readLock().lock();
+        try {
+            String indexName = null;
+            int keys = 0;
+            Object idCond = query.get(MemoryValues.ID);
+            if (idCond != null && !(idCond instanceof Map && !MemoryValues.isOperatorDocument(idCond))
+                    && lookupId(idCond) != null) {
+                indexName = ID_INDEX;
+                keys = lookupId(idCond).size();
+            } else {
+                for (Entry<String, MemoryIndex> entry : indexes.entrySet()) {
+                    MemoryIndex index = entry.getValue();
+                    if (!query.containsKey(index.getLeadingField())) {
+                        continue;
+                    }
+                    Set<MemoryKey> ids = index.lookup(query.get(index.getLeadingField()));
+                    if (ids != null && (indexName == null || ids.size() < keys)) {
+                        indexName = entry.getKey();
+                        keys = ids.size();
+                    }
+                }
+            }
+            Document stage;
+            if (indexName == null) {
+                stage = new Document("stage", "COLLSCAN");
+            } else {
+                stage = new Document("stage", "FETCH").append("inputStage",
+                        new Document("stage", "IXSCAN").append("indexName", indexName));
+            }
+            int examined = candidates(query).size();
+            int returned = match(query, 0).size();
+            Document plan = stage;
+            Document stages = new Document(stage).append("nReturned", returned);
+            if (rootStage != null) {
+                plan = new Document("stage", rootStage).append("inputStage", stage);
+                stages = new Document("stage", rootStage).append("nReturned", 0).append("inputStage", stages);
+                returned = 0;
+            }
+            return new Document("queryPlanner", new Document("namespace", database.getName() + "." + name)
+                    .append("winningPlan", plan)).append("executionStats",
+                            new Document("nReturned", returned).append("totalKeysExamined", keys)
+                                    .append("totalDocsExamined", examined).append("executionStages", stages))
+                    .append("ok", 1.0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // writes, callers hold the write lock
+
+    private void doInsert(Document doc) {
+        if (!doc.containsKey(MemoryValues.ID)) {
+            doc.put(MemoryValues.ID, new ObjectId());
+        }
+        Document stored = MemoryValues.copy(doc);
+        MemoryKey id = new MemoryKey(stored.get(MemoryValues.ID));
+        if (docs.containsKey(id)) {
+            throw duplicateKey(ID_INDEX, id);
+        }
+        for (MemoryIndex index : indexes.values()) {
+            index.checkUnique(stored, id, docs);
+        }
+        for (MemoryIndex index : indexes.values()) {
+            index.add(stored, id);
+        }
+        docs.put(id, stored);
+    }
+
+    private boolean doReplace(MemoryKey id, Document old, Document updated) {
+        if (!MemoryValues.equalsValue(old.get(MemoryValues.ID), updated.get(MemoryValues.ID))) {
+            throw new MongoWriteException(new WriteError(66, "Performing an update on the path '_id' would modify"
+                    + " the immutable field '_id'", new BsonDocument()), ADDRESS);
+        }
+        if (old.equals(updated)) {
+            return false;
+        }
+        for (MemoryIndex index : indexes.values()) {
+            index.checkUnique(updated, id, docs);
+        }
+        for (MemoryIndex index : indexes.values()) {
+            index.remove(old, id);
+            index.add(updated, id);
+        }
+        docs.put(id, updated);
+        return true;
+    }
+
+    private void doRemove(MemoryKey id) {
+        Document old = docs.remove(id);
+        if (old != null) {
+            for (MemoryIndex index : indexes.values()) {
+                index.remove(old, id);
+            }
+        }
+    }
+
+    private Document upsertDocument(Document filter, Document update) {
+        Document doc = new Document();
+        for (Entry<String, Object> entry : MemoryMatcher.equalityFields(filter).entrySet()) {
+            MemoryUpdater.set(doc, entry.getKey(), entry.getValue());
+        }
+        MemoryUpdater.apply(doc, update, true);
+        return doc;
+    }
+
+    private UpdateResult doUpdate(Document filter, Document update, boolean upsert, boolean multi) {
+        if (multi && MemoryUpdater.isReplacement(update)) {
+            throw new IllegalArgumentException("Invalid BSON document for an update");
+        }
+        List<Entry<MemoryKey, Document>> matched = match(filter, multi ? 0 : 1);
+        if (matched.isEmpty()) {
+            if (!upsert) {
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+            Document doc = upsertDocument(filter, update);
+            doInsert(doc);
+            return UpdateResult.acknowledged(0, 0L, MemoryValues.toBsonValue(doc.get(MemoryValues.ID)));
+        }
+        long modified = 0;
+        for (Entry<MemoryKey, Document> entry : matched) {
+            Document updated = MemoryValues.copy(entry.getValue());
+            MemoryUpdater.apply(updated, update, false);
+            if (doReplace(entry.getKey(), entry.getValue(), updated)) {
+                modified++;
+            }
+        }
+        return UpdateResult.acknowledged(matched.size(), modified, null);
+    }
+
+    private long doDelete(Document filter, boolean multi) {
+        List<Entry<MemoryKey, Document>> matched = match(filter, multi ? 0 : 1);
+        for (Entry<MemoryKey, Document> entry : matched) {
+            doRemove(entry.getKey());
+        }
+        return matched.size();
+    }
+
+    private Document doFindOneAndModify(Document filter, Bson sort, Bson projection, Document update,
+            boolean remove, boolean upsert, boolean returnAfter) {
+        List<Entry<MemoryKey, Document>> matched = matchSorted(filter,
+                sort == null ? null : MemoryValues.toDocument(sort), 1);
+        Document fields = projection == null ? null : MemoryValues.toDocument(projection);
+        if (matched.isEmpty()) {
+            if (remove || !upsert) {
+                return null;
+            }
+            Document doc = upsertDocument(filter, update);
+            doInsert(doc);
+            return returnAfter ? MemoryProjection.project(MemoryValues.copy(doc), fields) : null;
+        }
+        Entry<MemoryKey, Document> entry = matched.get(0);
+        Document before = entry.getValue();
+        if (remove) {
+            doRemove(entry.getKey());
+            return MemoryProjection.project(MemoryValues.copy(before), fields);
+        }
+        Document after = MemoryValues.copy(before);
+        MemoryUpdater.apply(after, update, false);
+        doReplace(entry.getKey(), before, after);
+        return MemoryProjection.project(MemoryValues.copy(returnAfter ? after : before), fields);
+    }
+
+    // MongoCollection
+
+    @Override
+    public MongoNamespace getNamespace() {
+        return new MongoNamespace(database.getName(), name);
+    }
+
+    @Override
+    public Class<Document> getDocumentClass() {
+        return Document.class;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return MongoClient.getDefaultCodecRegistry();
+    }
+
+    @Override
+    public ReadPreference getReadPreference() {
+        return ReadPreference.primary();
+    }
+
+    @Override
+    public WriteConcern getWriteConcern() {
+        return WriteConcern.ACKNOWLEDGED;
+    }
+
+    @Override
+    public ReadConcern getReadConcern() {
+        return ReadConcern.DEFAULT;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <NewTDocument> MongoCollection<NewTDocument> withDocumentClass(Class<NewTDocument> clazz) {
+        checkDocumentClass(clazz);
+        return (MongoCollection<NewTDocument>) (MongoCollection<?>) this;
+    }
+
+    private static void checkDocumentClass(Class<?> clazz) {
+        if (clazz != Document.class) {
+            throw new UnsupportedOperationException("In-memory collections only support " + Document.class);
+        }
+    }
+
+    @Override
+    public MongoCollection<Document> withCodecRegistry(CodecRegistry codecRegistry) {
+        return this;
+    }
+
+    @Override
+    public MongoCollection<Document> withReadPreference(ReadPreference readPreference) {
+        return this;
+    }
+
+    @Override
+    public MongoCollection<Document> withWriteConcern(WriteConcern writeConcern) {
+        return this;
+    }
+
+    @Override
+    public MongoCollection<Document> withReadConcern(ReadConcern readConcern) {
+        return this;
+    }
+
+    @Override
+    public long count() {
+        return count(null, new CountOptions());
+    }
+
+    @Override
+    public long count(Bson filter) {
+        return count(filter, new CountOptions());
+    }
+
+    @Override
+    public long count(Bson filter, CountOptions options) {
+        lock.readLock().lock();
+        try {
+            Document query = MemoryValues.toDocument(filter);
+            long count = query.isEmpty() ? docs.size() : match(query, 0).size();
+            count = Math.max(0, count - options.getSkip());
+            if (options.getLimit() > 0) {
+                count = Math.min(count, options.getLimit());
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <TResult> DistinctIterable<TResult> distinct(String fieldName, Class<TResult> resultClass) {
+        return distinct(fieldName, null, resultClass);
+    }
+
+    @Override
+    public <TResult> DistinctIterable<TResult> distinct(final String fieldName, Bson filter,
+            final Class<TResult> resultClass) {
+        return new MemoryListIterable<TResult>(filter) {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            protected List<TResult> execute() {
+                Set<MemoryKey> values = new LinkedHashSet<>();
+                for (Document doc : select(this.filter, null, null, 0, 0)) {
+                    for (Object value : MemoryValues.resolve(doc, fieldName)) {
+                        if (MemoryValues.isArray(value)) {
+                            for (Object item : MemoryValues.asList(value)) {
+                                values.add(new MemoryKey(item));
+                            }
+                        } else {
+                            values.add(new MemoryKey(value));
+                        }
+                    }
+                }
+                List<TResult> result = new ArrayList<>(values.size());
+                for (MemoryKey value : values) {
+                    result.add((TResult) value.getValue());
+                }
+                return result;
+            }
+
+        };
+    }
+
+    @Override
+    public FindIterable<Document> find() {
+        return find(new Document());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> FindIterable<TResult> find(Class<TResult> resultClass) {
+        checkDocumentClass(resultClass);
+        return (FindIterable<TResult>) (FindIterable<?>) find();
+    }
+
+    @Override
+    public FindIterable<Document> find(Bson filter) {
+        return new MemoryFindIterable(this, filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> FindIterable<TResult> find(Bson filter, Class<TResult> resultClass) {
+        checkDocumentClass(resultClass);
+        return (FindIterable<TResult>) (FindIterable<?>) find(filter);
+    }
+
+    @Override
+    public AggregateIterable<Document> aggregate(List<? extends Bson> pipeline) {
+        return new MemoryAggregateIterable(this, pipeline);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> AggregateIterable<TResult> aggregate(List<? extends Bson> pipeline, Class<TResult> resultClass) {
+        checkDocumentClass(resultClass);
+        return (AggregateIterable<TResult>) (AggregateIterable<?>) aggregate(pipeline);
+    }
+
+    @Override
+    public MapReduceIterable<Document> mapReduce(String mapFunction, String reduceFunction) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory engine");
+    }
+
+    @Override
+    public <TResult> MapReduceIterable<TResult> mapReduce(String mapFunction, String reduceFunction,
+            Class<TResult> resultClass) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory engine");
+    }
+
+    @Override
+    public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends Document>> requests) {
+        return bulkWrite(requests, new BulkWriteOptions());
+    }
+
+    @Override
+    public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends Document>> requests,
+            BulkWriteOptions options) {
+        int inserted = 0;
+        int matched = 0;
+        int deleted = 0;
+        int modified = 0;
+        List<BulkWriteUpsert> upserts = new ArrayList<>();
+        List<BulkWriteError> errors = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                WriteModel<? extends Document> request = requests.get(i);
+                try {
+                    if (request instanceof InsertOneModel) {
+                        doInsert(((InsertOneModel<? extends Document>) request).getDocument());
+                        inserted++;
+                    } else if (request instanceof DeleteOneModel) {
+                        deleted += doDelete(
+                                MemoryValues.toDocument(((DeleteOneModel<? extends Document>) request).getFilter()),
+                                false);
+                    } else if (request instanceof DeleteManyModel) {
+                        deleted += doDelete(
+                                MemoryValues.toDocument(((DeleteManyModel<? extends Document>) request).getFilter()),
+                                true);
+                    } else {
+                        UpdateResult result;
+                        if (request instanceof UpdateOneModel) {
+                            UpdateOneModel<? extends Document> model = (UpdateOneModel<? extends Document>) request;
+                            result = doUpdate(MemoryValues.toDocument(model.getFilter()),
+                                    MemoryValues.toDocument(model.getUpdate()), model.getOptions().isUpsert(), false);
+                        } else if (request instanceof UpdateManyModel) {
+                            UpdateManyModel<? extends Document> model = (UpdateManyModel<? extends Document>) request;
+                            result = doUpdate(MemoryValues.toDocument(model.getFilter()),
+                                    MemoryValues.toDocument(model.getUpdate()), model.getOptions().isUpsert(), true);
+                        } else if (request instanceof ReplaceOneModel) {
+                            ReplaceOneModel<? extends Document> model = (ReplaceOneModel<? extends Document>) request;
+                            result = doUpdate(MemoryValues.toDocument(model.getFilter()), model.getReplacement(),
+                                    model.getOptions().isUpsert(), false);
+                        } else {
+                            throw new UnsupportedOperationException("Unsupported write model: " + request);
+                        }
+                        matched += (int) result.getMatchedCount();
+                        modified += (int) result.getModifiedCount();
+                        if (result.getUpsertedId() != null) {
+                            upserts.add(new BulkWriteUpsert(i, result.getUpsertedId()));
+                        }
+                    }
+                } catch (MongoWriteException ex) {
+                    errors.add(new BulkWriteError(ex.getError().getCode(), ex.getError().getMessage(),
+                            ex.getError().getDetails(), i));
+                    if (options.isOrdered()) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        BulkWriteResult result = BulkWriteResult.acknowledged(inserted, matched, deleted, modified, upserts);
+        if (!errors.isEmpty()) {
+            throw new MongoBulkWriteException(result, errors, null, ADDRESS);
+        }
+        return result;
+    }
+
+    @Override
+    public void insertOne(Document document) {
+        insertOne(document, new InsertOneOptions());
+    }
+
+    @Override
+    public void insertOne(Document document, InsertOneOptions options) {
+        lock.writeLock().lock();
+        try {
+            doInsert(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void insertMany(List<? extends Document> documents) {
+        insertMany(documents, new InsertManyOptions());
+    }
+
+    @Override
+    public void insertMany(List<? extends Document> documents, InsertManyOptions options) {
+        List<InsertOneModel<Document>> requests = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            requests.add(new InsertOneModel<Document>(document));
+        }
+        bulkWrite(requests, new BulkWriteOptions().ordered(options.isOrdered()));
+    }
+
+    @Override
+    public DeleteResult deleteOne(Bson filter) {
+        return deleteOne(filter, new DeleteOptions());
+    }
+
+    @Override
+    public DeleteResult deleteOne(Bson filter, DeleteOptions options) {
+        lock.writeLock().lock();
+        try {
+            return DeleteResult.acknowledged(doDelete(MemoryValues.toDocument(filter), false));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public DeleteResult deleteMany(Bson filter) {
+        return deleteMany(filter, new DeleteOptions());
+    }
+
+    @Override
+    public DeleteResult deleteMany(Bson filter, DeleteOptions options) {
+        lock.writeLock().lock();
+        try {
+            return DeleteResult.acknowledged(doDelete(MemoryValues.toDocument(filter), true));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public UpdateResult replaceOne(Bson filter, Document replacement) {
+        return replaceOne(filter, replacement, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult replaceOne(Bson filter, Document replacement, UpdateOptions options) {
+        if (!MemoryUpdater.isReplacement(replacement)) {
+            throw new IllegalArgumentException("Invalid BSON field name " + replacement.keySet().iterator().next());
+        }
+        return update(filter, replacement, options, false);
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson filter, Bson update) {
+        return updateOne(filter, update, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson filter, Bson update, UpdateOptions options) {
+        return update(filter, update, options, false);
+    }
+
+    @Override
+    public UpdateResult updateMany(Bson filter, Bson update) {
+        return updateMany(filter, update, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult updateMany(Bson filter, Bson update, UpdateOptions options) {
+        return update(filter, update, options, true);
+    }
+
+    private UpdateResult update(Bson filter, Bson update, UpdateOptions options, boolean multi) {
+        lock.writeLock().lock();
+        try {
+            return doUpdate(MemoryValues.toDocument(filter), MemoryValues.toDocument(update), options.isUpsert(),
+                    multi);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Document findOneAndDelete(Bson filter) {
+        return findOneAndDelete(filter, new FindOneAndDeleteOptions());
+    }
+
+    @Override
+    public Document findOneAndDelete(Bson filter, FindOneAndDeleteOptions options) {
+        lock.writeLock().lock();
+        try {
+            return doFindOneAndModify(MemoryValues.toDocument(filter), options.getSort(), options.getProjection(),
+                    null, true, false, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Document findOneAndReplace(Bson filter, Document replacement) {
+        return findOneAndReplace(filter, replacement, new FindOneAndReplaceOptions());
+    }
+
+    @Override
+    public Document findOneAndReplace(Bson filter, Document replacement, FindOneAndReplaceOptions options) {
+        lock.writeLock().lock();
+        try {
+            return doFindOneAndModify(MemoryValues.toDocument(filter), options.getSort(), options.getProjection(),
+                    replacement, false, options.isUpsert(), options.getReturnDocument() == ReturnDocument.AFTER);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Document findOneAndUpdate(Bson filter, Bson update) {
+        return findOneAndUpdate(filter, update, new FindOneAndUpdateOptions());
+    }
+
+    @Override
+    public Document findOneAndUpdate(Bson filter, Bson update, FindOneAndUpdateOptions options) {
+        lock.writeLock().lock();
+        try {
+            return doFindOneAndModify(MemoryValues.toDocument(filter), options.getSort(), options.getProjection(),
+                    MemoryValues.toDocument(update), false, options.isUpsert(),
+                    options.getReturnDocument() == ReturnDocument.AFTER);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void drop() {
+        database.dropCollection(name);
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            indexes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String createIndex(Bson keys) {
+        return createIndex(keys, new IndexOptions());
+    }
+
+    @Override
+    public String createIndex(Bson keys, IndexOptions options) {
+        Document spec = MemoryValues.toDocument(keys);
+        String indexName = options.getName() != null ? options.getName() : MemoryIndex.defaultName(spec);
+        if (spec.size() == 1 && spec.containsKey(MemoryValues.ID)) {
+            return ID_INDEX;
+        }
+        lock.writeLock().lock();
+        try {
+            MemoryIndex existing = indexes.get(indexName);
+            if (existing != null) {
+                if (!existing.getKeys().equals(spec) || existing.isUnique() != options.isUnique()) {
+                    throw new IllegalArgumentException("Index with name: " + indexName
+                            + " already exists with different options");
+                }
+                return indexName;
+            }
+            MemoryIndex index = new MemoryIndex(indexName, spec, options.isUnique(), options.isSparse());
+            for (Entry<MemoryKey, Document> entry : docs.entrySet()) {
+                index.checkUnique(entry.getValue(), entry.getKey(), docs);
+                index.add(entry.getValue(), entry.getKey());
+            }
+            indexes.put(indexName, index);
+            return indexName;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> createIndexes(List<IndexModel> models) {
+        List<String> names = new ArrayList<>(models.size());
+        for (IndexModel model : models) {
+            names.add(createIndex(model.getKeys(), model.getOptions()));
+        }
+        return names;
+    }
+
+    @Override
+    public ListIndexesIterable<Document> listIndexes() {
+        return new MemoryListIterable<Document>(null) {
+
+            @Override
+            protected List<Document> execute() {
+                String ns = getNamespace().getFullName();
+                List<Document> result = new ArrayList<>();
+                result.add(new Document("v", 2).append("key", new Document(MemoryValues.ID, 1))
+                        .append("name", ID_INDEX).append("ns", ns));
+                lock.readLock().lock();
+                try {
+                    for (MemoryIndex index : indexes.values()) {
+                        result.add(index.toIndexDocument(ns));
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                return result;
+            }
+
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> ListIndexesIterable<TResult> listIndexes(Class<TResult> resultClass) {
+        checkDocumentClass(resultClass);
+        return (ListIndexesIterable<TResult>) (ListIndexesIterable<?>) listIndexes();
+    }
+
+    @Override
+    public void dropIndex(String indexName) {
+        lock.writeLock().lock();
+        try {
+            if (indexes.remove(indexName) == null) {
+                throw new IllegalArgumentException("index not found with name [" + indexName + "]");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void dropIndex(Bson keys) {
+        Document spec = MemoryValues.toDocument(keys);
+        String indexName = null;
+        lock.readLock().lock();
+        try {
+            for (MemoryIndex index : indexes.values()) {
+                if (index.getKeys().equals(spec)) {
+                    indexName = index.getName();
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        dropIndex(indexName == null ? MemoryIndex.defaultName(spec) : indexName);
+    }
+
+    @Override
+    public void dropIndexes() {
+        lock.writeLock().lock();
+        try {
+            indexes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void renameCollection(MongoNamespace newCollectionNamespace) {
+        renameCollection(newCollectionNamespace, new RenameCollectionOptions());
+    }
+
+    @Override
+    public void renameCollection(MongoNamespace newCollectionNamespace, RenameCollectionOptions options) {
+        database.renameCollection(name, newCollectionNamespace.getCollectionName(), options.isDropTarget());
+    }
+
+    void replaceAll(List<Document> documents) {
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            for (MemoryIndex index : indexes.values()) {
+                index.clear();
+            }
+            for (Document doc : documents) {
+                doInsert(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void copyTo(MemoryCollection target) {
+        List<MemoryIndex> specs;
+        lock.readLock().lock();
+        try {
+            specs = new ArrayList<>(indexes.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+        target.replaceAll(select(null, null, null, 0, 0));
+        for (MemoryIndex index : specs) {
+            target.createIndex(index.getKeys(), new IndexOptions().name(index.getName()).unique(index.isUnique())
+                    .sparse(index.isSparse()));
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.Iterator;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+final class MemoryCursor<T> implements MongoCursor<T> {
+    private final Iterator<T> iterator;
+
+    MemoryCursor(Iterator<T> iterator) {
+        super();
+        this.iterator = iterator;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public T next() {
+        return iterator.next();
+    }
+
+    @Override
+    public T tryNext() {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return null;
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return MemoryCollection.ADDRESS;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ListCollectionsIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.CreateViewOptions;
+
+public class MemoryDatabase implements MongoDatabase {
+    private final String name;
+    private final ConcurrentMap<String, MemoryCollection> collections = new ConcurrentHashMap<>();
+
+    public MemoryDatabase(String name) {
+        super();
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return MongoClient.getDefaultCodecRegistry();
+    }
+
+    @Override
+    public ReadPreference getReadPreference() {
+        return ReadPreference.primary();
+    }
+
+    @Override
+    public WriteConcern getWriteConcern() {
+        return WriteConcern.ACKNOWLEDGED;
+    }
+
+    @Override
+    public ReadConcern getReadConcern() {
+        return ReadConcern.DEFAULT;
+    }
+
+    @Override
+    public MongoDatabase withCodecRegistry(CodecRegistry codecRegistry) {
+        return this;
+    }
+
+    @Override
+    public MongoDatabase withReadPreference(ReadPreference readPreference) {
+        return this;
+    }
+
+    @Override
+    public MongoDatabase withWriteConcern(WriteConcern writeConcern) {
+        return this;
+    }
+
+    @Override
+    public MongoDatabase withReadConcern(ReadConcern readConcern) {
+        return this;
+    }
+
+    @Override
+    public MemoryCollection getCollection(String collectionName) {
+        MemoryCollection collection = collections.get(collectionName);
+        if (collection == null) {
+            collection = new MemoryCollection(this, collectionName);
+            MemoryCollection existing = collections.putIfAbsent(collectionName, collection);
+            if (existing != null) {
+                collection = existing;
+            }
+        }
+        return collection;
+    }
+
+    @Override
+    public <TDocument> MongoCollection<TDocument> getCollection(String collectionName,
+            Class<TDocument> documentClass) {
+        return getCollection(collectionName).withDocumentClass(documentClass);
+    }
+
+    @Override
+    public Document runCommand(Bson command) {
+        return runCommand(command, ReadPreference.primary());
+    }
+
+    @Override
+    public Document runCommand(Bson command, ReadPreference readPreference) {
+        Document doc = MemoryValues.toDocument(command);
+        String commandName = doc.isEmpty() ? null : doc.keySet().iterator().next();
+        if ("ping".equals(commandName)) {
+            return new Document("ok", 1.0);
+        }
+        if ("count".equals(commandName)) {
+            long n = getCollection(doc.getString(commandName)).count((Bson) doc.get("query"));
+            return new Document("n", n).append("ok", 1.0);
+        }
+        if ("explain".equals(commandName)) {
+            Document explained = (Document) doc.get(commandName);
+            if (explained.containsKey("find")) {
+                return getCollection(explained.getString("find")).explain((Bson) explained.get("filter"), null);
+            }
+            if (explained.containsKey("count")) {
+                return getCollection(explained.getString("count")).explain((Bson) explained.get("query"), "COUNT");
+            }
+            if (explained.containsKey("update")) {
+                Document update = (Document) ((List<?>) explained.get("updates")).get(0);
+                return getCollection(explained.getString("update")).explain((Bson) update.get("q"), "UPDATE");
+            }
+            if (explained.containsKey("delete")) {
+                Document delete = (Document) ((List<?>) explained.get("deletes")).get(0);
+                return getCollection(explained.getString("delete")).explain((Bson) delete.get("q"), "DELETE");
+            }
+        }
+        throw new UnsupportedOperationException("Command is not supported by the in-memory engine: " + commandName);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> TResult runCommand(Bson command, Class<TResult> resultClass) {
+        if (resultClass != Document.class) {
+            throw new UnsupportedOperationException("In-memory commands only support " + Document.class);
+        }
+        return (TResult) runCommand(command);
+    }
+
+    @Override
+    public <TResult> TResult runCommand(Bson command, ReadPreference readPreference, Class<TResult> resultClass) {
+        return runCommand(command, resultClass);
+    }
+
+    @Override
+    public void drop() {
+        collections.clear();
+    }
+
+    void dropCollection(String collectionName) {
+        collections.remove(collectionName);
+    }
+
+    void renameCollection(String from, String to, boolean dropTarget) {
+        MemoryCollection source = collections.get(from);
+        if (source == null) {
+            throw new IllegalArgumentException("source namespace does not exist: " + from);
+        }
+        if (collections.containsKey(to) && !dropTarget) {
+            throw new IllegalArgumentException("target namespace exists: " + to);
+        }
+        MemoryCollection target = new MemoryCollection(this, to);
+        source.copyTo(target);
+        collections.put(to, target);
+        collections.remove(from);
+    }
+
+    @Override
+    public MongoIterable<String> listCollectionNames() {
+        return new MemoryIterable<String>() {
+
+            @Override
+            protected List<String> execute() {
+                return new ArrayList<>(collections.keySet());
+            }
+
+        };
+    }
+
+    @Override
+    public ListCollectionsIterable<Document> listCollections() {
+        return new MemoryListIterable<Document>(null) {
+
+            @Override
+            protected List<Document> execute() {
+                Document query = MemoryValues.toDocument(filter);
+                List<Document> result = new ArrayList<>();
+                for (Map.Entry<String, MemoryCollection> entry : collections.entrySet()) {
+                    Document info = new Document("name", entry.getKey()).append("type", "collection")
+                            .append("options", new Document());
+                    if (MemoryMatcher.matches(info, query)) {
+                        result.add(info);
+                    }
+                }
+                return result;
+            }
+
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <TResult> ListCollectionsIterable<TResult> listCollections(Class<TResult> resultClass) {
+        if (resultClass != Document.class) {
+            throw new UnsupportedOperationException("In-memory listings only support " + Document.class);
+        }
+        return (ListCollectionsIterable<TResult>) (ListCollectionsIterable<?>) listCollections();
+    }
+
+    @Override
+    public void createCollection(String collectionName) {
+        getCollection(collectionName);
+    }
+
+    @Override
+    public void createCollection(String collectionName, CreateCollectionOptions options) {
+        getCollection(collectionName);
+    }
+
+    @Override
+    public void createView(String viewName, String viewOn, List<? extends Bson> pipeline) {
+        throw new UnsupportedOperationException("Views are not supported by the in-memory engine");
+    }
+
+    @Override
+    public void createView(String viewName, String viewOn, List<? extends Bson> pipeline,
+            CreateViewOptions createViewOptions) {
+        throw new UnsupportedOperationException("Views are not supported by the in-memory engine");
+    }
+
+}
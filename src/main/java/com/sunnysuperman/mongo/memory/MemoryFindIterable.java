@@ -0,0 +1,107 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.CursorType;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Collation;
+
+final class MemoryFindIterable extends MemoryIterable<Document> implements FindIterable<Document> {
+    private final MemoryCollection collection;
+    private Bson filter;
+    private Bson sort;
+    private Bson projection;
+    private int skip;
+    private int limit;
+
+    MemoryFindIterable(MemoryCollection collection, Bson filter) {
+        super();
+        this.collection = collection;
+        this.filter = filter;
+    }
+
+    @Override
+    protected List<Document> execute() {
+        return collection.select(filter, sort, projection, skip, limit);
+    }
+
+    @Override
+    public MemoryFindIterable filter(Bson filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable limit(int limit) {
+        this.limit = Math.abs(limit);
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable skip(int skip) {
+        this.skip = skip;
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable maxTime(long maxTime, TimeUnit timeUnit) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable maxAwaitTime(long maxAwaitTime, TimeUnit timeUnit) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable modifiers(Bson modifiers) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable projection(Bson projection) {
+        this.projection = projection;
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable sort(Bson sort) {
+        this.sort = sort;
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable noCursorTimeout(boolean noCursorTimeout) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable oplogReplay(boolean oplogReplay) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable partial(boolean partial) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable cursorType(CursorType cursorType) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable batchSize(int batchSize) {
+        return this;
+    }
+
+    @Override
+    public MemoryFindIterable collation(Collation collation) {
+        return this;
+    }
+
+}
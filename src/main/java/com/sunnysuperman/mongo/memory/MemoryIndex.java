@@ -0,0 +1,265 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Secondary index keyed on the leading field of the index specification. Hashed indexes keep a hash map, ascending
+ * and descending indexes keep a sorted map that also serves range lookups. Array values are indexed per element.
+ */
+final class MemoryIndex {
+    private final String name;
+    private final Document keys;
+    private final String[] fields;
+    private final boolean hashed;
+    private final boolean unique;
+    private final boolean sparse;
+    private final Map<MemoryKey, Set<MemoryKey>> entries;
+
+    MemoryIndex(String name, Document keys, boolean unique, boolean sparse) {
+        super();
+        this.name = name;
+        this.keys = keys;
+        this.fields = keys.keySet().toArray(new String[keys.size()]);
+        boolean hashed = false;
+        for (Object type : keys.values()) {
+            if ("hashed".equals(type)) {
+                hashed = true;
+            } else if (!(type instanceof Number)) {
+                throw new RepositoryException("Unsupported index type: " + type);
+            }
+        }
+        this.hashed = hashed;
+        this.unique = unique;
+        this.sparse = sparse;
+        if (hashed) {
+            this.entries = new HashMap<>();
+        } else {
+            this.entries = new TreeMap<>();
+        }
+    }
+
+    static String defaultName(Document keys) {
+        StringBuilder buf = new StringBuilder();
+        for (Entry<String, Object> entry : keys.entrySet()) {
+            if (buf.length() > 0) {
+                buf.append('_');
+            }
+            buf.append(entry.getKey()).append('_').append(entry.getValue());
+        }
+        return buf.toString();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Document getKeys() {
+        return keys;
+    }
+
+    String getLeadingField() {
+        return fields[0];
+    }
+
+    boolean isHashed() {
+        return hashed;
+    }
+
+    boolean isUnique() {
+        return unique;
+    }
+
+    boolean isSparse() {
+        return sparse;
+    }
+
+    Document toIndexDocument(String namespace) {
+        Document doc = new Document("v", 2).append("key", keys).append("name", name).append("ns", namespace);
+        if (unique) {
+            doc.append("unique", true);
+        }
+        if (sparse) {
+            doc.append("sparse", true);
+        }
+        return doc;
+    }
+
+    private Set<MemoryKey> leadingKeys(Document doc) {
+        List<Object> values = MemoryValues.resolve(doc, fields[0]);
+        Set<MemoryKey> result = new LinkedHashSet<>();
+        if (values.isEmpty()) {
+            if (!sparse) {
+                result.add(new MemoryKey(null));
+            }
+            return result;
+        }
+        for (Object value : values) {
+            if (MemoryValues.isArray(value)) {
+                List<?> items = MemoryValues.asList(value);
+                if (items.isEmpty()) {
+                    result.add(new MemoryKey(null));
+                }
+                for (Object item : items) {
+                    result.add(new MemoryKey(item));
+                }
+            } else {
+                result.add(new MemoryKey(value));
+            }
+        }
+        return result;
+    }
+
+    private MemoryKey compoundKey(Document doc) {
+        List<Object> values = new ArrayList<>(fields.length);
+        for (String field : fields) {
+            values.add(MemoryValues.get(doc, field));
+        }
+        return new MemoryKey(values);
+    }
+
+    void checkUnique(Document doc, MemoryKey id, Map<MemoryKey, Document> docs) {
+        if (!unique) {
+            return;
+        }
+        if (sparse && MemoryValues.resolve(doc, fields[0]).isEmpty()) {
+            return;
+        }
+        MemoryKey key = compoundKey(doc);
+        for (MemoryKey leading : leadingKeys(doc)) {
+            Set<MemoryKey> ids = entries.get(leading);
+            if (ids == null) {
+                continue;
+            }
+            for (MemoryKey other : ids) {
+                if (other.equals(id)) {
+                    continue;
+                }
+                if (compoundKey(docs.get(other)).equals(key)) {
+                    throw MemoryCollection.duplicateKey(name, key);
+                }
+            }
+        }
+    }
+
+    void add(Document doc, MemoryKey id) {
+        for (MemoryKey key : leadingKeys(doc)) {
+            Set<MemoryKey> ids = entries.get(key);
+            if (ids == null) {
+                ids = new LinkedHashSet<>();
+                entries.put(key, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    void remove(Document doc, MemoryKey id) {
+        for (MemoryKey key : leadingKeys(doc)) {
+            Set<MemoryKey> ids = entries.get(key);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Candidate ids for a leading field condition, or null if the condition cannot use this index.
+     */
+    Set<MemoryKey> lookup(Object cond) {
+        if (MemoryValues.isOperatorDocument(cond)) {
+            Map<?, ?> ops = (Map<?, ?>) cond;
+            if (ops.containsKey("$eq")) {
+                return lookupEq(ops.get("$eq"));
+            }
+            if (ops.containsKey("$in")) {
+                Set<MemoryKey> result = new LinkedHashSet<>();
+                for (Object value : MemoryValues.asList(ops.get("$in"))) {
+                    Set<MemoryKey> ids = lookupEq(value);
+                    if (ids == null) {
+                        return null;
+                    }
+                    result.addAll(ids);
+                }
+                return result;
+            }
+            return hashed ? null : lookupRange(ops);
+        }
+        if (cond instanceof Map) {
+            return null;
+        }
+        return lookupEq(cond);
+    }
+
+    private Set<MemoryKey> lookupEq(Object value) {
+        if (MemoryValues.isArray(value) || value instanceof Map || value instanceof Pattern
+                || (value == null && sparse)) {
+            return null;
+        }
+        Set<MemoryKey> ids = entries.get(new MemoryKey(value));
+        return ids == null ? new LinkedHashSet<MemoryKey>() : new LinkedHashSet<>(ids);
+    }
+
+    private Set<MemoryKey> lookupRange(Map<?, ?> ops) {
+        NavigableMap<MemoryKey, Set<MemoryKey>> range = (NavigableMap<MemoryKey, Set<MemoryKey>>) entries;
+        boolean bounded = false;
+        MemoryKey lower = null;
+        boolean lowerInclusive = true;
+        MemoryKey upper = null;
+        boolean upperInclusive = true;
+        for (Entry<?, ?> entry : ops.entrySet()) {
+            String op = entry.getKey().toString();
+            Object value = entry.getValue();
+            if (MemoryValues.isArray(value)) {
+                return null;
+            }
+            if (op.equals("$gt") || op.equals("$gte")) {
+                lower = new MemoryKey(value);
+                lowerInclusive = op.equals("$gte");
+                bounded = true;
+            } else if (op.equals("$lt") || op.equals("$lte")) {
+                upper = new MemoryKey(value);
+                upperInclusive = op.equals("$lte");
+                bounded = true;
+            }
+        }
+        if (!bounded) {
+            return null;
+        }
+        if (lower != null && upper != null) {
+            if (lower.compareTo(upper) > 0) {
+                return new HashSet<>();
+            }
+            range = range.subMap(lower, lowerInclusive, upper, upperInclusive);
+        } else if (lower != null) {
+            range = range.tailMap(lower, lowerInclusive);
+        } else {
+            range = range.headMap(upper, upperInclusive);
+        }
+        Set<MemoryKey> result = new LinkedHashSet<>();
+        for (Collection<MemoryKey> ids : range.values()) {
+            result.addAll(ids);
+        }
+        return result;
+    }
+}
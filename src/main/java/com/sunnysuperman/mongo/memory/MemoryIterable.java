@@ -0,0 +1,66 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.mongodb.Block;
+import com.mongodb.Function;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+/**
+ * Base of the in-memory iterables: results are computed eagerly when iteration starts.
+ */
+abstract class MemoryIterable<T> implements MongoIterable<T> {
+
+    protected abstract List<T> execute();
+
+    @Override
+    public MongoCursor<T> iterator() {
+        return new MemoryCursor<T>(execute().iterator());
+    }
+
+    @Override
+    public T first() {
+        List<T> items = execute();
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    @Override
+    public <U> MongoIterable<U> map(final Function<T, U> mapper) {
+        final MemoryIterable<T> source = this;
+        return new MemoryIterable<U>() {
+
+            @Override
+            protected List<U> execute() {
+                List<T> items = source.execute();
+                List<U> mapped = new ArrayList<>(items.size());
+                for (T item : items) {
+                    mapped.add(mapper.apply(item));
+                }
+                return mapped;
+            }
+
+        };
+    }
+
+    @Override
+    public void forEach(Block<? super T> block) {
+        for (T item : execute()) {
+            block.apply(item);
+        }
+    }
+
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        target.addAll(execute());
+        return target;
+    }
+
+    @Override
+    public MemoryIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+
+}
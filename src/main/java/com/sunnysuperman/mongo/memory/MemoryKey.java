@@ -0,0 +1,44 @@
+package com.sunnysuperman.mongo.memory;
+
+final class MemoryKey implements Comparable<MemoryKey> {
+    private final Object value;
+    private final int hash;
+
+    MemoryKey(Object value) {
+        super();
+        this.value = value;
+        this.hash = MemoryValues.hash(value);
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MemoryKey)) {
+            return false;
+        }
+        MemoryKey other = (MemoryKey) obj;
+        return hash == other.hash && MemoryValues.equalsValue(value, other.value);
+    }
+
+    @Override
+    public int compareTo(MemoryKey o) {
+        return MemoryValues.compare(value, o.value);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.ListCollectionsIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.model.Collation;
+
+/**
+ * Iterable for the metadata listings and distinct values.
+ */
+abstract class MemoryListIterable<T> extends MemoryIterable<T>
+        implements ListIndexesIterable<T>, ListCollectionsIterable<T>, DistinctIterable<T> {
+    protected Bson filter;
+
+    MemoryListIterable(Bson filter) {
+        super();
+        this.filter = filter;
+    }
+
+    @Override
+    public MemoryListIterable<T> filter(Bson filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    @Override
+    public MemoryListIterable<T> maxTime(long maxTime, TimeUnit timeUnit) {
+        return this;
+    }
+
+    @Override
+    public MemoryListIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+
+    @Override
+    public MemoryListIterable<T> collation(Collation collation) {
+        return this;
+    }
+
+}
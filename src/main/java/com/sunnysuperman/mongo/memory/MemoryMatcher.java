@@ -0,0 +1,292 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Evaluates query filters against stored documents.
+ */
+final class MemoryMatcher {
+
+    private MemoryMatcher() {
+    }
+
+    static boolean matches(Map<?, ?> doc, Map<?, ?> filter) {
+        for (Entry<?, ?> entry : filter.entrySet()) {
+            String key = entry.getKey().toString();
+            Object cond = entry.getValue();
+            if (key.startsWith("$")) {
+                if (!matchLogical(doc, key, cond)) {
+                    return false;
+                }
+            } else if (!matchField(doc, key, cond)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchLogical(Map<?, ?> doc, String op, Object cond) {
+        if (op.equals("$comment")) {
+            return true;
+        }
+        if (!(cond instanceof List)) {
+            throw new RepositoryException("Bad query operator value: " + op);
+        }
+        List<?> filters = (List<?>) cond;
+        if (op.equals("$and")) {
+            for (Object filter : filters) {
+                if (!matches(doc, (Map<?, ?>) filter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (op.equals("$or") || op.equals("$nor")) {
+            boolean any = false;
+            for (Object filter : filters) {
+                if (matches(doc, (Map<?, ?>) filter)) {
+                    any = true;
+                    break;
+                }
+            }
+            return op.equals("$or") ? any : !any;
+        }
+        throw new RepositoryException("Unsupported query operator: " + op);
+    }
+
+    static boolean matchField(Map<?, ?> doc, String path, Object cond) {
+        List<Object> values = MemoryValues.resolve(doc, path);
+        if (MemoryValues.isOperatorDocument(cond)) {
+            return matchOperators(values, (Map<?, ?>) cond);
+        }
+        if (cond instanceof Pattern || cond instanceof BsonRegularExpression) {
+            return matchRegex(values, toPattern(cond, null));
+        }
+        return matchEq(values, cond);
+    }
+
+    private static boolean matchOperators(List<Object> values, Map<?, ?> ops) {
+        Object options = ops.get("$options");
+        for (Entry<?, ?> entry : ops.entrySet()) {
+            String op = entry.getKey().toString();
+            Object arg = entry.getValue();
+            if (!matchOperator(values, op, arg, options)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchOperator(List<Object> values, String op, Object arg, Object options) {
+        switch (op) {
+        case "$eq":
+            return matchEq(values, arg);
+        case "$ne":
+            return !matchEq(values, arg);
+        case "$gt":
+        case "$gte":
+        case "$lt":
+        case "$lte":
+            return matchRange(values, op, arg);
+        case "$in":
+            return matchIn(values, arg);
+        case "$nin":
+            return !matchIn(values, arg);
+        case "$exists":
+            return values.isEmpty() != MemoryValues.isTrue(arg);
+        case "$not":
+            if (arg instanceof Pattern || arg instanceof BsonRegularExpression) {
+                return !matchRegex(values, toPattern(arg, null));
+            }
+            return !matchOperators(values, (Map<?, ?>) arg);
+        case "$regex":
+            return matchRegex(values, toPattern(arg, options));
+        case "$options":
+            return true;
+        case "$size":
+            int size = ((Number) arg).intValue();
+            for (Object value : values) {
+                if (MemoryValues.isArray(value) && MemoryValues.asList(value).size() == size) {
+                    return true;
+                }
+            }
+            return false;
+        case "$all":
+            for (Object item : MemoryValues.asList(arg)) {
+                if (!matchEq(values, item)) {
+                    return false;
+                }
+            }
+            return true;
+        case "$elemMatch":
+            return matchElem(values, (Map<?, ?>) arg);
+        default:
+            throw new RepositoryException("Unsupported query operator: " + op);
+        }
+    }
+
+    private static boolean matchEq(List<Object> values, Object expected) {
+        if (values.isEmpty()) {
+            return expected == null;
+        }
+        for (Object value : values) {
+            if (MemoryValues.equalsValue(value, expected)) {
+                return true;
+            }
+            if (MemoryValues.isArray(value)) {
+                for (Object item : MemoryValues.asList(value)) {
+                    if (MemoryValues.equalsValue(item, expected)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchIn(List<Object> values, Object arg) {
+        for (Object expected : MemoryValues.asList(arg)) {
+            if (expected instanceof Pattern || expected instanceof BsonRegularExpression) {
+                if (matchRegex(values, toPattern(expected, null))) {
+                    return true;
+                }
+            } else if (matchEq(values, expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchRange(List<Object> values, String op, Object bound) {
+        for (Object value : values) {
+            if (compareRange(value, op, bound)) {
+                return true;
+            }
+            if (MemoryValues.isArray(value)) {
+                for (Object item : MemoryValues.asList(value)) {
+                    if (compareRange(item, op, bound)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean compareRange(Object value, String op, Object bound) {
+        if (!MemoryValues.sameBracket(value, bound)) {
+            return false;
+        }
+        int c = MemoryValues.compare(value, bound);
+        switch (op) {
+        case "$gt":
+            return c > 0;
+        case "$gte":
+            return c >= 0;
+        case "$lt":
+            return c < 0;
+        default:
+            return c <= 0;
+        }
+    }
+
+    private static boolean matchElem(List<Object> values, Map<?, ?> cond) {
+        boolean operators = MemoryValues.isOperatorDocument(cond);
+        for (Object value : values) {
+            if (!MemoryValues.isArray(value)) {
+                continue;
+            }
+            for (Object item : MemoryValues.asList(value)) {
+                if (operators) {
+                    if (matchOperators(Collections.singletonList(item), cond)) {
+                        return true;
+                    }
+                } else if (item instanceof Map && matches((Map<?, ?>) item, cond)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchRegex(List<Object> values, Pattern pattern) {
+        for (Object value : values) {
+            if (value instanceof String && pattern.matcher((String) value).find()) {
+                return true;
+            }
+            if (MemoryValues.isArray(value)) {
+                for (Object item : MemoryValues.asList(value)) {
+                    if (item instanceof String && pattern.matcher((String) item).find()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Pattern toPattern(Object regex, Object options) {
+        if (regex instanceof Pattern && options == null) {
+            return (Pattern) regex;
+        }
+        String source;
+        String flags = options == null ? "" : options.toString();
+        if (regex instanceof Pattern) {
+            source = ((Pattern) regex).pattern();
+        } else if (regex instanceof BsonRegularExpression) {
+            source = ((BsonRegularExpression) regex).getPattern();
+            flags += ((BsonRegularExpression) regex).getOptions();
+        } else {
+            source = regex.toString();
+        }
+        int mask = 0;
+        if (flags.indexOf('i') >= 0) {
+            mask |= Pattern.CASE_INSENSITIVE;
+        }
+        if (flags.indexOf('m') >= 0) {
+            mask |= Pattern.MULTILINE;
+        }
+        if (flags.indexOf('s') >= 0) {
+            mask |= Pattern.DOTALL;
+        }
+        if (flags.indexOf('x') >= 0) {
+            mask |= Pattern.COMMENTS;
+        }
+        return Pattern.compile(source, mask);
+    }
+
+    static Document equalityFields(Map<?, ?> filter) {
+        Document doc = new Document();
+        for (Entry<?, ?> entry : filter.entrySet()) {
+            String key = entry.getKey().toString();
+            Object cond = entry.getValue();
+            if (key.equals("$and")) {
+                for (Object sub : (List<?>) cond) {
+                    doc.putAll(equalityFields((Map<?, ?>) sub));
+                }
+                continue;
+            }
+            if (key.startsWith("$") || cond instanceof Pattern) {
+                continue;
+            }
+            if (MemoryValues.isOperatorDocument(cond)) {
+                Map<?, ?> ops = (Map<?, ?>) cond;
+                if (ops.containsKey("$eq")) {
+                    doc.put(key, MemoryValues.copy(ops.get("$eq")));
+                }
+                continue;
+            }
+            doc.put(key, MemoryValues.copy(cond));
+        }
+        return doc;
+    }
+}
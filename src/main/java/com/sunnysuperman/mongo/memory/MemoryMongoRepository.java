@@ -0,0 +1,47 @@
+package com.sunnysuperman.mongo.memory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.sunnysuperman.mongo.MongoRepository;
+
+/**
+ * {@link MongoRepository} backed by an in-process {@link MemoryDatabase} instead of a mongod, for tests and
+ * benchmarks. Supports the common filter, sort, projection and update operators, hashed and sorted secondary indexes,
+ * bulk writes and simple aggregation stages.
+ */
+public class MemoryMongoRepository extends MongoRepository {
+    private MemoryDatabase database;
+
+    public MemoryMongoRepository() {
+        this("test");
+    }
+
+    public MemoryMongoRepository(String db) {
+        super(null, db);
+        this.database = new MemoryDatabase(db);
+    }
+
+    public MemoryDatabase getMemoryDatabase() {
+        return database;
+    }
+
+    @Override
+    protected MongoDatabase getDatabase(MongoClient client) {
+        return database;
+    }
+
+    @Override
+    public void setDb(String db) {
+        super.setDb(db);
+        this.database = new MemoryDatabase(db);
+    }
+
+    @Override
+    public void close() {
+        if (counterAccumulator != null) {
+            counterAccumulator.close();
+        }
+        database.drop();
+    }
+
+}
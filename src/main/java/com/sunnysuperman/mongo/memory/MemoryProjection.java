@@ -0,0 +1,116 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoSortOrder;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Sort comparators and field projections.
+ */
+final class MemoryProjection {
+
+    private MemoryProjection() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Comparator<Document> comparator(final Map<?, ?> sort) {
+        if (sort == null) {
+            return null;
+        }
+        return MongoSortOrder.comparator(
+                sort instanceof Document ? (Document) sort : new Document((Map<String, Object>) sort));
+    }
+
+    static Document project(Document doc, Map<?, ?> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return doc;
+        }
+        boolean includeId = true;
+        Boolean inclusion = null;
+        for (Entry<?, ?> entry : fields.entrySet()) {
+            String key = entry.getKey().toString();
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                throw new RepositoryException("Unsupported projection operator on field: " + key);
+            }
+            boolean on = MemoryValues.isTrue(value);
+            if (key.equals(MemoryValues.ID)) {
+                includeId = on;
+                continue;
+            }
+            if (inclusion == null) {
+                inclusion = on;
+            } else if (inclusion != on) {
+                throw new RepositoryException("Projection cannot mix inclusion and exclusion");
+            }
+        }
+        if (inclusion == null || !inclusion) {
+            Document result = doc;
+            for (Object key : fields.keySet()) {
+                String path = key.toString();
+                if (path.equals(MemoryValues.ID) && includeId) {
+                    continue;
+                }
+                exclude(result, path);
+            }
+            return result;
+        }
+        Document result = new Document();
+        if (includeId && doc.containsKey(MemoryValues.ID)) {
+            result.put(MemoryValues.ID, doc.get(MemoryValues.ID));
+        }
+        for (Entry<?, ?> entry : fields.entrySet()) {
+            String path = entry.getKey().toString();
+            if (path.equals(MemoryValues.ID)) {
+                continue;
+            }
+            include(doc, result, path);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void include(Document source, Document target, String path) {
+        int pos = path.indexOf('.');
+        if (pos < 0) {
+            if (source.containsKey(path)) {
+                target.put(path, source.get(path));
+            }
+            return;
+        }
+        String head = path.substring(0, pos);
+        Object child = source.get(head);
+        if (child instanceof Map) {
+            Object sub = target.get(head);
+            if (!(sub instanceof Document)) {
+                sub = new Document();
+                target.put(head, sub);
+            }
+            include(new Document((Map<String, Object>) child), (Document) sub, path.substring(pos + 1));
+        }
+    }
+
+    private static void exclude(Map<?, ?> doc, String path) {
+        int pos = path.indexOf('.');
+        if (pos < 0) {
+            doc.remove(path);
+            return;
+        }
+        Object child = doc.get(path.substring(0, pos));
+        if (child instanceof Map) {
+            exclude((Map<?, ?>) child, path.substring(pos + 1));
+        } else if (child instanceof List) {
+            for (Object item : (List<?>) child) {
+                if (item instanceof Map) {
+                    exclude((Map<?, ?>) item, path.substring(pos + 1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Applies update documents ($set, $unset, $inc, ...) to stored documents. The repository also uses it to compute
+ * the after image of a single document write from its atomic before image.
+ */
+public final class MemoryUpdater {
+    private static final Set<String> LOCAL_OPERATORS = new HashSet<>(Arrays.asList("$set", "$setOnInsert", "$unset",
+            "$inc", "$mul", "$min", "$max", "$rename", "$push", "$addToSet", "$pull", "$pullAll", "$pop"));
+
+    private MemoryUpdater() {
+    }
+
+    static boolean isReplacement(Map<?, ?> update) {
+        return !MemoryValues.isOperatorDocument(update);
+    }
+
+    /**
+     * Whether applying the update here gives the same document as the server: no server clock, positional paths
+     * or array modifiers other than {@code $each}.
+     */
+    public static boolean canApply(Document update) {
+        if (isReplacement(update)) {
+            return true;
+        }
+        for (Entry<String, Object> entry : update.entrySet()) {
+            if (!LOCAL_OPERATORS.contains(entry.getKey()) || !(entry.getValue() instanceof Map)) {
+                return false;
+            }
+            for (Entry<?, ?> field : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                if (field.getKey().toString().contains("$")) {
+                    return false;
+                }
+                Object arg = field.getValue();
+                if (arg instanceof Map && ((Map<?, ?>) arg).containsKey("$each") && ((Map<?, ?>) arg).size() > 1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static void apply(Document doc, Document update, boolean inserting) {
+        if (isReplacement(update)) {
+            Object id = doc.get(MemoryValues.ID);
+            doc.clear();
+            if (id != null) {
+                doc.put(MemoryValues.ID, id);
+            }
+            for (Entry<String, Object> entry : update.entrySet()) {
+                doc.put(entry.getKey(), MemoryValues.copy(entry.getValue()));
+            }
+            return;
+        }
+        for (Entry<String, Object> entry : update.entrySet()) {
+            String op = entry.getKey();
+            if (!(entry.getValue() instanceof Map)) {
+                throw new RepositoryException("Bad update operator value: " + op);
+            }
+            Map<?, ?> fields = (Map<?, ?>) entry.getValue();
+            for (Entry<?, ?> field : fields.entrySet()) {
+                String path = field.getKey().toString();
+                if (path.equals(MemoryValues.ID) && !inserting && !op.equals("$setOnInsert")) {
+                    Object current = doc.get(MemoryValues.ID);
+                    if (op.equals("$set") && MemoryValues.equalsValue(current, field.getValue())) {
+                        continue;
+                    }
+                    throw new RepositoryException("Field '_id' is immutable");
+                }
+                applyOperator(doc, op, path, field.getValue(), inserting);
+            }
+        }
+    }
+
+    private static void applyOperator(Document doc, String op, String path, Object arg, boolean inserting) {
+        switch (op) {
+        case "$set":
+            set(doc, path, MemoryValues.copy(arg));
+            break;
+        case "$setOnInsert":
+            if (inserting) {
+                set(doc, path, MemoryValues.copy(arg));
+            }
+            break;
+        case "$unset":
+            unset(doc, path);
+            break;
+        case "$inc":
+            set(doc, path, add(get(doc, path), (Number) arg, false));
+            break;
+        case "$mul":
+            set(doc, path, add(get(doc, path), (Number) arg, true));
+            break;
+        case "$min":
+        case "$max": {
+            Object current = get(doc, path);
+            int c = MemoryValues.compare(arg, current);
+            if (current == null || (op.equals("$min") ? c < 0 : c > 0)) {
+                set(doc, path, MemoryValues.copy(arg));
+            }
+            break;
+        }
+        case "$currentDate":
+            set(doc, path, new Date());
+            break;
+        case "$rename": {
+            Object current = get(doc, path);
+            if (current != null || has(doc, path)) {
+                unset(doc, path);
+                set(doc, arg.toString(), current);
+            }
+            break;
+        }
+        case "$push":
+        case "$addToSet": {
+            List<Object> list = array(doc, path);
+            List<?> items = Collections.singletonList(arg);
+            if (arg instanceof Map && ((Map<?, ?>) arg).containsKey("$each")) {
+                items = MemoryValues.asList(((Map<?, ?>) arg).get("$each"));
+            }
+            for (Object item : items) {
+                if (op.equals("$addToSet") && contains(list, item)) {
+                    continue;
+                }
+                list.add(MemoryValues.copy(item));
+            }
+            break;
+        }
+        case "$pull":
+        case "$pullAll": {
+            List<Object> list = array(doc, path);
+            for (Iterator<Object> iter = list.iterator(); iter.hasNext();) {
+                Object item = iter.next();
+                boolean remove;
+                if (op.equals("$pullAll")) {
+                    remove = contains(MemoryValues.asList(arg), item);
+                } else if (arg instanceof Map && item instanceof Map && !MemoryValues.isOperatorDocument(arg)) {
+                    remove = MemoryMatcher.matches((Map<?, ?>) item, (Map<?, ?>) arg);
+                } else if (MemoryValues.isOperatorDocument(arg)) {
+                    remove = MemoryMatcher.matchField(new Document("v", item), "v", arg);
+                } else {
+                    remove = MemoryValues.equalsValue(item, arg);
+                }
+                if (remove) {
+                    iter.remove();
+                }
+            }
+            break;
+        }
+        case "$pop": {
+            List<Object> list = array(doc, path);
+            if (!list.isEmpty()) {
+                list.remove(((Number) arg).intValue() < 0 ? 0 : list.size() - 1);
+            }
+            break;
+        }
+        default:
+            throw new RepositoryException("Unsupported update operator: " + op);
+        }
+    }
+
+    private static boolean contains(List<?> list, Object item) {
+        for (Object value : list) {
+            if (MemoryValues.equalsValue(value, item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Number add(Object current, Number arg, boolean multiply) {
+        if (current == null) {
+            current = 0;
+        }
+        if (!(current instanceof Number)) {
+            throw new RepositoryException("Cannot apply arithmetic to non-numeric value: " + current);
+        }
+        Number value = (Number) current;
+        if (value instanceof Double || value instanceof Float || arg instanceof Double || arg instanceof Float) {
+            double d = multiply ? value.doubleValue() * arg.doubleValue() : value.doubleValue() + arg.doubleValue();
+            return d;
+        }
+        long l = multiply ? value.longValue() * arg.longValue() : value.longValue() + arg.longValue();
+        if (value instanceof Integer && arg instanceof Integer && l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+            return (int) l;
+        }
+        return l;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> array(Document doc, String path) {
+        Object current = get(doc, path);
+        if (current == null) {
+            List<Object> list = new ArrayList<>();
+            set(doc, path, list);
+            return list;
+        }
+        if (!(current instanceof List)) {
+            throw new RepositoryException("Field '" + path + "' is not an array");
+        }
+        return (List<Object>) current;
+    }
+
+    private static Object get(Document doc, String path) {
+        Object parent = parent(doc, path, false);
+        String last = last(path);
+        if (parent instanceof Map) {
+            return ((Map<?, ?>) parent).get(last);
+        }
+        if (parent instanceof List) {
+            int index = MemoryValues.parseIndex(last);
+            List<?> list = (List<?>) parent;
+            return index >= 0 && index < list.size() ? list.get(index) : null;
+        }
+        return null;
+    }
+
+    private static boolean has(Document doc, String path) {
+        Object parent = parent(doc, path, false);
+        return parent instanceof Map && ((Map<?, ?>) parent).containsKey(last(path));
+    }
+
+    @SuppressWarnings("unchecked")
+    static void set(Document doc, String path, Object value) {
+        Object parent = parent(doc, path, true);
+        String last = last(path);
+        if (parent instanceof Map) {
+            ((Map<String, Object>) parent).put(last, value);
+            return;
+        }
+        List<Object> list = (List<Object>) parent;
+        int index = MemoryValues.parseIndex(last);
+        if (index < 0) {
+            throw new RepositoryException("Cannot create field '" + last + "' in array");
+        }
+        while (list.size() <= index) {
+            list.add(null);
+        }
+        list.set(index, value);
+    }
+
+    private static void unset(Document doc, String path) {
+        Object parent = parent(doc, path, false);
+        if (parent instanceof Map) {
+            ((Map<?, ?>) parent).remove(last(path));
+        } else if (parent instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) parent;
+            int index = MemoryValues.parseIndex(last(path));
+            if (index >= 0 && index < list.size()) {
+                list.set(index, null);
+            }
+        }
+    }
+
+    private static String last(String path) {
+        int pos = path.lastIndexOf('.');
+        return pos < 0 ? path : path.substring(pos + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object parent(Document doc, String path, boolean create) {
+        int pos = path.indexOf('.');
+        if (pos < 0) {
+            return doc;
+        }
+        String[] parts = path.split("\\.");
+        Object node = doc;
+        for (int i = 0; i < parts.length - 1; i++) {
+            String part = parts[i];
+            Object child;
+            if (node instanceof Map) {
+                child = ((Map<String, Object>) node).get(part);
+                if (child == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    child = new Document();
+                    ((Map<String, Object>) node).put(part, child);
+                }
+            } else if (node instanceof List) {
+                List<Object> list = (List<Object>) node;
+                int index = MemoryValues.parseIndex(part);
+                if (index < 0) {
+                    throw new RepositoryException("Cannot create field '" + part + "' in array");
+                }
+                child = index < list.size() ? list.get(index) : null;
+                if (child == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    child = new Document();
+                    while (list.size() <= index) {
+                        list.add(null);
+                    }
+                    list.set(index, child);
+                }
+            } else {
+                if (!create) {
+                    return null;
+                }
+                throw new RepositoryException("Cannot create field '" + part + "' in " + node);
+            }
+            node = child;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,171 @@
+package com.sunnysuperman.mongo.memory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+
+import com.mongodb.MongoClient;
+import com.sunnysuperman.mongo.MongoDocuments;
+import com.sunnysuperman.mongo.MongoSortOrder;
+
+/**
+ * Value helpers of the in-memory engine: BSON equality, dotted path resolution and deep copies.
+ */
+final class MemoryValues {
+    static final String ID = "_id";
+
+    private MemoryValues() {
+    }
+
+    static Document toDocument(Bson bson) {
+        return MongoDocuments.toDocument(bson);
+    }
+
+    static BsonValue toBsonValue(Object value) {
+        return new Document(ID, value).toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).get(ID);
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Number;
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Decimal128) {
+            return ((Decimal128) value).bigDecimalValue().doubleValue();
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    static boolean sameBracket(Object a, Object b) {
+        return MongoSortOrder.typeOrder(a) == MongoSortOrder.typeOrder(b);
+    }
+
+    static int compare(Object a, Object b) {
+        return MongoSortOrder.compare(a, b);
+    }
+
+    private static byte[] toBytes(Object value) {
+        return value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+    }
+
+    static boolean equalsValue(Object a, Object b) {
+        return sameBracket(a, b) && compare(a, b) == 0;
+    }
+
+    static int hash(Object value) {
+        switch (MongoSortOrder.typeOrder(value)) {
+        case 1:
+            return 0;
+        case 2:
+            double d = toDouble(value);
+            long l = (long) d;
+            if (l == d) {
+                return (int) (l ^ (l >>> 32));
+            }
+            long bits = Double.doubleToLongBits(d);
+            return (int) (bits ^ (bits >>> 32));
+        case 3:
+            return value.toString().hashCode();
+        case 4:
+            int h = 1;
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                h = 31 * h + entry.getKey().hashCode();
+                h = 31 * h + hash(entry.getValue());
+            }
+            return h;
+        case 5:
+            int lh = 1;
+            for (Object item : asList(value)) {
+                lh = 31 * lh + hash(item);
+            }
+            return lh;
+        case 6:
+            return Arrays.hashCode(toBytes(value));
+        case 11:
+            return ((Pattern) value).pattern().hashCode();
+        default:
+            return value.hashCode();
+        }
+    }
+
+    static List<?> asList(Object value) {
+        if (value instanceof List) {
+            return (List<?>) value;
+        }
+        return Arrays.asList((Object[]) value);
+    }
+
+    static boolean isArray(Object value) {
+        return value instanceof List || value instanceof Object[];
+    }
+
+    /**
+     * Resolve dotted path values, traversing arrays the way the query language does.
+     */
+    static List<Object> resolve(Object root, String path) {
+        return MongoSortOrder.resolve(root, path);
+    }
+
+    static int parseIndex(String part) {
+        if (part.isEmpty() || part.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (!Character.isDigit(part.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(part);
+    }
+
+    /**
+     * Value for sort and group keys: first resolved value, null when missing.
+     */
+    static Object get(Object root, String path) {
+        if (path.indexOf('.') < 0 && root instanceof Map) {
+            return ((Map<?, ?>) root).get(path);
+        }
+        List<Object> values = resolve(root, path);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    static Object copy(Object value) {
+        return MongoDocuments.copyValue(value);
+    }
+
+    static Document copy(Document doc) {
+        return MongoDocuments.copy(doc);
+    }
+
+    static boolean isOperatorDocument(Object value) {
+        if (!(value instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> map = (Map<?, ?>) value;
+        if (map.isEmpty()) {
+            return false;
+        }
+        return map.keySet().iterator().next().toString().startsWith("$");
+    }
+
+    static boolean isTrue(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        return true;
+    }
+}
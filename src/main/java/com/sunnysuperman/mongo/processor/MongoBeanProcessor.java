@@ -0,0 +1,314 @@
+package com.sunnysuperman.mongo.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import com.sunnysuperman.mongo.MongoBeanCodecs;
+import com.sunnysuperman.mongo.MongoSerializer;
+
+/**
+ * Generates a {@code MongoBeanCodec} next to every {@code @SerializeBean} and lists them in
+ * {@link MongoBeanCodecs#INDEX}. Beans with a property type the generated code cannot convert are left to reflection.
+ * <p>
+ * The processor is not registered as a service, so having this library on the classpath never runs it. Builds opt in
+ * with {@code -processor com.sunnysuperman.mongo.processor.MongoBeanProcessor}, or the {@code annotationProcessors}
+ * setting of the maven compiler plugin.
+ * <p>
+ * Only the read path is generated. Writes keep going through ss-repository's {@code Serializer}, whose
+ * {@code SerializeDoc} (generated ids, insertable and updatable properties, the upsert document) is the contract the
+ * repository relies on.
+ */
+public class MongoBeanProcessor extends AbstractProcessor {
+    private static final String SERIALIZE_BEAN = "com.sunnysuperman.repository.serialize.SerializeBean";
+    private static final String SERIALIZE_PROPERTY = "com.sunnysuperman.repository.serialize.SerializeProperty";
+    private static final String COMPRESSED = "com.sunnysuperman.mongo.MongoCompressed";
+    private static final String PACKED = "com.sunnysuperman.mongo.MongoPacked";
+    private static final String CODECS = MongoBeanCodecs.class.getName();
+    private static final Map<String, String> CONVERTERS = new HashMap<>();
+    static {
+        CONVERTERS.put("java.lang.String", "toStringValue");
+        CONVERTERS.put("long", "toLong");
+        CONVERTERS.put("java.lang.Long", "toLong");
+        CONVERTERS.put("int", "toInteger");
+        CONVERTERS.put("java.lang.Integer", "toInteger");
+        CONVERTERS.put("short", "toShort");
+        CONVERTERS.put("java.lang.Short", "toShort");
+        CONVERTERS.put("byte", "toByte");
+        CONVERTERS.put("java.lang.Byte", "toByte");
+        CONVERTERS.put("double", "toDouble");
+        CONVERTERS.put("java.lang.Double", "toDouble");
+        CONVERTERS.put("float", "toFloat");
+        CONVERTERS.put("java.lang.Float", "toFloat");
+        CONVERTERS.put("boolean", "toBoolean");
+        CONVERTERS.put("java.lang.Boolean", "toBoolean");
+        CONVERTERS.put("java.util.Date", "toDate");
+        CONVERTERS.put("java.math.BigDecimal", "toBigDecimal");
+        CONVERTERS.put("byte[]", "toBytes");
+        CONVERTERS.put("int[]", "toIntArray");
+        CONVERTERS.put("long[]", "toLongArray");
+        CONVERTERS.put("float[]", "toFloatArray");
+        CONVERTERS.put("double[]", "toDoubleArray");
+    }
+    private final List<String> generated = new ArrayList<>();
+
+    private static class Property {
+        String column;
+        String setter;
+        String type;
+        String converter;
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(SERIALIZE_BEAN);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    generate((TypeElement) element);
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !generated.isEmpty()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    private void note(TypeElement type, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "No mongo codec generated for " + type.getQualifiedName() + ": " + reason, type);
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Object getValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv.getElementUtils()
+                .getElementValuesWithDefaults(mirror).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPublic(Element element) {
+        return element.getModifiers().contains(Modifier.PUBLIC);
+    }
+
+    private static ExecutableElement findSetter(TypeElement type, String name, TypeMirror fieldType) {
+        String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (method.getSimpleName().contentEquals(setter) && method.getParameters().size() == 1
+                    && isPublic(method) && !method.getModifiers().contains(Modifier.STATIC)
+                    && method.getParameters().get(0).asType().toString().equals(fieldType.toString())) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    private boolean hasPublicConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && isPublic(constructor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement bean) {
+        for (Element e = bean; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (!isPublic(e) || (e != bean && ((TypeElement) e).getNestingKind() == NestingKind.MEMBER
+                    && !e.getModifiers().contains(Modifier.STATIC))) {
+                note(bean, "not accessible");
+                return;
+            }
+        }
+        if (bean.getModifiers().contains(Modifier.ABSTRACT) || !bean.getTypeParameters().isEmpty()
+                || (bean.getNestingKind() == NestingKind.MEMBER && !bean.getModifiers().contains(Modifier.STATIC))
+                || !hasPublicConstructor(bean)) {
+            note(bean, "requires a public concrete class with a public no-arg constructor");
+            return;
+        }
+        AnnotationMirror beanAnnotation = getAnnotation(bean, SERIALIZE_BEAN);
+        String collectionName = (String) getValue(beanAnnotation, "value");
+        boolean camel2underline = Boolean.TRUE.equals(getValue(beanAnnotation, "camel2underline"));
+
+        List<Property> properties = new ArrayList<>();
+        Map<String, Object> compressed = new LinkedHashMap<>();
+        List<String> packed = new ArrayList<>();
+        for (TypeElement type = bean; type != null
+                && !type.getQualifiedName().contentEquals("java.lang.Object"); type = getSuperclass(type)) {
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                AnnotationMirror propertyAnnotation = getAnnotation(field, SERIALIZE_PROPERTY);
+                if (propertyAnnotation == null || field.getModifiers().contains(Modifier.STATIC)) {
+                    continue;
+                }
+                String name = field.getSimpleName().toString();
+                Property property = new Property();
+                property.column = (String) getValue(propertyAnnotation, "column");
+                if (property.column == null || property.column.isEmpty()) {
+                    property.column = camel2underline ? MongoSerializer.camel2underline(name) : name;
+                }
+                TypeMirror fieldType = field.asType();
+                property.type = fieldType.toString();
+                property.converter = CONVERTERS.get(property.type);
+                if (property.converter == null && fieldType.getKind() == TypeKind.DECLARED
+                        && ((DeclaredType) fieldType).getTypeArguments().isEmpty()) {
+                    String typeName = property.type;
+                    if (typeName.equals("java.lang.Object") || typeName.equals("org.bson.types.ObjectId")) {
+                        property.converter = "";
+                    }
+                }
+                if (property.converter == null) {
+                    note(bean, "unsupported type " + property.type + " of " + name);
+                    return;
+                }
+                ExecutableElement setter = findSetter(type, name, fieldType);
+                if (setter == null) {
+                    note(bean, "no public setter of " + name);
+                    return;
+                }
+                property.setter = setter.getSimpleName().toString();
+                properties.add(property);
+                AnnotationMirror compressedAnnotation = getAnnotation(field, COMPRESSED);
+                if (compressedAnnotation != null) {
+                    compressed.put(property.column, getValue(compressedAnnotation, "threshold"));
+                }
+                if (getAnnotation(field, PACKED) != null) {
+                    packed.add(property.column);
+                }
+            }
+        }
+        write(bean, collectionName, properties, compressed, packed);
+    }
+
+    private static String literal(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private void write(TypeElement bean, String collectionName, List<Property> properties,
+            Map<String, Object> compressed, List<String> packed) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(bean);
+        String codecName = MongoBeanCodecs
+                .getCodecClassName(processingEnv.getElementUtils().getBinaryName(bean).toString());
+        String simpleName = codecName.substring(codecName.lastIndexOf('.') + 1);
+        String beanName = bean.getQualifiedName().toString();
+        StringBuilder src = new StringBuilder();
+        if (!pkg.isUnnamed()) {
+            src.append("package ").append(pkg.getQualifiedName()).append(";\n\n");
+        }
+        src.append("// generated by ").append(MongoBeanProcessor.class.getName()).append(", do not edit\n");
+        src.append("public final class ").append(simpleName)
+                .append(" implements com.sunnysuperman.mongo.MongoBeanCodec<").append(beanName).append("> {\n");
+        src.append("    private static final java.util.Map<String, Integer> COMPRESSED = new java.util.HashMap<>();\n");
+        src.append("    private static final java.util.Set<String> PACKED = new java.util.HashSet<>();\n");
+        src.append("    static {\n");
+        for (Map.Entry<String, Object> entry : compressed.entrySet()) {
+            src.append("        COMPRESSED.put(").append(literal(entry.getKey())).append(", ").append(entry.getValue())
+                    .append(");\n");
+        }
+        for (String column : packed) {
+            src.append("        PACKED.add(").append(literal(column)).append(");\n");
+        }
+        src.append("    }\n\n");
+        src.append("    @Override\n    public Class<").append(beanName).append("> getBeanClass() {\n        return ")
+                .append(beanName).append(".class;\n    }\n\n");
+        src.append("    @Override\n    public String getCollectionName() {\n        return ")
+                .append(literal(collectionName)).append(";\n    }\n\n");
+        src.append("    @Override\n    public java.util.Map<String, Integer> getCompressedColumns() {\n")
+                .append("        return java.util.Collections.unmodifiableMap(COMPRESSED);\n    }\n\n");
+        src.append("    @Override\n    public java.util.Set<String> getPackedColumns() {\n")
+                .append("        return java.util.Collections.unmodifiableSet(PACKED);\n    }\n\n");
+        src.append("    @Override\n    public ").append(beanName).append(" deserialize(org.bson.Document doc) {\n");
+        src.append("        ").append(beanName).append(" bean = new ").append(beanName).append("();\n");
+        src.append("        Object value;\n");
+        for (Property property : properties) {
+            src.append("        value = doc.get(").append(literal(property.column)).append(");\n");
+            src.append("        if (value != null) {\n            bean.").append(property.setter).append("(");
+            if (property.converter.isEmpty()) {
+                src.append("(").append(property.type).append(") value");
+            } else {
+                src.append(CODECS).append(".").append(property.converter).append("(value)");
+            }
+            src.append(");\n        }\n");
+        }
+        src.append("        return bean;\n    }\n}\n");
+        try (Writer writer = processingEnv.getFiler().createSourceFile(codecName, bean).openWriter()) {
+            writer.write(src.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to generate " + codecName + ": " + e.getMessage(), bean);
+            return;
+        }
+        generated.add(codecName);
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    MongoBeanCodecs.INDEX);
+            try (Writer writer = index.openWriter()) {
+                for (String codecName : generated) {
+                    writer.write(codecName);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + MongoBeanCodecs.INDEX + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.sunnysuperman.mongo.shard;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Consistent hash ring of shard names. Each shard owns a number of virtual nodes, so adding a shard only moves the
+ * keys that fall on its nodes.
+ */
+public class ShardRing {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> shards = new ArrayList<>();
+
+    public ShardRing(Collection<String> shards, int virtualNodes) {
+        super();
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes");
+        }
+        this.virtualNodes = virtualNodes;
+        for (String shard : shards) {
+            add(shard);
+        }
+    }
+
+    private void add(String shard) {
+        if (shards.contains(shard)) {
+            throw new RepositoryException("Duplicate shard: " + shard);
+        }
+        shards.add(shard);
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(shard + "#" + i), shard);
+        }
+    }
+
+    public ShardRing withShard(String shard) {
+        List<String> names = new ArrayList<>(shards);
+        names.add(shard);
+        return new ShardRing(names, virtualNodes);
+    }
+
+    public List<String> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public String getShard(Object key) {
+        if (ring.isEmpty()) {
+            throw new RepositoryException("No shard available");
+        }
+        long hash = hash(normalize(key));
+        SortedMap<Long, String> tail = ring.tailMap(hash);
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    // equal numbers of different types (1, 1L, 1.0) must land on the same shard, and a key on the same shard in every
+    // JVM, so only types with a stable representation are accepted
+    private static String normalize(Object key) {
+        if (key == null) {
+            return "null";
+        }
+        if (key instanceof Number) {
+            double d = ((Number) key).doubleValue();
+            long l = (long) d;
+            return l == d ? "n:" + l : "n:" + d;
+        }
+        if (key instanceof ObjectId) {
+            return "o:" + ((ObjectId) key).toHexString();
+        }
+        if (key instanceof String) {
+            return "s:" + key;
+        }
+        if (key instanceof Date) {
+            return "d:" + ((Date) key).getTime();
+        }
+        if (key instanceof byte[]) {
+            return "b:0:" + toHex((byte[]) key);
+        }
+        if (key instanceof Binary) {
+            Binary binary = (Binary) key;
+            return "b:" + binary.getType() + ":" + toHex(binary.getData());
+        }
+        if (key instanceof UUID) {
+            return "u:" + key;
+        }
+        throw new RepositoryException("Unsupported shard key type " + key.getClass().getName() + ": " + key);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    private static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(key.getBytes(UTF8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
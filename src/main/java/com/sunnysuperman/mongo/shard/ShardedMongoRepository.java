@@ -0,0 +1,1164 @@
+package com.sunnysuperman.mongo.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.bulk.WriteConcernError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoDocuments;
+import com.sunnysuperman.mongo.MongoIndexAdvisor;
+import com.sunnysuperman.mongo.MongoLatencyPolicy;
+import com.sunnysuperman.mongo.MongoMapper;
+import com.sunnysuperman.mongo.MongoMaterializedView;
+import com.sunnysuperman.mongo.MongoOperate;
+import com.sunnysuperman.mongo.MongoQueryCache;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoSaveResult;
+import com.sunnysuperman.mongo.MongoSortOrder;
+import com.sunnysuperman.mongo.MongoWarmUpPlan;
+import com.sunnysuperman.mongo.MongoWarmUpReport;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.repository.RepositoryException;
+
+/**
+ * Client-side sharding over several {@link MongoRepository} instances, each with its own client and database.
+ * <p>
+ * Documents are placed by consistent hashing of a per-collection shard key ({@code _id} by default). Writes and
+ * lookups whose filter pins the shard key (equality or {@code $in}) go to the owning shards only; other reads fan out
+ * to every shard concurrently and sorted results are combined with a k-way merge that applies sort, offset and limit
+ * across shards. Single document updates, removals and find-and-modify operations that span several shards locate the
+ * globally first match and are then pinned to its {@code _id}. Aggregations run per shard and only pipelines whose
+ * result the merge can reproduce are accepted: per-document stages followed by an optional $sort and any $skip and
+ * $limit stages.
+ * <p>
+ * {@link #addShard(String, MongoRepository)} enters rebalancing mode: reads pinned to a key also look at the key's
+ * previous owner, and writes pinned to a key first move its documents to the new owner. {@link #rebalance(String)}
+ * moves the remaining misplaced documents and {@link #finishRebalance()} leaves the mode.
+ * <p>
+ * Query caches, latency policies, index advisors and workload recorders are set on the shard repositories, which
+ * run the reads and writes. Materialized views are not supported.
+ */
+public class ShardedMongoRepository extends MongoRepository {
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final int REBALANCE_BATCH_SIZE = 500;
+    private static final int PINNED_WRITE_ATTEMPTS = 3;
+    private static final Set<String> PER_DOCUMENT_STAGES = new HashSet<>(Arrays.asList("$match", "$project",
+            "$addFields", "$set", "$unset", "$unwind", "$replaceRoot", "$redact"));
+    private static final Set<String> JOIN_STAGES = new HashSet<>(Arrays.asList("$lookup", "$graphLookup"));
+    private final Map<String, MongoRepository> shards = new ConcurrentHashMap<>();
+    private final Map<String, String> shardKeys = new ConcurrentHashMap<>();
+    private volatile ShardRing ring;
+    private volatile ShardRing previousRing;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+
+    private interface ShardCall<T> {
+        T execute(MongoRepository shard);
+    }
+
+    public ShardedMongoRepository(Map<String, MongoRepository> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES, null);
+    }
+
+    public ShardedMongoRepository(Map<String, MongoRepository> shards, int virtualNodes, ExecutorService executor) {
+        super();
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("shards");
+        }
+        this.shards.putAll(shards);
+        this.ring = new ShardRing(shards.keySet(), virtualNodes);
+        if (executor == null) {
+            this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger seq = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "mongo-shard-" + seq.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+            this.ownExecutor = true;
+        } else {
+            this.executor = executor;
+        }
+    }
+
+    public void setShardKey(String collectionName, String field) {
+        shardKeys.put(collectionName, field);
+    }
+
+    public String getShardKey(String collectionName) {
+        String key = shardKeys.get(collectionName);
+        return key == null ? ID : key;
+    }
+
+    /**
+     * Reads and writes run on the shard repositories, set the query cache on each shard.
+     */
+    @Override
+    public void setQueryCache(MongoQueryCache queryCache) {
+        if (queryCache != null) {
+            throw new RepositoryException("Set the query cache on each shard of a sharded repository");
+        }
+    }
+
+    /**
+     * Reads run on the shard repositories, set the latency policy on each shard.
+     */
+    @Override
+    public void setLatencyPolicy(MongoLatencyPolicy latencyPolicy) {
+        if (latencyPolicy != null) {
+            throw new RepositoryException("Set the latency policy on each shard of a sharded repository");
+        }
+    }
+
+    /**
+     * Queries run on the shard repositories and the advisor explains them there, set it on each shard.
+     */
+    @Override
+    public void setIndexAdvisor(MongoIndexAdvisor indexAdvisor) {
+        if (indexAdvisor != null) {
+            throw new RepositoryException("Set the index advisor on each shard of a sharded repository");
+        }
+    }
+
+    /**
+     * Not supported: each shard would aggregate only its own part of the source collection.
+     */
+    @Override
+    public void addMaterializedView(MongoMaterializedView view) {
+        throw new RepositoryException("Materialized views are not supported on a sharded repository");
+    }
+
+    @Override
+    public void rebuildMaterializedView(MongoMaterializedView view) {
+        throw new RepositoryException("Materialized views are not supported on a sharded repository");
+    }
+
+    public Map<String, MongoRepository> getShards() {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    public MongoRepository getShard(Object shardKeyValue) {
+        return shards.get(ring.getShard(shardKeyValue));
+    }
+
+    public boolean isRebalancing() {
+        return previousRing != null;
+    }
+
+    public synchronized void addShard(String name, MongoRepository shard) {
+        if (previousRing != null) {
+            throw new RepositoryException("Finish the running rebalance before adding another shard");
+        }
+        ShardRing newRing = ring.withShard(name);
+        shards.put(name, shard);
+        previousRing = ring;
+        ring = newRing;
+    }
+
+    public synchronized void finishRebalance() {
+        previousRing = null;
+    }
+
+    /**
+     * Move documents of a collection to the shards that own them under the current ring.
+     *
+     * @return number of documents moved
+     */
+    public long rebalance(final String collectionName) {
+        final String shardKey = getShardKey(collectionName);
+        long moved = 0;
+        for (final String source : ring.getShards()) {
+            moved += shards.get(source).execute(new MongoOperate<Long>() {
+
+                @Override
+                public Long execute(MongoDatabase database) {
+                    MongoCollection<Document> collection = database.getCollection(collectionName);
+                    Map<String, List<Document>> pending = new LinkedHashMap<>();
+                    int pendingSize = 0;
+                    long count = 0;
+                    MongoCursor<Document> cursor = collection.find().batchSize(REBALANCE_BATCH_SIZE).iterator();
+                    try {
+                        while (cursor.hasNext()) {
+                            Document doc = cursor.next();
+                            String owner = ring.getShard(doc.get(shardKey));
+                            if (owner.equals(source)) {
+                                continue;
+                            }
+                            List<Document> docs = pending.get(owner);
+                            if (docs == null) {
+                                docs = new ArrayList<>();
+                                pending.put(owner, docs);
+                            }
+                            docs.add(doc);
+                            if (++pendingSize >= REBALANCE_BATCH_SIZE) {
+                                count += move(collectionName, collection, pending);
+                                pending.clear();
+                                pendingSize = 0;
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return count + move(collectionName, collection, pending);
+                }
+
+            });
+        }
+        return moved;
+    }
+
+    private long move(String collectionName, MongoCollection<Document> source, Map<String, List<Document>> pending) {
+        long count = 0;
+        for (Entry<String, List<Document>> entry : pending.entrySet()) {
+            List<WriteModel<Document>> writes = new ArrayList<>(entry.getValue().size());
+            List<Object> ids = new ArrayList<>(entry.getValue().size());
+            for (Document doc : entry.getValue()) {
+                writes.add(new ReplaceOneModel<Document>(getIdDocument(doc.get(ID)), doc,
+                        new UpdateOptions().upsert(true)));
+                ids.add(doc.get(ID));
+            }
+            shards.get(entry.getKey()).batch(collectionName, writes);
+            source.deleteMany(new Document(ID, new Document("$in", ids)));
+            count += ids.size();
+        }
+        return count;
+    }
+
+    // routing
+
+    private String ownerOf(String collectionName, Object shardKeyValue) {
+        return ring.getShard(shardKeyValue);
+    }
+
+    private Object documentShardKey(String collectionName, Document doc) {
+        String shardKey = getShardKey(collectionName);
+        Object value = doc.get(shardKey);
+        if (value == null) {
+            if (!shardKey.equals(ID)) {
+                throw new RepositoryException("Missing shard key '" + shardKey + "' for " + collectionName);
+            }
+            value = new ObjectId();
+            doc.put(ID, value);
+        }
+        return value;
+    }
+
+    /**
+     * Shard key values pinned by the filter, or null when the filter does not pin the shard key.
+     */
+    private List<Object> filterShardKeys(String collectionName, Bson filter) {
+        Document query = MongoDocuments.toDocument(filter);
+        Object cond = query.get(getShardKey(collectionName));
+        if (cond == null) {
+            return null;
+        }
+        if (cond instanceof Map) {
+            Map<?, ?> ops = (Map<?, ?>) cond;
+            if (ops.size() != 1) {
+                return null;
+            }
+            if (ops.containsKey("$eq")) {
+                return Collections.singletonList(ops.get("$eq"));
+            }
+            if (ops.containsKey("$in")) {
+                return new ArrayList<Object>((Collection<?>) ops.get("$in"));
+            }
+            return null;
+        }
+        return Collections.singletonList(cond);
+    }
+
+    private List<String> readTargets(String collectionName, Bson filter) {
+        List<Object> keys = filterShardKeys(collectionName, filter);
+        if (keys == null) {
+            return ring.getShards();
+        }
+        ShardRing previous = previousRing;
+        Set<String> targets = new LinkedHashSet<>();
+        for (Object key : keys) {
+            targets.add(ring.getShard(key));
+            if (previous != null) {
+                targets.add(previous.getShard(key));
+            }
+        }
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * Shards to apply a write to. Keys pinned by the filter are first moved to their new owner while rebalancing.
+     */
+    private List<String> writeTargets(String collectionName, Bson filter) {
+        List<Object> keys = filterShardKeys(collectionName, filter);
+        if (keys == null) {
+            return ring.getShards();
+        }
+        Set<String> targets = new LinkedHashSet<>();
+        for (Object key : keys) {
+            targets.add(prepareWrite(collectionName, key));
+        }
+        return new ArrayList<>(targets);
+    }
+
+    private String prepareWrite(String collectionName, Object shardKeyValue) {
+        String owner = ownerOf(collectionName, shardKeyValue);
+        ShardRing previous = previousRing;
+        if (previous != null) {
+            String previousOwner = previous.getShard(shardKeyValue);
+            if (!previousOwner.equals(owner)) {
+                Document filter = new Document(getShardKey(collectionName), shardKeyValue);
+                List<Document> docs = shards.get(previousOwner).findForList(collectionName, filter, null, null, 0, 0,
+                        RawMongoMapper.getInstance(), ReadPreference.primary());
+                if (!docs.isEmpty()) {
+                    Map<String, List<Document>> pending = new LinkedHashMap<>();
+                    pending.put(owner, docs);
+                    final String name = collectionName;
+                    final Map<String, List<Document>> moving = pending;
+                    shards.get(previousOwner).execute(new MongoOperate<Long>() {
+
+                        @Override
+                        public Long execute(MongoDatabase database) {
+                            return move(name, database.getCollection(name), moving);
+                        }
+
+                    });
+                }
+            }
+        }
+        return owner;
+    }
+
+    private <T> List<T> fanOut(List<String> targets, final ShardCall<T> call) {
+        if (targets.size() == 1) {
+            return Collections.singletonList(call.execute(shards.get(targets.get(0))));
+        }
+        List<Future<T>> futures = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            final MongoRepository shard = shards.get(target);
+            futures.add(executor.submit(new Callable<T>() {
+
+                @Override
+                public T call() throws Exception {
+                    return call.execute(shard);
+                }
+
+            }));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for shards");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            RepositoryException ex = new RepositoryException("Shard operation failed");
+            ex.initCause(cause);
+            throw ex;
+        } finally {
+            // an interrupt would close the pooled connection of a shard operation still running
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    // merging
+
+    /**
+     * Merge per-shard results, each already sorted by the comparator, then apply offset and limit.
+     */
+    static List<Document> merge(List<List<Document>> sources, final Comparator<Document> comparator, int offset,
+            int limit) {
+        List<Document> merged = new ArrayList<>();
+        int skipped = 0;
+        if (comparator == null) {
+            for (List<Document> source : sources) {
+                for (Document doc : source) {
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    merged.add(doc);
+                    if (limit > 0 && merged.size() >= limit) {
+                        return merged;
+                    }
+                }
+            }
+            return merged;
+        }
+        PriorityQueue<MergeHead> heads = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<MergeHead>() {
+
+            @Override
+            public int compare(MergeHead o1, MergeHead o2) {
+                int c = comparator.compare(o1.current, o2.current);
+                return c != 0 ? c : o1.source - o2.source;
+            }
+
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            MergeHead head = new MergeHead(i, sources.get(i));
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        while (!heads.isEmpty()) {
+            MergeHead head = heads.poll();
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                merged.add(head.current);
+                if (limit > 0 && merged.size() >= limit) {
+                    break;
+                }
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static class MergeHead {
+        private final int source;
+        private final List<Document> docs;
+        private int position;
+        private Document current;
+
+        MergeHead(int source, List<Document> docs) {
+            super();
+            this.source = source;
+            this.docs = docs;
+        }
+
+        boolean advance() {
+            if (position >= docs.size()) {
+                return false;
+            }
+            current = docs.get(position++);
+            return true;
+        }
+    }
+
+    /**
+     * Inclusion projections must carry the sort fields for the merge; returns the fields that were added.
+     */
+    private static List<String> addSortFields(Document projection, Document sort) {
+        List<String> added = new ArrayList<>();
+        if (projection == null || sort == null) {
+            return added;
+        }
+        boolean inclusion = false;
+        for (Entry<String, Object> entry : projection.entrySet()) {
+            Object value = entry.getValue();
+            if (!entry.getKey().equals(ID) && (Boolean.TRUE.equals(value)
+                    || (value instanceof Number && ((Number) value).intValue() != 0))) {
+                inclusion = true;
+                break;
+            }
+        }
+        if (!inclusion) {
+            return added;
+        }
+        for (String field : sort.keySet()) {
+            // _id is returned unless excluded
+            if (!projection.containsKey(field) && !field.equals(ID)) {
+                projection.put(field, 1);
+                added.add(field);
+            }
+        }
+        return added;
+    }
+
+    private static <T> List<T> mapAll(List<Document> docs, List<String> addedFields, MongoMapper<T> mapper) {
+        List<T> items = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            for (String field : addedFields) {
+                doc.remove(field);
+            }
+            T item = mapper.map(doc);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    // MongoRepository
+
+    @Override
+    public <T> T execute(MongoOperate<T> op) {
+        throw new RepositoryException("execute is not supported on a sharded repository, use getShards()");
+    }
+
+    @Override
+    public void insert(String collectionName, Document doc) {
+        Object key = documentShardKey(collectionName, doc);
+        shards.get(ownerOf(collectionName, key)).insert(collectionName, doc);
+    }
+
+    @Override
+    public void insertMany(final String collectionName, List<Document> docs) {
+        final Map<String, List<Document>> groups = new LinkedHashMap<>();
+        for (Document doc : docs) {
+            String owner = ownerOf(collectionName, documentShardKey(collectionName, doc));
+            List<Document> group = groups.get(owner);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(owner, group);
+            }
+            group.add(doc);
+        }
+        final List<String> targets = new ArrayList<>(groups.keySet());
+        fanOut(targets, new ShardCall<Void>() {
+
+            @Override
+            public Void execute(MongoRepository shard) {
+                for (String target : targets) {
+                    if (shards.get(target) == shard) {
+                        shard.insertMany(collectionName, groups.get(target));
+                    }
+                }
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean update(String collectionName, Document update, Document filter) {
+        List<String> targets = writeTargets(collectionName, filter);
+        if (targets.size() == 1) {
+            return shards.get(targets.get(0)).update(collectionName, update, filter);
+        }
+        return Boolean.TRUE.equals(updateFirstMatch(collectionName, update, filter, targets));
+    }
+
+    /**
+     * A match that is already up to date reports no modification, so the match is located before the write.
+     *
+     * @return null when no shard holds a match, otherwise whether the match was modified
+     */
+    private Boolean updateFirstMatch(String collectionName, Document update, Document filter, List<String> targets) {
+        FirstMatch match = firstMatch(collectionName, filter, null, targets);
+        if (match == null) {
+            return null;
+        }
+        return match.shard.update(collectionName, update, pin(filter, match.id));
+    }
+
+    private static class FirstMatch {
+        private final MongoRepository shard;
+        private final Object id;
+
+        FirstMatch(MongoRepository shard, Object id) {
+            super();
+            this.shard = shard;
+            this.id = id;
+        }
+    }
+
+    private static Document pin(Bson filter, Object id) {
+        return new Document("$and", Arrays.asList(MongoDocuments.toDocument(filter), new Document(ID, id)));
+    }
+
+    /**
+     * Globally first document matching the filter in sort order, read on the primaries.
+     */
+    private FirstMatch firstMatch(final String collectionName, final Bson filter, Bson sort, List<String> targets) {
+        final Document sortDoc = sort == null ? null : MongoDocuments.toDocument(sort);
+        final Document projection = new Document(ID, 1);
+        if (sortDoc != null) {
+            for (String field : sortDoc.keySet()) {
+                projection.put(field, 1);
+            }
+        }
+        List<Document> hits = fanOut(targets, new ShardCall<Document>() {
+
+            @Override
+            public Document execute(MongoRepository shard) {
+                return shard.find(collectionName, filter, sortDoc, projection, RawMongoMapper.getInstance(),
+                        ReadPreference.primary());
+            }
+
+        });
+        Comparator<Document> comparator = MongoSortOrder.comparator(sortDoc);
+        int first = -1;
+        for (int i = 0; i < hits.size(); i++) {
+            Document hit = hits.get(i);
+            if (hit != null && (first < 0 || (comparator != null && comparator.compare(hit, hits.get(first)) < 0))) {
+                first = i;
+            }
+        }
+        return first < 0 ? null : new FirstMatch(shards.get(targets.get(first)), hits.get(first).get(ID));
+    }
+
+    @Override
+    public long updateMany(final String collectionName, final Document filter, final Document update,
+            final UpdateOptions options) {
+        List<String> targets = writeTargets(collectionName, filter);
+        if (options != null && options.isUpsert() && targets.size() != 1) {
+            throw new RepositoryException("Upsert on a sharded collection requires the shard key in the filter");
+        }
+        long modified = 0;
+        for (Long count : fanOut(targets, new ShardCall<Long>() {
+
+            @Override
+            public Long execute(MongoRepository shard) {
+                return shard.updateMany(collectionName, filter, update, options);
+            }
+
+        })) {
+            modified += count;
+        }
+        return modified;
+    }
+
+    @Override
+    public MongoSaveResult upsert(String collectionName, Document upsert, Object id) {
+        String shardKey = getShardKey(collectionName);
+        if (shardKey.equals(ID)) {
+            return shards.get(prepareWrite(collectionName, id)).upsert(collectionName, upsert, id);
+        }
+        if (updateFirstMatch(collectionName, upsert, getIdDocument(id), ring.getShards()) != null) {
+            return MongoSaveResult.UPDATED;
+        }
+        Object key = null;
+        for (String op : new String[] { "$set", "$setOnInsert" }) {
+            Object fields = upsert.get(op);
+            if (fields instanceof Map && ((Map<?, ?>) fields).get(shardKey) != null) {
+                key = ((Map<?, ?>) fields).get(shardKey);
+            }
+        }
+        if (key == null) {
+            throw new RepositoryException("Upsert requires the shard key '" + shardKey + "' in $set or $setOnInsert");
+        }
+        return shards.get(prepareWrite(collectionName, key)).upsert(collectionName, upsert, id);
+    }
+
+    @Override
+    public MongoSaveResult save(String collectionName, Document doc) {
+        String shardKey = getShardKey(collectionName);
+        if (shardKey.equals(ID) && doc.get(ID) == null) {
+            insert(collectionName, doc);
+            return MongoSaveResult.INSERTED;
+        }
+        Object key = documentShardKey(collectionName, doc);
+        return shards.get(prepareWrite(collectionName, key)).save(collectionName, doc);
+    }
+
+    @Override
+    public boolean remove(String collectionName, Bson filter) {
+        for (String target : writeTargets(collectionName, filter)) {
+            if (shards.get(target).remove(collectionName, filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long removeMany(final String collectionName, final Bson filter) {
+        long removed = 0;
+        for (Long count : fanOut(writeTargets(collectionName, filter), new ShardCall<Long>() {
+
+            @Override
+            public Long execute(MongoRepository shard) {
+                return shard.removeMany(collectionName, filter);
+            }
+
+        })) {
+            removed += count;
+        }
+        return removed;
+    }
+
+    private String singleWriteTarget(String collectionName, Bson filter) {
+        List<String> targets = writeTargets(collectionName, filter);
+        if (targets.size() != 1) {
+            throw new RepositoryException("Single document writes in a sharded batch require the shard key: "
+                    + collectionName);
+        }
+        return targets.get(0);
+    }
+
+    // outcome of one shard's part of a batch
+    private static class ShardBatch {
+        private final BulkWriteResult result;
+        private final MongoBulkWriteException error;
+
+        ShardBatch(BulkWriteResult result, MongoBulkWriteException error) {
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    // results of the shards merged, indexes mapped back to positions in the whole batch
+    private static class BatchOutcome {
+        private int inserted;
+        private int matched;
+        private int deleted;
+        private Integer modified = 0;
+        private final List<BulkWriteUpsert> upserts = new ArrayList<>();
+        private final List<BulkWriteError> errors = new ArrayList<>();
+        private WriteConcernError writeConcernError;
+        private ServerAddress serverAddress;
+
+        void add(ShardBatch batch, List<Integer> positions) {
+            BulkWriteResult result = batch.result;
+            inserted += result.getInsertedCount();
+            matched += result.getMatchedCount();
+            deleted += result.getDeletedCount();
+            if (modified != null && result.isModifiedCountAvailable()) {
+                modified += result.getModifiedCount();
+            } else {
+                modified = null;
+            }
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                upserts.add(new BulkWriteUpsert(positions.get(upsert.getIndex()), upsert.getId()));
+            }
+            MongoBulkWriteException error = batch.error;
+            if (error == null) {
+                return;
+            }
+            for (BulkWriteError item : error.getWriteErrors()) {
+                errors.add(new BulkWriteError(item.getCode(), item.getMessage(), item.getDetails(),
+                        positions.get(item.getIndex())));
+            }
+            if (writeConcernError == null) {
+                writeConcernError = error.getWriteConcernError();
+            }
+            if (serverAddress == null) {
+                serverAddress = error.getServerAddress();
+            }
+        }
+
+        boolean failed() {
+            return !errors.isEmpty() || writeConcernError != null;
+        }
+
+        BulkWriteResult result() {
+            return BulkWriteResult.acknowledged(inserted, matched, deleted, modified, upserts);
+        }
+    }
+
+    private Collection<String> batchTargets(String collectionName, WriteModel<Document> request) {
+        if (request instanceof InsertOneModel) {
+            Document doc = ((InsertOneModel<Document>) request).getDocument();
+            return Collections.singletonList(ownerOf(collectionName, documentShardKey(collectionName, doc)));
+        }
+        if (request instanceof UpdateOneModel) {
+            return Collections.singletonList(
+                    singleWriteTarget(collectionName, ((UpdateOneModel<Document>) request).getFilter()));
+        }
+        if (request instanceof ReplaceOneModel) {
+            return Collections.singletonList(
+                    singleWriteTarget(collectionName, ((ReplaceOneModel<Document>) request).getFilter()));
+        }
+        if (request instanceof DeleteOneModel) {
+            return Collections.singletonList(
+                    singleWriteTarget(collectionName, ((DeleteOneModel<Document>) request).getFilter()));
+        }
+        if (request instanceof UpdateManyModel) {
+            return writeTargets(collectionName, ((UpdateManyModel<Document>) request).getFilter());
+        }
+        if (request instanceof DeleteManyModel) {
+            return writeTargets(collectionName, ((DeleteManyModel<Document>) request).getFilter());
+        }
+        throw new RepositoryException("Unsupported write model: " + request);
+    }
+
+    /**
+     * Unordered batches are split by shard and written concurrently. Ordered batches that span shards are written as
+     * consecutive runs of requests of the same shard, one run after the other, and stop at the first failed run.
+     * Write errors of all shards are combined into one {@link MongoBulkWriteException} whose indexes refer to the
+     * requests of the whole batch.
+     */
+    @Override
+    public BulkWriteResult batch(String collectionName, List<WriteModel<Document>> requests,
+            BulkWriteOptions options) {
+        boolean ordered = options == null || options.isOrdered();
+        List<Collection<String>> routes = new ArrayList<>(requests.size());
+        Set<String> used = new HashSet<>();
+        for (WriteModel<Document> request : requests) {
+            Collection<String> targets = batchTargets(collectionName, request);
+            routes.add(targets);
+            used.addAll(targets);
+        }
+        BatchOutcome outcome = new BatchOutcome();
+        if (!ordered || used.size() <= 1) {
+            List<Integer> all = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                all.add(i);
+            }
+            writeRun(collectionName, requests, routes, all, options, outcome);
+        } else {
+            int start = 0;
+            while (start < requests.size() && !outcome.failed()) {
+                int end = start + 1;
+                if (routes.get(start).size() == 1) {
+                    while (end < requests.size() && routes.get(end).equals(routes.get(start))) {
+                        end++;
+                    }
+                }
+                List<Integer> run = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    run.add(i);
+                }
+                writeRun(collectionName, requests, routes, run, options, outcome);
+                start = end;
+            }
+        }
+        if (outcome.failed()) {
+            Collections.sort(outcome.errors, new Comparator<BulkWriteError>() {
+
+                @Override
+                public int compare(BulkWriteError o1, BulkWriteError o2) {
+                    return Integer.compare(o1.getIndex(), o2.getIndex());
+                }
+
+            });
+            throw new MongoBulkWriteException(outcome.result(), outcome.errors, outcome.writeConcernError,
+                    outcome.serverAddress);
+        }
+        return outcome.result();
+    }
+
+    private void writeRun(final String collectionName, List<WriteModel<Document>> requests,
+            List<Collection<String>> routes, List<Integer> run, final BulkWriteOptions options,
+            BatchOutcome outcome) {
+        final Map<String, List<WriteModel<Document>>> groups = new LinkedHashMap<>();
+        Map<String, List<Integer>> indexes = new LinkedHashMap<>();
+        for (Integer i : run) {
+            for (String target : routes.get(i)) {
+                List<WriteModel<Document>> group = groups.get(target);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(target, group);
+                    indexes.put(target, new ArrayList<Integer>());
+                }
+                group.add(requests.get(i));
+                indexes.get(target).add(i);
+            }
+        }
+        final List<String> targets = new ArrayList<>(groups.keySet());
+        List<ShardBatch> results = fanOut(targets, new ShardCall<ShardBatch>() {
+
+            @Override
+            public ShardBatch execute(MongoRepository shard) {
+                for (String target : targets) {
+                    if (shards.get(target) == shard) {
+                        try {
+                            return new ShardBatch(shard.batch(collectionName, groups.get(target), options), null);
+                        } catch (MongoBulkWriteException ex) {
+                            return new ShardBatch(ex.getWriteResult(), ex);
+                        }
+                    }
+                }
+                return null;
+            }
+
+        });
+        for (int i = 0; i < targets.size(); i++) {
+            outcome.add(results.get(i), indexes.get(targets.get(i)));
+        }
+    }
+
+    @Override
+    public <T> T find(final String collectionName, final Bson filter, Bson sort, Bson fields, MongoMapper<T> mapper,
+            final ReadPreference readPreference) {
+        beforeRead(collectionName);
+        List<String> targets = readTargets(collectionName, filter);
+        if (targets.size() == 1) {
+            return shards.get(targets.get(0)).find(collectionName, filter, sort, fields, mapper, readPreference);
+        }
+        final Document sortDoc = sort == null ? null : MongoDocuments.toDocument(sort);
+        final Document projection = fields == null ? null : new Document(MongoDocuments.toDocument(fields));
+        List<String> added = addSortFields(projection, sortDoc);
+        List<Document> docs = fanOut(targets, new ShardCall<Document>() {
+
+            @Override
+            public Document execute(MongoRepository shard) {
+                return shard.find(collectionName, filter, sortDoc, projection, RawMongoMapper.getInstance(),
+                        readPreference);
+            }
+
+        });
+        List<List<Document>> sources = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            sources.add(doc == null ? Collections.<Document> emptyList() : Collections.singletonList(doc));
+        }
+        List<T> items = mapAll(merge(sources, MongoSortOrder.comparator(sortDoc), 0, 1), added, mapper);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    @Override
+    public Document findAndUpdate(String collectionName, Bson filter, Bson update, FindOneAndUpdateOptions options) {
+        List<String> targets = writeTargets(collectionName, filter);
+        if (targets.size() == 1) {
+            return shards.get(targets.get(0)).findAndUpdate(collectionName, filter, update, options);
+        }
+        if (options != null && options.isUpsert()) {
+            throw new RepositoryException("Upsert on a sharded collection requires the shard key in the filter");
+        }
+        for (int attempt = 0; attempt < PINNED_WRITE_ATTEMPTS; attempt++) {
+            FirstMatch match = firstMatch(collectionName, filter, options == null ? null : options.getSort(),
+                    targets);
+            if (match == null) {
+                return null;
+            }
+            Document doc = match.shard.findAndUpdate(collectionName, pin(filter, match.id), update, options);
+            if (doc != null) {
+                return doc;
+            }
+        }
+        throw new RepositoryException("Matches of " + collectionName + " kept changing while updating");
+    }
+
+    @Override
+    public Document findAndRemove(String collectionName, Bson filter, FindOneAndDeleteOptions options) {
+        List<String> targets = writeTargets(collectionName, filter);
+        if (targets.size() == 1) {
+            return shards.get(targets.get(0)).findAndRemove(collectionName, filter, options);
+        }
+        for (int attempt = 0; attempt < PINNED_WRITE_ATTEMPTS; attempt++) {
+            FirstMatch match = firstMatch(collectionName, filter, options == null ? null : options.getSort(),
+                    targets);
+            if (match == null) {
+                return null;
+            }
+            Document doc = match.shard.findAndRemove(collectionName, pin(filter, match.id), options);
+            if (doc != null) {
+                return doc;
+            }
+        }
+        throw new RepositoryException("Matches of " + collectionName + " kept changing while removing");
+    }
+
+    @Override
+    public <T> List<T> findForList(final String collectionName, final Bson filter, Bson sort, Bson fields,
+            int offset, int limit, MongoMapper<T> mapper, final ReadPreference readPreference) {
+        beforeRead(collectionName);
+        List<String> targets = readTargets(collectionName, filter);
+        if (targets.size() == 1) {
+            return shards.get(targets.get(0)).findForList(collectionName, filter, sort, fields, offset, limit, mapper,
+                    readPreference);
+        }
+        final Document sortDoc = sort == null ? null : MongoDocuments.toDocument(sort);
+        final Document projection = fields == null ? null : new Document(MongoDocuments.toDocument(fields));
+        List<String> added = addSortFields(projection, sortDoc);
+        // every shard must return its first offset + limit documents for the merge
+        final int shardLimit = limit > 0 ? offset + limit : 0;
+        List<List<Document>> sources = fanOut(targets, new ShardCall<List<Document>>() {
+
+            @Override
+            public List<Document> execute(MongoRepository shard) {
+                return shard.findForList(collectionName, filter, sortDoc, projection, 0, shardLimit,
+                        RawMongoMapper.getInstance(), readPreference);
+            }
+
+        });
+        return mapAll(merge(sources, MongoSortOrder.comparator(sortDoc), offset, limit), added, mapper);
+    }
+
+    @Override
+    public long count(final String collectionName, final Bson filter, final ReadPreference readPreference) {
+        beforeRead(collectionName);
+        long count = 0;
+        for (Long n : fanOut(readTargets(collectionName, filter), new ShardCall<Long>() {
+
+            @Override
+            public Long execute(MongoRepository shard) {
+                return shard.count(collectionName, filter, readPreference);
+            }
+
+        })) {
+            count += n;
+        }
+        return count;
+    }
+
+    @Override
+    public <T> void aggregate(final String collectionName, List<? extends Bson> pipeline, List<T> docs,
+            MongoMapper<T> mapper, final ReadPreference readPreference) {
+        beforeRead(collectionName);
+        List<Document> stages = new ArrayList<>(pipeline.size());
+        for (Bson stage : pipeline) {
+            stages.add(MongoDocuments.toDocument(stage));
+        }
+        // trailing $sort, $skip and $limit are applied again across shards
+        int end = stages.size();
+        while (end > 0 && isWindowStage(stages.get(end - 1))) {
+            end--;
+        }
+        for (int i = 0; i < end; i++) {
+            String stage = stages.get(i).keySet().iterator().next();
+            if (JOIN_STAGES.contains(stage)) {
+                // each shard would only join against its own part of the foreign collection
+                throw new RepositoryException("Stage " + stage + " of an aggregation on " + collectionName
+                        + " would miss matches on other shards, join per shard through getShards() only when the"
+                        + " foreign collection is complete on every shard");
+            }
+            if (!PER_DOCUMENT_STAGES.contains(stage)) {
+                throw new RepositoryException("Stage " + stage + " of an aggregation on " + collectionName
+                        + " cannot be merged across shards, run it per shard through getShards()");
+            }
+        }
+        Document sort = null;
+        int skip = 0;
+        int limit = 0;
+        for (int i = end; i < stages.size(); i++) {
+            Document stage = stages.get(i);
+            if (stage.containsKey("$sort")) {
+                if (i != end) {
+                    throw new RepositoryException("$sort after $skip or $limit cannot be merged across shards: "
+                            + collectionName);
+                }
+                sort = (Document) stage.get("$sort");
+            } else if (stage.containsKey("$skip")) {
+                int n = ((Number) stage.get("$skip")).intValue();
+                skip += n;
+                if (limit > 0) {
+                    limit = Math.max(0, limit - n);
+                    if (limit == 0) {
+                        return;
+                    }
+                }
+            } else {
+                int n = ((Number) stage.get("$limit")).intValue();
+                limit = limit > 0 ? Math.min(limit, n) : n;
+            }
+        }
+        final List<Document> shardPipeline = new ArrayList<>(stages.subList(0, end));
+        if (sort != null) {
+            shardPipeline.add(new Document("$sort", sort));
+        }
+        if (limit > 0) {
+            shardPipeline.add(new Document("$limit", skip + limit));
+        }
+        List<List<Document>> sources = fanOut(ring.getShards(), new ShardCall<List<Document>>() {
+
+            @Override
+            public List<Document> execute(MongoRepository shard) {
+                List<Document> result = new ArrayList<>();
+                shard.aggregate(collectionName, shardPipeline, result, RawMongoMapper.getInstance(),
+                        readPreference);
+                return result;
+            }
+
+        });
+        for (Document doc : merge(sources, MongoSortOrder.comparator(sort), skip, limit)) {
+            docs.add(mapper.map(doc));
+        }
+    }
+
+    private static boolean isWindowStage(Document stage) {
+        return stage.size() == 1
+                && (stage.containsKey("$sort") || stage.containsKey("$skip") || stage.containsKey("$limit"));
+    }
+
+    /**
+     * Creates the index on every shard.
+     */
+    @Override
+    public String createIndex(final String collectionName, final Bson keys, final IndexOptions options) {
+        return fanOut(ring.getShards(), new ShardCall<String>() {
+
+            @Override
+            public String execute(MongoRepository shard) {
+                return shard.createIndex(collectionName, keys, options);
+            }
+
+        }).get(0);
+    }
+
+    /**
+     * Every shard warms up with the whole plan, side by side.
+     */
+    @Override
+    public MongoWarmUpReport warmUp(final MongoWarmUpPlan plan) {
+        List<String> targets = ring.getShards();
+        List<MongoWarmUpReport> reports = fanOut(targets, new ShardCall<MongoWarmUpReport>() {
+
+            @Override
+            public MongoWarmUpReport execute(MongoRepository shard) {
+                return shard.warmUp(plan);
+            }
+
+        });
+        Map<String, MongoWarmUpReport> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < targets.size(); i++) {
+            byShard.put(targets.get(i), reports.get(i));
+        }
+        return MongoWarmUpReport.combine(byShard);
+    }
+
+    @Override
+    public void close() {
+        if (counterAccumulator != null) {
+            counterAccumulator.close();
+        }
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+        for (MongoRepository shard : shards.values()) {
+            shard.close();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoSaveResult;
+import com.sunnysuperman.mongo.mapper.LongMongoMapper;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryCollection;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MemoryMongoRepositoryTest extends TestCase {
+    private MemoryMongoRepository repository;
+
+    @Override
+    protected void setUp() throws Exception {
+        repository = new MemoryMongoRepository();
+        for (int i = 1; i <= 10; i++) {
+            repository.insert("item", new Document(MongoRepository.ID, (long) i).append("score", i * 10)
+                    .append("group", i % 2 == 0 ? "even" : "odd").append("tags", Arrays.asList("t" + i, "all")));
+        }
+    }
+
+    public void test_find() {
+        List<Document> items = repository.findForList("item", Filters.and(Filters.gte("score", 30),
+                Filters.lt("score", 70)), Sorts.descending("score"), null, 1, 2, RawMongoMapper.getInstance());
+        assertEquals(2, items.size());
+        assertEquals(50, items.get(0).get("score"));
+        assertEquals(40, items.get(1).get("score"));
+
+        assertEquals(5, repository.count("item", Filters.eq("group", "odd")));
+        assertEquals(3, repository.count("item", Filters.in(MongoRepository.ID, 1L, 2, 3.0, 99L)));
+        assertEquals(10, repository.count("item", Filters.eq("tags", "all")));
+        assertEquals(0, repository.count("item", Filters.exists("missing")));
+
+        Document doc = repository.findById("item", 3L, RawMongoMapper.getInstance());
+        assertEquals("odd", doc.get("group"));
+
+        Long id = repository.find("item", new Document(), Sorts.descending("score"),
+                Projections.include(MongoRepository.ID), LongMongoMapper.getInstance());
+        assertEquals(Long.valueOf(10), id);
+    }
+
+    public void test_update() {
+        assertTrue(repository.updateById("item", new Document("$set", new Document("name", "one"))
+                .append("$inc", new Document("score", 5)).append("$unset", new Document("group", "")), 1L));
+        Document doc = repository.findById("item", 1L, RawMongoMapper.getInstance());
+        assertEquals("one", doc.get("name"));
+        assertEquals(15, doc.get("score"));
+        assertFalse(doc.containsKey("group"));
+
+        assertEquals(5, repository.updateMany("item", new Document("group", "even"),
+                new Document("$inc", new Document("views", 1L)), new UpdateOptions()));
+        assertEquals(MongoSaveResult.INSERTED,
+                repository.upsert("item", new Document("$set", new Document("score", 1)), 100L));
+        assertEquals(MongoSaveResult.UPDATED,
+                repository.upsert("item", new Document("$set", new Document("score", 2)), 100L));
+        assertEquals(MongoSaveResult.UPDATED, repository.save("item", new Document(MongoRepository.ID, 100L)
+                .append("score", 3)));
+
+        Document updated = repository.findAndUpdate("item", Filters.eq(MongoRepository.ID, 100L),
+                new Document("$inc", new Document("score", 1)),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        assertEquals(4, updated.get("score"));
+        assertTrue(repository.remove("item", Filters.eq(MongoRepository.ID, 100L)));
+        assertEquals(5, repository.removeMany("item", Filters.eq("group", "even")));
+    }
+
+    public void test_index() {
+        MemoryCollection collection = repository.getMemoryDatabase().getCollection("item");
+        collection.createIndex(new Document("group", "hashed"));
+        collection.createIndex(new Document("score", 1), new IndexOptions().unique(true));
+        assertEquals(3, collection.listIndexes().into(new ArrayList<Document>()).size());
+        assertEquals(5, repository.count("item", Filters.eq("group", "even")));
+        assertEquals(3, repository.count("item", Filters.gt("score", 70)));
+        assertEquals(2, repository.count("item", Filters.and(Filters.gt("score", 70), Filters.eq("group", "even"))));
+        try {
+            repository.insert("item", new Document("score", 10));
+            fail();
+        } catch (MongoWriteException ex) {
+            assertEquals(11000, ex.getError().getCode());
+        }
+        repository.updateById("item", new Document("$set", new Document("score", 1000)), 1L);
+        assertEquals(1, repository.count("item", Filters.gte("score", 1000)));
+        assertEquals(0, repository.count("item", Filters.eq("score", 10)));
+    }
+
+    public void test_batch() {
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        requests.add(new InsertOneModel<Document>(new Document(MongoRepository.ID, 11L).append("score", 110)));
+        requests.add(new UpdateOneModel<Document>(Filters.eq(MongoRepository.ID, 1L),
+                new Document("$inc", new Document("score", 1))));
+        requests.add(new UpdateOneModel<Document>(Filters.eq(MongoRepository.ID, 12L),
+                new Document("$set", new Document("score", 120)), new UpdateOptions().upsert(true)));
+        requests.add(new DeleteOneModel<Document>(Filters.eq(MongoRepository.ID, 2L)));
+        BulkWriteResult result = repository.batch("item", requests);
+        assertEquals(1, result.getInsertedCount());
+        assertEquals(1, result.getModifiedCount());
+        assertEquals(1, result.getUpserts().size());
+        assertEquals(1, result.getDeletedCount());
+        assertEquals(11, repository.count("item", new Document()));
+    }
+
+    public void test_aggregate() {
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(Filters.gt("score", 20)),
+                Aggregates.group("$group", Accumulators.sum("total", "$score"), Accumulators.sum("count", 1)),
+                Aggregates.sort(Sorts.ascending(MongoRepository.ID)));
+        List<Document> docs = new ArrayList<>();
+        repository.aggregate("item", pipeline, docs, RawMongoMapper.getInstance());
+        assertEquals(2, docs.size());
+        assertEquals("even", docs.get(0).get(MongoRepository.ID));
+        assertEquals(280, docs.get(0).get("total"));
+        assertEquals(4, docs.get(0).get("count"));
+        assertEquals(240, docs.get(1).get("total"));
+    }
+}
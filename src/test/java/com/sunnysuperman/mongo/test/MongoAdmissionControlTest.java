@@ -0,0 +1,102 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoAdmissionControl;
+import com.sunnysuperman.mongo.MongoBulkhead;
+import com.sunnysuperman.mongo.MongoBulkheadConfig;
+import com.sunnysuperman.mongo.MongoOperationType;
+import com.sunnysuperman.mongo.MongoRejectedException;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoAdmissionControlTest extends TestCase {
+
+    public void test_reject() {
+        MongoAdmissionControl admissionControl = new MongoAdmissionControl().setDefault(MongoOperationType.READ,
+                new MongoBulkheadConfig(1, 0, 0, TimeUnit.MILLISECONDS));
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.setAdmissionControl(admissionControl);
+        repository.insert("item", new Document("score", 1));
+        assertEquals(1, repository.count("item", new Document()));
+
+        MongoBulkhead.Permit permit = admissionControl.acquire("item", MongoOperationType.READ);
+        try {
+            repository.count("item", new Document());
+            fail();
+        } catch (MongoRejectedException ex) {
+            assertEquals("item", ex.getCollectionName());
+            assertEquals(MongoOperationType.READ, ex.getType());
+        }
+        // other collections and operation types are not affected
+        assertEquals(0, repository.count("other", new Document()));
+        repository.insert("item", new Document("score", 2));
+        permit.release();
+        assertEquals(2, repository.count("item", new Document()));
+
+        MongoBulkhead bulkhead = admissionControl.getBulkhead("item", MongoOperationType.READ);
+        assertEquals(0, bulkhead.getInFlight());
+        assertEquals(1, bulkhead.getRejected());
+        assertEquals(3, bulkhead.getCompleted());
+        assertNull(admissionControl.getBulkhead("item", MongoOperationType.WRITE));
+    }
+
+    public void test_adaptive() throws Exception {
+        MongoBulkhead bulkhead = new MongoBulkhead("item", MongoOperationType.READ,
+                new MongoBulkheadConfig(10, 10, 1, TimeUnit.SECONDS).setAdaptive(2, 1, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 30; i++) {
+            MongoBulkhead.Permit permit = bulkhead.acquire();
+            Thread.sleep(3);
+            permit.release();
+        }
+        assertEquals(2, bulkhead.getLimit());
+        for (int i = 0; i < 100; i++) {
+            bulkhead.acquire().release();
+        }
+        assertEquals(10, bulkhead.getLimit());
+    }
+
+    public void test_reconfigure() throws Exception {
+        final MongoAdmissionControl admissionControl = new MongoAdmissionControl().setDefault(
+                MongoOperationType.READ, new MongoBulkheadConfig(1, 2, 5, TimeUnit.SECONDS));
+        MongoBulkhead bulkhead = admissionControl.getBulkhead("item", MongoOperationType.READ);
+        MongoBulkhead.Permit permit = admissionControl.acquire("item", MongoOperationType.READ);
+        final CountDownLatch acquired = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            new Thread() {
+
+                @Override
+                public void run() {
+                    admissionControl.acquire("item", MongoOperationType.READ);
+                    acquired.countDown();
+                }
+
+            }.start();
+        }
+        while (bulkhead.getQueued() < 2) {
+            Thread.sleep(1);
+        }
+        // both waiters get one of the new slots, the permit in flight still counts
+        admissionControl.set("item", MongoOperationType.READ, new MongoBulkheadConfig(3, 2, 5, TimeUnit.SECONDS));
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        assertSame(bulkhead, admissionControl.getBulkhead("item", MongoOperationType.READ));
+        assertEquals(3, bulkhead.getInFlight());
+        permit.release();
+
+        admissionControl.setDefault(MongoOperationType.READ, new MongoBulkheadConfig(1, 0, 0, TimeUnit.SECONDS));
+        // the collection specific configuration still applies
+        assertEquals(3, bulkhead.getLimit());
+        admissionControl.set("item", MongoOperationType.READ, null);
+        assertEquals(1, bulkhead.getLimit());
+        try {
+            admissionControl.acquire("item", MongoOperationType.READ);
+            fail();
+        } catch (MongoRejectedException ex) {
+            assertEquals(2, bulkhead.getInFlight());
+        }
+    }
+}
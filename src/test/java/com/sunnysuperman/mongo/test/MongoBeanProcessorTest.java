@@ -0,0 +1,112 @@
+package com.sunnysuperman.mongo.test;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoBeanCodec;
+import com.sunnysuperman.mongo.MongoBeanCodecs;
+import com.sunnysuperman.mongo.MongoCompression;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoSerializer;
+import com.sunnysuperman.mongo.mapper.BeanMongoMapper;
+import com.sunnysuperman.mongo.processor.MongoBeanProcessor;
+
+import junit.framework.TestCase;
+
+public class MongoBeanProcessorTest extends TestCase {
+    private static final String ARTICLE = "package demo;\n"
+            + "import com.sunnysuperman.mongo.*;\n"
+            + "import com.sunnysuperman.repository.serialize.*;\n"
+            + "@SerializeBean(\"article\")\n"
+            + "public class Article {\n"
+            + "    @SerializeProperty(column = \"_id\") private Long id;\n"
+            + "    @SerializeProperty private Long createdAt;\n"
+            + "    @MongoCompressed(threshold = 16) @SerializeProperty private String body;\n"
+            + "    @MongoPacked @SerializeProperty private double[] vector;\n"
+            + "    @SerializeProperty private boolean pinned;\n"
+            + "    public Long getId() { return id; }\n"
+            + "    public void setId(Long id) { this.id = id; }\n"
+            + "    public Long getCreatedAt() { return createdAt; }\n"
+            + "    public void setCreatedAt(Long createdAt) { this.createdAt = createdAt; }\n"
+            + "    public String getBody() { return body; }\n"
+            + "    public void setBody(String body) { this.body = body; }\n"
+            + "    public double[] getVector() { return vector; }\n"
+            + "    public void setVector(double[] vector) { this.vector = vector; }\n"
+            + "    public boolean isPinned() { return pinned; }\n"
+            + "    public void setPinned(boolean pinned) { this.pinned = pinned; }\n"
+            + "}\n";
+    private static final String TAGGED = "package demo;\n"
+            + "import com.sunnysuperman.repository.serialize.*;\n"
+            + "@SerializeBean(\"tagged\")\n"
+            + "public class Tagged {\n"
+            + "    @SerializeProperty private java.util.List<String> tags;\n"
+            + "    public void setTags(java.util.List<String> tags) { this.tags = tags; }\n"
+            + "}\n";
+
+    private static JavaFileObject source(String name, final String code) {
+        return new SimpleJavaFileObject(URI.create("string:///demo/" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    private static <T> T map(Class<T> clazz, Document doc) {
+        return new BeanMongoMapper<T>(clazz).map(doc);
+    }
+
+    public void test_generate() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        File out = Files.createTempDirectory("codec").toFile();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null,
+                Arrays.asList("-d", out.getPath(), "-classpath", System.getProperty("java.class.path")), null,
+                Arrays.asList(source("Article", ARTICLE), source("Tagged", TAGGED)));
+        task.setProcessors(Collections.singletonList(new MongoBeanProcessor()));
+        assertTrue(task.call());
+        assertTrue(new File(out, "demo/Article_MongoCodec.class").exists());
+        assertFalse(new File(out, "demo/Tagged_MongoCodec.class").exists());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { out.toURI().toURL() },
+                getClass().getClassLoader())) {
+            assertEquals(1, MongoBeanCodecs.load(loader));
+            Class<?> articleClass = loader.loadClass("demo.Article");
+            MongoBeanCodec<?> codec = MongoBeanCodecs.get(articleClass);
+            assertEquals("article", codec.getCollectionName());
+            assertEquals(Collections.singletonMap("body", 16), codec.getCompressedColumns());
+            assertEquals(Collections.singleton("vector"), codec.getPackedColumns());
+            assertNull(MongoBeanCodecs.get(loader.loadClass("demo.Tagged")));
+
+            String body = "hello, hello, hello, hello, hello";
+            Map<String, Object> raw = new HashMap<>();
+            raw.put(MongoRepository.ID, 5);
+            raw.put("created_at", 123);
+            raw.put("body", body);
+            raw.put("vector", new double[] { 0.25, -1 });
+            raw.put("pinned", true);
+            Document doc = MongoSerializer.serializeMap(raw, true, articleClass);
+            assertTrue(MongoCompression.isCompressed(doc.get("body")));
+            Object article = map(articleClass, doc);
+            assertEquals(Long.valueOf(5), articleClass.getMethod("getId").invoke(article));
+            assertEquals(Long.valueOf(123), articleClass.getMethod("getCreatedAt").invoke(article));
+            assertEquals(body, articleClass.getMethod("getBody").invoke(article));
+            assertTrue(Arrays.equals(new double[] { 0.25, -1 },
+                    (double[]) articleClass.getMethod("getVector").invoke(article)));
+            assertEquals(Boolean.TRUE, articleClass.getMethod("isPinned").invoke(article));
+        }
+    }
+}
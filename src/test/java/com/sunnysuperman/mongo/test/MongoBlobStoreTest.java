@@ -0,0 +1,116 @@
+package com.sunnysuperman.mongo.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoBlob;
+import com.sunnysuperman.mongo.MongoBlobStore;
+import com.sunnysuperman.mongo.MongoSerializer;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoBlobStoreTest extends TestCase {
+
+    public void test_chunks() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        MongoBlobStore store = new MongoBlobStore(repository, "attachment", 1000);
+        store.ensureIndexes();
+        byte[] data = new byte[10500];
+        new Random(1).nextBytes(data);
+        MongoBlob blob = store.write(new ByteArrayInputStream(data));
+        assertEquals(10500, blob.getLength());
+        assertEquals(11, blob.getChunks());
+        assertEquals(11, repository.count("attachment.chunks", new Document()));
+        assertEquals(10500, store.find(blob.getId()).getLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10500, store.read(blob.getId(), Channels.newChannel(out)));
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+
+        try (ReadableByteChannel range = store.openChannel(blob.getId(), 2990, 1020)) {
+            ByteBuffer buf = ByteBuffer.allocate(2000);
+            while (range.read(buf) >= 0) {
+                // drain
+            }
+            assertEquals(1020, buf.position());
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 2990, 4010), Arrays.copyOf(buf.array(), 1020)));
+        }
+        try (InputStream in = store.openStream(blob.getId())) {
+            assertEquals(data[0] & 0xFF, in.read());
+        }
+
+        MongoBlob empty = store.write(new byte[0]);
+        assertEquals(0, empty.getLength());
+        assertEquals(-1, store.openStream(empty.getId()).read());
+
+        assertTrue(store.delete(blob.getId()));
+        assertNull(store.find(blob.getId()));
+        assertEquals(0, repository.count("attachment.chunks", new Document()));
+
+        // the executor is created again after close
+        store.close();
+        assertEquals(10500, store.write(data).getLength());
+        store.close();
+    }
+
+    public void test_reference() throws Exception {
+        MongoBlobStore store = new MongoBlobStore(new MemoryMongoRepository(), "attachment", 100);
+        MongoBlob blob = store.write(new byte[250]);
+        Map<String, Object> bean = new LinkedHashMap<>();
+        bean.put("attachment", blob.getId());
+        Document doc = MongoSerializer.serializeMap(bean, true);
+        assertSame(blob.getId(), doc.get("attachment"));
+        store.close();
+    }
+
+    public void test_chunkSize() {
+        try {
+            new MongoBlobStore(new MemoryMongoRepository(), "attachment", 0);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // nothing would ever be written
+        }
+        try {
+            new MongoBlobStore(new MemoryMongoRepository(), "attachment", 16 * 1024 * 1024);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // a chunk document would exceed the document limit
+        }
+    }
+
+    public void test_failedUpload() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        MongoBlobStore store = new MongoBlobStore(repository, "attachment", 100);
+        InputStream broken = new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (++read > 250) {
+                    throw new IOException("connection reset");
+                }
+                return 1;
+            }
+        };
+        try {
+            store.write(broken);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+        assertEquals(0, repository.count("attachment.chunks", new Document()));
+        assertEquals(0, repository.count("attachment.files", new Document()));
+    }
+}
@@ -0,0 +1,103 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoChunkedWrite;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.repository.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class MongoChunkedWriteTest extends TestCase {
+
+    // cancels the write after a number of chunks
+    private static class CancellingRepository extends MemoryMongoRepository {
+        private MongoChunkedWrite write;
+        private int chunksLeft;
+
+        @Override
+        public BulkWriteResult batch(String collectionName, List<WriteModel<Document>> requests,
+                BulkWriteOptions options) {
+            BulkWriteResult result = super.batch(collectionName, requests, options);
+            if (write != null && --chunksLeft == 0) {
+                write.cancel();
+            }
+            return result;
+        }
+    }
+
+    private static MemoryMongoRepository newRepository() {
+        return fill(new MemoryMongoRepository());
+    }
+
+    private static MemoryMongoRepository fill(MemoryMongoRepository repository) {
+        for (int i = 0; i < 200; i++) {
+            String level = i % 2 == 0 ? "debug" : "info";
+            repository.insert("log", new Document(MongoRepository.ID, i).append("level", level));
+        }
+        return repository;
+    }
+
+    public void test_remove() {
+        MemoryMongoRepository repository = newRepository();
+        MongoChunkedWrite removal = repository.removeManyInChunks("log", new Document("level", "debug"))
+                .setChunkSize(30);
+        removal.run();
+        assertTrue(removal.isDone());
+        assertEquals(100, removal.getProcessed());
+        assertEquals(4, removal.getChunks());
+        assertEquals(198, removal.getLastId());
+        assertEquals(0, repository.count("log", new Document("level", "debug")));
+        assertEquals(100, repository.count("log", new Document()));
+    }
+
+    public void test_resume() throws Exception {
+        CancellingRepository repository = new CancellingRepository();
+        fill(repository);
+        Document filter = new Document("level", "info");
+        Document update = new Document("$set", new Document("archived", true));
+        MongoChunkedWrite first = repository.updateManyInChunks("log", filter, update).setChunkSize(10)
+                .setCheckpoint("archive");
+        repository.write = first;
+        repository.chunksLeft = 3;
+        first.run();
+        assertTrue(first.isCancelled());
+        assertFalse(first.isDone());
+        assertEquals(3, first.getChunks());
+        assertEquals(30, first.getProcessed());
+        long archived = repository.count("log", new Document("archived", true));
+        assertEquals(30, archived);
+        repository.write = null;
+
+        MongoChunkedWrite second = repository.updateManyInChunks("log", filter, update).setChunkSize(10)
+                .setCheckpoint("archive");
+        second.run();
+        assertTrue(second.isDone());
+        assertEquals(100, second.getProcessed());
+        assertEquals(100 - archived, second.getChunks() * 10);
+        assertEquals(100, repository.count("log", new Document("archived", true)));
+        assertEquals(0, repository.count("log", new Document("archived", true).append("level", "debug")));
+    }
+
+    public void test_mixedIdTypes() {
+        MemoryMongoRepository repository = newRepository();
+        repository.insert("log", new Document(MongoRepository.ID, "a").append("level", "debug"));
+        MongoChunkedWrite removal = repository.removeManyInChunks("log", new Document("level", "debug"))
+                .setChunkSize(30);
+        try {
+            removal.run();
+            fail();
+        } catch (RepositoryException e) {
+            // ids of the later type were not reached
+        }
+        assertFalse(removal.isDone());
+        assertNotNull(removal.getError());
+        assertEquals(1, repository.count("log", new Document("level", "debug")));
+    }
+}
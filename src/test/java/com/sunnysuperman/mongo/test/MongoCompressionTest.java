@@ -0,0 +1,117 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.sunnysuperman.mongo.MongoCompressed;
+import com.sunnysuperman.mongo.MongoCompression;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.repository.RepositoryException;
+import com.sunnysuperman.repository.serialize.SerializeBean;
+import com.sunnysuperman.repository.serialize.SerializeProperty;
+
+import junit.framework.TestCase;
+
+public class MongoCompressionTest extends TestCase {
+
+    public static class Page {
+        private long id;
+        @MongoCompressed(threshold = 64)
+        @SerializeProperty(column = "html")
+        private String content;
+        @MongoCompressed
+        private byte[] thumbnail;
+        private String title;
+
+        public long getId() {
+            return id;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public byte[] getThumbnail() {
+            return thumbnail;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+    }
+
+    @SerializeBean(value = "article", camel2underline = true)
+    public static class Article {
+        @MongoCompressed(threshold = 16)
+        private String bodyText;
+
+        public String getBodyText() {
+            return bodyText;
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            buf.append(s);
+        }
+        return buf.toString();
+    }
+
+    public void test_roundTrip() {
+        String html = repeat("<p>hello, world</p>", 100);
+        byte[] thumbnail = new byte[4096];
+        Document doc = new Document(MongoRepository.ID, 1L).append("html", html).append("thumbnail", thumbnail)
+                .append("title", html);
+        MongoCompression.compress(doc, Page.class);
+        assertTrue(MongoCompression.isCompressed(doc.get("html")));
+        assertTrue(((Binary) doc.get("html")).length() < html.length() / 10);
+        assertTrue(MongoCompression.isCompressed(doc.get("thumbnail")));
+        assertEquals(html, doc.get("title"));
+
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.insert("page", doc);
+        Document stored = repository.findById("page", 1L, RawMongoMapper.getInstance());
+        Document restored = MongoCompression.decompress(stored, Page.class);
+        assertEquals(html, restored.get("html"));
+        assertTrue(Arrays.equals(thumbnail, (byte[]) restored.get("thumbnail")));
+        assertTrue(MongoCompression.isCompressed(stored.get("html")));
+    }
+
+    public void test_threshold() {
+        Document doc = new Document("html", "short").append("thumbnail", new byte[] { 1, 2, 3 });
+        MongoCompression.compress(doc, Page.class);
+        assertEquals("short", doc.get("html"));
+        assertTrue(doc.get("thumbnail") instanceof byte[]);
+        assertSame(doc, MongoCompression.decompress(doc, Page.class));
+        // incompressible values are kept as is
+        byte[] random = new byte[2048];
+        new Random(1).nextBytes(random);
+        assertSame(random, MongoCompression.compress(random, 0));
+    }
+
+    public void test_columnName() {
+        assertEquals(Collections.singletonMap("body_text", 16), MongoCompression.getCompressedColumns(Article.class));
+        Document doc = new Document("body_text", repeat("abc", 100));
+        MongoCompression.compress(doc, Article.class);
+        assertTrue(MongoCompression.isCompressed(doc.get("body_text")));
+    }
+
+    public void test_corrupted() {
+        byte[] compressed = ((Binary) MongoCompression.compress(repeat("abc", 100), 0)).getData();
+        // an original length far beyond what the payload can inflate to
+        compressed[2] = 0x7F;
+        try {
+            MongoCompression.decompress(new Binary(MongoCompression.BINARY_SUBTYPE, compressed));
+            fail();
+        } catch (RepositoryException ex) {
+            assertTrue(ex.getMessage().contains("invalid length"));
+        }
+    }
+}
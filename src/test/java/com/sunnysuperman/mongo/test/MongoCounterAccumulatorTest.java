@@ -0,0 +1,111 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoCounterAccumulator;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoCounterAccumulatorTest extends TestCase {
+
+    public void test_coalesce() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.insert("post", new Document(MongoRepository.ID, 1L).append("views", 10));
+        final MongoCounterAccumulator counters = new MongoCounterAccumulator(repository);
+        repository.setCounterAccumulator(counters);
+
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        counters.increment("post", 1L, "views");
+                        counters.increment("post", 2L, "likes", 2);
+                    }
+                    done.countDown();
+                }
+
+            }.start();
+        }
+        done.await();
+        assertEquals(8000, counters.getPending("post", 1L, "views"));
+        assertEquals(8010, counters.get("post", 1L, "views"));
+
+        assertEquals(2, counters.flush());
+        assertEquals(0, counters.getPending("post", 1L, "views"));
+        assertEquals(8010, counters.get("post", 1L, "views"));
+        Document created = repository.findById("post", 2L, RawMongoMapper.getInstance());
+        assertEquals(16000L, ((Number) created.get("likes")).longValue());
+
+        // idle counters are dropped on the next flush
+        assertEquals(0, counters.flush());
+        assertEquals(0, counters.getPendingCounters());
+        counters.increment("post", 1L, "views");
+        // flushes on close
+        counters.close();
+        assertEquals(0, counters.getPending("post", 1L, "views"));
+        assertEquals(8011, counters.get("post", 1L, "views"));
+        assertEquals(0, counters.getFailedUpdates());
+
+        try {
+            counters.increment("post", null, "views");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // null ids cannot be keyed
+        }
+    }
+
+    public void test_getDuringFlush() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.insert("post", new Document(MongoRepository.ID, 1L).append("views", 0));
+        final MongoCounterAccumulator counters = new MongoCounterAccumulator(repository);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread flusher = new Thread() {
+
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    counters.flush();
+                }
+            }
+
+        };
+        flusher.start();
+        try {
+            for (int i = 1; i <= 2000; i++) {
+                counters.increment("post", 1L, "views");
+                assertEquals(i, counters.get("post", 1L, "views"));
+            }
+        } finally {
+            stop.set(true);
+            flusher.join();
+        }
+    }
+
+    public void test_periodic() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        MongoCounterAccumulator counters = new MongoCounterAccumulator(repository).setUpsert(false)
+                .start(20, TimeUnit.MILLISECONDS);
+        repository.insert("quota", new Document(MongoRepository.ID, "a").append("used", 0));
+        counters.increment("quota", "a", "used", 5);
+        counters.increment("quota", "missing", "used", 5);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (counters.getFlushedUpdates() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Document doc = repository.findById("quota", "a", RawMongoMapper.getInstance());
+        assertEquals(5L, ((Number) doc.get("used")).longValue());
+        assertNull(repository.findById("quota", "missing", RawMongoMapper.getInstance()));
+        counters.close();
+    }
+}
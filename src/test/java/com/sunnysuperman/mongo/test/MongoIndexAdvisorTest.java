@@ -0,0 +1,73 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.sunnysuperman.mongo.MongoIndexAdvice;
+import com.sunnysuperman.mongo.MongoIndexAdvisor;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoIndexAdvisorTest extends TestCase {
+
+    public void test_advice() throws Exception {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        List<Document> docs = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            docs.add(new Document(MongoRepository.ID, (long) i).append("status", i % 5).append("score", i)
+                    .append("created", i * 1000L));
+        }
+        repository.insertMany("item", docs);
+        MongoIndexAdvisor advisor = new MongoIndexAdvisor().setSampleRate(1).setCreateIndexes(true);
+        repository.setIndexAdvisor(advisor);
+
+        for (int i = 0; i < 3; i++) {
+            repository.findForList("item", Filters.and(Filters.eq("status", i), Filters.gt("score", 100)),
+                    Sorts.descending("created"), null, 0, 10, RawMongoMapper.getInstance());
+        }
+        repository.findById("item", 1L, RawMongoMapper.getInstance());
+        assertTrue(advisor.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(2, advisor.getShapeCount());
+
+        List<MongoIndexAdvice> advices = advisor.getAdvices();
+        assertEquals(1, advices.size());
+        MongoIndexAdvice advice = advices.get(0);
+        assertTrue(advice.isCollectionScan());
+        assertEquals(500, advice.getDocsExamined());
+        assertEquals(Arrays.asList("status", "created", "score"), new ArrayList<>(advice.getIndex().keySet()));
+        assertEquals(-1, advice.getIndex().get("created"));
+        assertTrue(advice.isCreated());
+        assertEquals(2, repository.getMemoryDatabase().getCollection("item").listIndexes()
+                .into(new ArrayList<Document>()).size());
+
+        // counts and writes are explained with their own command
+        assertEquals(1, repository.count("item", Filters.eq("score", 7)));
+        assertTrue(advisor.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(1, repository.removeMany("item", Filters.eq("score", 7)));
+        assertTrue(advisor.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(4, advisor.getShapeCount());
+        advices = advisor.getAdvices();
+        assertEquals(2, advices.size());
+        for (MongoIndexAdvice item : advices) {
+            if (item != advice) {
+                assertEquals(new Document("score", 1), item.getIndex());
+                assertEquals(500, item.getDocsExamined());
+                assertEquals(1, item.getReturned());
+            }
+        }
+
+        // a shape whose explain is not accepted is not marked as seen
+        advisor.shutdown();
+        repository.count("item", Filters.eq("created", 0L));
+        assertEquals(4, advisor.getShapeCount());
+    }
+}
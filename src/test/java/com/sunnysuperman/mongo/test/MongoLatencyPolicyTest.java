@@ -0,0 +1,94 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.sunnysuperman.mongo.MongoDeadline;
+import com.sunnysuperman.mongo.MongoDeadlineExceededException;
+import com.sunnysuperman.mongo.MongoLatencyPolicy;
+import com.sunnysuperman.mongo.MongoReadOperation;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoLatencyPolicyTest extends TestCase {
+
+    // reads with the primary read preference straggle while slow is set
+    private static class StragglerRepository extends MemoryMongoRepository {
+        private volatile long slowMillis;
+
+        @Override
+        protected MongoCollection<Document> getReadCollection(MongoDatabase database, String collectionName,
+                MongoReadOperation operation, ReadPreference readPreference) {
+            if (slowMillis > 0 && !ReadPreference.nearest().equals(readPreference)) {
+                try {
+                    Thread.sleep(slowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getReadCollection(database, collectionName, operation, readPreference);
+        }
+    }
+
+    private StragglerRepository newRepository() {
+        StragglerRepository repository = new StragglerRepository();
+        for (int i = 1; i <= 10; i++) {
+            repository.insert("item", new Document(MongoRepository.ID, (long) i));
+        }
+        return repository;
+    }
+
+    public void test_deadline() {
+        StragglerRepository repository = newRepository();
+        try (MongoDeadline deadline = MongoDeadline.start(0, TimeUnit.MILLISECONDS)) {
+            repository.count("item", new Document());
+            fail();
+        } catch (MongoDeadlineExceededException ex) {
+            // expected
+        }
+        try (MongoDeadline deadline = MongoDeadline.start(1, TimeUnit.MINUTES)) {
+            assertEquals(10, repository.count("item", new Document()));
+        }
+        assertNull(MongoDeadline.current());
+
+        MongoLatencyPolicy policy = new MongoLatencyPolicy().setTimeout("item", 50, TimeUnit.MILLISECONDS)
+                .setClientGrace(10, TimeUnit.MILLISECONDS);
+        repository.setLatencyPolicy(policy);
+        assertEquals(10, repository.count("item", new Document()));
+        repository.slowMillis = 500;
+        long start = System.nanoTime();
+        try {
+            repository.findById("item", 1L, RawMongoMapper.getInstance());
+            fail();
+        } catch (MongoDeadlineExceededException ex) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        }
+        assertEquals(1, policy.getDeadlinesExceeded());
+    }
+
+    public void test_hedge() {
+        StragglerRepository repository = newRepository();
+        MongoLatencyPolicy policy = new MongoLatencyPolicy().setHedged("item", true);
+        repository.setLatencyPolicy(policy);
+        for (int i = 0; i < 32; i++) {
+            repository.findById("item", 1L, RawMongoMapper.getInstance());
+        }
+        assertEquals(0, policy.getHedges());
+        assertTrue(policy.getHedgeDelay("item", MongoReadOperation.FIND) >= 0);
+
+        repository.slowMillis = 1000;
+        long start = System.nanoTime();
+        Document doc = repository.findById("item", 2L, RawMongoMapper.getInstance());
+        assertEquals(Long.valueOf(2), doc.get(MongoRepository.ID));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertEquals(1, policy.getHedges());
+        assertEquals(1, policy.getHedgeWins());
+    }
+}
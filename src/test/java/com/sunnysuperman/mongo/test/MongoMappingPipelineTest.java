@@ -0,0 +1,78 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoMapper;
+import com.sunnysuperman.mongo.MongoMappingPipeline;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoMappingPipelineTest extends TestCase {
+
+    public void test_order() {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        for (int i = 0; i < 500; i++) {
+            repository.insert("item", new Document("score", i));
+        }
+        MongoMappingPipeline pipeline = new MongoMappingPipeline(4, 2).setBatchSize(16);
+        repository.setMappingPipeline(pipeline);
+        final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        MongoMapper<Integer> mapper = new MongoMapper<Integer>() {
+
+            @Override
+            public Integer map(Document doc) {
+                threads.add(Thread.currentThread().getName());
+                int score = doc.getInteger("score");
+                return score % 10 == 0 ? null : score;
+            }
+
+        };
+        List<Integer> items = repository.findForList("item", new Document(), new Document("score", 1), null, 0, 0,
+                mapper);
+        assertEquals(450, items.size());
+        List<Integer> sorted = new ArrayList<>(items);
+        Collections.sort(sorted);
+        assertEquals(sorted, items);
+        assertFalse(threads.contains(Thread.currentThread().getName()));
+
+        List<Integer> aggregated = new ArrayList<>();
+        repository.aggregate("item", Arrays.asList(new Document("$sort", new Document("score", -1)),
+                new Document("$limit", 20)), aggregated, mapper);
+        assertEquals(20, aggregated.size());
+        assertNull(aggregated.get(9));
+        assertEquals(Integer.valueOf(499), aggregated.get(0));
+        pipeline.shutdown();
+    }
+
+    public void test_error() {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        for (int i = 0; i < 100; i++) {
+            repository.insert("item", new Document("score", i));
+        }
+        repository.setMappingPipeline(new MongoMappingPipeline(2, 1).setBatchSize(8));
+        try {
+            repository.findForList("item", new Document(), null, null, 0, 0, new MongoMapper<Integer>() {
+
+                @Override
+                public Integer map(Document doc) {
+                    if (doc.getInteger("score") == 50) {
+                        throw new IllegalStateException("bad document");
+                    }
+                    return doc.getInteger("score");
+                }
+
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("bad document", ex.getMessage());
+        }
+    }
+}
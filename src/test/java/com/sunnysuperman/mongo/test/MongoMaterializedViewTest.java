@@ -0,0 +1,169 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoMaterializedView;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoSaveResult;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.repository.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class MongoMaterializedViewTest extends TestCase {
+    private MemoryMongoRepository repository;
+    private MongoMaterializedView view;
+
+    @Override
+    protected void setUp() throws Exception {
+        repository = new MemoryMongoRepository();
+        view = new MongoMaterializedView("order", "order_stats", "shop").count("orders").sum("total", "amount");
+        repository.addMaterializedView(view);
+    }
+
+    private List<Document> stats() {
+        return repository.findForList("order_stats", new Document(), Sorts.ascending(MongoRepository.ID), null, 0, 0,
+                RawMongoMapper.getInstance());
+    }
+
+    private void assertRebuildMatches() {
+        List<Document> incremental = stats();
+        repository.rebuildMaterializedView(view);
+        List<Document> rebuilt = stats();
+        assertEquals(rebuilt.size(), incremental.size());
+        for (int i = 0; i < rebuilt.size(); i++) {
+            assertEquals(rebuilt.get(i).get(MongoRepository.ID), incremental.get(i).get(MongoRepository.ID));
+            assertEquals(((Number) rebuilt.get(i).get("orders")).longValue(),
+                    ((Number) incremental.get(i).get("orders")).longValue());
+            assertEquals(((Number) rebuilt.get(i).get("total")).longValue(),
+                    ((Number) incremental.get(i).get("total")).longValue());
+        }
+    }
+
+    public void test_incremental() {
+        for (int i = 1; i <= 9; i++) {
+            repository.insert("order", new Document(MongoRepository.ID, (long) i).append("shop", "s" + (i % 3))
+                    .append("amount", i * 10));
+        }
+        Document s1 = repository.findById("order_stats", "s1", RawMongoMapper.getInstance());
+        assertEquals(3L, ((Number) s1.get("orders")).longValue());
+        assertEquals(120L, ((Number) s1.get("total")).longValue());
+        assertRebuildMatches();
+
+        repository.updateById("order", new Document("$set", new Document("shop", "s2")), 1L);
+        repository.updateMany("order", new Document("shop", "s0"), new Document("$inc", new Document("amount", 1)),
+                new UpdateOptions());
+        repository.upsert("order", new Document("$set", new Document("shop", "s9").append("amount", 5)), 100L);
+        repository.findAndUpdate("order", Filters.eq("shop", "s2"), new Document("$inc", new Document("amount", 7)),
+                new FindOneAndUpdateOptions().sort(Sorts.descending("amount")));
+        repository.remove("order", Filters.eq("shop", "s1"));
+        assertRebuildMatches();
+
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        requests.add(new InsertOneModel<Document>(new Document(MongoRepository.ID, 200L).append("shop", "s7")
+                .append("amount", 1)));
+        requests.add(new UpdateOneModel<Document>(Filters.eq(MongoRepository.ID, 200L),
+                new Document("$inc", new Document("amount", 1))));
+        requests.add(new DeleteManyModel<Document>(Filters.eq("shop", "s9")));
+        repository.batch("order", requests);
+        assertNull(repository.findById("order_stats", "s9", RawMongoMapper.getInstance()));
+        assertRebuildMatches();
+
+        repository.removeMany("order", new Document());
+        assertTrue(stats().isEmpty());
+    }
+
+    public void test_findAndUpdateUpsert() {
+        Document doc = repository.findAndUpdate("order", Filters.eq("shop", "s1"),
+                new Document("$set", new Document("amount", 10)), new FindOneAndUpdateOptions().upsert(true));
+        assertNull(doc);
+        Document s1 = repository.findById("order_stats", "s1", RawMongoMapper.getInstance());
+        assertEquals(1L, ((Number) s1.get("orders")).longValue());
+        assertEquals(10L, ((Number) s1.get("total")).longValue());
+
+        doc = repository.findAndUpdate("order", Filters.eq("shop", "s2"),
+                new Document("$set", new Document("amount", 5)),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        assertEquals(5, doc.get("amount"));
+        assertRebuildMatches();
+    }
+
+    public void test_maxViewSnapshot() {
+        repository.setMaxViewSnapshot(3);
+        for (int i = 1; i <= 4; i++) {
+            repository.insert("order", new Document(MongoRepository.ID, (long) i).append("shop", "s" + (i % 2))
+                    .append("amount", i));
+        }
+        assertEquals(2, repository.updateMany("order", new Document("shop", "s0"),
+                new Document("$inc", new Document("amount", 1)), new UpdateOptions()));
+        try {
+            repository.removeMany("order", new Document());
+            fail();
+        } catch (RepositoryException ex) {
+            assertTrue(ex.getMessage().contains("more than 3"));
+        }
+        assertEquals(4, repository.count("order", new Document()));
+        assertRebuildMatches();
+    }
+
+    public void test_concurrentSingleWrites() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            repository.insert("order", new Document(MongoRepository.ID, (long) i).append("shop", "s0")
+                    .append("amount", 0));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        long id = 1 + (thread + i) % 4;
+                        if (i % 3 == 0) {
+                            repository.updateById("order",
+                                    new Document("$set", new Document("shop", "s" + (i % 2))), id);
+                        } else {
+                            repository.updateById("order", new Document("$inc", new Document("amount", 1)), id);
+                        }
+                    }
+                }
+
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertRebuildMatches();
+
+        // the before image of a remove is the deleted document itself
+        assertTrue(repository.remove("order", Filters.eq(MongoRepository.ID, 1L)));
+        assertFalse(repository.remove("order", Filters.eq(MongoRepository.ID, 1L)));
+        // updates the server applies itself are read back
+        assertTrue(repository.update("order", new Document("$currentDate", new Document("at", true)),
+                new Document(MongoRepository.ID, 2L)));
+        assertEquals(MongoSaveResult.INSERTED, repository.save("order", new Document(MongoRepository.ID, 5L)
+                .append("shop", "s3").append("amount", 4)));
+        assertEquals(MongoSaveResult.UPDATED, repository.upsert("order",
+                new Document("$inc", new Document("amount", 1)), 5L));
+        assertRebuildMatches();
+    }
+}
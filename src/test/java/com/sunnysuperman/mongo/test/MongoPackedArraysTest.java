@@ -0,0 +1,86 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.sunnysuperman.mongo.MongoPacked;
+import com.sunnysuperman.mongo.MongoPackedArrays;
+import com.sunnysuperman.mongo.MongoSerializer;
+import com.sunnysuperman.repository.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class MongoPackedArraysTest extends TestCase {
+
+    public static class Series {
+        @MongoPacked
+        private long[] times;
+        @MongoPacked
+        private double[] values;
+        private int[] tags;
+
+        public long[] getTimes() {
+            return times;
+        }
+
+        public double[] getValues() {
+            return values;
+        }
+
+        public int[] getTags() {
+            return tags;
+        }
+    }
+
+    public void test_packed() {
+        long[] times = new long[] { 1L, Long.MAX_VALUE, -3L };
+        double[] values = new double[] { 0.5, Double.NaN, -1e300 };
+        Map<String, Object> raw = new HashMap<>();
+        raw.put("times", times);
+        raw.put("values", values);
+        raw.put("tags", new int[] { 1, 2 });
+        Document doc = MongoSerializer.serializeMap(raw, true, Series.class);
+        assertEquals(2 + 8 * 3, ((Binary) doc.get("times")).length());
+        assertTrue(MongoPackedArrays.isPacked(doc.get("values")));
+        assertEquals(Arrays.asList(1, 2), doc.get("tags"));
+
+        Document restored = MongoSerializer.deserializeMap(doc, Series.class);
+        assertTrue(Arrays.equals(times, (long[]) restored.get("times")));
+        assertTrue(Arrays.equals(values, (double[]) restored.get("values")));
+        assertTrue(Arrays.equals(new float[] { 1.5f }, (float[]) MongoPackedArrays
+                .unpack(MongoPackedArrays.pack(new float[] { 1.5f }))));
+        assertEquals(0, ((int[]) MongoPackedArrays.unpack(MongoPackedArrays.pack(new int[0]))).length);
+
+        byte[] truncated = Arrays.copyOf(((Binary) doc.get("times")).getData(), 2 + 8 * 2 + 3);
+        try {
+            MongoPackedArrays.unpack(new Binary(MongoPackedArrays.BINARY_SUBTYPE, truncated));
+            fail();
+        } catch (RepositoryException ex) {
+            // trailing bytes of a partial element
+        }
+    }
+
+    public void test_fastPath() {
+        Map<String, Object> raw = new HashMap<>();
+        List<Object> simple = Arrays.<Object> asList("a", 1, null, 2.5);
+        long[] longs = { 1, 2 };
+        raw.put("simple", simple);
+        raw.put("longs", longs);
+        raw.put("floats", new float[] { 1.5f });
+        raw.put("shorts", new short[] { 7 });
+        Document doc = MongoSerializer.serializeMap(raw, true);
+        assertEquals(Arrays.asList(1L, 2L), doc.get("longs"));
+        assertEquals(Arrays.asList(1.5f), doc.get("floats"));
+        assertEquals(Arrays.asList((short) 7), doc.get("shorts"));
+        // later changes of the bean do not leak into the serialized document
+        simple.set(0, "b");
+        longs[0] = 9;
+        assertEquals(Arrays.<Object> asList("a", 1, null, 2.5), doc.get("simple"));
+        assertEquals(Arrays.asList(1L, 2L), doc.get("longs"));
+    }
+}
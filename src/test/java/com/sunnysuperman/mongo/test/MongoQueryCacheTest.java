@@ -0,0 +1,156 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.sunnysuperman.mongo.MongoQueryCache;
+import com.sunnysuperman.mongo.MongoReadPolicy;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoQueryCacheTest extends TestCase {
+
+    private MemoryMongoRepository newRepository(MongoQueryCache cache) {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        for (int i = 1; i <= 10; i++) {
+            repository.insert("item", new Document(MongoRepository.ID, (long) i).append("score", i));
+        }
+        repository.setQueryCache(cache);
+        return repository;
+    }
+
+    public void test_invalidate() {
+        MongoQueryCache cache = new MongoQueryCache(100, 1, TimeUnit.MINUTES);
+        MemoryMongoRepository repository = newRepository(cache);
+        for (int i = 0; i < 3; i++) {
+            List<Document> items = repository.findForList("item", Filters.gt("score", 5), Sorts.ascending("score"),
+                    null, 0, 2, RawMongoMapper.getInstance());
+            assertEquals(6, items.get(0).get("score"));
+            // raw callers own their documents, the cached entry stays intact
+            items.get(0).remove("score");
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(Filters.gt("score", 8)));
+        List<Document> docs = new ArrayList<>();
+        repository.aggregate("item", pipeline, docs, RawMongoMapper.getInstance());
+        repository.aggregate("item", pipeline, docs, RawMongoMapper.getInstance());
+        assertEquals(4, docs.size());
+        assertNotSame(docs.get(0), docs.get(2));
+        assertEquals(docs.get(0), docs.get(2));
+        assertEquals(3, cache.getHits());
+
+        repository.removeMany("item", Filters.eq("score", 6));
+        List<Document> items = repository.findForList("item", Filters.gt("score", 5), Sorts.ascending("score"),
+                null, 0, 2, RawMongoMapper.getInstance());
+        assertEquals(7, items.get(0).get("score"));
+        assertEquals(3, cache.getMisses());
+    }
+
+    public void test_stale_while_revalidate() throws Exception {
+        MongoQueryCache cache = new MongoQueryCache(100, 1, TimeUnit.MILLISECONDS).setStaleWhileRevalidate(1,
+                TimeUnit.MINUTES);
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<List<Document>> loader = new Callable<List<Document>>() {
+
+            @Override
+            public List<Document> call() throws Exception {
+                return Arrays.asList(new Document("load", loads.incrementAndGet()));
+            }
+
+        };
+        assertEquals(1, cache.get("item", "k", loader).get(0).get("load"));
+        Thread.sleep(5);
+        assertEquals(1, cache.get("item", "k", loader).get(0).get("load"));
+        assertEquals(1, cache.getStaleHits());
+        for (int i = 0; i < 100 && loads.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, loads.get());
+    }
+
+    public void test_single_flight() throws Exception {
+        final MongoQueryCache cache = new MongoQueryCache(100, 1, TimeUnit.MINUTES);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<List<Document>> loader = new Callable<List<Document>>() {
+
+            @Override
+            public List<Document> call() throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return Arrays.asList(new Document());
+            }
+
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<Document>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<List<Document>>() {
+
+                @Override
+                public List<Document> call() throws Exception {
+                    return cache.get("item", "k", loader);
+                }
+
+            }));
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<List<Document>> future : futures) {
+            assertEquals(1, future.get().size());
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+    }
+
+    public void test_primaryAfterWrite() throws Exception {
+        final MongoQueryCache cache = new MongoQueryCache(100, 1, TimeUnit.MINUTES);
+        final MemoryMongoRepository repository = newRepository(cache);
+        repository.setReadPolicy(new MongoReadPolicy().setDefault(ReadPreference.secondary())
+                .setPrimaryAfterWrite(1, TimeUnit.MINUTES));
+        final Bson filter = Filters.gt("score", 5);
+        repository.insert("item", new Document(MongoRepository.ID, 11L).append("score", 11));
+
+        // the writing thread reads its own writes from the primary, bypassing the cache
+        assertEquals(6, repository.findForList("item", filter, null, null, 0, 0, RawMongoMapper.getInstance())
+                .size());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                repository.findForList("item", filter, null, null, 0, 0, RawMongoMapper.getInstance());
+                repository.findForList("item", filter, null, null, 0, 0, RawMongoMapper.getInstance(),
+                        ReadPreference.secondary());
+            }
+
+        });
+        thread.start();
+        thread.join();
+        // the policy's preference is part of the key, an explicit equal preference shares the entry
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,77 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.Document;
+
+import com.mongodb.ReadPreference;
+import com.sunnysuperman.mongo.MongoReadOperation;
+import com.sunnysuperman.mongo.MongoReadPolicy;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoReadPolicyTest extends TestCase {
+
+    public void test_precedence() {
+        MongoReadPolicy policy = new MongoReadPolicy();
+        assertNull(policy.getReadPreference("item", MongoReadOperation.FIND));
+
+        policy.setDefault(ReadPreference.secondaryPreferred());
+        assertEquals(ReadPreference.secondaryPreferred(), policy.getReadPreference("item", MongoReadOperation.FIND));
+
+        policy.set(MongoReadOperation.FIND, ReadPreference.secondary());
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        assertEquals(ReadPreference.secondaryPreferred(), policy.getReadPreference("item", MongoReadOperation.COUNT));
+
+        policy.set("item", ReadPreference.nearest());
+        assertEquals(ReadPreference.nearest(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        assertEquals(ReadPreference.nearest(), policy.getReadPreference("item", MongoReadOperation.COUNT));
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("other", MongoReadOperation.FIND));
+
+        policy.set("item", MongoReadOperation.FIND, ReadPreference.primaryPreferred());
+        assertEquals(ReadPreference.primaryPreferred(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        assertEquals(ReadPreference.nearest(), policy.getReadPreference("item", MongoReadOperation.COUNT));
+
+        // null removes a rule, the next specific one applies again
+        policy.set("item", MongoReadOperation.FIND, null);
+        assertEquals(ReadPreference.nearest(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        policy.set("item", (ReadPreference) null);
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        policy.set(MongoReadOperation.FIND, null);
+        assertEquals(ReadPreference.secondaryPreferred(), policy.getReadPreference("item", MongoReadOperation.FIND));
+    }
+
+    public void test_primaryAfterWrite() throws Exception {
+        final MongoReadPolicy policy = new MongoReadPolicy().setDefault(ReadPreference.secondary())
+                .setPrimaryAfterWrite(100, TimeUnit.MILLISECONDS);
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.setReadPolicy(policy);
+        repository.insert("item", new Document("score", 1));
+        assertEquals(ReadPreference.primary(), policy.getReadPreference("item", MongoReadOperation.FIND));
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("other", MongoReadOperation.FIND));
+
+        // the window is per thread
+        final AtomicReference<ReadPreference> other = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                other.set(policy.getReadPreference("item", MongoReadOperation.FIND));
+            }
+
+        });
+        thread.start();
+        thread.join();
+        assertEquals(ReadPreference.secondary(), other.get());
+
+        Thread.sleep(150);
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("item", MongoReadOperation.FIND));
+
+        // disabled window does not track writes
+        policy.setPrimaryAfterWrite(0, TimeUnit.MILLISECONDS);
+        repository.insert("item", new Document("score", 2));
+        assertEquals(ReadPreference.secondary(), policy.getReadPreference("item", MongoReadOperation.FIND));
+    }
+}
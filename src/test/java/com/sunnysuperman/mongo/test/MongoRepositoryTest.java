@@ -8,6 +8,7 @@ import com.sunnysuperman.commons.util.FormatUtil;
 import com.sunnysuperman.mongo.MongoRepository;
 import com.sunnysuperman.mongo.MongoSerializeWrapper;
 import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
 import com.sunnysuperman.repository.serialize.IdGenerator;
 import com.sunnysuperman.repository.serialize.SerializeBean;
 import com.sunnysuperman.repository.serialize.SerializeId;
@@ -118,8 +119,13 @@ public class MongoRepositoryTest extends TestCase {
 
     private static MongoRepository repository;
     static {
-        MongoClient client = new MongoClient("127.0.0.1", 29000);
-        repository = new MongoRepository(client, "test");
+        // -Dmongo.test.server=127.0.0.1:29000 runs against a live mongod
+        String server = System.getProperty("mongo.test.server");
+        if (server != null) {
+            repository = new MongoRepository(new MongoClient(server), "test");
+        } else {
+            repository = new MemoryMongoRepository();
+        }
         repository.setTraceLog(true);
         try {
             Serializer.scan(MongoRepositoryTest.class.getPackage().getName());
@@ -0,0 +1,99 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoTimePoint;
+import com.sunnysuperman.mongo.MongoTimePointHandler;
+import com.sunnysuperman.mongo.MongoTimeSeries;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.mongo.shard.ShardedMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoTimeSeriesTest extends TestCase {
+
+    public void test_bucket() {
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        MongoTimeSeries series = new MongoTimeSeries(repository, "metric", 1, TimeUnit.MINUTES).setMaxBucketSize(50);
+        series.ensureIndexes();
+        // 3 minutes of one point per second, appended newest window first
+        for (int minute = 2; minute >= 0; minute--) {
+            List<MongoTimePoint> points = new ArrayList<>();
+            for (int second = 0; second < 60; second++) {
+                long time = minute * 60000L + second * 1000L;
+                points.add(new MongoTimePoint(time, second));
+            }
+            series.append("cpu", points);
+        }
+        series.append("cpu", 30500, -1);
+        series.append("mem", 1000, 7);
+
+        // 60 points per window with 50 per bucket
+        assertEquals(6, repository.count("metric", new Document("key", "cpu")));
+        Document first = repository.find("metric", new Document("key", "cpu").append("start", 0L),
+                new Document("count", -1), null, RawMongoMapper.getInstance());
+        assertEquals(50, ((Number) first.get("count")).intValue());
+        assertEquals(0.0, first.get("minValue"));
+        assertEquals(49000L, ((Number) first.get("maxTime")).longValue());
+
+        List<MongoTimePoint> points = series.find("cpu", 29000, 91000);
+        assertEquals(63, points.size());
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(points.get(i - 1).getTime() <= points.get(i).getTime());
+        }
+        assertEquals(30500, points.get(2).getTime());
+        assertEquals(-1.0, points.get(2).getValue());
+        assertEquals(90000, points.get(62).getTime());
+        assertEquals(1, series.find("mem", 0, Long.MAX_VALUE).size());
+
+        final List<MongoTimePoint> head = new ArrayList<>();
+        series.scan("cpu", 0, Long.MAX_VALUE, new MongoTimePointHandler() {
+
+            @Override
+            public boolean handle(String seriesKey, MongoTimePoint point) {
+                head.add(point);
+                return head.size() < 5;
+            }
+
+        });
+        assertEquals(5, head.size());
+
+        assertEquals(2, series.removeBefore("cpu", 60000));
+        assertEquals(0, series.find("cpu", 0, 60000).size());
+        assertEquals(-60000, series.getBucketStart(-1));
+    }
+
+    public void test_paging() {
+        Map<String, MongoRepository> shards = new LinkedHashMap<>();
+        for (int i = 0; i < 2; i++) {
+            shards.put("shard" + i, new MemoryMongoRepository());
+        }
+        ShardedMongoRepository repository = new ShardedMongoRepository(shards);
+        repository.setShardKey("metric", "key");
+        MongoTimeSeries series = new MongoTimeSeries(repository, "metric", 1, TimeUnit.MINUTES).setMaxBucketSize(1);
+        series.ensureIndexes();
+        for (MongoRepository shard : shards.values()) {
+            assertEquals(2, ((MemoryMongoRepository) shard).getMemoryDatabase().getCollection("metric").listIndexes()
+                    .into(new ArrayList<Document>()).size());
+        }
+        // one bucket per point, several pages of buckets sharing a start
+        for (int second = 249; second >= 0; second--) {
+            series.append("cpu", second * 1000L, second);
+        }
+        List<MongoTimePoint> points = series.find("cpu", 0, Long.MAX_VALUE);
+        assertEquals(250, points.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(i * 1000L, points.get(i).getTime());
+        }
+        assertEquals(130, series.find("cpu", 120000, 250000).size());
+        repository.close();
+    }
+}
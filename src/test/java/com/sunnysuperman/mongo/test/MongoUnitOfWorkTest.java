@@ -0,0 +1,103 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoMapper;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoUnitOfWork;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoUnitOfWorkTest extends TestCase {
+
+    private static class CountingRepository extends MemoryMongoRepository {
+        int finds;
+        int batches;
+
+        @Override
+        public <T> T find(String collectionName, Bson filter, MongoMapper<T> mapper) {
+            finds++;
+            return super.find(collectionName, filter, mapper);
+        }
+
+        @Override
+        public BulkWriteResult batch(String collectionName, List<WriteModel<Document>> requests) {
+            batches++;
+            return super.batch(collectionName, requests);
+        }
+    }
+
+    public void test_unitOfWork() {
+        CountingRepository repository = new CountingRepository();
+        repository.insert("user", new Document(MongoRepository.ID, 1).append("name", "a"));
+        try (MongoUnitOfWork unit = MongoUnitOfWork.begin(repository)) {
+            Document user = repository.findById("user", 1, RawMongoMapper.getInstance());
+            assertSame(user, repository.findById("user", 1, RawMongoMapper.getInstance()));
+            assertNull(repository.findById("user", 2, RawMongoMapper.getInstance()));
+            assertNull(repository.findById("user", 2, RawMongoMapper.getInstance()));
+            assertEquals(2, repository.finds);
+            assertEquals(2, unit.getHits());
+
+            unit.updateById("user", new Document("$set", new Document("name", "b")), 1);
+            unit.save("user", new Document(MongoRepository.ID, 2).append("name", "c"));
+            unit.insert("order", new Document(MongoRepository.ID, 10).append("user", 1));
+            unit.insert("order", new Document(MongoRepository.ID, 11).append("user", 2));
+            unit.removeById("order", 10);
+            assertEquals(5, unit.getPendingWrites());
+
+            // reading a collection with queued writes sends them first
+            assertEquals(1, repository.count("order", new Document()));
+            assertEquals(1, repository.batches);
+            assertEquals(2, unit.getPendingWrites());
+            assertEquals("b", repository.findById("user", 1, RawMongoMapper.getInstance()).getString("name"));
+            assertEquals(2, repository.batches);
+            assertEquals(0, unit.commit());
+            assertEquals("c", repository.findById("user", 2, RawMongoMapper.getInstance()).getString("name"));
+
+            // a queued write only evicts the document it touches
+            user = repository.findById("user", 1, RawMongoMapper.getInstance());
+            unit.updateById("user", new Document("$set", new Document("name", "e")), 2);
+            assertSame(user, repository.findById("user", 1, RawMongoMapper.getInstance()));
+            assertEquals(2, repository.batches);
+            assertEquals("e", repository.findForList("user", new Document(MongoRepository.ID, 2), null, null, 0, 0,
+                    RawMongoMapper.getInstance()).get(0).getString("name"));
+            assertEquals(3, repository.batches);
+            assertSame(user, repository.findById("user", 1, RawMongoMapper.getInstance()));
+
+            // direct writes evict what the unit has read
+            repository.updateById("user", new Document("$set", new Document("name", "d")), 1);
+            assertEquals("d", repository.findById("user", 1, RawMongoMapper.getInstance()).getString("name"));
+
+            unit.removeById("user", 1);
+        }
+        assertNull(MongoUnitOfWork.current());
+        // closed without commit
+        assertEquals(2, repository.count("user", new Document()));
+    }
+
+    public void test_commitFailure() {
+        CountingRepository repository = new CountingRepository();
+        repository.insert("user", new Document(MongoRepository.ID, 1));
+        try (MongoUnitOfWork unit = MongoUnitOfWork.begin(repository)) {
+            unit.insert("user", new Document(MongoRepository.ID, 1));
+            unit.insert("order", new Document(MongoRepository.ID, 10));
+            try {
+                unit.commit();
+                fail();
+            } catch (RuntimeException e) {
+                // duplicate key
+            }
+            // the collections after the failed one stay queued
+            assertEquals(1, unit.getPendingWrites());
+            assertEquals(1, unit.commit());
+            assertEquals(1, repository.count("order", new Document()));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.sunnysuperman.mongo.MongoQueryCache;
+import com.sunnysuperman.mongo.MongoReadOperation;
+import com.sunnysuperman.mongo.MongoWarmUpPlan;
+import com.sunnysuperman.mongo.MongoWarmUpReport;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoWarmUpTest extends TestCase {
+
+    private static class SlowRepository extends MemoryMongoRepository {
+
+        @Override
+        protected MongoCollection<Document> getReadCollection(MongoDatabase database, String collectionName,
+                MongoReadOperation operation, ReadPreference readPreference) {
+            if (collectionName.equals("slow")) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getReadCollection(database, collectionName, operation, readPreference);
+        }
+    }
+
+    public void test_warmUp() {
+        SlowRepository repository = new SlowRepository();
+        MongoQueryCache cache = new MongoQueryCache(100, 1, TimeUnit.MINUTES);
+        repository.setQueryCache(cache);
+        for (int i = 0; i < 10; i++) {
+            repository.insert("item", new Document("score", i));
+        }
+        MongoWarmUpPlan plan = new MongoWarmUpPlan().setConnections(4).addCollection("item")
+                .addScanPackage("com.sunnysuperman.mongo.test").addBeanClass(MongoPackedArraysTest.Series.class)
+                .addQuery("item", new Document("score", new Document("$gte", 5)), new Document("score", -1), 3);
+        MongoWarmUpReport report = repository.warmUp(plan);
+        assertTrue(report.toString(), report.isReady());
+        assertEquals(8, report.getSteps().size());
+        assertEquals("scan:com.sunnysuperman.mongo.test", report.getSteps().get(0).getName());
+        repository.findForList("item", new Document("score", new Document("$gte", 5)), new Document("score", -1), null,
+                0, 3, RawMongoMapper.getInstance());
+        assertEquals(1, cache.getHits());
+
+        plan.addCollection("slow").setTimeout(200, TimeUnit.MILLISECONDS);
+        report = repository.warmUp(plan);
+        assertFalse(report.isReady());
+        assertEquals(1, report.getFailedSteps().size());
+        assertEquals("collection:slow", report.getFailedSteps().get(0).getName());
+        assertTrue(report.getElapsedMillis() < 1000);
+    }
+}
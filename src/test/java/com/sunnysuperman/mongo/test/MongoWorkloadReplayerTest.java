@@ -0,0 +1,178 @@
+package com.sunnysuperman.mongo.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoWorkloadOperation;
+import com.sunnysuperman.mongo.MongoWorkloadRecord;
+import com.sunnysuperman.mongo.MongoWorkloadRecorder;
+import com.sunnysuperman.mongo.MongoWorkloadReplayer;
+import com.sunnysuperman.mongo.MongoWorkloadReport;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+
+import junit.framework.TestCase;
+
+public class MongoWorkloadReplayerTest extends TestCase {
+
+    private List<MongoWorkloadRecord> capture() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MongoWorkloadRecorder recorder = new MongoWorkloadRecorder(out, 1024).setValueBuckets(100);
+        MemoryMongoRepository repository = new MemoryMongoRepository();
+        repository.setWorkloadRecorder(recorder);
+        for (int i = 0; i < 10; i++) {
+            repository.insert("user", new Document("name", i % 2 == 0 ? "alice" : "bob").append("score", i));
+        }
+        repository.find("user", new Document("name", "alice"), RawMongoMapper.getInstance());
+        repository.findForList("user", new Document("name", "bob"), new Document("score", -1), null, 0, 3,
+                RawMongoMapper.getInstance());
+        assertEquals(5, repository.count("user", new Document("name", "alice")));
+        List<Document> groups = new ArrayList<>();
+        Document match = new Document("$match", new Document("score", new Document("$gte", 5)));
+        Document group = new Document("$group", new Document("_id", "$name").append("n", new Document("$sum", 1)));
+        repository.aggregate("user", Arrays.asList(match, group), groups, RawMongoMapper.getInstance());
+        assertEquals(2, groups.size());
+        repository.updateMany("user", new Document("name", "bob"), new Document("$inc", new Document("score", 1)),
+                new UpdateOptions());
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        requests.add(new InsertOneModel<>(new Document("name", "carol").append("score", 20)));
+        requests.add(new UpdateManyModel<Document>(new Document("name", "alice"),
+                new Document("$inc", new Document("score", 1))));
+        repository.batch("user", requests, new BulkWriteOptions().ordered(false));
+        recorder.close();
+        assertEquals(16, recorder.getRecorded());
+        assertEquals(0, recorder.getDropped());
+        return MongoWorkloadRecorder.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void test_record() throws Exception {
+        List<MongoWorkloadRecord> records = capture();
+        assertEquals(16, records.size());
+        assertEquals(MongoWorkloadOperation.INSERT, records.get(0).getOperation());
+        assertEquals("user", records.get(0).getCollectionName());
+
+        MongoWorkloadRecord find = records.get(10);
+        assertEquals(MongoWorkloadOperation.FIND, find.getOperation());
+        Object alice = ((Document) find.getShape().get("q")).get("name");
+        assertTrue(alice instanceof String);
+        assertFalse(alice.equals("alice"));
+        // the same value always gets the same pseudonym
+        assertEquals(alice, ((Document) records.get(0).getShape().get("q")).get("name"));
+        assertEquals(alice, ((Document) records.get(12).getShape().get("q")).get("name"));
+
+        MongoWorkloadRecord list = records.get(11);
+        assertEquals(MongoWorkloadOperation.FIND_FOR_LIST, list.getOperation());
+        assertEquals(new Document("score", -1), list.getShape().get("x"));
+        assertEquals(Integer.valueOf(3), list.getShape().getInteger("n"));
+
+        @SuppressWarnings("unchecked")
+        List<Document> pipeline = (List<Document>) records.get(13).getShape().get("q");
+        assertEquals("$name", ((Document) pipeline.get(1).get("$group")).get("_id"));
+
+        MongoWorkloadRecord update = records.get(14);
+        assertEquals(MongoWorkloadOperation.UPDATE_MANY, update.getOperation());
+        assertTrue(((Document) update.getShape().get("x")).containsKey("$inc"));
+
+        // batches record their requests
+        MongoWorkloadRecord batch = records.get(15);
+        assertEquals(MongoWorkloadOperation.BATCH, batch.getOperation());
+        assertEquals(Integer.valueOf(2), batch.getShape().getInteger("n"));
+        assertEquals(new Document("ordered", false), batch.getShape().get("x"));
+        @SuppressWarnings("unchecked")
+        List<Document> requests = (List<Document>) batch.getShape().get("q");
+        assertEquals("insertOne", requests.get(0).getString("op"));
+        assertEquals("updateMany", requests.get(1).getString("op"));
+        assertEquals(alice, ((Document) requests.get(1).get("q")).get("name"));
+        assertFalse(batch.getShape().containsKey("t"));
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i).getOffsetMicros() >= records.get(i - 1).getOffsetMicros());
+        }
+    }
+
+    public void test_replay() throws Exception {
+        MongoWorkloadReplayer replayer = new MongoWorkloadReplayer(capture()).setWorkers(4).setSpeed(0);
+        MemoryMongoRepository target = new MemoryMongoRepository();
+        MongoWorkloadReport report = replayer.replay(target);
+        assertEquals(12, report.getSkipped());
+        assertEquals(4, report.getCount());
+        assertEquals(0, report.getErrors());
+        MongoWorkloadReport.Stats stats = report.getStats(MongoWorkloadOperation.FIND_FOR_LIST);
+        assertEquals(1, stats.getCount());
+        assertTrue(stats.getPercentileMicros(50) > 0);
+        assertTrue(stats.getMaxMicros() >= stats.getPercentileMicros(99));
+        assertNull(report.getStats(MongoWorkloadOperation.INSERT));
+        assertEquals(0, target.count("user", new Document()));
+
+        // writes included, replayed twice at a fixed rate
+        replayer.setReplayWrites(true).setRate(1000);
+        long start = System.nanoTime();
+        replayer.replay(target);
+        report = replayer.replay(target);
+        assertTrue(System.nanoTime() - start > 2 * 15 * 1000000L);
+        assertEquals(0, report.getSkipped());
+        assertEquals(16, report.getCount());
+        assertEquals(0, report.getErrors());
+        assertEquals(22, target.count("user", new Document()));
+        assertEquals(10, report.getStats(MongoWorkloadOperation.INSERT).getCount());
+        assertTrue(report.getThroughput() > 0);
+
+        // N times the recorded pace
+        report = replayer.setSpeed(10).replay(target);
+        assertEquals(16, report.getCount());
+        assertEquals(33, target.count("user", new Document()));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void test_sanitizePipeline() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MongoWorkloadRecorder recorder = new MongoWorkloadRecorder(out, 16);
+        Document match = new Document("$match", new Document("name", "alice"));
+        Document lookup = new Document("$lookup", new Document("from", "order").append("as", "orders")
+                .append("pipeline", Arrays.asList(new Document("$match", new Document("status", "paid")))));
+        Document facet = new Document("$facet", new Document("paid", Arrays.asList(lookup)));
+        Document addFields = new Document("$addFields", new Document("label", "secret")
+                .append("full", new Document("$concat", Arrays.asList("$name", "secret"))));
+        Document project = new Document("$project", new Document("name", 1).append("tag", "secret"));
+        recorder.record(MongoWorkloadOperation.AGGREGATE, "user", System.nanoTime(),
+                Arrays.asList(match, facet, addFields, project), null, 0, 0);
+        List<Document> many = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            many.add(new Document("score", i));
+        }
+        recorder.setMaxValues(5).record(MongoWorkloadOperation.INSERT_MANY, "user", System.nanoTime(), many, null,
+                0, 0);
+        recorder.close();
+        List<MongoWorkloadRecord> records = MongoWorkloadRecorder.read(new ByteArrayInputStream(out.toByteArray()));
+
+        List<Document> pipeline = (List<Document>) records.get(0).getShape().get("q");
+        Document paid = ((List<Document>) ((Document) pipeline.get(1).get("$facet")).get("paid")).get(0);
+        Document nested = (Document) paid.get("$lookup");
+        assertEquals("order", nested.get("from"));
+        Object status = ((Document) ((List<Document>) nested.get("pipeline")).get(0).get("$match")).get("status");
+        assertFalse("paid".equals(status));
+        Document fields = (Document) pipeline.get(2).get("$addFields");
+        assertFalse("secret".equals(fields.get("label")));
+        List<Object> concat = (List<Object>) ((Document) fields.get("full")).get("$concat");
+        assertEquals("$name", concat.get(0));
+        assertFalse("secret".equals(concat.get(1)));
+        Document projection = (Document) pipeline.get(3).get("$project");
+        assertEquals(1, projection.get("name"));
+        assertFalse("secret".equals(projection.get("tag")));
+        assertFalse(records.get(0).getShape().containsKey("t"));
+
+        // large operations are cut
+        MongoWorkloadRecord insert = records.get(1);
+        assertEquals(Boolean.TRUE, insert.getShape().get("t"));
+        assertTrue(((List<?>) insert.getShape().get("q")).size() < 10);
+    }
+}
@@ -0,0 +1,273 @@
+package com.sunnysuperman.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.sunnysuperman.mongo.MongoChunkedWrite;
+import com.sunnysuperman.mongo.MongoIndexAdvisor;
+import com.sunnysuperman.mongo.MongoMaterializedView;
+import com.sunnysuperman.mongo.MongoQueryCache;
+import com.sunnysuperman.mongo.MongoRepository;
+import com.sunnysuperman.mongo.MongoWarmUpPlan;
+import com.sunnysuperman.mongo.MongoWarmUpReport;
+import com.sunnysuperman.mongo.mapper.RawMongoMapper;
+import com.sunnysuperman.mongo.memory.MemoryMongoRepository;
+import com.sunnysuperman.mongo.shard.ShardedMongoRepository;
+import com.sunnysuperman.repository.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class ShardedMongoRepositoryTest extends TestCase {
+    private ShardedMongoRepository repository;
+
+    @Override
+    protected void setUp() throws Exception {
+        Map<String, MongoRepository> shards = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            shards.put("shard" + i, new MemoryMongoRepository());
+        }
+        repository = new ShardedMongoRepository(shards);
+        List<Document> docs = new ArrayList<>();
+        for (int i = 1; i <= 30; i++) {
+            docs.add(new Document(MongoRepository.ID, (long) i).append("score", i * 10).append("group",
+                    i % 2 == 0 ? "even" : "odd"));
+        }
+        repository.insertMany("item", docs);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        repository.close();
+    }
+
+    public void test_routing() {
+        int used = 0;
+        for (MongoRepository shard : repository.getShards().values()) {
+            long count = shard.count("item", new Document());
+            assertTrue(count < 30);
+            used += count > 0 ? 1 : 0;
+        }
+        assertEquals(3, used);
+        assertEquals(30, repository.count("item", new Document()));
+        assertEquals(1, repository.getShard(7L).count("item", Filters.eq(MongoRepository.ID, 7L)));
+        assertEquals(70, repository.findById("item", 7L, RawMongoMapper.getInstance()).get("score"));
+        assertTrue(repository.updateById("item", new Document("$set", new Document("score", 1)), 7L));
+        assertEquals(15, repository.updateMany("item", new Document("group", "odd"),
+                new Document("$inc", new Document("score", 1)), new UpdateOptions()));
+        assertEquals(2, repository.count("item", Filters.in(MongoRepository.ID, 7L, 8L, 99L)));
+        assertEquals(15, repository.removeMany("item", Filters.eq("group", "even")));
+        assertEquals(15, repository.count("item", new Document()));
+    }
+
+    public void test_merge() {
+        List<Document> items = repository.findForList("item", Filters.gt("score", 50), Sorts.descending("score"),
+                Projections.include("group"), 3, 4, RawMongoMapper.getInstance());
+        assertEquals(4, items.size());
+        assertEquals(Long.valueOf(27), items.get(0).get(MongoRepository.ID));
+        assertEquals(Long.valueOf(24), items.get(3).get(MongoRepository.ID));
+        assertFalse(items.get(0).containsKey("score"));
+
+        Document top = repository.find("item", Filters.eq("group", "odd"), Sorts.descending("score"), null,
+                RawMongoMapper.getInstance());
+        assertEquals(Long.valueOf(29), top.get(MongoRepository.ID));
+
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(Filters.eq("group", "even")),
+                Aggregates.sort(Sorts.ascending("score")), Aggregates.skip(2), Aggregates.limit(3));
+        List<Document> docs = new ArrayList<>();
+        repository.aggregate("item", pipeline, docs, RawMongoMapper.getInstance());
+        assertEquals(3, docs.size());
+        assertEquals(60, docs.get(0).get("score"));
+        assertEquals(100, docs.get(2).get("score"));
+
+        // the global window of a trailing $limit then $skip is kept
+        pipeline = Arrays.asList(Aggregates.sort(Sorts.descending("score")), Aggregates.limit(5),
+                Aggregates.skip(2));
+        docs.clear();
+        repository.aggregate("item", pipeline, docs, RawMongoMapper.getInstance());
+        assertEquals(3, docs.size());
+        assertEquals(280, docs.get(0).get("score"));
+        assertEquals(260, docs.get(2).get("score"));
+
+        try {
+            repository.aggregate("item", Arrays.asList(Aggregates.group("$group")), docs,
+                    RawMongoMapper.getInstance());
+            fail();
+        } catch (RepositoryException ex) {
+            // per-shard groups would be partial
+        }
+        try {
+            repository.aggregate("item", Arrays.asList(Aggregates.lookup("item", "group", "group", "peers")), docs,
+                    RawMongoMapper.getInstance());
+            fail();
+        } catch (RepositoryException ex) {
+            // each shard would only see its own peers
+        }
+    }
+
+    public void test_singleWrites() {
+        // the first shard's match is already up to date: no other shard may be updated instead
+        Document flag = new Document("$set", new Document("flag", true));
+        assertTrue(repository.getShards().get("shard0").update("item", flag, new Document("group", "odd")));
+        assertFalse(repository.update("item", flag, new Document("group", "odd")));
+        assertEquals(1, repository.count("item", Filters.eq("flag", true)));
+        assertTrue(repository.update("item", flag, new Document("group", "even")));
+        assertEquals(2, repository.count("item", Filters.eq("flag", true)));
+
+        Document doc = repository.findAndUpdate("item", Filters.eq("group", "even"),
+                new Document("$set", new Document("top", true)),
+                new FindOneAndUpdateOptions().sort(Sorts.descending("score")));
+        assertEquals(Long.valueOf(30), doc.get(MongoRepository.ID));
+        assertEquals(1, repository.count("item", Filters.eq("top", true)));
+
+        doc = repository.findAndRemove("item", Filters.gt("score", 0),
+                new FindOneAndDeleteOptions().sort(Sorts.ascending("score")));
+        assertEquals(Long.valueOf(1), doc.get(MongoRepository.ID));
+        assertEquals(29, repository.count("item", new Document()));
+    }
+
+    private static InsertOneModel<Document> insert(long id) {
+        return new InsertOneModel<>(new Document(MongoRepository.ID, id));
+    }
+
+    // an existing id of another shard than the given one
+    private long idOfOtherShard(long id) {
+        for (long i = 1; i <= 30; i++) {
+            if (repository.getShard(i) != repository.getShard(id)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    public void test_batchErrors() {
+        long first = 1;
+        long second = idOfOtherShard(first);
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        requests.add(insert(31));
+        requests.add(insert(first));
+        requests.add(insert(32));
+        requests.add(insert(second));
+        try {
+            repository.batch("item", requests, new BulkWriteOptions().ordered(false));
+            fail();
+        } catch (MongoBulkWriteException ex) {
+            // the indexes refer to the whole batch and the other shards' results are kept
+            assertEquals(2, ex.getWriteErrors().size());
+            assertEquals(1, ex.getWriteErrors().get(0).getIndex());
+            assertEquals(3, ex.getWriteErrors().get(1).getIndex());
+            assertEquals(2, ex.getWriteResult().getInsertedCount());
+        }
+        assertEquals(32, repository.count("item", new Document()));
+
+        // ordered batches stop at the first error, also when the rest goes to another shard
+        long duplicate = idOfOtherShard(40);
+        requests.clear();
+        requests.add(insert(40));
+        requests.add(insert(duplicate));
+        requests.add(insert(41));
+        try {
+            repository.batch("item", requests);
+            fail();
+        } catch (MongoBulkWriteException ex) {
+            assertEquals(1, ex.getWriteErrors().size());
+            assertEquals(1, ex.getWriteErrors().get(0).getIndex());
+            assertEquals(1, ex.getWriteResult().getInsertedCount());
+        }
+        assertEquals(1, repository.count("item", Filters.eq(MongoRepository.ID, 40L)));
+        assertEquals(0, repository.count("item", Filters.eq(MongoRepository.ID, 41L)));
+    }
+
+    public void test_shardKeyTypes() {
+        // keys are placed by value, not by identity or the time zone of the JVM
+        assertSame(repository.getShard(new Date(1000)), repository.getShard(new Date(1000)));
+        assertSame(repository.getShard(new byte[] { 1, 2 }), repository.getShard(new byte[] { 1, 2 }));
+        assertSame(repository.getShard(new byte[] { 1, 2 }), repository.getShard(new Binary(new byte[] { 1, 2 })));
+        try {
+            repository.getShard(Boolean.TRUE);
+            fail();
+        } catch (RepositoryException ex) {
+            // not a supported shard key type
+        }
+    }
+
+    public void test_shardOnlySettings() {
+        try {
+            repository.setQueryCache(new MongoQueryCache(100, 1, TimeUnit.MINUTES));
+            fail();
+        } catch (RepositoryException ex) {
+            // set on the shards
+        }
+        try {
+            repository.addMaterializedView(new MongoMaterializedView("item", "item_stats", "group").count("items"));
+            fail();
+        } catch (RepositoryException ex) {
+            // each shard would only see its own items
+        }
+        try {
+            repository.setIndexAdvisor(new MongoIndexAdvisor());
+            fail();
+        } catch (RepositoryException ex) {
+            // explained on the shards
+        }
+        assertNull(repository.getQueryCache());
+    }
+
+    public void test_chunkedWrite() {
+        MongoChunkedWrite write = repository.removeManyInChunks("item", Filters.eq("group", "odd")).setChunkSize(10)
+                .setCheckpoint("odd");
+        write.run();
+        assertTrue(write.isDone());
+        assertEquals(15, write.getProcessed());
+        assertEquals(15, repository.count("item", new Document()));
+        Document checkpoint = repository.findById(MongoChunkedWrite.DEFAULT_CHECKPOINT_COLLECTION, "odd",
+                RawMongoMapper.getInstance());
+        assertEquals(Boolean.TRUE, checkpoint.get("done"));
+    }
+
+    public void test_rebalance() {
+        repository.addShard("shard3", new MemoryMongoRepository());
+        assertTrue(repository.isRebalancing());
+        for (long i = 1; i <= 30; i++) {
+            assertNotNull(repository.findById("item", i, RawMongoMapper.getInstance()));
+        }
+        assertTrue(repository.updateById("item", new Document("$set", new Document("moved", true)), 5L));
+        assertEquals(1, repository.getShard(5L).count("item", Filters.eq(MongoRepository.ID, 5L)));
+
+        long moved = repository.rebalance("item");
+        repository.finishRebalance();
+        assertTrue(moved > 0);
+        assertTrue(repository.getShards().get("shard3").count("item", new Document()) > 0);
+        assertEquals(30, repository.count("item", new Document()));
+        for (long i = 1; i <= 30; i++) {
+            assertEquals(1, repository.getShard(i).count("item", Filters.eq(MongoRepository.ID, i)));
+        }
+    }
+
+    public void test_warmUp() {
+        MongoWarmUpReport report = repository.warmUp(new MongoWarmUpPlan().setConnections(2).addCollection("item")
+                .addQuery("item", Filters.eq("group", "odd"), Sorts.descending("score"), 3));
+        assertTrue(report.toString(), report.isReady());
+        assertEquals(12, report.getSteps().size());
+        assertEquals("shard0/connection:0", report.getSteps().get(0).getName());
+    }
+}